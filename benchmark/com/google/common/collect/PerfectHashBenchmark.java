@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtIncompatible;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares lookups in immutable maps built by {@link ImmutableMap#copyOf} with
+ * lookups in the same entries indexed by a minimal perfect hash, as built by
+ * {@link ImmutableMap#perfectHashCopyOf}. The keys are random hex strings, and
+ * half of the lookups are hits. For each size the benchmark reports the build
+ * time of each form, and the average time of {@code get} in nanoseconds.
+ *
+ * <p>Usage: {@code PerfectHashBenchmark [SIZE...]}, which defaults to sizes
+ * 1000, 10000, 100000 and 1000000.
+ */
+@GwtIncompatible("not needed in emulated source")
+public final class PerfectHashBenchmark {
+  private PerfectHashBenchmark() {}
+
+  static final int LOOKUPS = 4000000;
+  static final int ROUNDS = 5;
+
+  /** Keeps the JIT from discarding the lookups being timed. */
+  static volatile Object sink;
+
+  public static void main(String[] args) {
+    int[] sizes = {1000, 10000, 100000, 1000000};
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+    PrintStream out = System.out;
+    out.println("size      build (regular/perfect)    get (regular/perfect)");
+    for (int size : sizes) {
+      run(out, size);
+    }
+  }
+
+  static void run(PrintStream out, int size) {
+    Random random = new Random(size);
+    List<String> keys = Lists.newArrayListWithCapacity(size);
+    Map<String, String> map = Maps.newLinkedHashMap();
+    while (map.size() < size) {
+      String key = Long.toHexString(random.nextLong());
+      if (map.put(key, key) == null) {
+        keys.add(key);
+      }
+    }
+    // every other probe is a copy of a key, so equals runs in full
+    String[] probes = new String[LOOKUPS];
+    for (int i = 0; i < LOOKUPS; i++) {
+      probes[i] = ((i & 1) == 0)
+          ? new String(keys.get(random.nextInt(size)))
+          : Long.toHexString(random.nextLong());
+    }
+
+    long start = System.nanoTime();
+    ImmutableMap<String, String> regularMap = ImmutableMap.copyOf(map);
+    long regularBuild = System.nanoTime() - start;
+    start = System.nanoTime();
+    ImmutableMap<String, String> perfectMap =
+        ImmutableMap.perfectHashCopyOf(map);
+    long perfectBuild = System.nanoTime() - start;
+
+    double regularBest = Double.MAX_VALUE;
+    double perfectBest = Double.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      regularBest = Math.min(regularBest, timeGet(regularMap, probes));
+      perfectBest = Math.min(perfectBest, timeGet(perfectMap, probes));
+    }
+    out.printf("%-9d %5dms / %5dms          %6.1f / %6.1f ns%n", size,
+        regularBuild / 1000000, perfectBuild / 1000000,
+        regularBest, perfectBest);
+  }
+
+  static double timeGet(ImmutableMap<String, String> map, String[] probes) {
+    int hits = 0;
+    long start = System.nanoTime();
+    for (String probe : probes) {
+      if (map.get(probe) != null) {
+        hits++;
+      }
+    }
+    double nanos = (double) (System.nanoTime() - start) / probes.length;
+    sink = hits;
+    return nanos;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.GwtIncompatible;
+import com.google.common.base.Function;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compares reads of hot keys from a computing map built by {@link MapMaker}
+ * with and without a {@linkplain MapMaker#threadLocalCache thread-local
+ * cache}. Each round reads a fixed set of keys cyclically, after they have all
+ * been computed, and reports the average time of a read in nanoseconds.
+ *
+ * <p>Usage: {@code ThreadLocalCacheBenchmark [KEYS [CACHE_SIZE [READS]]]},
+ * which defaults to reading 16 keys, with a thread-local cache of 128
+ * mappings, 20 million times per round.
+ */
+@GwtIncompatible("java.lang.ThreadLocal")
+public final class ThreadLocalCacheBenchmark {
+  private ThreadLocalCacheBenchmark() {}
+
+  static final int ROUNDS = 5;
+
+  /** Keeps the JIT from discarding the reads being timed. */
+  static volatile Object sink;
+
+  public static void main(String[] args) {
+    int keyCount = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+    int cacheSize = (args.length > 1) ? Integer.parseInt(args[1]) : 128;
+    int reads = (args.length > 2) ? Integer.parseInt(args[2]) : 20000000;
+    checkArgument(keyCount > 0, "key count must be positive: %s", keyCount);
+
+    String[] keys = new String[keyCount];
+    for (int i = 0; i < keyCount; i++) {
+      keys[i] = "config.key." + i;
+    }
+    Function<String, String> function = new Function<String, String>() {
+      @Override public String apply(String key) {
+        return key + ".value";
+      }
+    };
+    ConcurrentMap<String, String> computing =
+        new MapMaker().makeComputingMap(function);
+    ConcurrentMap<String, String> threadLocal =
+        new MapMaker().threadLocalCache(cacheSize).makeComputingMap(function);
+
+    PrintStream out = System.out;
+    out.printf("%d keys, thread-local cache of %d%n", keyCount, cacheSize);
+    for (int round = 0; round < ROUNDS; round++) {
+      out.printf("computing %5.1f ns   threadLocalCache %5.1f ns%n",
+          time(computing, keys, reads), time(threadLocal, keys, reads));
+    }
+  }
+
+  /** Returns the average time of a read of {@code map}, in nanoseconds. */
+  static double time(ConcurrentMap<String, String> map, String[] keys,
+      int reads) {
+    Object value = null;
+    long start = System.nanoTime();
+    for (int i = 0; i < reads; i++) {
+      value = map.get(keys[i % keys.length]);
+    }
+    double nanos = (double) (System.nanoTime() - start) / reads;
+    sink = value;
+    return nanos;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.base.Equivalence;
+import com.google.common.base.Function;
+import com.google.common.collect.MapMaker.ComputingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+/**
+ * A computing map whose values are the futures returned by an asynchronous
+ * computing function. The in-flight future is stored as soon as the function
+ * returns it, so concurrent lookups of the same key share it rather than
+ * waiting for the computation to finish. Futures which fail or are cancelled
+ * are removed from the map, so that the next lookup retries.
+ */
+class AsyncComputingConcurrentHashMap<K, V>
+    extends ComputingConcurrentHashMap<K, ListenableFuture<V>> {
+
+  AsyncComputingConcurrentHashMap(MapMaker builder,
+      Function<? super K, ? extends ListenableFuture<V>> computingFunction) {
+    super(builder, computingFunction, null);
+  }
+
+  @Override void valueComputed(
+      final K key, final ListenableFuture<V> future) {
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        if (failed(future)) {
+          // only if the map still holds this very future
+          remove(key, future);
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+  }
+
+  /** Returns whether a completed future was cancelled or failed. */
+  static boolean failed(Future<?> future) {
+    if (future.isCancelled()) {
+      return true;
+    }
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          future.get();
+          return false;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          return true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /* ---------------- Serialization Support -------------- */
+
+  private static final long serialVersionUID = 0;
+
+  @Override Object writeReplace() {
+    return new AsyncComputingSerializationProxy<K, V>(keyStrength,
+        valueStrength, keyEquivalence, valueEquivalence,
+        expireAfterWriteNanos, expireAfterAccessNanos, expiry, refreshNanos,
+        maxWeight, weigher, admitByFrequency, offHeapCapacity,
+        offHeapKeySerializer, offHeapValueSerializer, concurrencyLevel,
+        removalListener, this, computingFunction);
+  }
+
+  static final class AsyncComputingSerializationProxy<K, V>
+      extends ComputingSerializationProxy<K, ListenableFuture<V>> {
+
+    AsyncComputingSerializationProxy(Strength keyStrength,
+        Strength valueStrength,
+        Equivalence<Object> keyEquivalence,
+        Equivalence<Object> valueEquivalence,
+        long expireAfterWriteNanos,
+        long expireAfterAccessNanos,
+        @Nullable Expiry<K, ListenableFuture<V>> expiry,
+        long refreshNanos,
+        long maxWeight,
+        Weigher<K, ListenableFuture<V>> weigher,
+        boolean admitByFrequency,
+        long offHeapCapacity,
+        @Nullable OffHeapSerializer<K> offHeapKeySerializer,
+        @Nullable OffHeapSerializer<ListenableFuture<V>>
+            offHeapValueSerializer,
+        int concurrencyLevel,
+        RemovalListener<? super K, ? super ListenableFuture<V>>
+            removalListener,
+        ConcurrentMap<K, ListenableFuture<V>> delegate,
+        Function<? super K, ? extends ListenableFuture<V>> computingFunction) {
+      super(keyStrength, valueStrength, keyEquivalence, valueEquivalence,
+          expireAfterWriteNanos, expireAfterAccessNanos, expiry, refreshNanos,
+          maxWeight, weigher, admitByFrequency, offHeapCapacity,
+          offHeapKeySerializer, offHeapValueSerializer, concurrencyLevel,
+          removalListener, delegate, computingFunction, null);
+    }
+
+    @Override ComputingCache<K, ListenableFuture<V>> makeCache(
+        MapMaker mapMaker) {
+      return mapMaker.makeAsyncComputingCache(computingFunction);
+    }
+
+    private static final long serialVersionUID = 0;
+  }
+}
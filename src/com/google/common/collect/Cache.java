@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Function;
+
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * A semi-persistent mapping from keys to values. Values are automatically
+ * computed by the cache on a miss, and are stored in the cache until they are
+ * evicted or manually invalidated. Instances are built by {@link
+ * MapMaker#makeCache}.
+ *
+ * <p>Implementations of this interface are expected to be thread-safe, and can
+ * be safely accessed by multiple concurrent threads.
+ *
+ * @param <K> the type of the cache's keys
+ * @param <V> the type of the cache's values
+ * @since 10
+ */
+@Beta
+public interface Cache<K, V> extends Function<K, V> {
+
+  /**
+   * Returns the value associated with {@code key} in this cache, first
+   * computing that value if necessary. No state associated with {@code key} is
+   * modified until computation completes. If another thread is currently
+   * computing the value for {@code key}, simply waits for that thread to finish
+   * and returns its computed value.
+   *
+   * @throws NullPointerException if {@code key} is null or the computing
+   *     function returns null
+   * @throws ComputationException if an exception was thrown by the computing
+   *     function
+   */
+  V get(K key);
+
+  /**
+   * Returns a map of the values associated with {@code keys}, first computing
+   * those values if necessary. The returned map contains an entry for each
+   * distinct key, in the order the keys were first encountered. All absent
+   * keys are computed together: caches built by {@link MapMaker#makeBatchCache}
+   * load them with a single invocation of the batch function. Other threads
+   * looking up any of those keys in the meantime wait for that computation
+   * rather than starting their own, and keys which another thread is already
+   * computing are likewise waited on.
+   *
+   * <p>The computing function must not itself look up any of those keys, or
+   * any key which the calling thread is already computing. Such a lookup
+   * would wait for itself forever, so it fails instead.
+   *
+   * @throws NullPointerException if any key is null or the computing function
+   *     returns null
+   * @throws ComputationException if an exception was thrown by the computing
+   *     function
+   * @throws IllegalStateException if one of the keys is already being
+   *     computed by the calling thread
+   */
+  ImmutableMap<K, V> getAll(Iterable<? extends K> keys);
+
+  /**
+   * Returns the value associated with {@code key} in this cache, or {@code
+   * null} if there is no cached value for {@code key}. Never triggers
+   * computation.
+   *
+   * @throws NullPointerException if {@code key} is null
+   */
+  @Nullable V getIfPresent(Object key);
+
+  /**
+   * Discards any cached value for key {@code key}, possibly asynchronously, so
+   * that a future invocation of {@code get(key)} will result in a cache miss
+   * and recomputation.
+   *
+   * @throws NullPointerException if {@code key} is null
+   */
+  void invalidate(Object key);
+
+  /**
+   * Discards all entries in the cache, possibly asynchronously.
+   */
+  void invalidateAll();
+
+  /**
+   * Returns a current snapshot of this cache's cumulative statistics. All
+   * stats are initialized to zero, and are monotonically increasing over the
+   * lifetime of the cache.
+   *
+   * <p>Each invocation of the batch function by {@link #getAll} counts as a
+   * single load, however many keys it loads, while each key it loads counts
+   * as a miss.
+   */
+  CacheStats stats();
+
+  /**
+   * Returns a view of the entries stored in this cache as a thread-safe map.
+   * Modifications made to the map directly affect the cache. No methods on the
+   * map will ever trigger computation.
+   */
+  ConcurrentMap<K, V> asMap();
+
+  /**
+   * Equivalent to {@link #get}; provided only to satisfy the {@link Function}
+   * interface.
+   */
+  @Override
+  V apply(K key);
+}
@@ -21,13 +21,20 @@ import static com.google.common.base.Preconditions.checkState;
 
 import com.google.common.base.Equivalence;
 import com.google.common.base.Function;
-import com.google.common.collect.MapMaker.Cache;
+import com.google.common.collect.MapMaker.ComputingCache;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -38,17 +45,25 @@ import javax.annotation.concurrent.GuardedBy;
  * @author Bob Lee
  */
 class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
-    implements Cache<K, V> {
+    implements ComputingCache<K, V> {
+  private static final Logger logger =
+      Logger.getLogger(ComputingConcurrentHashMap.class.getName());
+
   final Function<? super K, ? extends V> computingFunction;
 
+  /** Loads many keys at once for {@link #getAll}, or null if unsupported. */
+  @Nullable final Function<? super Set<K>, ? extends Map<K, V>> batchFunction;
+
   /**
    * Creates a new, empty map with the specified strategy, initial capacity,
    * load factor and concurrency level.
    */
   ComputingConcurrentHashMap(MapMaker builder,
-      Function<? super K, ? extends V> computingFunction) {
+      Function<? super K, ? extends V> computingFunction,
+      @Nullable Function<? super Set<K>, ? extends Map<K, V>> batchFunction) {
     super(builder);
     this.computingFunction = checkNotNull(computingFunction);
+    this.batchFunction = batchFunction;
   }
 
   @Override
@@ -56,8 +71,17 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
     return this;
   }
 
-  @Override Segment createSegment(int initialCapacity, int maxSegmentSize) {
-    return new ComputingSegment(initialCapacity, maxSegmentSize);
+  @Override
+  public CacheStats stats() {
+    return super.stats();
+  }
+
+  @Override StatsCounter newStatsCounter() {
+    return new SimpleStatsCounter();
+  }
+
+  @Override Segment createSegment(int initialCapacity, long maxSegmentWeight) {
+    return new ComputingSegment(initialCapacity, maxSegmentWeight);
   }
 
   @SuppressWarnings("unchecked") // explain
@@ -71,67 +95,192 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
     return segmentFor(hash).compute(key, hash);
   }
 
+  /**
+   * Invoked, without holding any lock, after {@code value} has been computed
+   * for {@code key} and offered to the map. Does nothing by default.
+   */
+  void valueComputed(K key, V value) {}
+
+  /**
+   * Returns the values of all {@code keys}, computing those which are absent.
+   * Absent keys from every segment are first claimed with computing
+   * placeholders, so that concurrent lookups of them wait rather than
+   * computing them again, and are then computed together: with a single
+   * invocation of the batch function if there is one, or otherwise one key at
+   * a time. Keys already being computed by other threads are waited on.
+   */
+  @Override
+  public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) {
+    Set<K> keySet = Sets.newLinkedHashSet();
+    for (K key : keys) {
+      keySet.add(checkNotNull(key));
+    }
+
+    Map<K, V> result = Maps.newHashMapWithExpectedSize(keySet.size());
+    Map<K, ComputingValueReference> claimed = Maps.newLinkedHashMap();
+    for (K key : keySet) {
+      int hash = hash(key);
+      ComputingSegment segment = segmentFor(hash);
+      V value = segment.getUnrecorded(key, hash);
+      if (value == null) {
+        ComputingValueReference computingValueReference =
+            new ComputingValueReference();
+        ValueReference<K, V> valueReference = segment.claim(
+            key, hash, computingValueReference).getValueReference();
+        if (valueReference == computingValueReference) {
+          segment.statsCounter.recordMiss();
+          claimed.put(key, computingValueReference);
+          continue;
+        }
+        if (valueReference.isComputingReference()) {
+          // wait for the other thread's computation below
+          continue;
+        }
+        value = valueReference.get();
+        if (value == null) {
+          continue;
+        }
+      }
+      segment.statsCounter.recordHit();
+      result.put(key, value);
+    }
+
+    if (!claimed.isEmpty()) {
+      computeAll(claimed, result);
+    }
+
+    ImmutableMap.Builder<K, V> builder = ImmutableMap.builder();
+    for (K key : keySet) {
+      V value = result.get(key);
+      if (value == null) {
+        // computed concurrently by another thread, or collected in between
+        int hash = hash(key);
+        value = segmentFor(hash).compute(key, hash);
+      }
+      builder.put(key, value);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Computes the values of keys claimed by {@link #getAll}, adding them to
+   * {@code result}. Claims which could not be computed are always released
+   * before returning, so that no other thread waits on them forever.
+   */
+  private void computeAll(
+      Map<K, ComputingValueReference> claimed, Map<K, V> result) {
+    try {
+      if (batchFunction == null) {
+        for (Map.Entry<K, ComputingValueReference> entry
+            : claimed.entrySet()) {
+          K key = entry.getKey();
+          result.put(key, entry.getValue().compute(key, hash(key)));
+        }
+      } else {
+        loadAll(claimed, result);
+      }
+    } finally {
+      for (Map.Entry<K, ComputingValueReference> entry : claimed.entrySet()) {
+        K key = entry.getKey();
+        if (!result.containsKey(key)) {
+          // waiting threads will retry, unless they were already handed an
+          // exception
+          ComputingValueReference computingValueReference = entry.getValue();
+          computingValueReference.setValueReference(
+              new ComputedReference<K, V>(null));
+          int hash = hash(key);
+          segmentFor(hash).clearValue(key, hash, computingValueReference);
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads all claimed keys with a single invocation of the batch function,
+   * which is recorded as one load. It is recorded by the segment of the first
+   * key; only the sum over all segments is reported, by {@link #stats}.
+   */
+  private void loadAll(
+      Map<K, ComputingValueReference> claimed, Map<K, V> result) {
+    Set<K> keys = Collections.unmodifiableSet(claimed.keySet());
+    StatsCounter statsCounter =
+        segmentFor(hash(keys.iterator().next())).statsCounter;
+    long start = ticker.read();
+    Map<K, V> loaded;
+    try {
+      loaded = batchFunction.apply(keys);
+    } catch (ComputationException e) {
+      // propagate rather than wrap
+      statsCounter.recordLoadException(ticker.read() - start);
+      failAll(claimed, new ComputationExceptionReference<K, V>(e.getCause()));
+      throw e;
+    } catch (Throwable t) {
+      statsCounter.recordLoadException(ticker.read() - start);
+      failAll(claimed, new ComputationExceptionReference<K, V>(t));
+      throw new ComputationException(t);
+    }
+
+    if (loaded == null) {
+      statsCounter.recordLoadException(ticker.read() - start);
+      String message = batchFunction + " returned null for keys " + keys + ".";
+      failAll(claimed, new NullPointerExceptionReference<K, V>(message));
+      throw new NullPointerException(message);
+    }
+
+    String missing = null;
+    for (Map.Entry<K, ComputingValueReference> entry : claimed.entrySet()) {
+      K key = entry.getKey();
+      V value = loaded.get(key);
+      if (value == null) {
+        missing = batchFunction + " returned null for key " + key + ".";
+        entry.getValue().setValueReference(
+            new NullPointerExceptionReference<K, V>(missing));
+      } else {
+        entry.getValue().set(key, hash(key), value);
+        result.put(key, value);
+      }
+    }
+
+    if (missing != null) {
+      statsCounter.recordLoadException(ticker.read() - start);
+      throw new NullPointerException(missing);
+    }
+    statsCounter.recordLoadSuccess(ticker.read() - start);
+  }
+
+  private void failAll(Map<K, ComputingValueReference> claimed,
+      ValueReference<K, V> failure) {
+    for (ComputingValueReference computingValueReference : claimed.values()) {
+      computingValueReference.setValueReference(failure);
+    }
+  }
+
   @SuppressWarnings("serial") // This class is never serialized.
   class ComputingSegment extends Segment {
-    ComputingSegment(int initialCapacity, int maxSegmentSize) {
-      super(initialCapacity, maxSegmentSize);
+    ComputingSegment(int initialCapacity, long maxSegmentWeight) {
+      super(initialCapacity, maxSegmentWeight);
     }
 
     V compute(K key, int hash) {
-      outer: while (true) {
-        V value = get(key, hash);
+      while (true) {
+        V value = getUnrecorded(key, hash);
         if (value != null) {
+          statsCounter.recordHit();
+          if (refreshes()) {
+            scheduleRefresh(key, hash);
+          }
           return value;
         }
 
-        ReferenceEntry<K, V> entry = null;
-        ComputingValueReference computingValueReference = null;
-        lock();
-        try {
-          // Try again--an entry could have materialized in the interim.
-          preWriteCleanup();
-
-          // getFirst, but remember the index
-          AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
-          int index = hash & (table.length() - 1);
-          ReferenceEntry<K, V> first = table.get(index);
-
-          for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
-            K entryKey = e.getKey();
-            if (e.getHash() == hash && entryKey != null
-                && keyEquivalence.equivalent(key, entryKey)) {
-              if (!e.getValueReference().isComputingReference()) {
-                // never return expired entries
-                value = getLiveValue(e);
-                if (value != null) {
-                  recordLockedRead(e);
-                  return value;
-                }
-                // clobber invalid entries
-                unsetLiveEntry(e, hash);
-              }
-              entry = e;
-              break;
-            }
-          }
+        ComputingValueReference computingValueReference =
+            new ComputingValueReference();
+        ReferenceEntry<K, V> entry =
+            claim(key, hash, computingValueReference);
+        ValueReference<K, V> valueReference = entry.getValueReference();
 
-          if (entry == null || isUnset(entry)) {
-            // Create a new entry.
-            computingValueReference = new ComputingValueReference();
-
-            if (entry == null) {
-              entry = newEntry(key, hash, first);
-              table.set(index, entry);
-            }
-            entry.setValueReference(computingValueReference);
-          }
-        } finally {
-          unlock();
-          postWriteCleanup();
-        }
-
-        if (computingValueReference != null) {
+        if (valueReference == computingValueReference) {
           // This thread solely created the entry.
+          statsCounter.recordMiss();
           try {
             // Synchronizes on the entry to allow failing fast when a
             // recursive computation is detected. This is not fool-proof
@@ -148,28 +297,261 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
           }
         }
 
+        if (!valueReference.isComputingReference()) {
+          // a live value materialized in the interim
+          value = valueReference.get();
+          if (value != null) {
+            statsCounter.recordHit();
+            return value;
+          }
+          continue;
+        }
+
         // The entry already exists. Wait for the computation.
-        boolean interrupted = false;
-        try {
-          while (true) {
-            try {
-              checkState(!Thread.holdsLock(entry), "Recursive computation");
-              value = entry.getValueReference().waitForValue();
-              // don't consider expiration as we're concurrent with computation
-              if (value != null) {
-                recordRead(entry);
-                return value;
+        value = waitForComputation(entry);
+        if (value != null) {
+          return value;
+        }
+        // else the computing thread cleared the entry; try again
+      }
+    }
+
+    /**
+     * Returns the entry for {@code key}, installing {@code
+     * computingValueReference} on it unless the entry has a live value or is
+     * already being computed by another thread. The caller owns the
+     * computation if and only if the returned entry's value reference is
+     * {@code computingValueReference}.
+     */
+    ReferenceEntry<K, V> claim(K key, int hash,
+        ComputingValueReference computingValueReference) {
+      lock();
+      try {
+        // Try again--an entry could have materialized in the interim.
+        preWriteCleanup();
+        // or it could be waiting off the heap
+        promoteForRead(key, hash);
+
+        // getFirst, but remember the index
+        AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
+        int index = hash & (table.length() - 1);
+        ReferenceEntry<K, V> first = table.get(index);
+
+        ReferenceEntry<K, V> entry = null;
+        for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
+          K entryKey = e.getKey();
+          if (e.getHash() == hash && entryKey != null
+              && keyEquivalence.equivalent(key, entryKey)) {
+            if (!e.getValueReference().isComputingReference()) {
+              // never return expired entries
+              if (getLiveValue(e) != null) {
+                recordLockedRead(e);
+                return e;
               }
-              // else computing thread will clearValue
-              continue outer;
-            } catch (InterruptedException e) {
-              interrupted = true;
+              // clobber invalid entries
+              unsetLiveEntry(e, hash, isCollected(e)
+                  ? RemovalCause.COLLECTED : RemovalCause.EXPIRED);
             }
+            entry = e;
+            break;
           }
-        } finally {
-          if (interrupted) {
-            Thread.currentThread().interrupt();
+        }
+
+        if (entry == null || isUnset(entry)) {
+          // Create a new entry.
+          if (entry == null) {
+            entry = newEntry(key, hash, first);
+            table.set(index, entry);
           }
+          entry.setValueReference(computingValueReference);
+        }
+        return entry;
+      } finally {
+        unlock();
+        postWriteCleanup();
+      }
+    }
+
+    /**
+     * Waits for another thread to finish computing the value of {@code entry}.
+     * Returns null if the computation was cleared, in which case the caller
+     * should retry.
+     */
+    V waitForComputation(ReferenceEntry<K, V> entry) {
+      boolean interrupted = false;
+      boolean retry = false;
+      try {
+        while (true) {
+          try {
+            checkState(!Thread.holdsLock(entry), "Recursive computation");
+            ValueReference<K, V> valueReference = entry.getValueReference();
+            // the entry may have been copied, or claimed by getAll
+            checkState(!isOwnedByCurrentThread(valueReference),
+                "Recursive computation");
+            V value = valueReference.waitForValue();
+            // don't consider expiration as we're concurrent with computation
+            if (value != null) {
+              recordRead(entry);
+              return value;
+            }
+            // else computing thread will clearValue
+            retry = true;
+            return null;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (!retry) {
+          // waiting on another thread's computation counts as a miss,
+          // whether it succeeded or not
+          statsCounter.recordMiss();
+        }
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    /**
+     * Submits an asynchronous recomputation of the entry for {@code key} if its
+     * value is older than the refresh interval and no refresh is already in
+     * progress. Lookups keep returning the old value until the new one has been
+     * installed. If the refresh executor rejects the task, the old value is
+     * restored and a later lookup submits the refresh again.
+     */
+    void scheduleRefresh(K key, int hash) {
+      ReferenceEntry<K, V> e = getEntry(key, hash);
+      if (e == null || !needsRefresh(e, ticker.read())) {
+        return;
+      }
+
+      RefreshingValueReference<K, V> refreshingValueReference = null;
+      lock();
+      try {
+        // re-check under lock, so that only one thread submits the refresh
+        e = getEntry(key, hash);
+        if (e != null && needsRefresh(e, ticker.read())) {
+          ValueReference<K, V> valueReference = e.getValueReference();
+          if (valueReference.get() != null
+              && !valueReference.isComputingReference()) {
+            // copy, as installing the wrapper clears the previous reference
+            refreshingValueReference = new RefreshingValueReference<K, V>(
+                valueReference.copyFor(valueReferenceQueue, e));
+            e.setValueReference(refreshingValueReference);
+          }
+        }
+      } finally {
+        unlock();
+      }
+
+      if (refreshingValueReference != null) {
+        try {
+          refreshExecutor.execute(
+              new RefreshTask(key, hash, refreshingValueReference));
+        } catch (RejectedExecutionException rejected) {
+          // keep serving the old value, and retry on a later lookup
+          logger.log(Level.WARNING, "Refresh rejected by executor", rejected);
+          abortRefresh(key, hash, refreshingValueReference);
+        }
+      }
+    }
+
+    boolean needsRefresh(ReferenceEntry<K, V> entry, long now) {
+      return now - entry.getWriteTime() > refreshNanos
+          && !(entry.getValueReference() instanceof RefreshingValueReference);
+    }
+
+    /**
+     * Installs a refreshed value, unless the entry was written or removed
+     * while the refresh was in progress.
+     */
+    void completeRefresh(K key, int hash,
+        RefreshingValueReference<K, V> refreshingValueReference, V newValue) {
+      lock();
+      try {
+        preWriteCleanup();
+        ReferenceEntry<K, V> e = getEntry(key, hash);
+        if (e != null && e.getValueReference() == refreshingValueReference) {
+          // the old value may have been collected during the refresh
+          V oldValue = refreshingValueReference.oldValue.get();
+          enqueueNotification(key, oldValue, (oldValue == null)
+              ? RemovalCause.COLLECTED : RemovalCause.REPLACED);
+          setValue(e, newValue);
+          evictEntries(null);
+        }
+      } finally {
+        unlock();
+        postWriteCleanup();
+      }
+      valueComputed(key, newValue);
+    }
+
+    /**
+     * Restores the old value after a failed refresh, unless the entry was
+     * written or removed while the refresh was in progress. The entry remains
+     * stale, so a subsequent lookup will trigger another refresh.
+     *
+     * <p>If the old value was collected while the refresh was in progress,
+     * the entry is removed instead. The collected reference can't reclaim the
+     * entry itself, as the entry no longer holds it.
+     */
+    void abortRefresh(K key, int hash,
+        RefreshingValueReference<K, V> refreshingValueReference) {
+      lock();
+      try {
+        ReferenceEntry<K, V> e = getEntry(key, hash);
+        if (e != null && e.getValueReference() == refreshingValueReference) {
+          ValueReference<K, V> oldValue =
+              refreshingValueReference.oldValue.copyFor(valueReferenceQueue, e);
+          if (oldValue.get() == null) {
+            unsetValue(key, hash, refreshingValueReference);
+          } else {
+            e.setValueReference(oldValue);
+          }
+        }
+      } finally {
+        unlock();
+        postWriteCleanup();
+      }
+    }
+  }
+
+  /** Recomputes the value of a stale entry. */
+  class RefreshTask implements Runnable {
+    final K key;
+    final int hash;
+    final RefreshingValueReference<K, V> refreshingValueReference;
+
+    RefreshTask(K key, int hash,
+        RefreshingValueReference<K, V> refreshingValueReference) {
+      this.key = key;
+      this.hash = hash;
+      this.refreshingValueReference = refreshingValueReference;
+    }
+
+    @Override
+    public void run() {
+      ComputingSegment segment = segmentFor(hash);
+      long start = ticker.read();
+      V newValue = null;
+      try {
+        newValue = computingFunction.apply(key);
+        if (newValue == null) {
+          logger.log(Level.WARNING, "Exception thrown during refresh",
+              new NullPointerException(
+                  computingFunction + " returned null for key " + key + "."));
+        }
+      } catch (Throwable t) {
+        logger.log(Level.WARNING, "Exception thrown during refresh", t);
+      } finally {
+        if (newValue == null) {
+          segment.statsCounter.recordLoadException(ticker.read() - start);
+          segment.abortRefresh(key, hash, refreshingValueReference);
+        } else {
+          segment.statsCounter.recordLoadSuccess(ticker.read() - start);
+          segment.completeRefresh(
+              key, hash, refreshingValueReference, newValue);
         }
       }
     }
@@ -187,7 +569,8 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
       return null;
     }
     @Override
-    public ValueReference<K, V> copyFor(ReferenceEntry<K, V> entry) {
+    public ValueReference<K, V> copyFor(
+        ReferenceQueue<V> queue, ReferenceEntry<K, V> entry) {
       return this;
     }
     @Override
@@ -216,7 +599,8 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
       return null;
     }
     @Override
-    public ValueReference<K, V> copyFor(ReferenceEntry<K, V> entry) {
+    public ValueReference<K, V> copyFor(
+        ReferenceQueue<V> queue, ReferenceEntry<K, V> entry) {
       return this;
     }
     @Override
@@ -244,7 +628,8 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
       return value;
     }
     @Override
-    public ValueReference<K, V> copyFor(ReferenceEntry<K, V> entry) {
+    public ValueReference<K, V> copyFor(
+        ReferenceQueue<V> queue, ReferenceEntry<K, V> entry) {
       return this;
     }
     @Override
@@ -261,10 +646,69 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
     public void clear() {}
   }
 
+  /**
+   * Wraps the value of an entry which is being refreshed. Lookups continue to
+   * see the old value, and the entry remains subject to eviction, expiration
+   * and manual writes while the refresh is in progress.
+   */
+  private static class RefreshingValueReference<K, V>
+      implements ValueReference<K, V> {
+    final ValueReference<K, V> oldValue;
+
+    RefreshingValueReference(ValueReference<K, V> oldValue) {
+      this.oldValue = oldValue;
+    }
+    @Override
+    public V get() {
+      return oldValue.get();
+    }
+    @Override
+    public ValueReference<K, V> copyFor(
+        ReferenceQueue<V> queue, ReferenceEntry<K, V> entry) {
+      // keep our identity, so that the refresh can still be installed
+      return this;
+    }
+    @Override
+    public boolean isComputingReference() {
+      return false;
+    }
+    @Override
+    public V waitForValue() {
+      return get();
+    }
+    @Override
+    public void notifyValueReclaimed() {}
+    @Override
+    public void clear() {
+      // the old value stays reachable until the refresh replaces it
+    }
+  }
+
+  /**
+   * Returns whether {@code valueReference} is a computation which the current
+   * thread has claimed but not yet completed, and thus can't wait for.
+   */
+  boolean isOwnedByCurrentThread(ValueReference<K, V> valueReference) {
+    if (!(valueReference
+        instanceof ComputingConcurrentHashMap.ComputingValueReference)) {
+      return false;
+    }
+    ComputingConcurrentHashMap<?, ?>.ComputingValueReference
+        computingValueReference =
+            (ComputingConcurrentHashMap<?, ?>.ComputingValueReference)
+                valueReference;
+    // only the owner writes computedReference, so it may read it unlocked
+    return computingValueReference.owner == Thread.currentThread()
+        && computingValueReference.computedReference == UNSET;
+  }
+
   private class ComputingValueReference implements ValueReference<K, V> {
     @GuardedBy("ComputingValueReference.this") // writes
     ValueReference<K, V> computedReference = unset();
 
+    // the thread which claimed the computation
+    final Thread owner = Thread.currentThread();
+
     @Override
     public V get() {
       // All computation lookups go through waitForValue. This method thus is
@@ -273,7 +717,8 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
     }
 
     @Override
-    public ValueReference<K, V> copyFor(ReferenceEntry<K, V> entry) {
+    public ValueReference<K, V> copyFor(
+        ReferenceQueue<V> queue, ReferenceEntry<K, V> entry) {
       return this;
     }
 
@@ -311,32 +756,46 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
     public void notifyValueReclaimed() {}
 
     V compute(K key, int hash) {
+      StatsCounter statsCounter = segmentFor(hash).statsCounter;
+      long start = ticker.read();
       V value;
       try {
         value = computingFunction.apply(key);
       } catch (ComputationException e) {
         // if computingFunction has thrown a computation exception,
         // propagate rather than wrap
+        statsCounter.recordLoadException(ticker.read() - start);
         setValueReference(
             new ComputationExceptionReference<K, V>(e.getCause()));
         throw e;
       } catch (Throwable t) {
+        statsCounter.recordLoadException(ticker.read() - start);
         setValueReference(new ComputationExceptionReference<K, V>(t));
         throw new ComputationException(t);
       }
 
       if (value == null) {
+        statsCounter.recordLoadException(ticker.read() - start);
         String message =
             computingFunction + " returned null for key " + key + ".";
         setValueReference(new NullPointerExceptionReference<K, V>(message));
         throw new NullPointerException(message);
       }
+      statsCounter.recordLoadSuccess(ticker.read() - start);
+      set(key, hash, value);
+      return value;
+    }
 
+    /**
+     * Publishes a computed value to waiting threads, and stores it in the map
+     * unless a value was written manually while computing.
+     */
+    void set(K key, int hash, V value) {
       // Call setValueReference first to avoid put clearing us.
       setValueReference(new ComputedReference<K, V>(value));
       // putIfAbsent
       segmentFor(hash).put(key, hash, value, true);
-      return value;
+      valueComputed(key, value);
     }
 
     void setValueReference(ValueReference<K, V> valueReference) {
@@ -356,15 +815,18 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
   @Override Object writeReplace() {
     return new ComputingSerializationProxy<K, V>(keyStrength, valueStrength,
         keyEquivalence, valueEquivalence, expireAfterWriteNanos,
-        expireAfterAccessNanos, maximumSize, concurrencyLevel, evictionListener,
-        this, computingFunction);
+        expireAfterAccessNanos, expiry, refreshNanos, maxWeight, weigher,
+        admitByFrequency, offHeapCapacity, offHeapKeySerializer,
+        offHeapValueSerializer, concurrencyLevel, removalListener, this,
+        computingFunction, batchFunction);
   }
 
   static class ComputingSerializationProxy<K, V>
       extends AbstractSerializationProxy<K, V> {
 
     final Function<? super K, ? extends V> computingFunction;
-    transient Cache<K, V> cache;
+    @Nullable final Function<? super Set<K>, ? extends Map<K, V>> batchFunction;
+    transient ComputingCache<K, V> cache;
 
     ComputingSerializationProxy(Strength keyStrength,
         Strength valueStrength,
@@ -372,15 +834,26 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
         Equivalence<Object> valueEquivalence,
         long expireAfterWriteNanos,
         long expireAfterAccessNanos,
-        int maximumSize,
+        @Nullable Expiry<K, V> expiry,
+        long refreshNanos,
+        long maxWeight,
+        Weigher<K, V> weigher,
+        boolean admitByFrequency,
+        long offHeapCapacity,
+        @Nullable OffHeapSerializer<K> offHeapKeySerializer,
+        @Nullable OffHeapSerializer<V> offHeapValueSerializer,
         int concurrencyLevel,
-        MapEvictionListener<? super K, ? super V> evictionListener,
+        RemovalListener<? super K, ? super V> removalListener,
         ConcurrentMap<K, V> delegate,
-        Function<? super K, ? extends V> computingFunction) {
+        Function<? super K, ? extends V> computingFunction,
+        @Nullable Function<? super Set<K>, ? extends Map<K, V>> batchFunction) {
       super(keyStrength, valueStrength, keyEquivalence, valueEquivalence,
-          expireAfterWriteNanos, expireAfterAccessNanos, maximumSize,
-          concurrencyLevel, evictionListener, delegate);
+          expireAfterWriteNanos, expireAfterAccessNanos, expiry, refreshNanos,
+          maxWeight, weigher, admitByFrequency, offHeapCapacity,
+          offHeapKeySerializer, offHeapValueSerializer, concurrencyLevel,
+          removalListener, delegate);
       this.computingFunction = computingFunction;
+      this.batchFunction = batchFunction;
     }
 
     private void writeObject(ObjectOutputStream out)
@@ -394,11 +867,15 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
         throws IOException, ClassNotFoundException {
       in.defaultReadObject();
       MapMaker mapMaker = readMapMaker(in);
-      cache = mapMaker.makeCache(computingFunction);
+      cache = makeCache(mapMaker);
       delegate = cache.asMap();
       readEntries(in);
     }
 
+    ComputingCache<K, V> makeCache(MapMaker mapMaker) {
+      return mapMaker.makeComputingCache(computingFunction, batchFunction);
+    }
+
     Object readResolve() {
       return cache;
     }
@@ -411,6 +888,14 @@ class ComputingConcurrentHashMap<K, V> extends CustomConcurrentHashMap<K, V>
       return cache.apply(from);
     }
 
-    private static final long serialVersionUID = 2;
+    public CacheStats stats() {
+      return cache.stats();
+    }
+
+    public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) {
+      return cache.getAll(keys);
+    }
+
+    private static final long serialVersionUID = 3;
   }
 }
@@ -22,9 +22,6 @@ import static com.google.common.base.Preconditions.checkState;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Equivalence;
 import com.google.common.base.Equivalences;
-import com.google.common.base.FinalizableReferenceQueue;
-import com.google.common.base.FinalizableSoftReference;
-import com.google.common.base.FinalizableWeakReference;
 import com.google.common.base.Ticker;
 import com.google.common.collect.MapMaker.NullListener;
 import com.google.common.primitives.Ints;
@@ -33,6 +30,10 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.util.AbstractCollection;
 import java.util.AbstractMap;
@@ -40,6 +41,7 @@ import java.util.AbstractQueue;
 import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Queue;
@@ -47,10 +49,18 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -66,6 +76,9 @@ import javax.annotation.concurrent.GuardedBy;
  */
 class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     implements ConcurrentMap<K, V>, Serializable {
+  private static final Logger logger =
+      Logger.getLogger(CustomConcurrentHashMap.class.getName());
+
   /*
    * The basic strategy is to subdivide the table among Segments, each of which
    * itself is a concurrently readable hash table. The map supports
@@ -111,7 +124,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
   static final int MAX_SEGMENTS = 1 << 16; // slightly conservative
 
   /**
-   * Number of cache access operations that can be buffered per segment before
+   * Number of cache access operations that are performed per segment before
    * the cache's recency ordering information is updated. This is used to avoid
    * lock contention by recording a memento of reads and delaying a lock
    * acquisition until the threshold is crossed or a mutation occurs.
@@ -120,12 +133,51 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
    */
   static final int DRAIN_THRESHOLD = 0x3F;
 
+  /**
+   * Number of stripes in each segment's read buffer. Readers are spread over
+   * the stripes by thread, so that concurrent readers of one segment rarely
+   * contend. Between four and sixteen stripes are used, so that the buffer
+   * can normally hold all of the reads between two drains.
+   */
+  static final int READ_BUFFER_STRIPES = Math.min(16, Integer.highestOneBit(
+      (Math.max(4, Runtime.getRuntime().availableProcessors()) - 1) << 1));
+
+  /**
+   * The bucket widths of each level of a segment's timer wheel, as powers of
+   * two nanoseconds: about 16.8ms, 1.07s, 1.15m, 1.22h and 3.26d. Each level
+   * has {@link #TIMER_WHEEL_BUCKETS} buckets, and so spans the width of one
+   * bucket of the next level. The final level is a single bucket holding all
+   * entries which expire more than about 208 days in the future.
+   */
+  static final int[] TIMER_WHEEL_SHIFTS = {24, 30, 36, 42, 48, 54};
+
+  /**
+   * The number of buckets in each level of a timer wheel, other than the
+   * last. This must be a power of two, namely 2 raised to the difference
+   * between consecutive {@link #TIMER_WHEEL_SHIFTS}.
+   */
+  static final int TIMER_WHEEL_BUCKETS = 64;
+
+  /**
+   * The longest duration an {@link Expiry} may assign to an entry, about 146
+   * years. Longer durations are truncated to this, so that expiration times
+   * never wrap around past the current time (see isExpired()).
+   */
+  static final long MAXIMUM_EXPIRY = Long.MAX_VALUE >> 1;
+
   /**
    * Maximum number of entries to be cleaned up in a single cleanup run.
    * TODO(user): empirically optimize this
    */
   static final int CLEANUP_MAX = 16;
 
+  /**
+   * Maximum number of collected references to drain from each reference
+   * queue in a single cleanup run, so that a burst of collections is
+   * processed across several runs rather than holding the lock throughout.
+   */
+  static final int DRAIN_MAX = 16;
+
   /* ---------------- Fields -------------- */
 
   /**
@@ -159,10 +211,20 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
   final Strength valueStrength;
 
   /**
-   * The maximum size of this map. MapMaker.UNSET_INT if there is no
-   * maximum.
+   * The maximum weight of this map. MapMaker.UNSET_INT if there is no
+   * maximum. When bounded by {@link MapMaker#maximumSize}, every entry weighs
+   * 1.
    */
-  final int maximumSize;
+  final long maxWeight;
+
+  /** Weighs each entry when it is written. */
+  final Weigher<K, V> weigher;
+
+  /**
+   * Whether a new entry must be used more frequently than the eviction
+   * victim it would displace in order to be retained.
+   */
+  final boolean admitByFrequency;
 
   /**
    * How long after the last access to an entry the map will retain that
@@ -176,14 +238,39 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
    */
   final long expireAfterWriteNanos;
 
-  /** Entries waiting to be consumed by the eviction listener. */
-  final Queue<ReferenceEntry<K, V>> evictionNotificationQueue;
+  /**
+   * Computes each entry's own expiration time on creation, update and read,
+   * or null if entries expire after a fixed duration (or not at all).
+   */
+  @Nullable final Expiry<K, V> expiry;
+
+  /**
+   * How long after the last write to an entry the next computing lookup will
+   * trigger an asynchronous refresh of its value.
+   */
+  final long refreshNanos;
+
+  /** Executes asynchronous refreshes. */
+  final Executor refreshExecutor;
+
+  /**
+   * The number of bytes of off-heap memory to which entries evicted by size
+   * are moved, or MapMaker.UNSET_INT if they are discarded.
+   */
+  final long offHeapCapacity;
+
+  /** Serializes keys moved off the heap, or null if there's no such tier. */
+  @Nullable final OffHeapSerializer<K> offHeapKeySerializer;
+
+  /** Serializes values moved off the heap, or null if there's no such tier. */
+  @Nullable final OffHeapSerializer<V> offHeapValueSerializer;
 
   /**
-   * A listener that is invoked when an entry is removed due to expiration or
-   * garbage collection of soft/weak entries.
+   * A listener that is invoked when an entry is removed, or NullListener if
+   * removals aren't observed. An eviction listener is adapted to ignore manual
+   * removals.
    */
-  final MapEvictionListener<? super K, ? super V> evictionListener;
+  final RemovalListener<K, V> removalListener;
 
   /** Factory used to create new entries. */
   final transient EntryFactory entryFactory;
@@ -191,6 +278,25 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
   /** Performs map housekeeping operations. */
   final Executor cleanupExecutor;
 
+  /**
+   * Runs scheduled maintenance of this map, or null if maintenance is
+   * performed by the threads using the map.
+   */
+  @Nullable final ScheduledExecutorService maintenanceExecutor;
+
+  /** The interval between scheduled maintenance runs. */
+  final long maintenancePeriodNanos;
+
+  /** Whether segments record lock contention and maintenance statistics. */
+  final boolean recordSegmentStats;
+
+  /**
+   * The fraction of its entries each segment keeps when the heap is under
+   * memory pressure, or {@code UNSET_INT} if the map doesn't respond to
+   * memory pressure.
+   */
+  final double memoryPressureRetainedFraction;
+
   /** Measures time in a testable way. */
   final Ticker ticker;
 
@@ -207,33 +313,44 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     keyEquivalence = builder.getKeyEquivalence();
     valueEquivalence = builder.getValueEquivalence();
 
-    maximumSize = builder.maximumSize;
+    maxWeight = builder.getMaximumWeight();
+    weigher = builder.getWeigher();
+    admitByFrequency = builder.getAdmitByFrequency();
     expireAfterAccessNanos = builder.getExpireAfterAccessNanos();
     expireAfterWriteNanos = builder.getExpireAfterWriteNanos();
-
-    entryFactory =
-        EntryFactory.getFactory(keyStrength, expires(), evictsBySize());
+    expiry = builder.getExpiry();
+    refreshNanos = builder.getRefreshNanos();
+    refreshExecutor = builder.getRefreshExecutor();
+    offHeapCapacity = builder.getOffHeapCapacity();
+    offHeapKeySerializer = builder.getOffHeapKeySerializer();
+    offHeapValueSerializer = builder.getOffHeapValueSerializer();
+
+    // refreshing entries record their write time alongside expiration data
+    entryFactory = EntryFactory.getFactory(
+        keyStrength, expires() || refreshes(), tracksRecency());
     cleanupExecutor = builder.getCleanupExecutor();
+    maintenanceExecutor = builder.getMaintenanceExecutor();
+    maintenancePeriodNanos = builder.getMaintenancePeriodNanos();
+    recordSegmentStats = builder.getRecordSegmentStats();
+    memoryPressureRetainedFraction =
+        builder.getMemoryPressureRetainedFraction();
     ticker = builder.getTicker();
 
-    evictionListener = builder.getEvictionListener();
-    evictionNotificationQueue = (evictionListener == NullListener.INSTANCE)
-        ? CustomConcurrentHashMap.<ReferenceEntry<K, V>>discardingQueue()
-        : new ConcurrentLinkedQueue<ReferenceEntry<K, V>>();
+    removalListener = builder.getRemovalListener();
 
     int initialCapacity =
         Math.min(builder.getInitialCapacity(), MAXIMUM_CAPACITY);
-    if (evictsBySize()) {
-        initialCapacity = Math.min(initialCapacity, maximumSize);
+    if (evictsBySize() && !customWeigher()) {
+        initialCapacity = (int) Math.min(initialCapacity, maxWeight);
     }
 
     // Find power-of-two sizes best matching arguments. Constraints:
-    // (segmentCount <= maximumSize)
-    // && (concurrencyLevel > maximumSize || segmentCount > concurrencyLevel)
+    // (segmentCount <= maxWeight)
+    // && (concurrencyLevel > maxWeight || segmentCount > concurrencyLevel)
     int segmentShift = 0;
     int segmentCount = 1;
     while (segmentCount < concurrencyLevel
-        && (!evictsBySize() || segmentCount * 2 <= maximumSize)) {
+        && (!evictsBySize() || segmentCount * 2L <= maxWeight)) {
       ++segmentShift;
       segmentCount <<= 1;
     }
@@ -253,14 +370,14 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     }
 
     if (evictsBySize()) {
-      // Ensure sum of segment max sizes = overall max size
-      int maximumSegmentSize = maximumSize / segmentCount + 1;
-      int remainder = maximumSize % segmentCount;
+      // Ensure sum of segment max weights = overall max weight
+      long maxSegmentWeight = maxWeight / segmentCount + 1;
+      long remainder = maxWeight % segmentCount;
       for (int i = 0; i < this.segments.length; ++i) {
         if (i == remainder) {
-          maximumSegmentSize--;
+          maxSegmentWeight--;
         }
-        this.segments[i] = createSegment(segmentSize, maximumSegmentSize);
+        this.segments[i] = createSegment(segmentSize, maxSegmentWeight);
       }
     } else {
       for (int i = 0; i < this.segments.length; ++i) {
@@ -268,14 +385,31 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
             MapMaker.UNSET_INT);
       }
     }
+
   }
 
   boolean evictsBySize() {
-    return maximumSize != MapMaker.UNSET_INT;
+    return maxWeight != MapMaker.UNSET_INT;
+  }
+
+  boolean evictsOnMemoryPressure() {
+    return memoryPressureRetainedFraction != MapMaker.UNSET_INT;
+  }
+
+  /**
+   * Returns whether segments keep their entries in order of use, which is
+   * needed to evict either by size or under memory pressure.
+   */
+  boolean tracksRecency() {
+    return evictsBySize() || evictsOnMemoryPressure();
+  }
+
+  boolean customWeigher() {
+    return weigher != MapMaker.OneWeigher.INSTANCE;
   }
 
   boolean expires() {
-    return expiresAfterWrite() || expiresAfterAccess();
+    return expiresAfterWrite() || expiresAfterAccess() || expiresVariably();
   }
 
   boolean expiresAfterWrite() {
@@ -286,10 +420,89 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     return expireAfterAccessNanos > 0;
   }
 
+  boolean expiresVariably() {
+    return expiry != null;
+  }
+
+  boolean refreshes() {
+    return refreshNanos > 0;
+  }
+
+  boolean hasOffHeapTier() {
+    return offHeapCapacity != MapMaker.UNSET_INT;
+  }
+
   boolean isInlineCleanup() {
     return cleanupExecutor == MapMaker.DEFAULT_CLEANUP_EXECUTOR;
   }
 
+  boolean notifiesRemovals() {
+    return removalListener != NullListener.INSTANCE;
+  }
+
+  boolean recordsSegmentStats() {
+    return recordSegmentStats;
+  }
+
+  boolean hasScheduledMaintenance() {
+    return maintenanceExecutor != null;
+  }
+
+  /**
+   * Performs the maintenance of every segment. Called periodically when
+   * maintenance is scheduled.
+   */
+  void runMaintenance() {
+    for (Segment segment : segments) {
+      segment.runMaintenance();
+    }
+  }
+
+  /**
+   * Evicts the least recently used entries of every segment, until each
+   * retains only its share of {@code memoryPressureRetainedFraction}. Called
+   * by {@link MemoryPressureMonitor}.
+   */
+  void shrinkForMemoryPressure() {
+    for (Segment segment : segments) {
+      segment.shrink(memoryPressureRetainedFraction);
+    }
+  }
+
+  /**
+   * Periodically maintains a map, until the map is garbage collected. Only a
+   * weak reference to the map is held, so that scheduling maintenance doesn't
+   * prevent an unused map from being collected.
+   */
+  static final class MaintenanceTask implements Runnable {
+    final WeakReference<CustomConcurrentHashMap<?, ?>> mapReference;
+    volatile Future<?> future;
+
+    MaintenanceTask(CustomConcurrentHashMap<?, ?> map) {
+      this.mapReference = new WeakReference<CustomConcurrentHashMap<?, ?>>(map);
+    }
+
+    static void schedule(CustomConcurrentHashMap<?, ?> map) {
+      MaintenanceTask task = new MaintenanceTask(map);
+      task.future = map.maintenanceExecutor.scheduleWithFixedDelay(task,
+          map.maintenancePeriodNanos, map.maintenancePeriodNanos,
+          TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void run() {
+      CustomConcurrentHashMap<?, ?> map = mapReference.get();
+      if (map == null) {
+        Future<?> future = this.future;
+        if (future != null) {
+          future.cancel(false);
+        }
+        return;
+      }
+      map.runMaintenance();
+    }
+  }
+
   enum Strength {
     /*
      * TODO(kevinb): If we strongly reference the value and aren't computing, we
@@ -298,7 +511,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
 
     STRONG {
       @Override <K, V> ValueReference<K, V> referenceValue(
-          ReferenceEntry<K, V> entry, V value) {
+          ReferenceQueue<V> queue, ReferenceEntry<K, V> entry, V value) {
         return new StrongValueReference<K, V>(value);
       }
       @Override Equivalence<Object> defaultEquivalence() {
@@ -308,8 +521,8 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
 
     SOFT {
       @Override <K, V> ValueReference<K, V> referenceValue(
-          ReferenceEntry<K, V> entry, V value) {
-        return new SoftValueReference<K, V>(value, entry);
+          ReferenceQueue<V> queue, ReferenceEntry<K, V> entry, V value) {
+        return new SoftValueReference<K, V>(queue, value, entry);
       }
       @Override Equivalence<Object> defaultEquivalence() {
         return Equivalences.identity();
@@ -318,8 +531,8 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
 
     WEAK {
       @Override <K, V> ValueReference<K, V> referenceValue(
-          ReferenceEntry<K, V> entry, V value) {
-        return new WeakValueReference<K, V>(value, entry);
+          ReferenceQueue<V> queue, ReferenceEntry<K, V> entry, V value) {
+        return new WeakValueReference<K, V>(queue, value, entry);
       }
       @Override Equivalence<Object> defaultEquivalence() {
         return Equivalences.identity();
@@ -328,10 +541,11 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
 
     /**
      * Creates a reference for the given value according to this value
-     * strength.
+     * strength, which is enqueued on {@code queue} once the value has been
+     * garbage collected.
      */
     abstract <K, V> ValueReference<K, V> referenceValue(
-        ReferenceEntry<K, V> entry, V value);
+        ReferenceQueue<V> queue, ReferenceEntry<K, V> entry, V value);
 
     /**
      * Returns the default equivalence strategy used to compare and hash
@@ -552,6 +766,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       // TODO(user): when we link values instead of entries this method can go
       // away, as can connectExpirables, nullifyExpirable.
       newEntry.setExpirationTime(original.getExpirationTime());
+      newEntry.setWriteTime(original.getWriteTime());
 
       connectExpirables(original.getPreviousExpirable(), newEntry);
       connectExpirables(newEntry, original.getNextExpirable());
@@ -564,6 +779,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         ReferenceEntry<K, V> original, ReferenceEntry<K, V> newEntry) {
       // TODO(user): when we link values instead of entries this method can go
       // away, as can connectEvictables, nullifyEvictable.
+      newEntry.setWeight(original.getWeight());
       connectEvictables(original.getPreviousEvictable(), newEntry);
       connectEvictables(newEntry, original.getNextEvictable());
 
@@ -578,8 +794,12 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
      */
     V get();
 
-    /** Creates a copy of this reference for the given entry. */
-    ValueReference<K, V> copyFor(ReferenceEntry<K, V> entry);
+    /**
+     * Creates a copy of this reference for the given entry, which is enqueued
+     * on {@code queue} once the value has been garbage collected.
+     */
+    ValueReference<K, V> copyFor(
+        ReferenceQueue<V> queue, ReferenceEntry<K, V> entry);
 
     /**
      * Waits for a value that may still be computing. Unlike get(),
@@ -620,7 +840,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     }
     @Override
     public ValueReference<Object, Object> copyFor(
-        ReferenceEntry<Object, Object> entry) {
+        ReferenceQueue<Object> queue, ReferenceEntry<Object, Object> entry) {
       return this;
     }
     @Override
@@ -646,12 +866,6 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     return (ValueReference<K, V>) UNSET;
   }
 
-  /** Wrapper class ensures that queue isn't created until it's used. */
-  private static class QueueHolder {
-    static final FinalizableReferenceQueue queue
-        = new FinalizableReferenceQueue();
-  }
-
   /**
    * An entry in a reference map.
    */
@@ -701,6 +915,21 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     /** Sets the entry expiration time in ns. */
     void setExpirationTime(long time);
 
+    /** Gets the time, in ns, at which the entry's value was last written. */
+    long getWriteTime();
+
+    /** Sets the time, in ns, at which the entry's value was last written. */
+    void setWriteTime(long time);
+
+    /**
+     * Gets whether the entry is queued to be moved into an earlier timer wheel
+     * bucket, after a read shortened its expiration time.
+     */
+    boolean isReschedulePending();
+
+    /** Sets whether the entry is queued to be moved in the timer wheel. */
+    void setReschedulePending(boolean pending);
+
     /** Gets the next entry in the recency list. */
     ReferenceEntry<K, V> getNextExpirable();
 
@@ -731,6 +960,12 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
 
     /** Sets the previous entry in the recency list. */
     void setPreviousEvictable(ReferenceEntry<K, V> previous);
+
+    /** Gets the weight recorded when the entry's value was last written. */
+    int getWeight();
+
+    /** Sets the weight recorded for the entry's current value. */
+    void setWeight(int weight);
   }
 
   private enum NullEntry implements ReferenceEntry<Object, Object> {
@@ -767,6 +1002,18 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     @Override
     public void setExpirationTime(long time) {}
     @Override
+    public long getWriteTime() {
+      return 0;
+    }
+    @Override
+    public void setWriteTime(long time) {}
+    @Override
+    public boolean isReschedulePending() {
+      return false;
+    }
+    @Override
+    public void setReschedulePending(boolean pending) {}
+    @Override
     public ReferenceEntry<Object, Object> getNextExpirable() {
       return this;
     }
@@ -793,6 +1040,13 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     }
     @Override
     public void setPreviousEvictable(ReferenceEntry<Object, Object> previous) {}
+
+    @Override
+    public int getWeight() {
+      return 0;
+    }
+    @Override
+    public void setWeight(int weight) {}
   }
 
   @SuppressWarnings("unchecked")
@@ -838,6 +1092,247 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     return (Queue<E>) DISCARDING_QUEUE;
   }
 
+  /**
+   * A lossy buffer of the entries read from a segment without holding its
+   * lock. Each stripe is a fixed-size ring which readers append to with a
+   * single compare-and-set, without allocating; a read is simply dropped if
+   * its stripe is full or contended. The buffer is drained in bulk by a thread
+   * holding the segment lock, which is the only thread that ever polls.
+   *
+   * <p>Losing reads only makes the recency ordering approximate, which eviction
+   * already tolerates.
+   */
+  static final class ReadBuffer<E> {
+    static final int STRIPE_SIZE = 16;
+    static final int STRIPE_MASK = STRIPE_SIZE - 1;
+
+    final Stripe<E>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    ReadBuffer() {
+      stripes = (Stripe<E>[]) new Stripe<?>[READ_BUFFER_STRIPES];
+      for (int i = 0; i < stripes.length; i++) {
+        stripes[i] = new Stripe<E>();
+      }
+    }
+
+    /**
+     * Records {@code e} in the calling thread's stripe, returning false if it
+     * had to be dropped.
+     */
+    boolean offer(E e) {
+      int index = Hashing.smear((int) Thread.currentThread().getId());
+      return stripes[index & (stripes.length - 1)].offer(e);
+    }
+
+    /**
+     * Removes and returns a buffered element, or returns null if every stripe
+     * is empty. Must only be called by the thread draining the buffer.
+     */
+    @Nullable E poll() {
+      for (Stripe<E> stripe : stripes) {
+        E e = stripe.poll();
+        if (e != null) {
+          return e;
+        }
+      }
+      return null;
+    }
+
+    static final class Stripe<E> {
+      final AtomicReferenceArray<E> slots =
+          new AtomicReferenceArray<E>(STRIPE_SIZE);
+
+      /** The number of slots ever claimed by readers. */
+      final AtomicLong writeCount = new AtomicLong();
+
+      /** The number of slots ever drained; only written by the drainer. */
+      volatile long readCount;
+
+      boolean offer(E e) {
+        long tail = writeCount.get();
+        // a stale readCount can only make the stripe appear fuller
+        if (tail - readCount >= STRIPE_SIZE
+            || !writeCount.compareAndSet(tail, tail + 1)) {
+          return false;
+        }
+        // a full volatile write; lazySet would be cheaper but requires Java 6
+        slots.set((int) tail & STRIPE_MASK, e);
+        return true;
+      }
+
+      E poll() {
+        long head = readCount;
+        if (head == writeCount.get()) {
+          return null;
+        }
+        int index = (int) head & STRIPE_MASK;
+        E e = slots.get(index);
+        if (e == null) {
+          // claimed, but not yet published; pick it up on the next drain
+          return null;
+        }
+        slots.set(index, null);
+        readCount = head + 1;
+        return e;
+      }
+    }
+  }
+
+  /**
+   * Accumulates cache statistics. Each segment owns its own counter, so that
+   * recording a statistic only contends with other threads which are accessing
+   * the same segment; {@link CacheStats} snapshots are summed across segments.
+   */
+  interface StatsCounter {
+    /** Records a single lookup which found a live value. */
+    void recordHit();
+
+    /** Records a single lookup which found no live value. */
+    void recordMiss();
+
+    /** Records the successful computation of a new value. */
+    void recordLoadSuccess(long loadTime);
+
+    /**
+     * Records the failed computation of a new value, either because the
+     * computing function threw an exception or because it returned null.
+     */
+    void recordLoadException(long loadTime);
+
+    /** Records the automatic removal of an entry from the map. */
+    void recordEviction();
+
+    /** Returns a snapshot of this counter's values. */
+    CacheStats snapshot();
+  }
+
+  /** A counter which records nothing, used by maps which aren't caches. */
+  enum NullStatsCounter implements StatsCounter {
+    INSTANCE;
+
+    @Override
+    public void recordHit() {}
+    @Override
+    public void recordMiss() {}
+    @Override
+    public void recordLoadSuccess(long loadTime) {}
+    @Override
+    public void recordLoadException(long loadTime) {}
+    @Override
+    public void recordEviction() {}
+    @Override
+    public CacheStats snapshot() {
+      return EMPTY_STATS;
+    }
+  }
+
+  static final CacheStats EMPTY_STATS = new CacheStats(0, 0, 0, 0, 0, 0);
+
+  /**
+   * A thread-safe counter. Hits and misses, which are recorded by every
+   * lookup, are counted in {@link StripedLongCounter}s so that concurrent
+   * readers of a segment rarely write the same cache line. The other
+   * statistics are recorded at most once per computation or eviction, and
+   * use one atomic field each.
+   */
+  static final class SimpleStatsCounter implements StatsCounter {
+    final StripedLongCounter hitCount = new StripedLongCounter();
+    final StripedLongCounter missCount = new StripedLongCounter();
+    final AtomicLong loadSuccessCount = new AtomicLong();
+    final AtomicLong loadExceptionCount = new AtomicLong();
+    final AtomicLong totalLoadTime = new AtomicLong();
+    final AtomicLong evictionCount = new AtomicLong();
+
+    @Override
+    public void recordHit() {
+      hitCount.increment();
+    }
+    @Override
+    public void recordMiss() {
+      missCount.increment();
+    }
+    @Override
+    public void recordLoadSuccess(long loadTime) {
+      loadSuccessCount.incrementAndGet();
+      totalLoadTime.addAndGet(loadTime);
+    }
+    @Override
+    public void recordLoadException(long loadTime) {
+      loadExceptionCount.incrementAndGet();
+      totalLoadTime.addAndGet(loadTime);
+    }
+    @Override
+    public void recordEviction() {
+      evictionCount.incrementAndGet();
+    }
+    @Override
+    public CacheStats snapshot() {
+      return new CacheStats(hitCount.get(), missCount.get(),
+          loadSuccessCount.get(), loadExceptionCount.get(),
+          totalLoadTime.get(), evictionCount.get());
+    }
+  }
+
+  /**
+   * A count which is spread over {@link #READ_BUFFER_STRIPES} cells, picked
+   * by thread like the stripes of a {@link ReadBuffer}. The cells are spaced
+   * a cache line apart, so that threads incrementing different cells don't
+   * invalidate each other's caches. The count is the sum of the cells.
+   */
+  static final class StripedLongCounter {
+    /** The number of longs from one cell to the next, which is 64 bytes. */
+    static final int SPACING = 8;
+
+    // cell i is at (i + 1) * SPACING, leaving a line of padding at each end
+    final AtomicLongArray cells =
+        new AtomicLongArray((READ_BUFFER_STRIPES + 2) * SPACING);
+
+    void increment() {
+      int index = Hashing.smear((int) Thread.currentThread().getId());
+      cells.incrementAndGet(
+          ((index & (READ_BUFFER_STRIPES - 1)) + 1) * SPACING);
+    }
+
+    long get() {
+      long sum = 0;
+      for (int i = 1; i <= READ_BUFFER_STRIPES; i++) {
+        sum += cells.get(i * SPACING);
+      }
+      return sum;
+    }
+  }
+
+  /**
+   * Accumulates the lock contention and maintenance statistics of a segment.
+   * Every statistic is updated while holding the segment lock, so each field
+   * has a single writer at a time, and may be read without the lock.
+   */
+  static final class SegmentStatsCounter {
+    volatile long lockCount;
+    volatile long contendedLockCount;
+    volatile long lockWaitNanos;
+    volatile long lockHoldNanos;
+    volatile long drainCount;
+    volatile long drainedEntryCount;
+    volatile long expiredEntryCount;
+    volatile long expirationNanos;
+    volatile long collectedKeyCount;
+    volatile long collectedValueCount;
+    volatile long rehashCount;
+    volatile long rehashNanos;
+
+    /** The time at which the lock was acquired, while it's held. */
+    long lockedAt;
+
+    SegmentStats snapshot() {
+      return new SegmentStats(lockCount, contendedLockCount, lockWaitNanos,
+          lockHoldNanos, drainCount, drainedEntryCount, expiredEntryCount,
+          expirationNanos, collectedKeyCount, collectedValueCount,
+          rehashCount, rehashNanos);
+    }
+  }
+
   /*
    * Note: All of this duplicate code sucks, but it saves a lot of memory.
    * If only Java had mixins! To maintain this code, make a change for
@@ -878,6 +1373,22 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     public void setExpirationTime(long time) {
       throw new UnsupportedOperationException();
     }
+    @Override
+    public long getWriteTime() {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public void setWriteTime(long time) {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public boolean isReschedulePending() {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public void setReschedulePending(boolean pending) {
+      throw new UnsupportedOperationException();
+    }
 
     @Override
     public ReferenceEntry<K, V> getNextExpirable() {
@@ -916,6 +1427,15 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       throw new UnsupportedOperationException();
     }
 
+    @Override
+    public int getWeight() {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public void setWeight(int weight) {
+      throw new UnsupportedOperationException();
+    }
+
     // The code below is exactly the same for each entry type.
 
     final CustomConcurrentHashMap<K, V> map;
@@ -966,6 +1486,26 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       this.time = time;
     }
 
+    volatile long writeTime;
+    @Override
+    public long getWriteTime() {
+      return writeTime;
+    }
+    @Override
+    public void setWriteTime(long time) {
+      this.writeTime = time;
+    }
+
+    volatile boolean reschedulePending;
+    @Override
+    public boolean isReschedulePending() {
+      return reschedulePending;
+    }
+    @Override
+    public void setReschedulePending(boolean pending) {
+      this.reschedulePending = pending;
+    }
+
     @GuardedBy("Segment.this")
     ReferenceEntry<K, V> nextExpirable = nullEntry();
     @Override
@@ -1019,6 +1559,17 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
       this.previousEvictable = previous;
     }
+
+    @GuardedBy("Segment.this")
+    int weight;
+    @Override
+    public int getWeight() {
+      return weight;
+    }
+    @Override
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
   }
 
   private static class StrongExpirableEvictableEntry<K, V>
@@ -1040,6 +1591,26 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       this.time = time;
     }
 
+    volatile long writeTime;
+    @Override
+    public long getWriteTime() {
+      return writeTime;
+    }
+    @Override
+    public void setWriteTime(long time) {
+      this.writeTime = time;
+    }
+
+    volatile boolean reschedulePending;
+    @Override
+    public boolean isReschedulePending() {
+      return reschedulePending;
+    }
+    @Override
+    public void setReschedulePending(boolean pending) {
+      this.reschedulePending = pending;
+    }
+
     @GuardedBy("Segment.this")
     ReferenceEntry<K, V> nextExpirable = nullEntry();
     @Override
@@ -1085,16 +1656,27 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
       this.previousEvictable = previous;
     }
+
+    @GuardedBy("Segment.this")
+    int weight;
+    @Override
+    public int getWeight() {
+      return weight;
+    }
+    @Override
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
   }
 
   /**
    * Used for softly-referenced keys.
    */
-  private static class SoftEntry<K, V> extends FinalizableSoftReference<K>
+  private static class SoftEntry<K, V> extends SoftReference<K>
       implements ReferenceEntry<K, V> {
     SoftEntry(CustomConcurrentHashMap<K, V> map, K key, int hash,
         @Nullable ReferenceEntry<K, V> next) {
-      super(key, QueueHolder.queue);
+      super(key, map.segmentFor(hash).keyReferenceQueue);
       this.map = map;
       this.hash = hash;
       this.next = next;
@@ -1105,11 +1687,6 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       return get();
     }
 
-    @Override
-    public void finalizeReferent() {
-      notifyKeyReclaimed();
-    }
-
     @Override
     public void notifyKeyReclaimed() {
       map.reclaimKey(this);
@@ -1124,6 +1701,22 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     public void setExpirationTime(long time) {
       throw new UnsupportedOperationException();
     }
+    @Override
+    public long getWriteTime() {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public void setWriteTime(long time) {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public boolean isReschedulePending() {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public void setReschedulePending(boolean pending) {
+      throw new UnsupportedOperationException();
+    }
 
     @Override
     public ReferenceEntry<K, V> getNextExpirable() {
@@ -1162,6 +1755,15 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       throw new UnsupportedOperationException();
     }
 
+    @Override
+    public int getWeight() {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public void setWeight(int weight) {
+      throw new UnsupportedOperationException();
+    }
+
     // The code below is exactly the same for each entry type.
 
     final CustomConcurrentHashMap<K, V> map;
@@ -1212,6 +1814,26 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       this.time = time;
     }
 
+    volatile long writeTime;
+    @Override
+    public long getWriteTime() {
+      return writeTime;
+    }
+    @Override
+    public void setWriteTime(long time) {
+      this.writeTime = time;
+    }
+
+    volatile boolean reschedulePending;
+    @Override
+    public boolean isReschedulePending() {
+      return reschedulePending;
+    }
+    @Override
+    public void setReschedulePending(boolean pending) {
+      this.reschedulePending = pending;
+    }
+
     @GuardedBy("Segment.this")
     ReferenceEntry<K, V> nextExpirable = nullEntry();
     @Override
@@ -1265,6 +1887,17 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
       this.previousEvictable = previous;
     }
+
+    @GuardedBy("Segment.this")
+    int weight;
+    @Override
+    public int getWeight() {
+      return weight;
+    }
+    @Override
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
   }
 
   private static class SoftExpirableEvictableEntry<K, V>
@@ -1286,6 +1919,26 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       this.time = time;
     }
 
+    volatile long writeTime;
+    @Override
+    public long getWriteTime() {
+      return writeTime;
+    }
+    @Override
+    public void setWriteTime(long time) {
+      this.writeTime = time;
+    }
+
+    volatile boolean reschedulePending;
+    @Override
+    public boolean isReschedulePending() {
+      return reschedulePending;
+    }
+    @Override
+    public void setReschedulePending(boolean pending) {
+      this.reschedulePending = pending;
+    }
+
     @GuardedBy("Segment.this")
     ReferenceEntry<K, V> nextExpirable = nullEntry();
     @Override
@@ -1331,16 +1984,27 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
       this.previousEvictable = previous;
     }
+
+    @GuardedBy("Segment.this")
+    int weight;
+    @Override
+    public int getWeight() {
+      return weight;
+    }
+    @Override
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
   }
 
   /**
    * Used for weakly-referenced keys.
    */
-  private static class WeakEntry<K, V> extends FinalizableWeakReference<K>
+  private static class WeakEntry<K, V> extends WeakReference<K>
       implements ReferenceEntry<K, V> {
     WeakEntry(CustomConcurrentHashMap<K, V> map, K key, int hash,
         @Nullable ReferenceEntry<K, V> next) {
-      super(key, QueueHolder.queue);
+      super(key, map.segmentFor(hash).keyReferenceQueue);
       this.map = map;
       this.hash = hash;
       this.next = next;
@@ -1351,11 +2015,6 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       return get();
     }
 
-    @Override
-    public void finalizeReferent() {
-      notifyKeyReclaimed();
-    }
-
     @Override
     public void notifyKeyReclaimed() {
       map.reclaimKey(this);
@@ -1370,6 +2029,22 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     public void setExpirationTime(long time) {
       throw new UnsupportedOperationException();
     }
+    @Override
+    public long getWriteTime() {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public void setWriteTime(long time) {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public boolean isReschedulePending() {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public void setReschedulePending(boolean pending) {
+      throw new UnsupportedOperationException();
+    }
 
     @Override
     public ReferenceEntry<K, V> getNextExpirable() {
@@ -1408,6 +2083,15 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       throw new UnsupportedOperationException();
     }
 
+    @Override
+    public int getWeight() {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public void setWeight(int weight) {
+      throw new UnsupportedOperationException();
+    }
+
     // The code below is exactly the same for each entry type.
 
     final CustomConcurrentHashMap<K, V> map;
@@ -1458,6 +2142,26 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       this.time = time;
     }
 
+    volatile long writeTime;
+    @Override
+    public long getWriteTime() {
+      return writeTime;
+    }
+    @Override
+    public void setWriteTime(long time) {
+      this.writeTime = time;
+    }
+
+    volatile boolean reschedulePending;
+    @Override
+    public boolean isReschedulePending() {
+      return reschedulePending;
+    }
+    @Override
+    public void setReschedulePending(boolean pending) {
+      this.reschedulePending = pending;
+    }
+
     @GuardedBy("Segment.this")
     ReferenceEntry<K, V> nextExpirable = nullEntry();
     @Override
@@ -1511,6 +2215,17 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
       this.previousEvictable = previous;
     }
+
+    @GuardedBy("Segment.this")
+    int weight;
+    @Override
+    public int getWeight() {
+      return weight;
+    }
+    @Override
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
   }
 
   private static class WeakExpirableEvictableEntry<K, V>
@@ -1532,6 +2247,26 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       this.time = time;
     }
 
+    volatile long writeTime;
+    @Override
+    public long getWriteTime() {
+      return writeTime;
+    }
+    @Override
+    public void setWriteTime(long time) {
+      this.writeTime = time;
+    }
+
+    volatile boolean reschedulePending;
+    @Override
+    public boolean isReschedulePending() {
+      return reschedulePending;
+    }
+    @Override
+    public void setReschedulePending(boolean pending) {
+      this.reschedulePending = pending;
+    }
+
     @GuardedBy("Segment.this")
     ReferenceEntry<K, V> nextExpirable = nullEntry();
     @Override
@@ -1577,32 +2312,39 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
       this.previousEvictable = previous;
     }
+
+    @GuardedBy("Segment.this")
+    int weight;
+    @Override
+    public int getWeight() {
+      return weight;
+    }
+    @Override
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
   }
 
   /** References a weak value. */
   private static class WeakValueReference<K, V>
-      extends FinalizableWeakReference<V>
-      implements ValueReference<K, V> {
+      extends WeakReference<V> implements ValueReference<K, V> {
     final ReferenceEntry<K, V> entry;
 
-    WeakValueReference(V referent, ReferenceEntry<K, V> entry) {
-      super(referent, QueueHolder.queue);
+    WeakValueReference(ReferenceQueue<V> queue, V referent,
+        ReferenceEntry<K, V> entry) {
+      super(referent, queue);
       this.entry = entry;
     }
 
     @Override
     public void notifyValueReclaimed() {
-      finalizeReferent();
-    }
-
-    @Override
-    public void finalizeReferent() {
       entry.notifyValueReclaimed(this);
     }
 
     @Override
-    public ValueReference<K, V> copyFor(ReferenceEntry<K, V> entry) {
-      return new WeakValueReference<K, V>(get(), entry);
+    public ValueReference<K, V> copyFor(
+        ReferenceQueue<V> queue, ReferenceEntry<K, V> entry) {
+      return new WeakValueReference<K, V>(queue, get(), entry);
     }
 
     @Override
@@ -1618,28 +2360,24 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
 
   /** References a soft value. */
   private static class SoftValueReference<K, V>
-      extends FinalizableSoftReference<V>
-      implements ValueReference<K, V> {
+      extends SoftReference<V> implements ValueReference<K, V> {
     final ReferenceEntry<K, V> entry;
 
-    SoftValueReference(V referent, ReferenceEntry<K, V> entry) {
-      super(referent, QueueHolder.queue);
+    SoftValueReference(ReferenceQueue<V> queue, V referent,
+        ReferenceEntry<K, V> entry) {
+      super(referent, queue);
       this.entry = entry;
     }
 
     @Override
     public void notifyValueReclaimed() {
-      finalizeReferent();
-    }
-
-    @Override
-    public void finalizeReferent() {
       entry.notifyValueReclaimed(this);
     }
 
     @Override
-    public ValueReference<K, V> copyFor(ReferenceEntry<K, V> entry) {
-      return new SoftValueReference<K, V>(get(), entry);
+    public ValueReference<K, V> copyFor(
+        ReferenceQueue<V> queue, ReferenceEntry<K, V> entry) {
+      return new SoftValueReference<K, V>(queue, get(), entry);
     }
 
     @Override
@@ -1668,7 +2406,8 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     }
 
     @Override
-    public ValueReference<K, V> copyFor(ReferenceEntry<K, V> entry) {
+    public ValueReference<K, V> copyFor(
+        ReferenceQueue<V> queue, ReferenceEntry<K, V> entry) {
       return this;
     }
 
@@ -1698,7 +2437,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
    *
    * @param h hash code
    */
-  private static int rehash(int h) {
+  static int rehash(int h) {
     // Spread bits to regularize both segment and index locations,
     // using variant of single-word Wang/Jenkins hash.
     // TODO(kevinb): use Hashing/move this to Hashing?
@@ -1722,13 +2461,20 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     ValueReference<K, V> valueReference = original.getValueReference();
     ReferenceEntry<K, V> newEntry
         = entryFactory.copyEntry(this, original, newNext);
-    newEntry.setValueReference(valueReference.copyFor(newEntry));
+    newEntry.setValueReference(valueReference.copyFor(
+        segmentFor(original.getHash()).valueReferenceQueue, newEntry));
+    if (expiresVariably() && original.isReschedulePending()) {
+      // the copy took the original's place in the timer wheel
+      newEntry.setReschedulePending(true);
+      segmentFor(original.getHash()).rescheduleQueue.offer(newEntry);
+    }
     return newEntry;
   }
 
   @GuardedBy("Segment.this")
   ValueReference<K, V> newValueReference(ReferenceEntry<K, V> entry, V value) {
-    return valueStrength.referenceValue(entry, value);
+    return valueStrength.referenceValue(
+        segmentFor(entry.getHash()).valueReferenceQueue, entry, value);
   }
 
   int hash(Object key) {
@@ -1820,32 +2566,6 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
 
   // eviction
 
-  void enqueueNotification(K key, int hash,
-      ValueReference<K, V> valueReference) {
-    if (evictionNotificationQueue == DISCARDING_QUEUE) {
-      return;
-    }
-
-    ReferenceEntry<K, V> notifyEntry = newEntry(key, hash, null);
-    notifyEntry.setValueReference(valueReference.copyFor(notifyEntry));
-    evictionNotificationQueue.offer(notifyEntry);
-  }
-
-  /**
-   * Notifies listeners that an entry has been automatically removed due to
-   * expiration, eviction, or eligibility for garbage collection. This should
-   * be called every time expireEntries or evictEntry is called (once the lock
-   * is released). It must only be called from user threads (e.g. not from
-   * garbage collection callbacks).
-   */
-  void processPendingNotifications() {
-    ReferenceEntry<K, V> entry;
-    while ((entry = evictionNotificationQueue.poll()) != null) {
-      evictionListener.onEviction(entry.getKey(),
-          entry.getValueReference().get());
-    }
-  }
-
   /** Links the evitables together. */
   @GuardedBy("Segment.this")
   static <K, V> void connectEvictables(ReferenceEntry<K, V> previous,
@@ -1884,8 +2604,45 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     return segments[(hash >>> segmentShift) & segmentMask];
   }
 
-  Segment createSegment(int initialCapacity, int maxSegmentSize) {
-    return new Segment(initialCapacity, maxSegmentSize);
+  Segment createSegment(int initialCapacity, long maxSegmentWeight) {
+    return new Segment(initialCapacity, maxSegmentWeight);
+  }
+
+  /**
+   * Returns a new stats counter for a segment. Plain maps don't record
+   * statistics; caches override this to return a live counter.
+   */
+  StatsCounter newStatsCounter() {
+    return NullStatsCounter.INSTANCE;
+  }
+
+  /**
+   * Returns the sum of the statistics recorded by each segment.
+   */
+  CacheStats stats() {
+    CacheStats stats = EMPTY_STATS;
+    for (Segment segment : segments) {
+      stats = stats.plus(segment.statsCounter.snapshot());
+    }
+    return stats;
+  }
+
+  /**
+   * Returns the sum of the off-heap statistics of each segment.
+   */
+  OffHeapStats offHeapStats() {
+    OffHeapStats stats = OffHeapStore.EMPTY_STATS;
+    if (hasOffHeapTier()) {
+      for (Segment segment : segments) {
+        segment.lock();
+        try {
+          stats = stats.plus(segment.offHeapStore.stats());
+        } finally {
+          segment.unlock();
+        }
+      }
+    }
+    return stats;
   }
 
   /* ---------------- Inner Classes -------------- */
@@ -1968,10 +2725,17 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     volatile AtomicReferenceArray<ReferenceEntry<K, V>> table;
 
     /**
-     * The maximum size of this map. MapMaker.UNSET_INT if there is no
+     * The maximum weight of this segment. MapMaker.UNSET_INT if there is no
      * maximum.
      */
-    final int maxSegmentSize;
+    final long maxSegmentWeight;
+
+    /**
+     * The weight of the live elements in this segment's region, which is the
+     * sum of the weights recorded on the entries in the eviction queue.
+     */
+    @GuardedBy("Segment.this")
+    long totalWeight;
 
     /**
      * The cleanup queue is used to record entries which have been unset
@@ -1982,12 +2746,51 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         new ConcurrentLinkedQueue<ReferenceEntry<K, V>>();
 
     /**
-     * The recency queue is used to record which entries were accessed
-     * for updating the eviction list's ordering. It is drained
-     * as a batch operation when either the DRAIN_THRESHOLD is crossed or
-     * a write occurs on the segment.
+     * The entries of this segment whose keys have been garbage collected, or
+     * null if keys are strongly referenced. It is drained during cleanup, in
+     * batches of at most {@link #DRAIN_MAX}.
+     */
+    @Nullable final ReferenceQueue<K> keyReferenceQueue;
+
+    /**
+     * The value references of this segment whose values have been garbage
+     * collected, or null if values are strongly referenced. It is drained
+     * during cleanup, in batches of at most {@link #DRAIN_MAX}.
+     */
+    @Nullable final ReferenceQueue<V> valueReferenceQueue;
+
+    /**
+     * Notifications of removals from this segment, waiting to be delivered to
+     * the removal listener once the lock is released. Discards notifications
+     * if there is no listener.
+     */
+    final Queue<RemovalNotification<K, V>> removalNotificationQueue =
+        notifiesRemovals()
+            ? new ConcurrentLinkedQueue<RemovalNotification<K, V>>()
+            : CustomConcurrentHashMap
+                .<RemovalNotification<K, V>>discardingQueue();
+
+    /**
+     * The read buffer is used to record which entries were accessed for
+     * updating the eviction list's ordering, or null if the ordering isn't
+     * needed. It is drained as a batch operation when either the
+     * DRAIN_THRESHOLD is crossed or a write occurs on the segment.
      */
-    final Queue<ReferenceEntry<K, V>> recencyQueue;
+    @Nullable final ReadBuffer<ReferenceEntry<K, V>> readBuffer;
+
+    /**
+     * Entries whose expiration time was moved earlier by an unlocked read,
+     * and which must be moved into an earlier timer wheel bucket. Unlike the
+     * read buffer this never drops an entry, since a dropped entry would only
+     * be removed once its old bucket elapsed. It is drained along with the
+     * read buffer, and is only used by variable expiration.
+     *
+     * <p>An entry is only queued if it isn't already {@linkplain
+     * ReferenceEntry#isReschedulePending pending}, so the queue holds each
+     * entry at most once per concurrent reader, however often it is read
+     * between drains.
+     */
+    final Queue<ReferenceEntry<K, V>> rescheduleQueue;
 
     /**
      * A counter of the number of reads since the last write, used to drain
@@ -1995,6 +2798,13 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
      */
     final AtomicInteger readCount = new AtomicInteger();
 
+    /**
+     * Whether maintenance of this segment has been submitted to the
+     * maintenance executor, ahead of its next scheduled run, and hasn't yet
+     * started.
+     */
+    final AtomicBoolean maintenancePending = new AtomicBoolean();
+
     /**
      * A queue of elements currently in the map, ordered by access time.
      * Elements are added to the tail of the queue on access/write.
@@ -2003,37 +2813,126 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     final Queue<ReferenceEntry<K, V>> evictionQueue;
 
     /**
-     * A queue of elements currently in the map, ordered by expiration time
-     * (either access or write time). Elements are added to the tail of the
-     * queue on access/write.
+     * Schedules the expiration of the elements currently in the map, or null
+     * if entries don't expire. Elements are rescheduled on access/write.
+     */
+    @GuardedBy("Segment.this")
+    final TimerWheel timerWheel;
+
+    /**
+     * Estimates how frequently the keys of this segment have recently been
+     * used, or null unless admitting by frequency. Accesses are recorded as
+     * they are drained from the read buffer.
      */
     @GuardedBy("Segment.this")
-    final Queue<ReferenceEntry<K, V>> expirationQueue;
+    final FrequencySketch sketch;
 
-    Segment(int initialCapacity, int maxSegmentSize) {
-      this.maxSegmentSize = maxSegmentSize;
+    /**
+     * Holds this segment's share of the entries evicted by size, or null if
+     * they are discarded. Emptiness may be checked without the lock.
+     */
+    @GuardedBy("Segment.this")
+    @Nullable final OffHeapStore<K, V> offHeapStore;
+
+    /** Accumulates cache statistics for this segment. */
+    final StatsCounter statsCounter;
+
+    /**
+     * Accumulates lock contention and maintenance statistics, or null if
+     * they aren't recorded.
+     */
+    @Nullable final SegmentStatsCounter segmentStats;
+
+    Segment(int initialCapacity, long maxSegmentWeight) {
+      this.segmentStats =
+          recordsSegmentStats() ? new SegmentStatsCounter() : null;
+      this.maxSegmentWeight = maxSegmentWeight;
+      this.statsCounter = newStatsCounter();
+      keyReferenceQueue = (keyStrength != Strength.STRONG)
+          ? new ReferenceQueue<K>() : null;
+      valueReferenceQueue = (valueStrength != Strength.STRONG)
+          ? new ReferenceQueue<V>() : null;
       initTable(newEntryArray(initialCapacity));
 
-      recencyQueue = (evictsBySize() || expiresAfterAccess())
-          ? new ConcurrentLinkedQueue<ReferenceEntry<K, V>>()
-          : CustomConcurrentHashMap.<ReferenceEntry<K, V>>discardingQueue();
+      // without a weigher the bound is the number of entries, so size the
+      // sketch for that up front rather than discarding it as the table grows
+      sketch = !admitByFrequency ? null : new FrequencySketch(customWeigher()
+          ? threshold : (int) Math.min(maxSegmentWeight, MAXIMUM_CAPACITY));
+
+      readBuffer =
+          (tracksRecency() || expiresAfterAccess() || expiresVariably())
+          ? new ReadBuffer<ReferenceEntry<K, V>>()
+          : null;
 
-      evictionQueue = evictsBySize()
+      evictionQueue = tracksRecency()
           ? new EvictionQueue()
           : CustomConcurrentHashMap.<ReferenceEntry<K, V>>discardingQueue();
 
-      expirationQueue = expires()
-          ? new ExpirationQueue()
+      timerWheel = expires() ? new TimerWheel(ticker.read()) : null;
+
+      rescheduleQueue = expiresVariably()
+          ? new ConcurrentLinkedQueue<ReferenceEntry<K, V>>()
           : CustomConcurrentHashMap.<ReferenceEntry<K, V>>discardingQueue();
+
+      offHeapStore = !hasOffHeapTier() ? null : new OffHeapStore<K, V>(
+          (offHeapCapacity + segments.length - 1) / segments.length,
+          offHeapKeySerializer, offHeapValueSerializer, keyEquivalence,
+          expires() ? ticker : null);
     }
 
     AtomicReferenceArray<ReferenceEntry<K, V>> newEntryArray(int size) {
       return new AtomicReferenceArray<ReferenceEntry<K, V>>(size);
     }
 
+    // instrumented locking
+
+    @Override public void lock() {
+      SegmentStatsCounter stats = segmentStats;
+      if (stats == null) {
+        super.lock();
+        return;
+      }
+      if (super.tryLock()) {
+        recordLockAcquired(stats, 0);
+        return;
+      }
+      long start = System.nanoTime();
+      super.lock();
+      stats.contendedLockCount++;
+      recordLockAcquired(stats, System.nanoTime() - start);
+    }
+
+    @Override public boolean tryLock() {
+      if (!super.tryLock()) {
+        return false;
+      }
+      SegmentStatsCounter stats = segmentStats;
+      if (stats != null) {
+        recordLockAcquired(stats, 0);
+      }
+      return true;
+    }
+
+    @Override public void unlock() {
+      SegmentStatsCounter stats = segmentStats;
+      if (stats != null && getHoldCount() == 1) {
+        stats.lockHoldNanos += System.nanoTime() - stats.lockedAt;
+      }
+      super.unlock();
+    }
+
+    @GuardedBy("Segment.this")
+    void recordLockAcquired(SegmentStatsCounter stats, long waitNanos) {
+      if (getHoldCount() == 1) {
+        stats.lockCount++;
+        stats.lockWaitNanos += waitNanos;
+        stats.lockedAt = System.nanoTime();
+      }
+    }
+
     void initTable(AtomicReferenceArray<ReferenceEntry<K, V>> newTable) {
       this.threshold = newTable.length() * 3 / 4; // 0.75
-      if (this.threshold == maxSegmentSize) {
+      if (!customWeigher() && this.threshold == maxSegmentWeight) {
         // prevent spurious expansion before eviction
         this.threshold++;
       }
@@ -2046,26 +2945,40 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
      */
     @GuardedBy("Segment.this")
     void setValue(ReferenceEntry<K, V> entry, V value) {
-      recordWrite(entry);
+      if (evictsBySize()) {
+        // weigh once, on write, so that eviction never calls the weigher
+        int weight = weigher.weigh(entry.getKey(), value);
+        checkState(weight >= 0, "Weights must be non-negative");
+        removeFromEvictionQueue(entry);
+        entry.setWeight(weight);
+        totalWeight += weight;
+      }
+      recordWrite(entry, value);
       ValueReference<K, V> valueReference = newValueReference(entry, value);
       entry.setValueReference(valueReference);
     }
 
-    // recency queue, shared by expiration and eviction
+    // read buffer, shared by expiration and eviction
 
     /**
      * Records the relative order in which this read was performed by adding
-     * {@code entry} to the recency queue. At write-time, or when the queue is
-     * full past the threshold, the queue will be drained and the entries
-     * therein processed.
+     * {@code entry} to the read buffer. At write-time, or when the threshold
+     * is crossed, the buffer will be drained and the entries therein
+     * processed. Reads which don't fit in the buffer are forgotten.
      *
      * <p>Note: locked reads should use {@link #recordLockedRead}.
      */
     void recordRead(ReferenceEntry<K, V> entry) {
       if (expiresAfterAccess()) {
         recordExpirationTime(entry, expireAfterAccessNanos);
+      } else if (expiresVariably() && recordReadExpirationTime(entry)
+          && !entry.isReschedulePending()) {
+        entry.setReschedulePending(true);
+        rescheduleQueue.offer(entry);
+      }
+      if (readBuffer != null) {
+        readBuffer.offer(entry);
       }
-      recencyQueue.add(entry);
     }
 
     /**
@@ -2078,54 +2991,99 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
      */
     @GuardedBy("Segment.this")
     void recordLockedRead(ReferenceEntry<K, V> entry) {
+      recordFrequency(entry);
       evictionQueue.add(entry);
       if (expiresAfterAccess()) {
         recordExpirationTime(entry, expireAfterAccessNanos);
-        expirationQueue.add(entry);
+        timerWheel.schedule(entry);
+      } else if (expiresVariably()) {
+        recordReadExpirationTime(entry);
+        timerWheel.schedule(entry);
       }
     }
 
     /**
-     * Updates eviction metadata that {@code entry} was just written. This
-     * currently amounts to adding {@code entry} to relevant eviction lists.
+     * Updates eviction metadata that {@code entry} was just written with
+     * {@code value}. This currently amounts to adding {@code entry} to
+     * relevant eviction lists. Must be called before the new value reference
+     * is set, as a variable expiry distinguishes updates from creations by the
+     * value being replaced.
      */
     @GuardedBy("Segment.this")
-    void recordWrite(ReferenceEntry<K, V> entry) {
-      // we are already under lock, so drain the recency queue immediately
-      drainRecencyQueue();
+    void recordWrite(ReferenceEntry<K, V> entry, V value) {
+      // we are already under lock, so drain the read buffer immediately
+      drainReadBuffer();
+      recordFrequency(entry);
       evictionQueue.add(entry);
-      if (expires()) {
-        // currently MapMaker ensures that expireAfterWrite and
-        // expireAfterAccess are mutually exclusive
+      if (refreshes()) {
+        entry.setWriteTime(ticker.read());
+      }
+      if (expiresVariably()) {
+        recordWriteExpirationTime(entry, value);
+        timerWheel.schedule(entry);
+      } else if (expires()) {
+        // currently MapMaker ensures that expireAfterWrite,
+        // expireAfterAccess and expireAfter are mutually exclusive
         long expiration = expiresAfterAccess()
             ? expireAfterAccessNanos : expireAfterWriteNanos;
         recordExpirationTime(entry, expiration);
-        expirationQueue.add(entry);
+        timerWheel.schedule(entry);
       }
     }
 
     /**
-     * Drains the recency queue, updating eviction metadata that the entries
+     * Drains the read buffer, updating eviction metadata that the entries
      * therein were read in the specified relative order. This currently amounts
      * to adding them to relevant eviction lists (accounting for the fact that
      * they could have been removed from the map since being added to the
-     * recency queue).
+     * read buffer).
      */
     @GuardedBy("Segment.this")
-    void drainRecencyQueue() {
+    void drainReadBuffer() {
+      if (readBuffer == null) {
+        return;
+      }
+      ReferenceEntry<K, V> rescheduled;
+      while ((rescheduled = rescheduleQueue.poll()) != null) {
+        // cleared first, so that a later shortening read queues it again
+        rescheduled.setReschedulePending(false);
+        if (timerWheel.contains(rescheduled)) {
+          timerWheel.schedule(rescheduled);
+        }
+      }
+      int drained = 0;
       ReferenceEntry<K, V> e;
-      while ((e = recencyQueue.poll()) != null) {
-        // An entry may be in the recency queue despite it being removed from
+      while ((e = readBuffer.poll()) != null) {
+        drained++;
+        // An entry may be in the read buffer despite it being removed from
         // the map . This can occur when the entry was concurrently read while a
         // writer is removing it from the segment or after a clear has removed
         // all of the segment's entries.
         if (evictionQueue.contains(e)) {
+          recordFrequency(e);
           evictionQueue.add(e);
         }
-        if (expiresAfterAccess() && expirationQueue.contains(e)) {
-          expirationQueue.add(e);
+        if ((expiresAfterAccess() || expiresVariably())
+            && timerWheel.contains(e)) {
+          timerWheel.schedule(e);
         }
       }
+      SegmentStatsCounter stats = segmentStats;
+      if (stats != null && drained > 0) {
+        stats.drainCount++;
+        stats.drainedEntryCount += drained;
+      }
+    }
+
+    /**
+     * Counts a use of {@code entry}'s key towards its admission priority, if
+     * admitting by frequency.
+     */
+    @GuardedBy("Segment.this")
+    void recordFrequency(ReferenceEntry<K, V> entry) {
+      if (sketch != null) {
+        sketch.increment(entry.getHash());
+      }
     }
 
     // expiration
@@ -2136,6 +3094,51 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       entry.setExpirationTime(ticker.read() + expirationNanos);
     }
 
+    /**
+     * Sets the expiration time of an entry which is being written, as computed
+     * by the map's {@link Expiry}. The write is an update if the entry held a
+     * live value, and a creation otherwise.
+     */
+    @GuardedBy("Segment.this")
+    void recordWriteExpirationTime(ReferenceEntry<K, V> entry, V value) {
+      long now = ticker.read();
+      K key = entry.getKey();
+      V oldValue = entry.getValueReference().get();
+      long duration = (oldValue == null || isExpired(entry, now))
+          ? expiry.expireAfterCreate(key, value, now)
+          : expiry.expireAfterUpdate(
+              key, value, now, entry.getExpirationTime() - now);
+      entry.setExpirationTime(now + checkExpiry(duration));
+    }
+
+    /**
+     * Sets the expiration time of an entry which was just read, as computed by
+     * the map's {@link Expiry}. This may be called without the lock, in which
+     * case the entry is rescheduled when the read buffer is drained. If its
+     * expiration time moved earlier the caller must also add it to the
+     * reschedule queue, unless it is already pending there.
+     *
+     * @return whether the entry's expiration time moved earlier
+     */
+    boolean recordReadExpirationTime(ReferenceEntry<K, V> entry) {
+      K key = entry.getKey();
+      V value = entry.getValueReference().get();
+      if (key == null || value == null) {
+        return false; // collected or removed since it was read
+      }
+      long now = ticker.read();
+      long oldTime = entry.getExpirationTime();
+      long duration = expiry.expireAfterRead(key, value, now, oldTime - now);
+      long newTime = now + checkExpiry(duration);
+      entry.setExpirationTime(newTime);
+      return newTime - oldTime < 0;
+    }
+
+    long checkExpiry(long duration) {
+      checkState(duration >= 0, "Expiry durations must be non-negative");
+      return Math.min(duration, MAXIMUM_EXPIRY);
+    }
+
     /**
      * Cleanup expired entries when the lock is available.
      */
@@ -2149,44 +3152,302 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       }
     }
 
+    /**
+     * Removes entries whose timer wheel buckets have fully elapsed. Entries
+     * which expired more recently are still invisible to reads, and are
+     * removed once their bucket elapses.
+     */
     @GuardedBy("Segment.this")
     void expireEntries() {
-      drainRecencyQueue();
+      drainReadBuffer();
 
-      if (expirationQueue.isEmpty()) {
+      if (!expires() || timerWheel.isEmpty()) {
         // There's no point in calling nanoTime() if we have no entries to
         // expire.
         return;
       }
-      long now = ticker.read();
-      ReferenceEntry<K, V> e;
-      while ((e = expirationQueue.peek()) != null && isExpired(e, now)) {
-        if (!unsetEntry(e, e.getHash())) {
-          throw new AssertionError();
-        }
+      SegmentStatsCounter stats = segmentStats;
+      if (stats == null) {
+        timerWheel.advance(ticker.read());
+        return;
       }
+      long start = System.nanoTime();
+      int oldCount = count;
+      timerWheel.advance(ticker.read());
+      stats.expiredEntryCount += oldCount - count;
+      stats.expirationNanos += System.nanoTime() - start;
     }
 
     // eviction
 
     /**
-     * Performs eviction if the segment is full. This should only be called
-     * prior to adding a new entry and increasing {@code count}.
+     * Performs eviction until the segment is back under its share of the
+     * maximum weight. This should be called after a new value has been written
+     * and {@code count} has been updated. Only the weights recorded on the
+     * entries at write time are consulted.
      *
-     * @return true if eviction occurred
+     * <p>{@code candidate} is the entry which was just given a value, if it
+     * didn't previously have a live one. When admitting by frequency, the
+     * candidate is evicted in place of the least recently used entry if its
+     * key has been used no more frequently than the victim's.
      */
     @GuardedBy("Segment.this")
-    boolean evictEntries() {
-      if (evictsBySize() && count >= maxSegmentSize) {
-        drainRecencyQueue();
+    void evictEntries(@Nullable ReferenceEntry<K, V> candidate) {
+      if (!evictsBySize()) {
+        return;
+      }
 
-        ReferenceEntry<K, V> e = evictionQueue.remove();
-        if (!unsetEntry(e, e.getHash())) {
+      drainReadBuffer();
+      while (totalWeight > maxSegmentWeight) {
+        ReferenceEntry<K, V> e = evictionQueue.peek();
+        if (sketch != null && candidate != null && e != candidate
+            && sketch.frequency(candidate.getHash())
+                <= sketch.frequency(e.getHash())) {
+          e = candidate;
+        }
+        if (e == candidate) {
+          // the candidate has now either been rejected or is itself the
+          // least recently used entry
+          candidate = null;
+        }
+        spill(e);
+        if (!unsetEntry(e, e.getHash(), RemovalCause.SIZE)) {
           throw new AssertionError();
         }
-        return true;
       }
-      return false;
+    }
+
+    /**
+     * Evicts least recently used entries until the segment holds no more than
+     * {@code retainedFraction} of the entries it held on entry. Evicted
+     * entries are moved to the off-heap tier if there is one, and reported
+     * with {@link RemovalCause#SIZE}.
+     */
+    void shrink(double retainedFraction) {
+      if (count == 0) {
+        return;
+      }
+      lock();
+      try {
+        drainReadBuffer();
+        int retained = (int) (count * retainedFraction);
+        while (count > retained) {
+          ReferenceEntry<K, V> e = evictionQueue.peek();
+          if (e == null) {
+            break;
+          }
+          spill(e);
+          if (!unsetEntry(e, e.getHash(), RemovalCause.SIZE)) {
+            // not live, so it no longer belongs in the queue
+            removeFromEvictionQueue(e);
+          }
+        }
+      } finally {
+        unlock();
+        postWriteCleanup();
+      }
+    }
+
+    // off-heap tier
+
+    /**
+     * Copies an entry which is being evicted by size into the off-heap tier,
+     * if there is one and the entry is still live.
+     */
+    @GuardedBy("Segment.this")
+    void spill(ReferenceEntry<K, V> entry) {
+      if (offHeapStore == null) {
+        return;
+      }
+      K key = entry.getKey();
+      V value = entry.getValueReference().get();
+      if (key == null || value == null) {
+        return;
+      }
+      long expirationTime = 0;
+      if (expires()) {
+        long now = ticker.read();
+        if (isExpired(entry, now)) {
+          return;
+        }
+        expirationTime = entry.getExpirationTime();
+      }
+      offHeapStore.put(key, entry.getHash(), value, expirationTime);
+    }
+
+    /**
+     * Moves the entry for {@code key} from the off-heap tier back onto the
+     * heap, retaining its expiration time, and returns its value. Returns null
+     * if the off-heap tier doesn't hold the key. Every operation on a key
+     * calls this once it holds the lock, so that the key is never held by both
+     * tiers.
+     */
+    @GuardedBy("Segment.this")
+    V promote(Object key, int hash) {
+      if (offHeapStore == null || offHeapStore.isEmpty()) {
+        return null;
+      }
+      OffHeapStore.Record<K, V> record = offHeapStore.remove(key, hash);
+      if (record == null) {
+        return null;
+      }
+      // reentrant; the key is no longer off-heap, so this won't recurse
+      restore(record.key, hash, record.value, true, record.expirationTime);
+      return record.value;
+    }
+
+    /**
+     * Like {@link #promote}, but counted as a lookup of the off-heap tier,
+     * following a miss on the heap.
+     */
+    @GuardedBy("Segment.this")
+    V promoteForRead(Object key, int hash) {
+      if (offHeapStore == null || offHeapStore.isEmpty()) {
+        return null;
+      }
+      V value = promote(key, hash);
+      offHeapStore.recordLookup(value != null);
+      return value;
+    }
+
+    /**
+     * Looks up {@code key} in the off-heap tier following a miss on the heap,
+     * moving it back onto the heap if found.
+     */
+    V getOffHeap(Object key, int hash) {
+      lock();
+      try {
+        // the key may have been promoted in the interim
+        ReferenceEntry<K, V> e = getEntry(key, hash);
+        if (e != null) {
+          V value = getLiveValue(e);
+          if (value != null) {
+            recordLockedRead(e);
+            return value;
+          }
+        }
+        return promoteForRead(key, hash);
+      } finally {
+        unlock();
+        postWriteCleanup();
+      }
+    }
+
+    boolean containsKeyOffHeap(Object key, int hash) {
+      if (offHeapStore == null || offHeapStore.isEmpty()) {
+        return false;
+      }
+      lock();
+      try {
+        return offHeapStore.containsKey(key, hash);
+      } finally {
+        unlock();
+      }
+    }
+
+    // snapshots
+
+    /**
+     * Writes an entry restored from the off-heap tier or from a snapshot,
+     * returning the previous value. The entry keeps {@code expirationTime}
+     * rather than being assigned a new expiration as a fresh write would be,
+     * and doesn't compete with the eviction victim for admission, having
+     * already been admitted once; it only competes with other entries by
+     * recency.
+     */
+    V restore(K key, int hash, V value, boolean onlyIfAbsent,
+        long expirationTime) {
+      lock();
+      try {
+        V previous = put(key, hash, value, onlyIfAbsent, false);
+        if (expires() && !(onlyIfAbsent && previous != null)) {
+          ReferenceEntry<K, V> e = getEntry(key, hash);
+          if (e != null && timerWheel.contains(e)) {
+            e.setExpirationTime(expirationTime);
+            timerWheel.schedule(e);
+          }
+        }
+        return previous;
+      } finally {
+        unlock();
+        postWriteCleanup();
+      }
+    }
+
+    /**
+     * Appends this segment's live on-heap entries to {@code into}, least
+     * recently used first if the map tracks recency. The lock is held only
+     * while the entries are copied.
+     */
+    void snapshotHeap(List<OffHeapStore.Record<K, V>> into) {
+      lock();
+      try {
+        drainReadBuffer();
+        long now = ticker.read();
+        if (tracksRecency()) {
+          for (ReferenceEntry<K, V> e : evictionQueue) {
+            snapshotEntry(e, now, into);
+          }
+        } else {
+          AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
+          for (int i = 0; i < table.length(); ++i) {
+            for (ReferenceEntry<K, V> e = table.get(i); e != null;
+                e = e.getNext()) {
+              snapshotEntry(e, now, into);
+            }
+          }
+        }
+      } finally {
+        unlock();
+      }
+    }
+
+    @GuardedBy("Segment.this")
+    void snapshotEntry(ReferenceEntry<K, V> entry, long now,
+        List<OffHeapStore.Record<K, V>> into) {
+      K key = entry.getKey();
+      V value = entry.getValueReference().get();
+      if (key == null || value == null) {
+        return;
+      }
+      long expirationTime = 0;
+      if (expires()) {
+        if (isExpired(entry, now)) {
+          return;
+        }
+        expirationTime = entry.getExpirationTime();
+      }
+      into.add(new OffHeapStore.Record<K, V>(key, value, expirationTime));
+    }
+
+    /**
+     * Appends a batch of this segment's off-heap entries to {@code into},
+     * oldest first, starting from the log position returned by the previous
+     * call (or zero). Returns the position from which to continue, or -1 once
+     * every entry has been visited. The lock is held for one batch at a time.
+     */
+    long snapshotOffHeap(long position,
+        List<OffHeapStore.Record<K, V>> into) {
+      if (offHeapStore == null) {
+        return -1;
+      }
+      lock();
+      try {
+        return offHeapStore.collect(position, into);
+      } finally {
+        unlock();
+      }
+    }
+
+    /**
+     * Removes {@code entry} from the eviction queue, deducting its recorded
+     * weight from the segment if it was present.
+     */
+    @GuardedBy("Segment.this")
+    void removeFromEvictionQueue(ReferenceEntry<K, V> entry) {
+      if (evictionQueue.remove(entry)) {
+        totalWeight -= entry.getWeight();
+      }
     }
 
     /**
@@ -2202,9 +3463,8 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
 
     /**
      * Returns the entry for a given key. Note that the entry may not be live.
-     * This is only used for testing.
      */
-    @VisibleForTesting ReferenceEntry<K, V> getEntry(Object key, int hash) {
+    ReferenceEntry<K, V> getEntry(Object key, int hash) {
       for (ReferenceEntry<K, V> e = getFirst(hash); e != null;
           e = e.getNext()) {
         if (e.getHash() != hash) {
@@ -2225,6 +3485,23 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     }
 
     V get(Object key, int hash) {
+      V value = getUnrecorded(key, hash);
+      if (value == null && offHeapStore != null && !offHeapStore.isEmpty()) {
+        value = getOffHeap(key, hash);
+      }
+      if (value == null) {
+        statsCounter.recordMiss();
+      } else {
+        statsCounter.recordHit();
+      }
+      return value;
+    }
+
+    /**
+     * Like {@link #get}, but doesn't record a cache hit or miss. Used by
+     * computing lookups, which record their own statistics.
+     */
+    V getUnrecorded(Object key, int hash) {
       try {
         if (count != 0) { // read-volatile
           for (ReferenceEntry<K, V> e = getFirst(hash); e != null;
@@ -2268,12 +3545,15 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
           }
 
           if (keyEquivalence.equivalent(key, entryKey)) {
-            return getLiveValue(e) != null;
+            if (getLiveValue(e) != null) {
+              return true;
+            }
+            break;
           }
         }
       }
 
-      return false;
+      return containsKeyOffHeap(key, hash);
     }
 
     boolean containsValue(Object value) {
@@ -2303,6 +3583,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       lock();
       try {
         preWriteCleanup();
+        promote(key, hash);
 
         for (ReferenceEntry<K, V> e = getFirst(hash); e != null;
             e = e.getNext()) {
@@ -2313,12 +3594,14 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
             // and we should pretend like it doesn't exist.
             V entryValue = e.getValueReference().get();
             if (entryValue == null) {
-              unsetLiveEntry(e, hash);
+              unsetLiveEntry(e, hash, RemovalCause.COLLECTED);
               return false;
             }
 
             if (valueEquivalence.equivalent(oldValue, entryValue)) {
+              enqueueNotification(entryKey, entryValue, RemovalCause.REPLACED);
               setValue(e, newValue);
+              evictEntries(null);
               return true;
             } else {
               // Mimic
@@ -2341,6 +3624,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       lock();
       try {
         preWriteCleanup();
+        promote(key, hash);
 
         for (ReferenceEntry<K, V> e = getFirst(hash); e != null;
             e = e.getNext()) {
@@ -2351,11 +3635,13 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
             // and we should pretend like it doesn't exist.
             V entryValue = e.getValueReference().get();
             if (entryValue == null) {
-              unsetLiveEntry(e, hash);
+              unsetLiveEntry(e, hash, RemovalCause.COLLECTED);
               return null;
             }
 
+            enqueueNotification(entryKey, entryValue, RemovalCause.REPLACED);
             setValue(e, newValue);
+            evictEntries(null);
             return entryValue;
           }
         }
@@ -2368,10 +3654,19 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     }
 
     V put(K key, int hash, V value, boolean onlyIfAbsent) {
+      return put(key, hash, value, onlyIfAbsent, true);
+    }
+
+    /**
+     * Puts a value, where {@code compete} is whether a newly added entry must
+     * compete with the eviction victim for admission.
+     */
+    V put(K key, int hash, V value, boolean onlyIfAbsent, boolean compete) {
       checkNotNull(value);
       lock();
       try {
         preWriteCleanup();
+        promote(key, hash);
 
         int newCount = this.count + 1;
         if (newCount > this.threshold) { // ensure capacity
@@ -2402,7 +3697,6 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
               // partially-collected and next on the eviction list, which is why
               // notifyValueReclaimed must be called prior to evictEntries.
               valueReference.notifyValueReclaimed();
-              evictEntries();
               newCount = this.count + 1;
               this.count = newCount; // write-volatile
             } else if (onlyIfAbsent) {
@@ -2414,22 +3708,25 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
             }
             // else clobber, don't adjust count
 
+            if (entryValue != null) {
+              enqueueNotification(entryKey, entryValue,
+                  (expires() && isExpired(e))
+                      ? RemovalCause.EXPIRED : RemovalCause.REPLACED);
+            }
             setValue(e, value);
+            // an entry without a live value is competing for admission
+            evictEntries((compete && entryValue == null) ? e : null);
             return entryValue;
           }
         }
 
-        if (evictEntries()) {
-          newCount = this.count + 1;
-          first = table.get(index);
-        }
-
         // Create a new entry.
         ++modCount;
         ReferenceEntry<K, V> newEntry = newEntry(key, hash, first);
         setValue(newEntry, value);
         table.set(index, newEntry);
         this.count = newCount; // write-volatile
+        evictEntries(compete ? newEntry : null);
         return null;
       } finally {
         unlock();
@@ -2447,6 +3744,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       if (oldCapacity >= MAXIMUM_CAPACITY) {
         return;
       }
+      long start = (segmentStats == null) ? 0 : System.nanoTime();
 
       /*
        * Reclassify nodes in each list to new Map.  Because we are
@@ -2465,6 +3763,9 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       AtomicReferenceArray<ReferenceEntry<K, V>> newTable
           = newEntryArray(oldCapacity << 1);
       threshold = newTable.length() * 3 / 4;
+      if (sketch != null) {
+        sketch.ensureCapacity(threshold);
+      }
       int newMask = newTable.length() - 1;
       for (int oldIndex = 0; oldIndex < oldCapacity; ++oldIndex) {
         // We need to guarantee that any existing reads of old Map can
@@ -2497,7 +3798,8 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
             // Clone nodes leading up to the tail.
             for (ReferenceEntry<K, V> e = head; e != tail; e = e.getNext()) {
               if (isCollected(e)) {
-                unsetLiveEntry(e, e.getHash()); // decrements count
+                // decrements count
+                unsetLiveEntry(e, e.getHash(), RemovalCause.COLLECTED);
               } else {
                 int newIndex = e.getHash() & newMask;
                 ReferenceEntry<K, V> newNext = newTable.get(newIndex);
@@ -2508,12 +3810,17 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         }
       }
       table = newTable;
+      if (segmentStats != null) {
+        segmentStats.rehashCount++;
+        segmentStats.rehashNanos += System.nanoTime() - start;
+      }
     }
 
     V remove(Object key, int hash) {
       lock();
       try {
         preWriteCleanup();
+        promote(key, hash);
 
         int newCount = this.count - 1;
         AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
@@ -2526,8 +3833,9 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
               && keyEquivalence.equivalent(key, entryKey)) {
             V entryValue = e.getValueReference().get();
             if (entryValue == null) {
-              unsetLiveEntry(e, hash);
+              unsetLiveEntry(e, hash, RemovalCause.COLLECTED);
             } else {
+              enqueueNotification(entryKey, entryValue, RemovalCause.EXPLICIT);
               ++modCount;
               ReferenceEntry<K, V> newFirst =
                   removeFromChain(first, e); // could decrement count
@@ -2551,6 +3859,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       lock();
       try {
         preWriteCleanup();
+        promote(key, hash);
 
         int newCount = this.count - 1;
         AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
@@ -2563,8 +3872,9 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
               && keyEquivalence.equivalent(key, entryKey)) {
             V entryValue = e.getValueReference().get();
             if (entryValue == null) {
-              unsetLiveEntry(e, hash);
+              unsetLiveEntry(e, hash, RemovalCause.COLLECTED);
             } else if (valueEquivalence.equivalent(value, entryValue)) {
+              enqueueNotification(entryKey, entryValue, RemovalCause.EXPLICIT);
               ++modCount;
               ReferenceEntry<K, V> newFirst =
                   removeFromChain(first, e); // could decrement count
@@ -2595,13 +3905,16 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     @GuardedBy("Segment.this")
     ReferenceEntry<K, V> removeFromChain(ReferenceEntry<K, V> first,
         ReferenceEntry<K, V> entry) {
-      evictionQueue.remove(entry);
-      expirationQueue.remove(entry);
+      removeFromEvictionQueue(entry);
+      if (expires()) {
+        timerWheel.remove(entry);
+      }
 
       ReferenceEntry<K, V> newFirst = entry.getNext();
       for (ReferenceEntry<K, V> e = first; e != entry; e = e.getNext()) {
         if (isCollected(e)) {
-          unsetLiveEntry(e, e.getHash()); // decrements count
+          // decrements count
+          unsetLiveEntry(e, e.getHash(), RemovalCause.COLLECTED);
         } else {
           newFirst = copyEntry(e, newFirst);
         }
@@ -2626,7 +3939,12 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
           if (e == entry) {
             ++modCount;
-            enqueueNotification(e.getKey(), hash, e.getValueReference());
+            statsCounter.recordEviction();
+            if (segmentStats != null) {
+              segmentStats.collectedKeyCount++;
+            }
+            enqueueNotification(e.getKey(), e.getValueReference().get(),
+                RemovalCause.COLLECTED);
             enqueueCleanup(e);
             count = newCount; // write-volatile
             return true;
@@ -2658,7 +3976,12 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
             ValueReference<K, V> v = e.getValueReference();
             if (v == valueReference) {
               ++modCount;
-              enqueueNotification(key, hash, valueReference);
+              statsCounter.recordEviction();
+              if (segmentStats != null) {
+                segmentStats.collectedValueCount++;
+              }
+              enqueueNotification(key, valueReference.get(),
+                  RemovalCause.COLLECTED);
               enqueueCleanup(e);
               this.count = newCount; // write-volatile
               return true;
@@ -2697,11 +4020,12 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     }
 
     @GuardedBy("Segment.this")
-    boolean unsetEntry(ReferenceEntry<K, V> entry, int hash) {
+    boolean unsetEntry(ReferenceEntry<K, V> entry, int hash,
+        RemovalCause cause) {
       for (ReferenceEntry<K, V> e = getFirst(hash); e != null;
           e = e.getNext()) {
         if (e == entry) {
-          return unsetLiveEntry(entry, hash);
+          return unsetLiveEntry(entry, hash, cause);
         }
       }
 
@@ -2709,7 +4033,8 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     }
 
     @GuardedBy("Segment.this")
-    boolean unsetLiveEntry(ReferenceEntry<K, V> entry, int hash) {
+    boolean unsetLiveEntry(ReferenceEntry<K, V> entry, int hash,
+        RemovalCause cause) {
       if (isUnset(entry)) {
         // keep count consistent
         return false;
@@ -2723,19 +4048,48 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       }
 
       K key = entry.getKey();
-      enqueueNotification(key, hash, valueReference);
+      statsCounter.recordEviction();
+      enqueueNotification(key, valueReference.get(), cause);
       enqueueCleanup(entry);
       this.count = newCount; // write-volatile
       return true;
     }
 
+    /**
+     * Queues a notification of a removal from this segment, to be delivered
+     * by {@link #processPendingNotifications} once the lock is released.
+     */
+    void enqueueNotification(@Nullable K key, @Nullable V value,
+        RemovalCause cause) {
+      if (!notifiesRemovals()) {
+        return;
+      }
+      removalNotificationQueue.offer(
+          new RemovalNotification<K, V>(key, value, cause));
+    }
+
+    /**
+     * Notifies the listener of removals from this segment. This should be
+     * called after every write, expiration or eviction, once the lock is
+     * released. It must only be called from user threads or the maintenance
+     * executor (e.g. not from garbage collection callbacks).
+     */
+    void processPendingNotifications() {
+      RemovalNotification<K, V> notification;
+      while ((notification = removalNotificationQueue.poll()) != null) {
+        removalListener.onRemoval(notification);
+      }
+    }
+
     @GuardedBy("Segment.this")
     void enqueueCleanup(ReferenceEntry<K, V> entry) {
       ValueReference<K, V> unset = unset();
       entry.setValueReference(unset);
       cleanupQueue.offer(entry);
-      evictionQueue.remove(entry);
-      expirationQueue.remove(entry);
+      removeFromEvictionQueue(entry);
+      if (expires()) {
+        timerWheel.remove(entry);
+      }
     }
 
     /**
@@ -2751,12 +4105,63 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         return null;
       }
       if (expires() && isExpired(entry)) {
-        tryExpireEntries();
+        if (!hasScheduledMaintenance()) {
+          tryExpireEntries();
+        }
         return null;
       }
       return value;
     }
 
+    /**
+     * Unsets the entries whose keys or values have been garbage collected,
+     * draining at most {@link #DRAIN_MAX} references from each queue. Returns
+     * whether either queue may still hold references.
+     */
+    @GuardedBy("Segment.this")
+    boolean drainReferenceQueues() {
+      boolean full = false;
+      if (keyReferenceQueue != null) {
+        Reference<? extends K> ref;
+        int drained = 0;
+        while (drained < DRAIN_MAX
+            && (ref = keyReferenceQueue.poll()) != null) {
+          @SuppressWarnings("unchecked")
+          ReferenceEntry<K, V> entry = (ReferenceEntry<K, V>) ref;
+          entry.notifyKeyReclaimed();
+          drained++;
+        }
+        full = (drained == DRAIN_MAX);
+      }
+      if (valueReferenceQueue != null) {
+        Reference<? extends V> ref;
+        int drained = 0;
+        while (drained < DRAIN_MAX
+            && (ref = valueReferenceQueue.poll()) != null) {
+          @SuppressWarnings("unchecked")
+          ValueReference<K, V> valueReference = (ValueReference<K, V>) ref;
+          valueReference.notifyValueReclaimed();
+          drained++;
+        }
+        full |= (drained == DRAIN_MAX);
+      }
+      return full;
+    }
+
+    /**
+     * Discards the collected references of this segment, whose entries have
+     * all been removed.
+     */
+    @GuardedBy("Segment.this")
+    void clearReferenceQueues() {
+      if (keyReferenceQueue != null) {
+        while (keyReferenceQueue.poll() != null) {}
+      }
+      if (valueReferenceQueue != null) {
+        while (valueReferenceQueue.poll() != null) {}
+      }
+    }
+
     @GuardedBy("Segment.this")
     void processPendingCleanup() {
       AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
@@ -2782,7 +4187,10 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     void postReadCleanup() {
       // we are not under lock, so only drain a small fraction of the time
       if ((readCount.incrementAndGet() & DRAIN_THRESHOLD) == 0) {
-        if (isInlineCleanup()) {
+        if (hasScheduledMaintenance()) {
+          // the read buffer is filling up between scheduled runs
+          requestMaintenance();
+        } else if (isInlineCleanup()) {
           // inline cleanup normally avoids taking the lock, but since no
           // writes are happening we need to force some locked cleanup
           runCleanup();
@@ -2801,7 +4209,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
      */
     @GuardedBy("Segment.this")
     void preWriteCleanup() {
-      if (isInlineCleanup()) {
+      if (isInlineCleanup() && !hasScheduledMaintenance()) {
         // this is the only time we have the lock, so do everything we can
         runLockedCleanup();
       } else {
@@ -2810,7 +4218,11 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     }
 
     void postWriteCleanup() {
-      if (isInlineCleanup()) {
+      if (hasScheduledMaintenance()) {
+        if (!cleanupQueue.isEmpty() || !removalNotificationQueue.isEmpty()) {
+          requestMaintenance();
+        }
+      } else if (isInlineCleanup()) {
         // this cleanup pattern is optimized for writes, where cleanup requiring
         // the lock is performed when the lock is acquired, and cleanup not
         // requiring the lock is performed when the lock is released
@@ -2841,6 +4253,59 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       runUnlockedCleanup();
     }
 
+    final Runnable maintenanceRunnable =
+        new Runnable() {
+          @Override
+          public void run() {
+            maintenancePending.set(false);
+            runMaintenance();
+          }
+        };
+
+    /**
+     * Submits maintenance of this segment to the maintenance executor, unless
+     * it's already pending. If the executor rejects it, the calling thread
+     * performs the maintenance instead.
+     */
+    void requestMaintenance() {
+      if (isHeldByCurrentThread()
+          || !maintenancePending.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        maintenanceExecutor.execute(maintenanceRunnable);
+      } catch (RejectedExecutionException e) {
+        maintenancePending.set(false);
+        runCleanup();
+      }
+    }
+
+    /**
+     * Performs all pending housekeeping on this segment, on behalf of the
+     * maintenance executor. The lock is released after every batch of
+     * collected references is drained and every {@link #CLEANUP_MAX}
+     * collected entries are cleaned up, so that a large backlog doesn't stall
+     * writers. Exceptions thrown by the eviction listener are
+     * logged, so that they don't cancel the scheduled maintenance.
+     */
+    void runMaintenance() {
+      try {
+        boolean referencesPending;
+        do {
+          lock();
+          try {
+            referencesPending = drainReferenceQueues();
+          } finally {
+            unlock();
+          }
+          runLockedCleanup();
+        } while (referencesPending || !cleanupQueue.isEmpty());
+        runUnlockedCleanup();
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Exception thrown during maintenance", e);
+      }
+    }
+
     /**
      * Performs housekeeping tasks on this segment that don't require the
      * segment lock.
@@ -2856,7 +4321,8 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     void runLockedCleanup() {
       lock();
       try {
-        expireEntries(); // calls drainRecencyQueue
+        drainReferenceQueues();
+        expireEntries(); // calls drainReadBuffer
         processPendingCleanup();
         readCount.set(0);
       } finally {
@@ -2865,21 +4331,42 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     }
 
     void clear() {
-      if (count != 0) {
+      if (count != 0 || (offHeapStore != null && !offHeapStore.isEmpty())) {
         lock();
         try {
           AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
+          if (notifiesRemovals()) {
+            for (int i = 0; i < table.length(); ++i) {
+              for (ReferenceEntry<K, V> e = table.get(i); e != null;
+                  e = e.getNext()) {
+                V value = e.getValueReference().get();
+                if (value != null) {
+                  enqueueNotification(e.getKey(), value,
+                      RemovalCause.EXPLICIT);
+                }
+              }
+            }
+          }
           for (int i = 0; i < table.length(); ++i) {
             table.set(i, null);
           }
+          clearReferenceQueues();
           evictionQueue.clear();
-          expirationQueue.clear();
+          if (expires()) {
+            timerWheel.clear();
+          }
+          rescheduleQueue.clear();
+          if (offHeapStore != null) {
+            offHeapStore.clear();
+          }
           readCount.set(0);
+          totalWeight = 0;
 
           ++modCount;
           count = 0; // write-volatile
         } finally {
           unlock();
+          postWriteCleanup();
         }
       }
     }
@@ -2926,6 +4413,15 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
           this.previousEvictable = previous;
         }
 
+        @Override
+        public int getWeight() {
+          throw new UnsupportedOperationException();
+        }
+        @Override
+        public void setWeight(int weight) {
+          throw new UnsupportedOperationException();
+        }
+
         @Override
         public ValueReference<K, V> getValueReference() {
           throw new UnsupportedOperationException();
@@ -2962,6 +4458,22 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         public void setExpirationTime(long time) {
           throw new UnsupportedOperationException();
         }
+        @Override
+        public long getWriteTime() {
+          throw new UnsupportedOperationException();
+        }
+        @Override
+        public void setWriteTime(long time) {
+          throw new UnsupportedOperationException();
+        }
+        @Override
+        public boolean isReschedulePending() {
+          throw new UnsupportedOperationException();
+        }
+        @Override
+        public void setReschedulePending(boolean pending) {
+          throw new UnsupportedOperationException();
+        }
 
         @Override
         public ReferenceEntry<K, V> getNextExpirable() {
@@ -3075,33 +4587,172 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     }
 
     /**
-     * A custom queue for managing expiration order. Note that this is tightly
-     * integrated with {@code ReferenceEntry}, upon which it reliese to perform
-     * its linking.
+     * A hierarchical timer wheel for scheduling expiration. Each level is an
+     * array of buckets, each of which covers a fixed span of time; an entry is
+     * placed in the finest level whose buckets reach its expiration time
+     * without wrapping around, so that only the finest level may place it in
+     * the current bucket. As time advances, the buckets which have been
+     * entered are emptied: expired entries are removed from the map, and the
+     * rest are rescheduled into finer levels. Scheduling, rescheduling and
+     * removal are all constant time, and each entry is revisited at most once
+     * per level, no matter how its expiration time compares to that of other
+     * entries.
      *
-     * <p>Note that this entire implementation makes the assumption that all
-     * elements which are in the map are also in this queue, and that all
-     * elements not in the queue are not in the map.
-     *
-     * <p>The benefits of creating our own queue are that (1) we can
-     * replace elements in the middle of the queue as part of
-     * copyEvictableEntry, and (2) the contains method is highly optimized for
-     * the current model.
+     * <p>Like the eviction queue, this is tightly integrated with {@code
+     * ReferenceEntry}: each bucket is a circular list of entries linked
+     * through their expirable pointers, headed by a sentinel. An entry which
+     * isn't scheduled has null expirable pointers.
      */
-    @VisibleForTesting class ExpirationQueue
-        extends AbstractQueue<ReferenceEntry<K, V>> {
-      // TODO(user): create UnsupportedOperationException throwing base class
-      @VisibleForTesting final ReferenceEntry<K, V> head =
-          new ReferenceEntry<K, V>() {
+    class TimerWheel {
+      final ReferenceEntry<K, V>[][] buckets;
 
-        @Override
-        public long getExpirationTime() {
-          return Long.MAX_VALUE;
+      /** The time up to which this wheel has been advanced. */
+      long nanos;
+
+      /** The number of scheduled entries. */
+      int size;
+
+      @SuppressWarnings("unchecked")
+      TimerWheel(long nanos) {
+        this.nanos = nanos;
+        int levels = TIMER_WHEEL_SHIFTS.length;
+        buckets = (ReferenceEntry<K, V>[][]) new ReferenceEntry<?, ?>[levels][];
+        for (int i = 0; i < levels; i++) {
+          buckets[i] = (ReferenceEntry<K, V>[]) new ReferenceEntry<?, ?>[
+              (i == levels - 1) ? 1 : TIMER_WHEEL_BUCKETS];
+          for (int j = 0; j < buckets[i].length; j++) {
+            buckets[i][j] = new Sentinel();
+          }
         }
-        @Override
-        public void setExpirationTime(long time) {}
+      }
+
+      /**
+       * Schedules {@code entry} according to its expiration time, first
+       * unscheduling it if necessary.
+       */
+      void schedule(ReferenceEntry<K, V> entry) {
+        remove(entry);
+        ReferenceEntry<K, V> sentinel = findBucket(entry.getExpirationTime());
+        connectExpirables(sentinel.getPreviousExpirable(), entry);
+        connectExpirables(entry, sentinel);
+        size++;
+      }
+
+      /** Unschedules {@code entry}, returning whether it was scheduled. */
+      boolean remove(ReferenceEntry<K, V> entry) {
+        if (!contains(entry)) {
+          return false;
+        }
+        connectExpirables(entry.getPreviousExpirable(),
+            entry.getNextExpirable());
+        nullifyExpirable(entry);
+        size--;
+        return true;
+      }
+
+      boolean contains(ReferenceEntry<K, V> entry) {
+        return entry.getNextExpirable() != NullEntry.INSTANCE;
+      }
+
+      boolean isEmpty() {
+        return size == 0;
+      }
+
+      void clear() {
+        for (ReferenceEntry<K, V>[] level : buckets) {
+          for (ReferenceEntry<K, V> sentinel : level) {
+            ReferenceEntry<K, V> e = sentinel.getNextExpirable();
+            while (e != sentinel) {
+              ReferenceEntry<K, V> next = e.getNextExpirable();
+              nullifyExpirable(e);
+              e = next;
+            }
+            sentinel.setNextExpirable(sentinel);
+            sentinel.setPreviousExpirable(sentinel);
+          }
+        }
+        size = 0;
+      }
+
+      /**
+       * Returns the sentinel of the bucket for an entry expiring at {@code
+       * time}.
+       */
+      ReferenceEntry<K, V> findBucket(long time) {
+        // might overflow, but that's okay (see isExpired())
+        long duration = time - nanos;
+        if (duration < 0) {
+          // overdue, so expire it on the next advance
+          duration = 0;
+        }
+        int last = buckets.length - 1;
+        for (int i = 0; i < last; i++) {
+          if (duration < (1L << TIMER_WHEEL_SHIFTS[i + 1])) {
+            // count the bucket boundaries crossed, rather than whole bucket
+            // widths, so that a coarser bucket is never the current one
+            int shift = TIMER_WHEEL_SHIFTS[i];
+            long offset = nanos & ((1L << shift) - 1);
+            long ticksAhead = (offset + duration) >> shift;
+            if (ticksAhead < TIMER_WHEEL_BUCKETS) {
+              long ticks = (nanos >> shift) + ticksAhead;
+              return buckets[i][(int) ticks & (TIMER_WHEEL_BUCKETS - 1)];
+            }
+          }
+        }
+        return buckets[last][0];
+      }
+
+      /**
+       * Advances this wheel to {@code now}, emptying every bucket whose span
+       * has been entered since the previous advance.
+       */
+      void advance(long now) {
+        long previous = nanos;
+        nanos = now;
+        // signed shifts keep tick counts increasing when the ticker crosses
+        // zero, as System.nanoTime() may
+        for (int i = 0; i < buckets.length; i++) {
+          long previousTicks = previous >> TIMER_WHEEL_SHIFTS[i];
+          long delta = (now >> TIMER_WHEEL_SHIFTS[i]) - previousTicks;
+          if (delta <= 0) {
+            // coarser levels can't have ticked either
+            break;
+          }
+          expireBuckets(buckets[i], previousTicks, delta);
+        }
+      }
+
+      void expireBuckets(
+          ReferenceEntry<K, V>[] level, long previousTicks, long delta) {
+        int mask = level.length - 1;
+        int steps = (int) Math.min(delta + 1, level.length);
+        int start = (int) previousTicks & mask;
+        for (int i = start; i < start + steps; i++) {
+          ReferenceEntry<K, V> sentinel = level[i & mask];
+          ReferenceEntry<K, V> e = sentinel.getNextExpirable();
+          sentinel.setNextExpirable(sentinel);
+          sentinel.setPreviousExpirable(sentinel);
+          while (e != sentinel) {
+            ReferenceEntry<K, V> next = e.getNextExpirable();
+            nullifyExpirable(e);
+            size--;
+            if (isExpired(e, nanos)) {
+              if (!unsetEntry(e, e.getHash(), RemovalCause.EXPIRED)) {
+                throw new AssertionError();
+              }
+            } else {
+              schedule(e);
+            }
+            e = next;
+          }
+        }
+      }
 
+      /** The head of a bucket. */
+      final class Sentinel implements ReferenceEntry<K, V> {
         ReferenceEntry<K, V> nextExpirable = this;
+        ReferenceEntry<K, V> previousExpirable = this;
+
         @Override
         public ReferenceEntry<K, V> getNextExpirable() {
           return nextExpirable;
@@ -3110,8 +4761,6 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         public void setNextExpirable(ReferenceEntry<K, V> next) {
           this.nextExpirable = next;
         }
-
-        ReferenceEntry<K, V> previousExpirable = this;
         @Override
         public ReferenceEntry<K, V> getPreviousExpirable() {
           return previousExpirable;
@@ -3121,6 +4770,30 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
           this.previousExpirable = previous;
         }
 
+        @Override
+        public long getExpirationTime() {
+          throw new UnsupportedOperationException();
+        }
+        @Override
+        public void setExpirationTime(long time) {
+          throw new UnsupportedOperationException();
+        }
+        @Override
+        public long getWriteTime() {
+          throw new UnsupportedOperationException();
+        }
+        @Override
+        public void setWriteTime(long time) {
+          throw new UnsupportedOperationException();
+        }
+        @Override
+        public boolean isReschedulePending() {
+          throw new UnsupportedOperationException();
+        }
+        @Override
+        public void setReschedulePending(boolean pending) {
+          throw new UnsupportedOperationException();
+        }
         @Override
         public ValueReference<K, V> getValueReference() {
           throw new UnsupportedOperationException();
@@ -3147,8 +4820,6 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         public K getKey() {
           throw new UnsupportedOperationException();
         }
-
-        // null eviction
         @Override
         public ReferenceEntry<K, V> getNextEvictable() {
           throw new UnsupportedOperationException();
@@ -3157,7 +4828,6 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         public void setNextEvictable(ReferenceEntry<K, V> next) {
           throw new UnsupportedOperationException();
         }
-
         @Override
         public ReferenceEntry<K, V> getPreviousEvictable() {
           throw new UnsupportedOperationException();
@@ -3166,97 +4836,14 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
           throw new UnsupportedOperationException();
         }
-      };
-
-      // implements Queue
-
-      @Override
-      public boolean offer(ReferenceEntry<K, V> entry) {
-        // unlink
-        connectExpirables(entry.getPreviousExpirable(),
-            entry.getNextExpirable());
-
-        // add to tail
-        connectExpirables(head.getPreviousExpirable(), entry);
-        connectExpirables(entry, head);
-
-        return true;
-      }
-
-      @Override
-      public ReferenceEntry<K, V> peek() {
-        ReferenceEntry<K, V> next = head.getNextExpirable();
-        return (next == head) ? null : next;
-      }
-
-      @Override
-      public ReferenceEntry<K, V> poll() {
-        ReferenceEntry<K, V> next = head.getNextExpirable();
-        if (next == head) {
-          return null;
-        }
-
-        remove(next);
-        return next;
-      }
-
-      @Override
-      @SuppressWarnings("unchecked")
-      public boolean remove(Object o) {
-        ReferenceEntry<K, V> e = (ReferenceEntry) o;
-        ReferenceEntry<K, V> previous = e.getPreviousExpirable();
-        ReferenceEntry<K, V> next = e.getNextExpirable();
-        connectExpirables(previous, next);
-        nullifyExpirable(e);
-
-        return next != NullEntry.INSTANCE;
-      }
-
-      @Override
-      @SuppressWarnings("unchecked")
-      public boolean contains(Object o) {
-        ReferenceEntry<K, V> e = (ReferenceEntry) o;
-        return e.getNextExpirable() != NullEntry.INSTANCE;
-      }
-
-      @Override
-      public boolean isEmpty() {
-        return head.getNextExpirable() == head;
-      }
-
-      @Override
-      public int size() {
-        int size = 0;
-        for (ReferenceEntry<K, V> e = head.getNextExpirable(); e != head;
-             e = e.getNextExpirable()) {
-          size++;
+        @Override
+        public int getWeight() {
+          throw new UnsupportedOperationException();
         }
-        return size;
-      }
-
-      @Override
-      public void clear() {
-        ReferenceEntry<K, V> e = head.getNextExpirable();
-        while (e != head) {
-          ReferenceEntry<K, V> next = e.getNextExpirable();
-          nullifyExpirable(e);
-          e = next;
+        @Override
+        public void setWeight(int weight) {
+          throw new UnsupportedOperationException();
         }
-
-        head.setNextExpirable(head);
-        head.setPreviousExpirable(head);
-      }
-
-      @Override
-      public Iterator<ReferenceEntry<K, V>> iterator() {
-        return new AbstractLinkedIterator<ReferenceEntry<K, V>>(peek()) {
-          @Override
-          protected ReferenceEntry<K, V> computeNext(
-              ReferenceEntry<K, V> previous) {
-            ReferenceEntry<K, V> next = previous.getNextExpirable();
-            return (next == head) ? null : next;
-          }
-        };
       }
     }
   }
@@ -3690,13 +5277,14 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
 
   /* ---------------- Serialization Support -------------- */
 
-  private static final long serialVersionUID = 4;
+  private static final long serialVersionUID = 7;
 
   Object writeReplace() {
     return new SerializationProxy<K, V>(keyStrength, valueStrength,
         keyEquivalence, valueEquivalence, expireAfterWriteNanos,
-        expireAfterAccessNanos, maximumSize, concurrencyLevel, evictionListener,
-        this);
+        expireAfterAccessNanos, expiry, refreshNanos, maxWeight, weigher,
+        admitByFrequency, offHeapCapacity, offHeapKeySerializer,
+        offHeapValueSerializer, concurrencyLevel, removalListener, this);
   }
 
   /**
@@ -3706,7 +5294,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
    */
   abstract static class AbstractSerializationProxy<K, V>
       extends ForwardingConcurrentMap<K, V> implements Serializable {
-    private static final long serialVersionUID = 2;
+    private static final long serialVersionUID = 7;
 
     final Strength keyStrength;
     final Strength valueStrength;
@@ -3714,9 +5302,16 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
     final Equivalence<Object> valueEquivalence;
     final long expireAfterWriteNanos;
     final long expireAfterAccessNanos;
-    final int maximumSize;
+    @Nullable final Expiry<K, V> expiry;
+    final long refreshNanos;
+    final long maxWeight;
+    final Weigher<K, V> weigher;
+    final boolean admitByFrequency;
+    final long offHeapCapacity;
+    @Nullable final OffHeapSerializer<K> offHeapKeySerializer;
+    @Nullable final OffHeapSerializer<V> offHeapValueSerializer;
     final int concurrencyLevel;
-    final MapEvictionListener<? super K, ? super V> evictionListener;
+    final RemovalListener<? super K, ? super V> removalListener;
 
     transient ConcurrentMap<K, V> delegate;
 
@@ -3725,8 +5320,13 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         Equivalence<Object> keyEquivalence,
         Equivalence<Object> valueEquivalence,
         long expireAfterWriteNanos, long expireAfterAccessNanos,
-        int maximumSize, int concurrencyLevel,
-        MapEvictionListener<? super K, ? super V> evictionListener,
+        @Nullable Expiry<K, V> expiry, long refreshNanos, long maxWeight,
+        Weigher<K, V> weigher, boolean admitByFrequency,
+        long offHeapCapacity,
+        @Nullable OffHeapSerializer<K> offHeapKeySerializer,
+        @Nullable OffHeapSerializer<V> offHeapValueSerializer,
+        int concurrencyLevel,
+        RemovalListener<? super K, ? super V> removalListener,
         ConcurrentMap<K, V> delegate) {
       this.keyStrength = keyStrength;
       this.valueStrength = valueStrength;
@@ -3734,9 +5334,16 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
       this.valueEquivalence = valueEquivalence;
       this.expireAfterWriteNanos = expireAfterWriteNanos;
       this.expireAfterAccessNanos = expireAfterAccessNanos;
-      this.maximumSize = maximumSize;
+      this.expiry = expiry;
+      this.refreshNanos = refreshNanos;
+      this.maxWeight = maxWeight;
+      this.weigher = weigher;
+      this.admitByFrequency = admitByFrequency;
+      this.offHeapCapacity = offHeapCapacity;
+      this.offHeapKeySerializer = offHeapKeySerializer;
+      this.offHeapValueSerializer = offHeapValueSerializer;
       this.concurrencyLevel = concurrencyLevel;
-      this.evictionListener = evictionListener;
+      this.removalListener = removalListener;
       this.delegate = delegate;
     }
 
@@ -3763,7 +5370,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
           .privateKeyEquivalence(keyEquivalence)
           .privateValueEquivalence(valueEquivalence)
           .concurrencyLevel(concurrencyLevel);
-      mapMaker.evictionListener(evictionListener);
+      mapMaker.removalListener(removalListener);
       if (expireAfterWriteNanos > 0) {
         mapMaker.expireAfterWrite(expireAfterWriteNanos, TimeUnit.NANOSECONDS);
       }
@@ -3771,8 +5378,26 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         mapMaker.expireAfterAccess(
             expireAfterAccessNanos, TimeUnit.NANOSECONDS);
       }
-      if (maximumSize != MapMaker.UNSET_INT) {
-        mapMaker.maximumSize(maximumSize);
+      if (expiry != null) {
+        mapMaker.expireAfter(expiry);
+      }
+      if (refreshNanos > 0) {
+        mapMaker.refreshAfterWrite(refreshNanos, TimeUnit.NANOSECONDS);
+      }
+      if (weigher == MapMaker.OneWeigher.INSTANCE) {
+        if (maxWeight != MapMaker.UNSET_INT) {
+          mapMaker.maximumSize((int) maxWeight);
+        }
+      } else {
+        mapMaker.weigher(weigher);
+        mapMaker.maximumWeight(maxWeight);
+      }
+      if (admitByFrequency) {
+        mapMaker.admitByFrequency();
+      }
+      if (offHeapCapacity != MapMaker.UNSET_INT) {
+        mapMaker.offHeapTier(
+            offHeapCapacity, offHeapKeySerializer, offHeapValueSerializer);
       }
       return mapMaker;
     }
@@ -3796,7 +5421,7 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
    * doesn't get called when a circular dependency is present, so the proxy
    * must be able to behave as the map itself.
    */
-  private static class SerializationProxy<K, V>
+  static class SerializationProxy<K, V>
       extends AbstractSerializationProxy<K, V> {
     private static final long serialVersionUID = 2;
 
@@ -3806,13 +5431,22 @@ class CustomConcurrentHashMap<K, V> extends AbstractMap<K, V>
         Equivalence<Object> valueEquivalence,
         long expireAfterWriteNanos,
         long expireAfterAccessNanos,
-        int maximumSize,
+        @Nullable Expiry<K, V> expiry,
+        long refreshNanos,
+        long maxWeight,
+        Weigher<K, V> weigher,
+        boolean admitByFrequency,
+        long offHeapCapacity,
+        @Nullable OffHeapSerializer<K> offHeapKeySerializer,
+        @Nullable OffHeapSerializer<V> offHeapValueSerializer,
         int concurrencyLevel,
-        MapEvictionListener<? super K, ? super V> evictionListener,
+        RemovalListener<? super K, ? super V> removalListener,
         ConcurrentMap<K, V> delegate) {
       super(keyStrength, valueStrength, keyEquivalence, valueEquivalence,
-          expireAfterWriteNanos, expireAfterAccessNanos, maximumSize,
-          concurrencyLevel, evictionListener, delegate);
+          expireAfterWriteNanos, expireAfterAccessNanos, expiry, refreshNanos,
+          maxWeight, weigher, admitByFrequency, offHeapCapacity,
+          offHeapKeySerializer, offHeapValueSerializer, concurrencyLevel,
+          removalListener, delegate);
     }
 
     private void writeObject(ObjectOutputStream out) throws IOException {
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * Calculates when map entries expire, for use by maps built with {@link
+ * MapMaker#expireAfter}. Each method returns the length of time, in
+ * nanoseconds, from {@code currentTime} until the entry should expire. To
+ * leave an entry's expiration unchanged, return {@code currentDuration}.
+ * Durations longer than about 146 years are treated as 146 years.
+ *
+ * <p>Times are read from the map's ticker, and are only meaningful relative to
+ * each other. The methods are invoked while the map's internal locks may be
+ * held, so they should be fast and must not access the map.
+ *
+ * @param <K> the type of keys of the entries
+ * @param <V> the type of values of the entries
+ * @since 10
+ */
+@Beta
+public interface Expiry<K, V> {
+
+  /**
+   * Returns the duration until a newly created entry expires.
+   *
+   * @param key the key of the new entry
+   * @param value the value of the new entry
+   * @param currentTime the current ticker time, in nanoseconds
+   * @return the length of time before the entry expires, in nanoseconds;
+   *     must be non-negative
+   */
+  long expireAfterCreate(K key, V value, long currentTime);
+
+  /**
+   * Returns the duration until an entry expires after its value is replaced.
+   *
+   * @param key the key of the entry
+   * @param value the new value of the entry
+   * @param currentTime the current ticker time, in nanoseconds
+   * @param currentDuration the entry's remaining time before this update, in
+   *     nanoseconds
+   * @return the length of time before the entry expires, in nanoseconds;
+   *     must be non-negative
+   */
+  long expireAfterUpdate(K key, V value, long currentTime,
+      long currentDuration);
+
+  /**
+   * Returns the duration until an entry expires after its value is read.
+   *
+   * @param key the key of the entry
+   * @param value the value of the entry
+   * @param currentTime the current ticker time, in nanoseconds
+   * @param currentDuration the entry's remaining time, in nanoseconds
+   * @return the length of time before the entry expires, in nanoseconds;
+   *     must be non-negative
+   */
+  long expireAfterRead(K key, V value, long currentTime,
+      long currentDuration);
+}
@@ -0,0 +1,853 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.base.Equivalence;
+import com.google.common.collect.CustomConcurrentHashMap.AbstractSerializationProxy;
+import com.google.common.collect.CustomConcurrentHashMap.Strength;
+import com.google.common.collect.MapMaker.NullListener;
+import com.google.common.collect.MapMaker.OneWeigher;
+import com.google.common.primitives.Ints;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * The concurrent hash map built by {@link MapMaker#compactEntries}, for strong
+ * keys and strong values when no eviction, expiration or notification is
+ * requested. Rather than allocating an entry object per mapping, each segment
+ * stores its hashes, keys and values in parallel arrays and resolves
+ * collisions by linear probing, which removes the per-entry header and the
+ * pointer chase from every lookup.
+ *
+ * <p>As in {@link CustomConcurrentHashMap}, writes are performed under the
+ * segment lock and reads do not lock. Keys and values are held in atomic
+ * reference arrays, and every write of a slot's key or value is a volatile
+ * write, so a reader which finds a key or value also sees its fully
+ * constructed state. Entries are never moved within a table: a removed slot
+ * is marked with a tombstone key, and tombstones are only reclaimed when the
+ * segment copies its live entries into a fresh table. This is why probing is
+ * linear rather than Robin Hood, which would shift entries past concurrent
+ * readers.
+ *
+ * <p>Like {@link java.util.concurrent.ConcurrentHashMap}, this map throws
+ * {@link NullPointerException} when it is queried for a null key or value.
+ */
+class FlatConcurrentHashMap<K, V> extends AbstractMap<K, V>
+    implements ConcurrentMap<K, V>, Serializable {
+
+  /** The maximum capacity of a single segment's table. */
+  static final int MAXIMUM_CAPACITY = 1 << 30;
+
+  /** The maximum number of segments to allow. */
+  static final int MAX_SEGMENTS = 1 << 16;
+
+  /** The smallest table a segment will allocate. */
+  static final int MINIMUM_CAPACITY = 4;
+
+  /** The key stored in a slot whose mapping has been removed. */
+  static final Object TOMBSTONE = new Object();
+
+  /** Mask value for indexing into segments. */
+  final transient int segmentMask;
+
+  /** Shift value for indexing within segments. */
+  final transient int segmentShift;
+
+  /** The segments, each of which is a specialized hash table. */
+  final transient Segment[] segments;
+
+  /** The concurrency level. */
+  final int concurrencyLevel;
+
+  /** Strategy for comparing keys. */
+  final Equivalence<Object> keyEquivalence;
+
+  /** Strategy for comparing values. */
+  final Equivalence<Object> valueEquivalence;
+
+  FlatConcurrentHashMap(MapMaker builder) {
+    concurrencyLevel = Math.min(builder.getConcurrencyLevel(), MAX_SEGMENTS);
+    keyEquivalence = builder.getKeyEquivalence();
+    valueEquivalence = builder.getValueEquivalence();
+
+    int segmentShift = 0;
+    int segmentCount = 1;
+    while (segmentCount < concurrencyLevel) {
+      ++segmentShift;
+      segmentCount <<= 1;
+    }
+    this.segmentShift = 32 - segmentShift;
+    segmentMask = segmentCount - 1;
+
+    int initialCapacity = builder.getInitialCapacity();
+    int segmentSize = initialCapacity / segmentCount;
+    if (segmentSize * segmentCount < initialCapacity) {
+      ++segmentSize;
+    }
+
+    this.segments = newSegmentArray(segmentCount);
+    for (int i = 0; i < segments.length; ++i) {
+      segments[i] = new Segment(tableSizeFor(segmentSize));
+    }
+  }
+
+  /**
+   * Returns the smallest power of two table which holds {@code size}
+   * mappings without exceeding a load factor of three quarters.
+   */
+  static int tableSizeFor(int size) {
+    long needed = (long) size * 4 / 3 + 1;
+    int capacity = MINIMUM_CAPACITY;
+    while (capacity < needed && capacity < MAXIMUM_CAPACITY) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  int hash(Object key) {
+    int h = keyEquivalence.hash(checkNotNull(key));
+    return CustomConcurrentHashMap.rehash(h);
+  }
+
+  /**
+   * Returns the segment that should be used for key with given hash.
+   *
+   * @param hash the hash code for the key
+   * @return the segment
+   */
+  Segment segmentFor(int hash) {
+    return segments[(hash >>> segmentShift) & segmentMask];
+  }
+
+  @SuppressWarnings("unchecked")
+  final Segment[] newSegmentArray(int ssize) {
+    return (Segment[]) java.lang.reflect.Array.newInstance(
+        Segment.class, ssize);
+  }
+
+  /**
+   * The parallel slot arrays of a segment. Slots are only ever written
+   * while the owning segment's lock is held. A slot's hash and value are
+   * written before its key, which is written last with a volatile write, so
+   * a reader that finds a key also observes the rest of the slot.
+   */
+  static final class Table {
+    final int[] hashes;
+    final AtomicReferenceArray<Object> keys;
+    final AtomicReferenceArray<Object> values;
+
+    Table(int capacity) {
+      hashes = new int[capacity];
+      keys = new AtomicReferenceArray<Object>(capacity);
+      values = new AtomicReferenceArray<Object>(capacity);
+    }
+
+    int capacity() {
+      return hashes.length;
+    }
+
+    int mask() {
+      return hashes.length - 1;
+    }
+
+    /**
+     * Returns the number of occupied slots, live or tombstoned, above which
+     * a rehash is required.
+     */
+    int threshold() {
+      return hashes.length - (hashes.length >>> 2);
+    }
+  }
+
+  /* ---------------- Inner Classes -------------- */
+
+  /**
+   * Segments are specialized versions of hash tables. This subclass inherits
+   * from ReentrantLock opportunistically, just to simplify some locking and
+   * avoid separate construction.
+   */
+  @SuppressWarnings("serial") // This class is never serialized.
+  final class Segment extends ReentrantLock {
+
+    /** The number of live mappings in this segment's table. */
+    volatile int count;
+
+    /**
+     * The number of slots in the current table holding {@link #TOMBSTONE}.
+     * Tombstoned slots are not reused, so they count against the load factor
+     * until the next rehash.
+     */
+    @GuardedBy("Segment.this")
+    int tombstones;
+
+    /** The per-segment table. */
+    volatile Table table;
+
+    /** The capacity of the first table, which clear() returns to. */
+    final int initialCapacity;
+
+    Segment(int initialCapacity) {
+      this.initialCapacity = initialCapacity;
+      table = new Table(initialCapacity);
+    }
+
+    /**
+     * Returns the slot index of the live mapping for the given key, or -1.
+     * Must be called after a read of {@link #count}.
+     */
+    int indexOf(Table t, Object key, int hash) {
+      AtomicReferenceArray<Object> keys = t.keys;
+      int mask = t.mask();
+      for (int i = hash & mask, probes = 0; probes <= mask;
+           i = (i + 1) & mask, probes++) {
+        Object k = keys.get(i);
+        if (k == null) {
+          return -1;
+        }
+        if (k != TOMBSTONE && t.hashes[i] == hash
+            && keyEquivalence.equivalent(key, k)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /* Specialized implementations of map methods */
+
+    V get(Object key, int hash) {
+      if (count != 0) { // read-volatile
+        Table t = table;
+        int i = indexOf(t, key, hash);
+        if (i >= 0) {
+          @SuppressWarnings("unchecked")
+          V value = (V) t.values.get(i);
+          if (value != null) {
+            return value;
+          }
+          // racing with an insert or removal of this slot
+          return getUnderLock(key, hash);
+        }
+      }
+      return null;
+    }
+
+    V getUnderLock(Object key, int hash) {
+      lock();
+      try {
+        Table t = table;
+        int i = indexOf(t, key, hash);
+        @SuppressWarnings("unchecked")
+        V value = (i < 0) ? null : (V) t.values.get(i);
+        return value;
+      } finally {
+        unlock();
+      }
+    }
+
+    boolean containsKey(Object key, int hash) {
+      return get(key, hash) != null;
+    }
+
+    boolean containsValue(Object value) {
+      if (count != 0) { // read-volatile
+        Table t = table;
+        AtomicReferenceArray<Object> keys = t.keys;
+        AtomicReferenceArray<Object> values = t.values;
+        for (int i = 0; i < keys.length(); i++) {
+          Object k = keys.get(i);
+          if (k != null && k != TOMBSTONE) {
+            Object v = values.get(i);
+            if (v == null) {
+              lock();
+              try {
+                v = values.get(i);
+              } finally {
+                unlock();
+              }
+            }
+            if (v != null && valueEquivalence.equivalent(value, v)) {
+              return true;
+            }
+          }
+        }
+      }
+      return false;
+    }
+
+    V put(K key, int hash, V value, boolean onlyIfAbsent) {
+      lock();
+      try {
+        Table t = table;
+        int i = indexOf(t, key, hash);
+        if (i >= 0) {
+          @SuppressWarnings("unchecked")
+          V oldValue = (V) t.values.get(i);
+          if (!onlyIfAbsent) {
+            t.values.set(i, value);
+          }
+          return oldValue;
+        }
+        int c = count;
+        if (c + tombstones + 1 > t.threshold()) {
+          t = rehash(c + 1);
+        }
+        insert(t, key, hash, value);
+        count = c + 1; // write-volatile
+        return null;
+      } finally {
+        unlock();
+      }
+    }
+
+    V replace(K key, int hash, V newValue) {
+      lock();
+      try {
+        Table t = table;
+        int i = indexOf(t, key, hash);
+        if (i < 0) {
+          return null;
+        }
+        @SuppressWarnings("unchecked")
+        V oldValue = (V) t.values.get(i);
+        t.values.set(i, newValue);
+        return oldValue;
+      } finally {
+        unlock();
+      }
+    }
+
+    boolean replace(K key, int hash, V oldValue, V newValue) {
+      lock();
+      try {
+        Table t = table;
+        int i = indexOf(t, key, hash);
+        if (i < 0
+            || !valueEquivalence.equivalent(oldValue, t.values.get(i))) {
+          return false;
+        }
+        t.values.set(i, newValue);
+        return true;
+      } finally {
+        unlock();
+      }
+    }
+
+    V remove(Object key, int hash) {
+      lock();
+      try {
+        Table t = table;
+        int i = indexOf(t, key, hash);
+        if (i < 0) {
+          return null;
+        }
+        @SuppressWarnings("unchecked")
+        V oldValue = (V) t.values.get(i);
+        removeSlot(t, i);
+        return oldValue;
+      } finally {
+        unlock();
+      }
+    }
+
+    boolean remove(Object key, int hash, Object value) {
+      lock();
+      try {
+        Table t = table;
+        int i = indexOf(t, key, hash);
+        if (i < 0 || !valueEquivalence.equivalent(value, t.values.get(i))) {
+          return false;
+        }
+        removeSlot(t, i);
+        return true;
+      } finally {
+        unlock();
+      }
+    }
+
+    void clear() {
+      if (count != 0) {
+        lock();
+        try {
+          table = new Table(initialCapacity);
+          tombstones = 0;
+          count = 0; // write-volatile
+        } finally {
+          unlock();
+        }
+      }
+    }
+
+    @GuardedBy("Segment.this")
+    void removeSlot(Table t, int i) {
+      t.keys.set(i, TOMBSTONE);
+      t.values.set(i, null);
+      tombstones++;
+      count = count - 1; // write-volatile
+    }
+
+    /** Writes a mapping into the first empty slot of its probe sequence. */
+    @GuardedBy("Segment.this")
+    void insert(Table t, Object key, int hash, Object value) {
+      AtomicReferenceArray<Object> keys = t.keys;
+      int mask = t.mask();
+      int i = hash & mask;
+      while (keys.get(i) != null) {
+        i = (i + 1) & mask;
+      }
+      t.hashes[i] = hash;
+      // written before the key, whose volatile write publishes both
+      t.values.set(i, value);
+      keys.set(i, key);
+    }
+
+    /**
+     * Copies the live mappings into a new table large enough to hold
+     * {@code needed} of them, dropping all tombstones, and publishes it. The
+     * old table is left untouched so that concurrent readers still holding
+     * it see a consistent, if stale, view.
+     */
+    @GuardedBy("Segment.this")
+    Table rehash(int needed) {
+      Table oldTable = table;
+      int capacity = oldTable.capacity();
+      // leave the new table at most half full, so that a segment which
+      // churns at a steady size still goes a quarter of its capacity
+      // between copies
+      while (capacity < MAXIMUM_CAPACITY && needed > (capacity >>> 1)) {
+        capacity <<= 1;
+      }
+      checkState(needed < capacity, "segment table is full");
+      Table newTable = new Table(capacity);
+      AtomicReferenceArray<Object> keys = oldTable.keys;
+      for (int i = 0; i < keys.length(); i++) {
+        Object k = keys.get(i);
+        if (k != null && k != TOMBSTONE) {
+          insert(newTable, k, oldTable.hashes[i], oldTable.values.get(i));
+        }
+      }
+      tombstones = 0;
+      table = newTable;
+      return newTable;
+    }
+  }
+
+  /* ---------------- Public operations -------------- */
+
+  @Override public boolean isEmpty() {
+    Segment[] segments = this.segments;
+    for (int i = 0; i < segments.length; ++i) {
+      if (segments[i].count != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override public int size() {
+    Segment[] segments = this.segments;
+    long sum = 0;
+    for (int i = 0; i < segments.length; ++i) {
+      sum += segments[i].count;
+    }
+    return Ints.saturatedCast(sum);
+  }
+
+  @Override public V get(Object key) {
+    int hash = hash(key);
+    return segmentFor(hash).get(key, hash);
+  }
+
+  @Override public boolean containsKey(Object key) {
+    int hash = hash(key);
+    return segmentFor(hash).containsKey(key, hash);
+  }
+
+  @Override public boolean containsValue(Object value) {
+    checkNotNull(value);
+    for (Segment segment : segments) {
+      if (segment.containsValue(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override public V put(K key, V value) {
+    checkNotNull(key);
+    checkNotNull(value);
+    int hash = hash(key);
+    return segmentFor(hash).put(key, hash, value, false);
+  }
+
+  @Override
+  public V putIfAbsent(K key, V value) {
+    checkNotNull(key);
+    checkNotNull(value);
+    int hash = hash(key);
+    return segmentFor(hash).put(key, hash, value, true);
+  }
+
+  @Override public void putAll(Map<? extends K, ? extends V> m) {
+    for (Entry<? extends K, ? extends V> e : m.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
+  @Override public V remove(Object key) {
+    int hash = hash(key);
+    return segmentFor(hash).remove(key, hash);
+  }
+
+  @Override
+  public boolean remove(Object key, @Nullable Object value) {
+    int hash = hash(key);
+    if (value == null) {
+      return false;
+    }
+    return segmentFor(hash).remove(key, hash, value);
+  }
+
+  @Override
+  public boolean replace(K key, V oldValue, V newValue) {
+    checkNotNull(key);
+    checkNotNull(oldValue);
+    checkNotNull(newValue);
+    int hash = hash(key);
+    return segmentFor(hash).replace(key, hash, oldValue, newValue);
+  }
+
+  @Override
+  public V replace(K key, V value) {
+    checkNotNull(key);
+    checkNotNull(value);
+    int hash = hash(key);
+    return segmentFor(hash).replace(key, hash, value);
+  }
+
+  @Override public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  transient Set<K> keySet;
+
+  @Override public Set<K> keySet() {
+    Set<K> ks = keySet;
+    return (ks != null) ? ks : (keySet = new KeySet());
+  }
+
+  transient Collection<V> values;
+
+  @Override public Collection<V> values() {
+    Collection<V> vs = values;
+    return (vs != null) ? vs : (values = new Values());
+  }
+
+  transient Set<Entry<K, V>> entrySet;
+
+  @Override public Set<Entry<K, V>> entrySet() {
+    Set<Entry<K, V>> es = entrySet;
+    return (es != null) ? es : (entrySet = new EntrySet());
+  }
+
+  /* ---------------- Iterator Support -------------- */
+
+  abstract class HashIterator {
+
+    int nextSegmentIndex;
+    int nextTableIndex;
+    Table currentTable;
+    WriteThroughEntry nextEntry;
+    WriteThroughEntry lastReturned;
+
+    HashIterator() {
+      nextSegmentIndex = segments.length - 1;
+      nextTableIndex = -1;
+      advance();
+    }
+
+    final void advance() {
+      nextEntry = null;
+      while (true) {
+        if (currentTable != null) {
+          AtomicReferenceArray<Object> keys = currentTable.keys;
+          while (nextTableIndex >= 0) {
+            int i = nextTableIndex--;
+            Object key = keys.get(i);
+            if (key != null && key != TOMBSTONE) {
+              Object value = currentTable.values.get(i);
+              if (value != null) {
+                @SuppressWarnings("unchecked")
+                WriteThroughEntry entry =
+                    new WriteThroughEntry((K) key, (V) value);
+                nextEntry = entry;
+                return;
+              }
+            }
+          }
+          currentTable = null;
+        }
+        if (nextSegmentIndex < 0) {
+          return;
+        }
+        Segment seg = segments[nextSegmentIndex--];
+        if (seg.count != 0) { // read-volatile
+          currentTable = seg.table;
+          nextTableIndex = currentTable.capacity() - 1;
+        }
+      }
+    }
+
+    public boolean hasNext() {
+      return nextEntry != null;
+    }
+
+    WriteThroughEntry nextEntry() {
+      if (nextEntry == null) {
+        throw new NoSuchElementException();
+      }
+      lastReturned = nextEntry;
+      advance();
+      return lastReturned;
+    }
+
+    public void remove() {
+      checkState(lastReturned != null);
+      FlatConcurrentHashMap.this.remove(lastReturned.getKey());
+      lastReturned = null;
+    }
+  }
+
+  final class KeyIterator extends HashIterator implements Iterator<K> {
+
+    @Override
+    public K next() {
+      return nextEntry().getKey();
+    }
+  }
+
+  final class ValueIterator extends HashIterator implements Iterator<V> {
+
+    @Override
+    public V next() {
+      return nextEntry().getValue();
+    }
+  }
+
+  /**
+   * Custom Entry class used by EntryIterator.next(), that relays setValue
+   * changes to the underlying map.
+   */
+  final class WriteThroughEntry extends AbstractMapEntry<K, V> {
+    final K key; // non-null
+    V value; // non-null
+
+    WriteThroughEntry(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override public K getKey() {
+      return key;
+    }
+
+    @Override public V getValue() {
+      return value;
+    }
+
+    @Override public V setValue(V newValue) {
+      V oldValue = put(key, newValue);
+      value = newValue; // only if put succeeds
+      return oldValue;
+    }
+  }
+
+  final class EntryIterator extends HashIterator
+      implements Iterator<Entry<K, V>> {
+
+    @Override
+    public Entry<K, V> next() {
+      return nextEntry();
+    }
+  }
+
+  final class KeySet extends AbstractSet<K> {
+
+    @Override public Iterator<K> iterator() {
+      return new KeyIterator();
+    }
+
+    @Override public int size() {
+      return FlatConcurrentHashMap.this.size();
+    }
+
+    @Override public boolean isEmpty() {
+      return FlatConcurrentHashMap.this.isEmpty();
+    }
+
+    @Override public boolean contains(Object o) {
+      return FlatConcurrentHashMap.this.containsKey(o);
+    }
+
+    @Override public boolean remove(Object o) {
+      return FlatConcurrentHashMap.this.remove(o) != null;
+    }
+
+    @Override public void clear() {
+      FlatConcurrentHashMap.this.clear();
+    }
+  }
+
+  final class Values extends AbstractCollection<V> {
+
+    @Override public Iterator<V> iterator() {
+      return new ValueIterator();
+    }
+
+    @Override public int size() {
+      return FlatConcurrentHashMap.this.size();
+    }
+
+    @Override public boolean isEmpty() {
+      return FlatConcurrentHashMap.this.isEmpty();
+    }
+
+    @Override public boolean contains(Object o) {
+      return FlatConcurrentHashMap.this.containsValue(o);
+    }
+
+    @Override public void clear() {
+      FlatConcurrentHashMap.this.clear();
+    }
+  }
+
+  final class EntrySet extends AbstractSet<Entry<K, V>> {
+
+    @Override public Iterator<Entry<K, V>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override public boolean contains(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> e = (Entry<?, ?>) o;
+      Object key = e.getKey();
+      if (key == null) {
+        return false;
+      }
+      V v = FlatConcurrentHashMap.this.get(key);
+
+      return v != null && valueEquivalence.equivalent(e.getValue(), v);
+    }
+
+    @Override public boolean remove(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> e = (Entry<?, ?>) o;
+      Object key = e.getKey();
+      return key != null
+          && FlatConcurrentHashMap.this.remove(key, e.getValue());
+    }
+
+    @Override public int size() {
+      return FlatConcurrentHashMap.this.size();
+    }
+
+    @Override public boolean isEmpty() {
+      return FlatConcurrentHashMap.this.isEmpty();
+    }
+
+    @Override public void clear() {
+      FlatConcurrentHashMap.this.clear();
+    }
+  }
+
+  /* ---------------- Serialization Support -------------- */
+
+  private static final long serialVersionUID = 0;
+
+  /**
+   * Serializes the builder settings and the mappings through the same proxy
+   * fields as {@link CustomConcurrentHashMap}, but rebuilds the map with
+   * {@link MapMaker#compactEntries}, so that it is still stored flat.
+   */
+  Object writeReplace() {
+    return new SerializationProxy<K, V>(
+        keyEquivalence, valueEquivalence, concurrencyLevel, this);
+  }
+
+  /**
+   * The actual object that gets serialized. Unfortunately, readResolve()
+   * doesn't get called when a circular dependency is present, so the proxy
+   * must be able to behave as the map itself.
+   */
+  static final class SerializationProxy<K, V>
+      extends AbstractSerializationProxy<K, V> {
+    private static final long serialVersionUID = 0;
+
+    @SuppressWarnings("unchecked") // both singletons ignore their types
+    SerializationProxy(Equivalence<Object> keyEquivalence,
+        Equivalence<Object> valueEquivalence, int concurrencyLevel,
+        ConcurrentMap<K, V> delegate) {
+      super(Strength.STRONG, Strength.STRONG, keyEquivalence,
+          valueEquivalence, 0, 0, null, 0, MapMaker.UNSET_INT,
+          (Weigher<K, V>) OneWeigher.INSTANCE, false, MapMaker.UNSET_INT,
+          null, null, concurrencyLevel,
+          (RemovalListener<K, V>) NullListener.INSTANCE, delegate);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      out.defaultWriteObject();
+      writeMapTo(out);
+    }
+
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      MapMaker mapMaker = readMapMaker(in).compactEntries();
+      delegate = mapMaker.makeMap();
+      readEntries(in);
+    }
+
+    private Object readResolve() {
+      return delegate;
+    }
+  }
+}
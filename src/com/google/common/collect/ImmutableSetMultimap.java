@@ -30,6 +30,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -47,6 +48,12 @@ import javax.annotation.Nullable;
  * you easily make a "defensive copy" of a multimap provided to your class by
  * a caller.
  *
+ * <p>Unless the values are ordered by a comparator, the values of all keys are
+ * stored together in a single array, and {@link #get} returns a view of the
+ * range of that array which holds the values of a key. A multimap with many
+ * keys and few values per key therefore needs much less memory than a map of
+ * sets.
+ *
  * <p><b>Note</b>: Although this class is not final, it cannot be subclassed as
  * it has no public or protected constructors. Thus, instances of this class
  * are guaranteed to be immutable.
@@ -304,6 +311,15 @@ public class ImmutableSetMultimap<K, V>
       }
     }
 
+    if (valueComparator == null) {
+      PackedImmutableMap.SetMap<K, V> map = PackedImmutableMap.SetMap.copyOf(
+          multimap.asMap(), multimap.size());
+      if (map == null) {
+        return of();
+      }
+      return new ImmutableSetMultimap<K, V>(map, map.valueCount(), null);
+    }
+
     ImmutableMap.Builder<K, ImmutableSet<V>> builder = ImmutableMap.builder();
     int size = 0;
 
@@ -311,9 +327,8 @@ public class ImmutableSetMultimap<K, V>
         : multimap.asMap().entrySet()) {
       K key = entry.getKey();
       Collection<? extends V> values = entry.getValue();
-      ImmutableSet<V> set = (valueComparator == null)
-          ? ImmutableSet.copyOf(values) 
-          : ImmutableSortedSet.copyOf(valueComparator, values);
+      ImmutableSet<V> set
+          = ImmutableSortedSet.copyOf(valueComparator, values);
       if (!set.isEmpty()) {
         builder.put(key, set);
         size += set.size();
@@ -406,9 +421,8 @@ public class ImmutableSetMultimap<K, V>
     if (keyCount < 0) {
       throw new InvalidObjectException("Invalid key count " + keyCount);
     }
-    ImmutableMap.Builder<Object, ImmutableSet<Object>> builder
-        = ImmutableMap.builder();
-    int tmpSize = 0;
+    // not presized, since keyCount comes from the stream
+    PackedImmutableMap.Packer packer = new PackedImmutableMap.Packer();
 
     for (int i = 0; i < keyCount; i++) {
       Object key = stream.readObject();
@@ -417,26 +431,29 @@ public class ImmutableSetMultimap<K, V>
         throw new InvalidObjectException("Invalid value count " + valueCount);
       }
 
-      Object[] array = new Object[valueCount];
+      // grown as the values are read, since valueCount comes from the stream
+      List<Object> keyValues = Lists.newArrayList();
       for (int j = 0; j < valueCount; j++) {
-        array[j] = stream.readObject();
+        keyValues.add(stream.readObject());
       }
-      ImmutableSet<Object> valueSet = ImmutableSet.copyOf(array);
-      if (valueSet.size() != array.length) {
+      Object[] array = keyValues.toArray();
+      if (ImmutableSet.copyOf(array).size() != array.length) {
         throw new InvalidObjectException(
             "Duplicate key-value pairs exist for key " + key);
       }
-      builder.put(key, valueSet);
-      tmpSize += valueCount;
+      packer.add(key, array);
     }
 
     ImmutableMap<Object, ImmutableSet<Object>> tmpMap;
     try {
-      tmpMap = builder.build();
+      tmpMap = (keyCount == 0)
+          ? ImmutableMap.<Object, ImmutableSet<Object>>of()
+          : new PackedImmutableMap.SetMap<Object, Object>(packer);
     } catch (IllegalArgumentException e) {
       throw (InvalidObjectException)
           new InvalidObjectException(e.getMessage()).initCause(e);
     }
+    int tmpSize = packer.valueCount();
 
     FieldSettersHolder.MAP_FIELD_SETTER.set(this, tmpMap);
     FieldSettersHolder.SIZE_FIELD_SETTER.set(this, tmpSize);
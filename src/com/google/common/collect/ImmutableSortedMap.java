@@ -397,10 +397,24 @@ public class ImmutableSortedMap<K, V>
   final transient ImmutableList<Entry<K, V>> entries;
   private final transient Comparator<? super K> comparator;
 
+  // an index of a list whose keys from indexOffset on are our keys
+  @Nullable private final transient SortedListIndex index;
+  private final transient int indexOffset;
+
   ImmutableSortedMap(
       ImmutableList<Entry<K, V>> entries, Comparator<? super K> comparator) {
+    this(entries, comparator, null, 0);
+  }
+
+  ImmutableSortedMap(ImmutableList<Entry<K, V>> entries,
+      Comparator<? super K> comparator, @Nullable SortedListIndex index,
+      int indexOffset) {
     this.entries = entries;
     this.comparator = comparator;
+    // only checks eligibility; the first search lays out the samples
+    this.index = (index == null) ? SortedListIndex.create(
+        Lists.transform(entries, keyFunction), comparator) : index;
+    this.indexOffset = indexOffset;
   }
 
   @Override
@@ -430,8 +444,11 @@ public class ImmutableSortedMap<K, V>
     }
     int i;
     try {
-      i = SortedLists.binarySearch(Lists.transform(entries, keyFunction), key,
-              unsafeComparator(), EQUAL, false);
+      i = (index == null)
+          ? SortedLists.binarySearch(Lists.transform(entries, keyFunction),
+              key, unsafeComparator(), EQUAL, false)
+          : index.search(
+              key, unsafeComparator(), indexOffset, indexOffset + size());
     } catch (ClassCastException e) {
       return null;
     }
@@ -527,13 +544,14 @@ public class ImmutableSortedMap<K, V>
       return ImmutableSortedSet.emptySet(comparator);
     }
 
+    SortedListIndex keyIndex = index;
     return new RegularImmutableSortedSet<K>(
         new TransformedImmutableList<Entry<K, V>, K>(entries) {
 
           @Override K transform(Entry<K, V> entry) {
             return entry.getKey();
           }
-        }, comparator);
+        }, comparator, keyIndex, (keyIndex == null) ? 0 : indexOffset);
   }
   
   private transient ImmutableCollection<V> values;
@@ -685,15 +703,24 @@ public class ImmutableSortedMap<K, V>
   }
 
   private int findSubmapIndex(K key) {
-    return SortedLists.binarySearch(
-        Lists.transform(entries, keyFunction), key, comparator, CEILING, false);
+    if (index == null) {
+      return SortedLists.binarySearch(Lists.transform(entries, keyFunction),
+          key, comparator, CEILING, false);
+    }
+    int i = index.search(
+        key, unsafeComparator(), indexOffset, indexOffset + size());
+    return (i >= 0) ? i : (-i - 1);
   }
 
   private ImmutableSortedMap<K, V> createSubmap(
       int newFromIndex, int newToIndex) {
     if (newFromIndex < newToIndex) {
+      // a small submap is searched faster directly
+      boolean large = newToIndex - newFromIndex >= SortedListIndex.MIN_SIZE;
+      SortedListIndex submapIndex = large ? index : null;
       return new ImmutableSortedMap<K, V>(
-          entries.subList(newFromIndex, newToIndex), comparator);
+          entries.subList(newFromIndex, newToIndex), comparator, submapIndex,
+          (submapIndex == null) ? 0 : indexOffset + newFromIndex);
     } else {
       return emptyMap(comparator);
     }
@@ -0,0 +1,803 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.GwtCompatible;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * An {@link ImmutableMap} which can be updated cheaply, by creating a new map
+ * which shares most of its structure with the original. {@link #with} and
+ * {@link #without} take time logarithmic in the size of the map, and leave the
+ * map they are called on unchanged, so they suit maps which are replaced by
+ * slightly different versions of themselves many times.
+ *
+ * <p>Entries are held in a hash array mapped trie, which is searched five bits
+ * of the key's hash code at a time. A second trie indexes the same entries by
+ * the order in which their keys were added, so iteration follows the order of
+ * insertion like every other {@code ImmutableMap}. Replacing the value of a
+ * key keeps the key in its original position, while a key which was removed
+ * and then added again is moved to the end. Lookups are somewhat slower than
+ * in the maps returned by {@link ImmutableMap#copyOf}, which are better suited
+ * to maps which are never updated.
+ *
+ * <p>Does not permit null keys or values.
+ *
+ * @since 10
+ */
+@Beta
+@GwtCompatible(serializable = true)
+@SuppressWarnings("serial") // we're overriding default serialization
+public final class ImmutableTrieMap<K, V> extends ImmutableMap<K, V> {
+
+  /** The number of bits of a hash code or sequence number used per level. */
+  private static final int BITS = 5;
+
+  private static final int MASK = (1 << BITS) - 1;
+
+  /** The shift of the top level of the order trie. */
+  private static final int ORDER_TOP_SHIFT = 30;
+
+  /** The number of levels in the order trie. */
+  private static final int ORDER_DEPTH = ORDER_TOP_SHIFT / BITS + 1;
+
+  private static final ImmutableTrieMap<Object, Object> EMPTY =
+      new ImmutableTrieMap<Object, Object>(null, null, 0, 0, 0, 0);
+
+  // null, or the Leaf, CollisionNode or BitmapNode at the root of the hash trie
+  @Nullable private final transient Object hashRoot;
+  // the same leaves, keyed by sequence number
+  @Nullable private final transient OrderNode orderRoot;
+  private final transient int size;
+  // the sequence number of the next key to be added
+  private final transient int nextSequence;
+  private final transient int hashCode;
+  private final transient int keySetHashCode;
+
+  private ImmutableTrieMap(@Nullable Object hashRoot,
+      @Nullable OrderNode orderRoot, int size, int nextSequence, int hashCode,
+      int keySetHashCode) {
+    this.hashRoot = hashRoot;
+    this.orderRoot = orderRoot;
+    this.size = size;
+    this.nextSequence = nextSequence;
+    this.hashCode = hashCode;
+    this.keySetHashCode = keySetHashCode;
+  }
+
+  /**
+   * Returns the empty map.
+   */
+  // Casting to any type is safe because the map will never hold any entries.
+  @SuppressWarnings("unchecked")
+  public static <K, V> ImmutableTrieMap<K, V> of() {
+    return (ImmutableTrieMap<K, V>) EMPTY;
+  }
+
+  /**
+   * Returns a map containing a single entry.
+   */
+  public static <K, V> ImmutableTrieMap<K, V> of(K k1, V v1) {
+    return ImmutableTrieMap.<K, V>of().with(k1, v1);
+  }
+
+  /**
+   * Returns a map containing the given entries, in order.
+   *
+   * @throws IllegalArgumentException if duplicate keys are provided
+   */
+  public static <K, V> ImmutableTrieMap<K, V> of(K k1, V v1, K k2, V v2) {
+    return copyOf(ImmutableMap.of(k1, v1, k2, v2));
+  }
+
+  /**
+   * Returns a map containing the given entries, in order.
+   *
+   * @throws IllegalArgumentException if duplicate keys are provided
+   */
+  public static <K, V> ImmutableTrieMap<K, V> of(
+      K k1, V v1, K k2, V v2, K k3, V v3) {
+    return copyOf(ImmutableMap.of(k1, v1, k2, v2, k3, v3));
+  }
+
+  /**
+   * Returns a map containing the given entries, in order.
+   *
+   * @throws IllegalArgumentException if duplicate keys are provided
+   */
+  public static <K, V> ImmutableTrieMap<K, V> of(
+      K k1, V v1, K k2, V v2, K k3, V v3, K k4, V v4) {
+    return copyOf(ImmutableMap.of(k1, v1, k2, v2, k3, v3, k4, v4));
+  }
+
+  /**
+   * Returns a map containing the given entries, in order.
+   *
+   * @throws IllegalArgumentException if duplicate keys are provided
+   */
+  public static <K, V> ImmutableTrieMap<K, V> of(
+      K k1, V v1, K k2, V v2, K k3, V v3, K k4, V v4, K k5, V v5) {
+    return copyOf(ImmutableMap.of(k1, v1, k2, v2, k3, v3, k4, v4, k5, v5));
+  }
+
+  // looking for of() with > 5 entries? Use the builder instead.
+
+  /**
+   * Returns a new builder. The generated builder is equivalent to the builder
+   * created by the {@link Builder} constructor.
+   */
+  public static <K, V> Builder<K, V> builder() {
+    return new Builder<K, V>();
+  }
+
+  /**
+   * A builder for creating {@code ImmutableTrieMap} instances. Example:
+   * <pre>   {@code
+   *
+   *   ImmutableTrieMap<String, Integer> routes =
+   *       new ImmutableTrieMap.Builder<String, Integer>()
+   *           .put("one", 1)
+   *           .put("two", 2)
+   *           .build();}</pre>
+   *
+   * <p>Builder instances can be reused - it is safe to call {@link #build}
+   * multiple times to build multiple maps in series. Each map is a superset of
+   * the maps created before it.
+   *
+   * @since 10
+   */
+  public static final class Builder<K, V> extends ImmutableMap.Builder<K, V> {
+
+    /**
+     * Creates a new builder. The returned builder is equivalent to the builder
+     * generated by {@link ImmutableTrieMap#builder}.
+     */
+    public Builder() {}
+
+    /**
+     * Associates {@code key} with {@code value} in the built map. Duplicate
+     * keys are not allowed, and will cause {@link #build} to fail.
+     */
+    @Override public Builder<K, V> put(K key, V value) {
+      super.put(key, value);
+      return this;
+    }
+
+    /**
+     * Associates all of the given map's keys and values in the built map.
+     * Duplicate keys are not allowed, and will cause {@link #build} to fail.
+     *
+     * @throws NullPointerException if any key or value in {@code map} is null
+     */
+    @Override public Builder<K, V> putAll(Map<? extends K, ? extends V> map) {
+      super.putAll(map);
+      return this;
+    }
+
+    /**
+     * Returns a newly-created map.
+     *
+     * @throws IllegalArgumentException if duplicate keys were added
+     */
+    @Override public ImmutableTrieMap<K, V> build() {
+      return copyOf(super.build());
+    }
+  }
+
+  /**
+   * Returns a map containing the same entries as {@code map}, in the same
+   * order. If {@code map} is itself an {@code ImmutableTrieMap}, it is
+   * returned.
+   *
+   * @throws NullPointerException if any key or value in {@code map} is null
+   */
+  public static <K, V> ImmutableTrieMap<K, V> copyOf(
+      Map<? extends K, ? extends V> map) {
+    if (map instanceof ImmutableTrieMap) {
+      @SuppressWarnings("unchecked") // safe since map is not writable
+      ImmutableTrieMap<K, V> trieMap = (ImmutableTrieMap<K, V>) map;
+      return trieMap;
+    }
+    ImmutableTrieMap<K, V> result = of();
+    for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+      result = result.with(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  /**
+   * Returns a map with the entries of this map, except that {@code key} is
+   * mapped to {@code value}. Returns this map if it already maps {@code key}
+   * to a value equal to {@code value}.
+   *
+   * @throws NullPointerException if {@code key} or {@code value} is null
+   */
+  public ImmutableTrieMap<K, V> with(K key, V value) {
+    int keyHashCode = key.hashCode();
+    int valueHashCode = value.hashCode();
+    int hash = Hashing.smear(keyHashCode);
+    Leaf<K, V> existing = find(hashRoot, key, hash);
+    if (existing != null) {
+      V existingValue = existing.getValue();
+      if (existingValue.equals(value)) {
+        return this;
+      }
+      Leaf<K, V> leaf = new Leaf<K, V>(
+          existing.getKey(), value, hash, existing.sequence);
+      return new ImmutableTrieMap<K, V>(hashWith(hashRoot, leaf, 0),
+          orderWith(orderRoot, ORDER_TOP_SHIFT, leaf), size, nextSequence,
+          hashCode - (keyHashCode ^ existingValue.hashCode())
+              + (keyHashCode ^ valueHashCode),
+          keySetHashCode);
+    }
+    if (nextSequence == Integer.MAX_VALUE) {
+      // sequence numbers have run out, so renumber the entries from zero
+      return renumber().with(key, value);
+    }
+    Leaf<K, V> leaf = new Leaf<K, V>(key, value, hash, nextSequence);
+    return new ImmutableTrieMap<K, V>(hashWith(hashRoot, leaf, 0),
+        orderWith(orderRoot, ORDER_TOP_SHIFT, leaf), size + 1,
+        nextSequence + 1, hashCode + (keyHashCode ^ valueHashCode),
+        keySetHashCode + keyHashCode);
+  }
+
+  /**
+   * Returns a map with the same entries in the same order, but with sequence
+   * numbers counting up from zero, so that {@link #with} can add keys again
+   * once {@code nextSequence} has reached {@code Integer.MAX_VALUE}.
+   */
+  private ImmutableTrieMap<K, V> renumber() {
+    Object newHashRoot = null;
+    OrderNode newOrderRoot = null;
+    int sequence = 0;
+    for (Entry<K, V> entry : entrySet()) {
+      Leaf<K, V> leaf = (Leaf<K, V>) entry;
+      Leaf<K, V> renumbered = new Leaf<K, V>(
+          leaf.getKey(), leaf.getValue(), leaf.hash, sequence++);
+      newHashRoot = hashWith(newHashRoot, renumbered, 0);
+      newOrderRoot = orderWith(newOrderRoot, ORDER_TOP_SHIFT, renumbered);
+    }
+    return new ImmutableTrieMap<K, V>(newHashRoot, newOrderRoot, size,
+        sequence, hashCode, keySetHashCode);
+  }
+
+  /**
+   * Returns a map with the entries of this map, except for any entry for
+   * {@code key}. Returns this map if it has no entry for {@code key}.
+   */
+  public ImmutableTrieMap<K, V> without(@Nullable Object key) {
+    if (key == null) {
+      return this;
+    }
+    int keyHashCode = key.hashCode();
+    int hash = Hashing.smear(keyHashCode);
+    Leaf<K, V> existing = find(hashRoot, key, hash);
+    if (existing == null) {
+      return this;
+    } else if (size == 1) {
+      return of();
+    }
+    return new ImmutableTrieMap<K, V>(hashWithout(hashRoot, key, hash, 0),
+        orderWithout(orderRoot, ORDER_TOP_SHIFT, existing.sequence),
+        size - 1, nextSequence,
+        hashCode - (keyHashCode ^ existing.getValue().hashCode()),
+        keySetHashCode - keyHashCode);
+  }
+
+  @Override public V get(@Nullable Object key) {
+    if (key == null) {
+      return null;
+    }
+    Leaf<K, V> leaf = find(hashRoot, key, Hashing.smear(key.hashCode()));
+    return (leaf == null) ? null : leaf.getValue();
+  }
+
+  @Override public boolean containsValue(@Nullable Object value) {
+    if (value == null) {
+      return false;
+    }
+    for (V candidate : values()) {
+      if (candidate.equals(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override boolean isPartialView() {
+    return false;
+  }
+
+  @Override public int hashCode() {
+    return hashCode;
+  }
+
+  int keySetHashCode() {
+    return keySetHashCode;
+  }
+
+  /* ---------------- Hash Trie -------------- */
+
+  /**
+   * An entry of the map. Each leaf is shared by both tries, and is replaced
+   * rather than modified when its key is mapped to a new value.
+   */
+  private static final class Leaf<K, V> extends ImmutableEntry<K, V> {
+    final int hash;
+    final int sequence;
+
+    Leaf(K key, V value, int hash, int sequence) {
+      super(checkNotNull(key), checkNotNull(value));
+      this.hash = hash;
+      this.sequence = sequence;
+    }
+  }
+
+  /**
+   * A node holding, for each five bit index set in its bitmap, the Leaf,
+   * CollisionNode or BitmapNode under that index, in index order.
+   */
+  private static final class BitmapNode {
+    final int bitmap;
+    final Object[] children;
+
+    BitmapNode(int bitmap, Object[] children) {
+      this.bitmap = bitmap;
+      this.children = children;
+    }
+  }
+
+  /** A node holding the leaves of two or more keys with the same hash. */
+  private static final class CollisionNode {
+    final int hash;
+    final Object[] leaves;
+
+    CollisionNode(int hash, Object[] leaves) {
+      this.hash = hash;
+      this.leaves = leaves;
+    }
+  }
+
+  /** Returns the leaf of {@code key}, or {@code null} if there is none. */
+  @SuppressWarnings("unchecked") // all leaves of this map are Leaf<K, V>
+  private static <K, V> Leaf<K, V> find(
+      @Nullable Object node, Object key, int hash) {
+    int shift = 0;
+    while (node instanceof BitmapNode) {
+      BitmapNode bitmapNode = (BitmapNode) node;
+      int bit = bit(hash, shift);
+      if ((bitmapNode.bitmap & bit) == 0) {
+        return null;
+      }
+      node = bitmapNode.children[index(bitmapNode.bitmap, bit)];
+      shift += BITS;
+    }
+    if (node instanceof Leaf) {
+      Leaf<K, V> leaf = (Leaf<K, V>) node;
+      return (leaf.hash == hash && key.equals(leaf.getKey())) ? leaf : null;
+    } else if (node instanceof CollisionNode) {
+      CollisionNode collisionNode = (CollisionNode) node;
+      if (collisionNode.hash == hash) {
+        for (Object candidate : collisionNode.leaves) {
+          Leaf<K, V> leaf = (Leaf<K, V>) candidate;
+          if (key.equals(leaf.getKey())) {
+            return leaf;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a copy of {@code node}, at the given depth of the hash trie, in
+   * which {@code leaf} replaces the leaf of an equal key or is added.
+   */
+  private static Object hashWith(
+      @Nullable Object node, Leaf<?, ?> leaf, int shift) {
+    if (node == null) {
+      return leaf;
+    } else if (node instanceof Leaf) {
+      Leaf<?, ?> existing = (Leaf<?, ?>) node;
+      if (existing.hash != leaf.hash) {
+        return merge(existing, existing.hash, leaf, leaf.hash, shift);
+      } else if (existing.getKey().equals(leaf.getKey())) {
+        return leaf;
+      }
+      return new CollisionNode(leaf.hash, new Object[] {existing, leaf});
+    } else if (node instanceof CollisionNode) {
+      CollisionNode collisionNode = (CollisionNode) node;
+      if (collisionNode.hash != leaf.hash) {
+        return merge(
+            collisionNode, collisionNode.hash, leaf, leaf.hash, shift);
+      }
+      Object[] leaves = collisionNode.leaves;
+      for (int i = 0; i < leaves.length; i++) {
+        if (((Leaf<?, ?>) leaves[i]).getKey().equals(leaf.getKey())) {
+          return new CollisionNode(leaf.hash, replace(leaves, i, leaf));
+        }
+      }
+      return new CollisionNode(
+          leaf.hash, insert(leaves, leaves.length, leaf));
+    }
+    BitmapNode bitmapNode = (BitmapNode) node;
+    int bit = bit(leaf.hash, shift);
+    int index = index(bitmapNode.bitmap, bit);
+    if ((bitmapNode.bitmap & bit) == 0) {
+      return new BitmapNode(bitmapNode.bitmap | bit,
+          insert(bitmapNode.children, index, leaf));
+    }
+    Object child = hashWith(bitmapNode.children[index], leaf, shift + BITS);
+    return new BitmapNode(bitmapNode.bitmap,
+        replace(bitmapNode.children, index, child));
+  }
+
+  /**
+   * Returns a node holding both {@code first} and {@code second}, which have
+   * different hashes, at the given depth of the hash trie.
+   */
+  private static BitmapNode merge(
+      Object first, int firstHash, Object second, int secondHash, int shift) {
+    int firstBit = bit(firstHash, shift);
+    int secondBit = bit(secondHash, shift);
+    if (firstBit == secondBit) {
+      return new BitmapNode(firstBit, new Object[] {
+          merge(first, firstHash, second, secondHash, shift + BITS)});
+    }
+    // compare the indexes, since the bit of index 31 is negative
+    boolean firstIsLower =
+        ((firstHash >>> shift) & MASK) < ((secondHash >>> shift) & MASK);
+    return new BitmapNode(firstBit | secondBit, firstIsLower
+        ? new Object[] {first, second}
+        : new Object[] {second, first});
+  }
+
+  /**
+   * Returns a copy of {@code node}, at the given depth of the hash trie,
+   * without the leaf of {@code key}, which must be present. A node left with a
+   * single leaf or collision node is replaced by it, so the trie stays as
+   * shallow as it would be had the key never been added.
+   */
+  @Nullable private static Object hashWithout(
+      Object node, Object key, int hash, int shift) {
+    if (node instanceof Leaf) {
+      return null;
+    } else if (node instanceof CollisionNode) {
+      CollisionNode collisionNode = (CollisionNode) node;
+      Object[] leaves = collisionNode.leaves;
+      for (int i = 0; i < leaves.length; i++) {
+        if (((Leaf<?, ?>) leaves[i]).getKey().equals(key)) {
+          return (leaves.length == 2)
+              ? leaves[1 - i]
+              : new CollisionNode(hash, remove(leaves, i));
+        }
+      }
+      throw new AssertionError();
+    }
+    BitmapNode bitmapNode = (BitmapNode) node;
+    int bit = bit(hash, shift);
+    int index = index(bitmapNode.bitmap, bit);
+    Object[] children = bitmapNode.children;
+    Object child = hashWithout(children[index], key, hash, shift + BITS);
+    if (child == null) {
+      if (children.length == 1) {
+        return null;
+      } else if (children.length == 2
+          && !(children[1 - index] instanceof BitmapNode)) {
+        return children[1 - index];
+      }
+      return new BitmapNode(bitmapNode.bitmap & ~bit, remove(children, index));
+    } else if (children.length == 1 && !(child instanceof BitmapNode)) {
+      return child;
+    }
+    return new BitmapNode(bitmapNode.bitmap, replace(children, index, child));
+  }
+
+  /* ---------------- Order Trie -------------- */
+
+  /**
+   * A node of the trie indexing the leaves by sequence number, which is
+   * searched five bits at a time from the most significant. Every leaf is at
+   * the bottom level, so iterating over the children of each node in index
+   * order visits the leaves in the order their keys were added.
+   */
+  private static final class OrderNode {
+    final int bitmap;
+    final Object[] children;
+
+    OrderNode(int bitmap, Object[] children) {
+      this.bitmap = bitmap;
+      this.children = children;
+    }
+  }
+
+  /**
+   * Returns a copy of {@code node}, at the level of the order trie with the
+   * given shift, in which {@code leaf} replaces or adds the leaf with its
+   * sequence number.
+   */
+  private static OrderNode orderWith(
+      @Nullable OrderNode node, int shift, Leaf<?, ?> leaf) {
+    int bit = bit(leaf.sequence, shift);
+    if (node == null) {
+      Object child = (shift == 0) ? leaf : orderWith(null, shift - BITS, leaf);
+      return new OrderNode(bit, new Object[] {child});
+    }
+    int index = index(node.bitmap, bit);
+    if ((node.bitmap & bit) == 0) {
+      Object child = (shift == 0) ? leaf : orderWith(null, shift - BITS, leaf);
+      return new OrderNode(node.bitmap | bit,
+          insert(node.children, index, child));
+    }
+    Object child = (shift == 0)
+        ? leaf
+        : orderWith((OrderNode) node.children[index], shift - BITS, leaf);
+    return new OrderNode(node.bitmap, replace(node.children, index, child));
+  }
+
+  /**
+   * Returns a copy of {@code node}, at the level of the order trie with the
+   * given shift, without the leaf with sequence number {@code sequence}, which
+   * must be present; or {@code null} if no leaves remain under it.
+   */
+  @Nullable private static OrderNode orderWithout(
+      OrderNode node, int shift, int sequence) {
+    int bit = bit(sequence, shift);
+    int index = index(node.bitmap, bit);
+    Object child = (shift == 0)
+        ? null
+        : orderWithout((OrderNode) node.children[index], shift - BITS,
+            sequence);
+    if (child != null) {
+      return new OrderNode(node.bitmap, replace(node.children, index, child));
+    } else if (node.children.length == 1) {
+      return null;
+    }
+    return new OrderNode(node.bitmap & ~bit, remove(node.children, index));
+  }
+
+  /** Visits the leaves in the order their keys were added. */
+  private abstract class OrderIterator<T> extends AbstractIterator<T> {
+    final Object[][] path = new Object[ORDER_DEPTH][];
+    final int[] positions = new int[ORDER_DEPTH];
+    int depth;
+
+    OrderIterator() {
+      if (orderRoot == null) {
+        depth = -1;
+      } else {
+        path[0] = orderRoot.children;
+      }
+    }
+
+    abstract T output(Leaf<K, V> leaf);
+
+    @Override protected T computeNext() {
+      while (depth >= 0) {
+        Object[] children = path[depth];
+        if (positions[depth] == children.length) {
+          depth--;
+          continue;
+        }
+        Object child = children[positions[depth]++];
+        if (child instanceof OrderNode) {
+          depth++;
+          path[depth] = ((OrderNode) child).children;
+          positions[depth] = 0;
+        } else {
+          @SuppressWarnings("unchecked") // all leaves of this map are K, V
+          Leaf<K, V> leaf = (Leaf<K, V>) child;
+          return output(leaf);
+        }
+      }
+      return endOfData();
+    }
+  }
+
+  /* ---------------- Array Helpers -------------- */
+
+  /** Returns the bit for the five bits of {@code hash} at {@code shift}. */
+  private static int bit(int hash, int shift) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+  /** Returns the position of the child for {@code bit} in a node. */
+  private static int index(int bitmap, int bit) {
+    return Integer.bitCount(bitmap & (bit - 1));
+  }
+
+  private static Object[] insert(Object[] array, int index, Object element) {
+    Object[] result = new Object[array.length + 1];
+    System.arraycopy(array, 0, result, 0, index);
+    result[index] = element;
+    System.arraycopy(array, index, result, index + 1, array.length - index);
+    return result;
+  }
+
+  private static Object[] replace(Object[] array, int index, Object element) {
+    Object[] result = array.clone();
+    result[index] = element;
+    return result;
+  }
+
+  private static Object[] remove(Object[] array, int index) {
+    Object[] result = new Object[array.length - 1];
+    System.arraycopy(array, 0, result, 0, index);
+    System.arraycopy(array, index + 1, result, index, result.length - index);
+    return result;
+  }
+
+  /* ---------------- Views -------------- */
+
+  private transient ImmutableSet<Entry<K, V>> entrySet;
+
+  @Override public ImmutableSet<Entry<K, V>> entrySet() {
+    ImmutableSet<Entry<K, V>> es = entrySet;
+    return (es == null) ? (entrySet = new EntrySet()) : es;
+  }
+
+  private final class EntrySet extends ImmutableSet<Entry<K, V>> {
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override public boolean isEmpty() {
+      return size == 0;
+    }
+
+    @Override public UnmodifiableIterator<Entry<K, V>> iterator() {
+      return new OrderIterator<Entry<K, V>>() {
+        @Override Entry<K, V> output(Leaf<K, V> leaf) {
+          return leaf;
+        }
+      };
+    }
+
+    @Override public boolean contains(@Nullable Object target) {
+      if (target instanceof Entry) {
+        Entry<?, ?> entry = (Entry<?, ?>) target;
+        V mappedValue = get(entry.getKey());
+        return mappedValue != null && mappedValue.equals(entry.getValue());
+      }
+      return false;
+    }
+
+    @Override public int hashCode() {
+      return hashCode;
+    }
+
+    @Override boolean isHashCodeFast() {
+      return true;
+    }
+
+    @Override boolean isPartialView() {
+      return false;
+    }
+  }
+
+  private transient ImmutableSet<K> keySet;
+
+  @Override public ImmutableSet<K> keySet() {
+    ImmutableSet<K> ks = keySet;
+    return (ks == null) ? (keySet = new KeySet()) : ks;
+  }
+
+  private final class KeySet extends ImmutableSet<K> {
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override public boolean isEmpty() {
+      return size == 0;
+    }
+
+    @Override public UnmodifiableIterator<K> iterator() {
+      return new OrderIterator<K>() {
+        @Override K output(Leaf<K, V> leaf) {
+          return leaf.getKey();
+        }
+      };
+    }
+
+    @Override public boolean contains(@Nullable Object target) {
+      return containsKey(target);
+    }
+
+    @Override public int hashCode() {
+      return keySetHashCode;
+    }
+
+    @Override boolean isHashCodeFast() {
+      return true;
+    }
+
+    @Override boolean isPartialView() {
+      return true;
+    }
+  }
+
+  private transient ImmutableCollection<V> values;
+
+  @Override public ImmutableCollection<V> values() {
+    ImmutableCollection<V> v = values;
+    return (v == null) ? (values = new Values()) : v;
+  }
+
+  private final class Values extends ImmutableCollection<V> {
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override public boolean isEmpty() {
+      return size == 0;
+    }
+
+    @Override public UnmodifiableIterator<V> iterator() {
+      return new OrderIterator<V>() {
+        @Override V output(Leaf<K, V> leaf) {
+          return leaf.getValue();
+        }
+      };
+    }
+
+    @Override public boolean contains(@Nullable Object target) {
+      return containsValue(target);
+    }
+
+    @Override boolean isPartialView() {
+      return true;
+    }
+  }
+
+  /* ---------------- Serialization Support -------------- */
+
+  /**
+   * Serializes the entries like every other ImmutableMap, but rebuilds an
+   * ImmutableTrieMap from them, so the deserialized map can still be updated.
+   */
+  private static class SerializedForm extends ImmutableMap.SerializedForm {
+    SerializedForm(ImmutableTrieMap<?, ?> map) {
+      super(map);
+    }
+    @Override Object createMap(ImmutableMap.Builder<Object, Object> builder) {
+      return copyOf((ImmutableMap<?, ?>) super.createMap(builder));
+    }
+    private static final long serialVersionUID = 0;
+  }
+
+  @Override Object writeReplace() {
+    return new SerializedForm(this);
+  }
+}
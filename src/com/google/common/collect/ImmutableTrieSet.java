@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.GwtCompatible;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+import javax.annotation.Nullable;
+
+/**
+ * An {@link ImmutableSet} which can be updated cheaply, by creating a new set
+ * which shares most of its structure with the original. {@link #with} and
+ * {@link #without} take time logarithmic in the size of the set, and leave the
+ * set they are called on unchanged.
+ *
+ * <p>The elements are the keys of an {@link ImmutableTrieMap}, and so are
+ * iterated in the order they were added, like every other {@code
+ * ImmutableSet}. Does not permit null elements.
+ *
+ * @since 10
+ */
+@Beta
+@GwtCompatible(serializable = true)
+@SuppressWarnings("serial") // we're overriding default serialization
+public final class ImmutableTrieSet<E> extends ImmutableSet<E> {
+
+  private static final ImmutableTrieSet<Object> EMPTY =
+      new ImmutableTrieSet<Object>(ImmutableTrieMap.<Object, Boolean>of());
+
+  private final transient ImmutableTrieMap<E, Boolean> map;
+
+  private ImmutableTrieSet(ImmutableTrieMap<E, Boolean> map) {
+    this.map = map;
+  }
+
+  /**
+   * Returns the empty set.
+   */
+  // Casting to any type is safe because the set will never hold any elements.
+  @SuppressWarnings("unchecked")
+  public static <E> ImmutableTrieSet<E> of() {
+    return (ImmutableTrieSet<E>) EMPTY;
+  }
+
+  /**
+   * Returns a set containing a single element.
+   *
+   * @throws NullPointerException if {@code element} is null
+   */
+  public static <E> ImmutableTrieSet<E> of(E element) {
+    return ImmutableTrieSet.<E>of().with(element);
+  }
+
+  /**
+   * Returns a set containing the given elements, in order. Repeated
+   * occurrences of an element (according to {@link Object#equals}) after the
+   * first are ignored.
+   *
+   * @throws NullPointerException if any element is null
+   */
+  public static <E> ImmutableTrieSet<E> of(E e1, E e2) {
+    return of(e1).with(e2);
+  }
+
+  /**
+   * Returns a set containing the given elements, in order. Repeated
+   * occurrences of an element (according to {@link Object#equals}) after the
+   * first are ignored.
+   *
+   * @throws NullPointerException if any element is null
+   */
+  public static <E> ImmutableTrieSet<E> of(E e1, E e2, E e3) {
+    return of(e1, e2).with(e3);
+  }
+
+  /**
+   * Returns a set containing the given elements, in order. Repeated
+   * occurrences of an element (according to {@link Object#equals}) after the
+   * first are ignored.
+   *
+   * @throws NullPointerException if any element is null
+   */
+  public static <E> ImmutableTrieSet<E> of(E e1, E e2, E e3, E e4) {
+    return of(e1, e2, e3).with(e4);
+  }
+
+  /**
+   * Returns a set containing the given elements, in order. Repeated
+   * occurrences of an element (according to {@link Object#equals}) after the
+   * first are ignored.
+   *
+   * @throws NullPointerException if any element is null
+   */
+  public static <E> ImmutableTrieSet<E> of(E e1, E e2, E e3, E e4, E e5) {
+    return of(e1, e2, e3, e4).with(e5);
+  }
+
+  /**
+   * Returns a set containing the given elements, in order. Repeated
+   * occurrences of an element (according to {@link Object#equals}) after the
+   * first are ignored.
+   *
+   * @throws NullPointerException if any element is null
+   */
+  @SuppressWarnings("unchecked") // safe, as others is only read from
+  public static <E> ImmutableTrieSet<E> of(E e1, E e2, E e3, E e4, E e5, E e6,
+      E... others) {
+    ImmutableTrieSet<E> set = of(e1, e2, e3, e4, e5).with(e6);
+    for (E element : others) {
+      set = set.with(element);
+    }
+    return set;
+  }
+
+  /**
+   * Returns a set containing the given elements, in order. Repeated
+   * occurrences of an element (according to {@link Object#equals}) after the
+   * first are ignored.
+   *
+   * @deprecated use {@link #copyOf(Object[])}.
+   * @throws NullPointerException if any of {@code elements} is null
+   */
+  @Deprecated
+  public static <E> ImmutableTrieSet<E> of(E[] elements) {
+    return copyOf(elements);
+  }
+
+  /**
+   * Returns a set containing the given elements, in order. Repeated
+   * occurrences of an element (according to {@link Object#equals}) after the
+   * first are ignored.
+   *
+   * @throws NullPointerException if any of {@code elements} is null
+   */
+  public static <E> ImmutableTrieSet<E> copyOf(E[] elements) {
+    return copyOf(Arrays.asList(elements).iterator());
+  }
+
+  /**
+   * Returns a set containing the given elements, in order. Repeated
+   * occurrences of an element (according to {@link Object#equals}) after the
+   * first are ignored. If {@code elements} is itself an {@code
+   * ImmutableTrieSet}, it is returned.
+   *
+   * @throws NullPointerException if any of {@code elements} is null
+   */
+  public static <E> ImmutableTrieSet<E> copyOf(
+      Iterable<? extends E> elements) {
+    if (elements instanceof ImmutableTrieSet) {
+      @SuppressWarnings("unchecked") // all supported methods are covariant
+      ImmutableTrieSet<E> set = (ImmutableTrieSet<E>) elements;
+      return set;
+    }
+    return copyOf(elements.iterator());
+  }
+
+  /**
+   * Returns a set containing the given elements, in order. Repeated
+   * occurrences of an element (according to {@link Object#equals}) after the
+   * first are ignored. If {@code elements} is itself an {@code
+   * ImmutableTrieSet}, it is returned.
+   *
+   * @throws NullPointerException if any of {@code elements} is null
+   */
+  public static <E> ImmutableTrieSet<E> copyOf(
+      Collection<? extends E> elements) {
+    return copyOf((Iterable<? extends E>) elements);
+  }
+
+  /**
+   * Returns a set containing the given elements, in order. Repeated
+   * occurrences of an element (according to {@link Object#equals}) after the
+   * first are ignored.
+   *
+   * @throws NullPointerException if any of {@code elements} is null
+   */
+  public static <E> ImmutableTrieSet<E> copyOf(
+      Iterator<? extends E> elements) {
+    ImmutableTrieSet<E> set = of();
+    while (elements.hasNext()) {
+      set = set.with(elements.next());
+    }
+    return set;
+  }
+
+  /**
+   * Returns a new builder. The generated builder is equivalent to the builder
+   * created by the {@link Builder} constructor.
+   */
+  public static <E> Builder<E> builder() {
+    return new Builder<E>();
+  }
+
+  /**
+   * A builder for creating {@code ImmutableTrieSet} instances. Builder
+   * instances can be reused; it is safe to call {@link #build} multiple times
+   * to build multiple sets in series.
+   *
+   * @since 10
+   */
+  public static final class Builder<E> extends ImmutableSet.Builder<E> {
+
+    /**
+     * Creates a new builder. The returned builder is equivalent to the builder
+     * generated by {@link ImmutableTrieSet#builder}.
+     */
+    public Builder() {}
+
+    /**
+     * Adds {@code element} to the set. If the set already contains {@code
+     * element}, then {@code add} has no effect (only the previously added
+     * element is retained).
+     *
+     * @throws NullPointerException if {@code element} is null
+     */
+    @Override public Builder<E> add(E element) {
+      super.add(element);
+      return this;
+    }
+
+    /**
+     * Adds each element of {@code elements} to the set, ignoring duplicate
+     * elements (only the first duplicate element is added).
+     *
+     * @throws NullPointerException if {@code elements} is null or contains a
+     *     null element
+     */
+    @SuppressWarnings("unchecked") // safe, as elements is only read from
+    @Override public Builder<E> add(E... elements) {
+      super.add(elements);
+      return this;
+    }
+
+    /**
+     * Adds each element of {@code elements} to the set, ignoring duplicate
+     * elements (only the first duplicate element is added).
+     *
+     * @throws NullPointerException if {@code elements} is null or contains a
+     *     null element
+     */
+    @Override public Builder<E> addAll(Iterable<? extends E> elements) {
+      super.addAll(elements);
+      return this;
+    }
+
+    /**
+     * Adds each element of {@code elements} to the set, ignoring duplicate
+     * elements (only the first duplicate element is added).
+     *
+     * @throws NullPointerException if {@code elements} is null or contains a
+     *     null element
+     */
+    @Override public Builder<E> addAll(Iterator<? extends E> elements) {
+      super.addAll(elements);
+      return this;
+    }
+
+    /**
+     * Returns a newly-created {@code ImmutableTrieSet} based on the contents
+     * of the {@code Builder}.
+     */
+    @Override public ImmutableTrieSet<E> build() {
+      return copyOf(contents);
+    }
+  }
+
+  /**
+   * Returns a set with the elements of this set and {@code element}, which is
+   * added last. Returns this set if it already contains {@code element}.
+   *
+   * @throws NullPointerException if {@code element} is null
+   */
+  public ImmutableTrieSet<E> with(E element) {
+    ImmutableTrieMap<E, Boolean> result = map.with(element, true);
+    return (result == map) ? this : new ImmutableTrieSet<E>(result);
+  }
+
+  /**
+   * Returns a set with the elements of this set, except for {@code element}.
+   * Returns this set if it doesn't contain {@code element}.
+   */
+  public ImmutableTrieSet<E> without(@Nullable Object element) {
+    ImmutableTrieMap<E, Boolean> result = map.without(element);
+    return (result == map) ? this : new ImmutableTrieSet<E>(result);
+  }
+
+  @Override public boolean contains(@Nullable Object target) {
+    return map.containsKey(target);
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  @Override public UnmodifiableIterator<E> iterator() {
+    return map.keySet().iterator();
+  }
+
+  @Override public int hashCode() {
+    return map.keySetHashCode();
+  }
+
+  @Override boolean isHashCodeFast() {
+    return true;
+  }
+
+  @Override boolean isPartialView() {
+    return false;
+  }
+
+  /*
+   * Serializes the elements like every other ImmutableSet, but rebuilds an
+   * ImmutableTrieSet from them, so the deserialized set can still be updated.
+   */
+  private static class SerializedForm implements Serializable {
+    final Object[] elements;
+    SerializedForm(Object[] elements) {
+      this.elements = elements;
+    }
+    Object readResolve() {
+      return copyOf(elements);
+    }
+    private static final long serialVersionUID = 0;
+  }
+
+  @Override Object writeReplace() {
+    return new SerializedForm(toArray());
+  }
+}
@@ -19,10 +19,12 @@ package com.google.common.collect;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.annotations.Beta;
-import com.google.common.base.FinalizableReferenceQueue;
-import com.google.common.base.FinalizableWeakReference;
 import com.google.common.base.Function;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -71,8 +73,18 @@ public final class Interners {
     private final ConcurrentMap<InternReference, InternReference> map
         = new MapMaker().makeMap();
 
+    /**
+     * Receives the references whose referents have been collected. It is
+     * drained by interning threads, so no background thread is needed.
+     */
+    private final ReferenceQueue<E> queue = new ReferenceQueue<E>();
+
+    /** The most references removed from the map by a single call to intern. */
+    private static final int DRAIN_MAX = 16;
+
     @Override
     public E intern(final E sample) {
+      drainQueue();
       final int hashCode = sample.hashCode();
 
       // TODO(kevinb): stop using the dummy instance; use custom Equivalence?
@@ -123,24 +135,25 @@ public final class Interners {
       }
     }
 
-    private static final FinalizableReferenceQueue frq
-        = new FinalizableReferenceQueue();
+    /** Removes the mappings of some of the collected references. */
+    private void drainQueue() {
+      Reference<? extends E> ref;
+      for (int i = 0; i < DRAIN_MAX && (ref = queue.poll()) != null; i++) {
+        map.remove(ref);
+      }
+    }
 
-    class InternReference extends FinalizableWeakReference<E> {
+    class InternReference extends WeakReference<E> {
       final int hashCode;
 
       InternReference(E key, int hash) {
-        super(key, frq);
+        super(key, queue);
         hashCode = hash;
       }
-      @Override
-      public void finalizeReferent() {
-        map.remove(this);
-      }
       @Override public E get() {
         E referent = super.get();
         if (referent == null) {
-          finalizeReferent();
+          map.remove(this);
         }
         return referent;
       }
@@ -28,6 +28,9 @@ import javax.annotation.Nullable;
  * different entries. Implementations of this interface should avoid performing
  * blocking calls or synchronizing on shared resources.
  *
+ * <p>To also be notified of manual removals and replaced values, along with
+ * the cause of each removal, use a {@link RemovalListener}.
+ *
  * @param <K> the type of keys being evicted
  * @param <V> the type of values being evicted
  * @author Ben Manes
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.GwtIncompatible;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Static methods for reading the {@link SegmentStats} of maps built by {@link
+ * MapMaker} with {@link MapMaker#recordSegmentStats}, and for publishing them
+ * over JMX, and for reading the {@link OffHeapStats} of maps built with {@link
+ * MapMaker#offHeapTier}. The maps of caches are obtained with {@link
+ * Cache#asMap}.
+ *
+ * @since 10
+ */
+@Beta
+@GwtIncompatible("java.lang.management")
+public final class MapInstrumentation {
+  private MapInstrumentation() {}
+
+  private static final SegmentStats EMPTY_STATS =
+      new SegmentStats(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+  /**
+   * Returns a snapshot of the statistics of each segment of {@code map}, in
+   * segment order.
+   *
+   * @throws IllegalArgumentException if {@code map} wasn't built by {@link
+   *     MapMaker} with {@link MapMaker#recordSegmentStats}
+   */
+  public static List<SegmentStats> segmentStats(ConcurrentMap<?, ?> map) {
+    return segmentStats(checkInstrumented(map));
+  }
+
+  /**
+   * Returns a snapshot of the statistics of {@code map}, summed over all of
+   * its segments.
+   *
+   * @throws IllegalArgumentException if {@code map} wasn't built by {@link
+   *     MapMaker} with {@link MapMaker#recordSegmentStats}
+   */
+  public static SegmentStats totalStats(ConcurrentMap<?, ?> map) {
+    return totalStats(checkInstrumented(map));
+  }
+
+  /**
+   * Registers an MBean with the platform MBean server, under {@code name},
+   * which exposes the statistics of {@code map} through the {@link
+   * MapInstrumentationMXBean} interface. See {@link
+   * #registerMBean(ConcurrentMap, MBeanServer, ObjectName)}.
+   *
+   * @throws IllegalArgumentException if {@code map} wasn't built by {@link
+   *     MapMaker} with {@link MapMaker#recordSegmentStats}
+   * @throws JMException if the MBean can't be registered, such as when
+   *     another MBean is already registered under {@code name}
+   */
+  public static void registerMBean(ConcurrentMap<?, ?> map, ObjectName name)
+      throws JMException {
+    registerMBean(map, ManagementFactory.getPlatformMBeanServer(), name);
+  }
+
+  /**
+   * Registers an MBean with {@code server}, under {@code name}, which exposes
+   * the statistics of {@code map} through the {@link
+   * MapInstrumentationMXBean} interface. The MBean refers to the map weakly,
+   * so registering it doesn't keep the map reachable; it should still be
+   * unregistered once the map is discarded.
+   *
+   * @throws IllegalArgumentException if {@code map} wasn't built by {@link
+   *     MapMaker} with {@link MapMaker#recordSegmentStats}
+   * @throws JMException if the MBean can't be registered, such as when
+   *     another MBean is already registered under {@code name}
+   */
+  public static void registerMBean(ConcurrentMap<?, ?> map,
+      MBeanServer server, ObjectName name) throws JMException {
+    // A standard MBean with an explicit interface, since MXBeans need Java 6
+    // and MapInstrumentationMXBean doesn't follow the FooMBean naming pattern
+    StandardMBean mbean = new StandardMBean(
+        new WeakInstrumentation(checkInstrumented(map)),
+        MapInstrumentationMXBean.class);
+    server.registerMBean(mbean, checkNotNull(name));
+  }
+
+  /**
+   * Returns a snapshot of the statistics of the off-heap tier of {@code map},
+   * summed over all of its segments. The counts are monotonically increasing
+   * over the lifetime of the map, while the occupancy reflects its current
+   * contents.
+   *
+   * @throws IllegalArgumentException if {@code map} wasn't built by {@link
+   *     MapMaker} with {@link MapMaker#offHeapTier}
+   */
+  public static OffHeapStats offHeapStats(ConcurrentMap<?, ?> map) {
+    ConcurrentMap<?, ?> delegate = MapSnapshots.unwrap(checkNotNull(map));
+    checkArgument(delegate instanceof CustomConcurrentHashMap
+        && ((CustomConcurrentHashMap<?, ?>) delegate).hasOffHeapTier(),
+        "map has no off-heap tier: %s", map.getClass().getName());
+    return ((CustomConcurrentHashMap<?, ?>) delegate).offHeapStats();
+  }
+
+  static CustomConcurrentHashMap<?, ?> checkInstrumented(
+      ConcurrentMap<?, ?> map) {
+    ConcurrentMap<?, ?> delegate = MapSnapshots.unwrap(checkNotNull(map));
+    checkArgument(delegate instanceof CustomConcurrentHashMap
+        && ((CustomConcurrentHashMap<?, ?>) delegate).recordsSegmentStats(),
+        "map doesn't record segment stats: %s", map.getClass().getName());
+    return (CustomConcurrentHashMap<?, ?>) delegate;
+  }
+
+  static List<SegmentStats> segmentStats(CustomConcurrentHashMap<?, ?> map) {
+    ImmutableList.Builder<SegmentStats> stats = ImmutableList.builder();
+    for (CustomConcurrentHashMap<?, ?>.Segment segment : map.segments) {
+      stats.add(segment.segmentStats.snapshot());
+    }
+    return stats.build();
+  }
+
+  static SegmentStats totalStats(CustomConcurrentHashMap<?, ?> map) {
+    SegmentStats total = EMPTY_STATS;
+    for (CustomConcurrentHashMap<?, ?>.Segment segment : map.segments) {
+      total = total.plus(segment.segmentStats.snapshot());
+    }
+    return total;
+  }
+
+  /** Exposes the statistics of a map, as long as it remains reachable. */
+  static final class WeakInstrumentation implements MapInstrumentationMXBean {
+    final WeakReference<CustomConcurrentHashMap<?, ?>> mapReference;
+
+    WeakInstrumentation(CustomConcurrentHashMap<?, ?> map) {
+      this.mapReference = new WeakReference<CustomConcurrentHashMap<?, ?>>(map);
+    }
+
+    SegmentStats total() {
+      CustomConcurrentHashMap<?, ?> map = mapReference.get();
+      return (map == null) ? EMPTY_STATS : totalStats(map);
+    }
+
+    List<SegmentStats> bySegment() {
+      CustomConcurrentHashMap<?, ?> map = mapReference.get();
+      return (map == null)
+          ? ImmutableList.<SegmentStats>of()
+          : segmentStats(map);
+    }
+
+    @Override public int getSegmentCount() {
+      CustomConcurrentHashMap<?, ?> map = mapReference.get();
+      return (map == null) ? 0 : map.segments.length;
+    }
+
+    @Override public long getLockCount() {
+      return total().lockCount();
+    }
+
+    @Override public long getContendedLockCount() {
+      return total().contendedLockCount();
+    }
+
+    @Override public double getContentionRate() {
+      return total().contentionRate();
+    }
+
+    @Override public long getLockWaitNanos() {
+      return total().lockWaitNanos();
+    }
+
+    @Override public long getLockHoldNanos() {
+      return total().lockHoldNanos();
+    }
+
+    @Override public long getDrainCount() {
+      return total().drainCount();
+    }
+
+    @Override public long getDrainedEntryCount() {
+      return total().drainedEntryCount();
+    }
+
+    @Override public double getAverageDrainSize() {
+      return total().averageDrainSize();
+    }
+
+    @Override public long getExpiredEntryCount() {
+      return total().expiredEntryCount();
+    }
+
+    @Override public long getExpirationNanos() {
+      return total().expirationNanos();
+    }
+
+    @Override public long getCollectedKeyCount() {
+      return total().collectedKeyCount();
+    }
+
+    @Override public long getCollectedValueCount() {
+      return total().collectedValueCount();
+    }
+
+    @Override public long getRehashCount() {
+      return total().rehashCount();
+    }
+
+    @Override public long getRehashNanos() {
+      return total().rehashNanos();
+    }
+
+    @Override public long[] getContendedLockCountBySegment() {
+      List<SegmentStats> stats = bySegment();
+      long[] counts = new long[stats.size()];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = stats.get(i).contendedLockCount();
+      }
+      return counts;
+    }
+
+    @Override public long[] getLockHoldNanosBySegment() {
+      List<SegmentStats> stats = bySegment();
+      long[] nanos = new long[stats.size()];
+      for (int i = 0; i < nanos.length; i++) {
+        nanos[i] = stats.get(i).lockHoldNanos();
+      }
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.collect;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.GwtIncompatible;
+
+/**
+ * The management interface of the MBean registered by {@link
+ * MapInstrumentation#registerMBean}, exposing the {@link SegmentStats} of a
+ * map. Unless stated otherwise, each attribute is summed over all of the
+ * map's segments. Once the map has been garbage collected, every attribute is
+ * zero.
+ *
+ * @since 10
+ */
+@Beta
+@GwtIncompatible("java.lang.management")
+public interface MapInstrumentationMXBean {
+
+  /** Returns the number of segments of the map. */
+  int getSegmentCount();
+
+  /** See {@link SegmentStats#lockCount}. */
+  long getLockCount();
+
+  /** See {@link SegmentStats#contendedLockCount}. */
+  long getContendedLockCount();
+
+  /** See {@link SegmentStats#contentionRate}. */
+  double getContentionRate();
+
+  /** See {@link SegmentStats#lockWaitNanos}. */
+  long getLockWaitNanos();
+
+  /** See {@link SegmentStats#lockHoldNanos}. */
+  long getLockHoldNanos();
+
+  /** See {@link SegmentStats#drainCount}. */
+  long getDrainCount();
+
+  /** See {@link SegmentStats#drainedEntryCount}. */
+  long getDrainedEntryCount();
+
+  /** See {@link SegmentStats#averageDrainSize}. */
+  double getAverageDrainSize();
+
+  /** See {@link SegmentStats#expiredEntryCount}. */
+  long getExpiredEntryCount();
+
+  /** See {@link SegmentStats#expirationNanos}. */
+  long getExpirationNanos();
+
+  /** See {@link SegmentStats#collectedKeyCount}. */
+  long getCollectedKeyCount();
+
+  /** See {@link SegmentStats#collectedValueCount}. */
+  long getCollectedValueCount();
+
+  /** See {@link SegmentStats#rehashCount}. */
+  long getRehashCount();
+
+  /** See {@link SegmentStats#rehashNanos}. */
+  long getRehashNanos();
+
+  /**
+   * Returns the {@linkplain SegmentStats#contendedLockCount contended lock
+   * count} of each segment, which shows whether contention is concentrated
+   * on a few hot segments.
+   */
+  long[] getContendedLockCountBySegment();
+
+  /**
+   * Returns the {@linkplain SegmentStats#lockHoldNanos lock hold time} of
+   * each segment.
+   */
+  long[] getLockHoldNanosBySegment();
+}
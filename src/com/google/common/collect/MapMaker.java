@@ -29,8 +29,13 @@ import com.google.common.base.Equivalence;
 import com.google.common.base.Function;
 import com.google.common.base.Objects;
 import com.google.common.base.Ticker;
+import com.google.common.collect.CustomConcurrentHashMap.SimpleStatsCounter;
 import com.google.common.collect.CustomConcurrentHashMap.Strength;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
@@ -41,8 +46,12 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 /**
  * <p>A {@link ConcurrentMap} builder, providing any combination of these
  * features: {@linkplain SoftReference soft} or {@linkplain WeakReference
@@ -69,7 +78,8 @@ import java.util.concurrent.TimeUnit;
  * The returned map is implemented as a hash table with similar performance
  * characteristics to {@link ConcurrentHashMap}. It supports all optional
  * operations of the {@code ConcurrentMap} interface. It does not permit
- * null keys or values.
+ * null keys or values. Maps which are never evicted or expired can instead
+ * store their mappings in flat arrays, see {@link #compactEntries}.
  *
  * <p><b>Note:</b> by default, the returned map uses equality comparisons
  * (the {@link Object#equals(Object) equals} method) to determine equality
@@ -91,6 +101,12 @@ import java.util.concurrent.TimeUnit;
  * is a snapshot of that entry's state at the time of retrieval; such entries
  * do, however, support {@link java.util.Map.Entry#setValue}.
  *
+ * <p>The memory held by a reclaimed entry is released as the map is used: the
+ * references cleared by the garbage collector are drained from per-segment
+ * queues during later writes and periodic reads, or by scheduled maintenance
+ * if a {@linkplain #maintenanceExecutor maintenance executor} is specified. No
+ * background thread is started for this.
+ *
  * <p>The maps produced by {@code MapMaker} are serializable, and the
  * deserialized maps retain all the configuration properties of the original
  * map. If the map uses soft or weak references, the entries will be
@@ -128,10 +144,40 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
         }
       };
 
-  @SuppressWarnings("unchecked")
-  enum NullListener implements MapEvictionListener {
+  enum NullListener implements RemovalListener<Object, Object> {
+    INSTANCE;
+    @Override public void onRemoval(
+        RemovalNotification<Object, Object> notification) {}
+  }
+
+  /**
+   * Forwards the notifications of evictions to a {@link MapEvictionListener},
+   * which isn't told of manual removals.
+   */
+  static final class EvictionListenerAdapter<K, V>
+      implements RemovalListener<K, V>, Serializable {
+    final MapEvictionListener<K, V> evictionListener;
+
+    EvictionListenerAdapter(MapEvictionListener<K, V> evictionListener) {
+      this.evictionListener = evictionListener;
+    }
+
+    @Override public void onRemoval(RemovalNotification<K, V> notification) {
+      if (notification.wasEvicted()) {
+        evictionListener.onEviction(
+            notification.getKey(), notification.getValue());
+      }
+    }
+
+    private static final long serialVersionUID = 0;
+  }
+
+  /** Weighs every entry as 1, so that weight-based eviction counts entries. */
+  enum OneWeigher implements Weigher<Object, Object> {
     INSTANCE;
-    @Override public void onEviction(Object key, Object value) {}
+    @Override public int weigh(Object key, Object value) {
+      return 1;
+    }
   }
 
   static final int UNSET_INT = -1;
@@ -139,21 +185,31 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
   int initialCapacity = UNSET_INT;
   int concurrencyLevel = UNSET_INT;
   int maximumSize = UNSET_INT;
+  long maximumWeight = UNSET_INT;
 
   Strength keyStrength;
   Strength valueStrength;
 
   long expireAfterWriteNanos = UNSET_INT;
   long expireAfterAccessNanos = UNSET_INT;
+  long refreshNanos = UNSET_INT;
+  long offHeapCapacity = UNSET_INT;
+  long maintenancePeriodNanos = UNSET_INT;
+  int threadLocalCacheSize = UNSET_INT;
+  double memoryPressureOccupancy = UNSET_INT;
+  double memoryPressureRetainedFraction = UNSET_INT;
 
-  // TODO(kevinb): dispense with this after benchmarking
-  boolean useCustomMap;
   boolean useNullMap;
+  boolean admitByFrequency;
+  boolean recordSegmentStats;
+  boolean compactEntries;
 
   Equivalence<Object> keyEquivalence;
   Equivalence<Object> valueEquivalence;
 
   Executor cleanupExecutor;
+  Executor refreshExecutor;
+  ScheduledExecutorService maintenanceExecutor;
   Ticker ticker;
 
   /**
@@ -167,7 +223,6 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
     checkState(keyEquivalence == null,
         "key equivalence was already set to %s", keyEquivalence);
     keyEquivalence = checkNotNull(equivalence);
-    this.useCustomMap = true;
     return this;
   }
 
@@ -180,7 +235,6 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
     checkState(valueEquivalence == null,
         "value equivalence was already set to %s", valueEquivalence);
     this.valueEquivalence = checkNotNull(equivalence);
-    this.useCustomMap = true;
     return this;
   }
 
@@ -236,13 +290,218 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
   public MapMaker maximumSize(int size) {
     checkState(this.maximumSize == UNSET_INT,
         "maximum size was already set to %s", this.maximumSize);
+    checkState(this.maximumWeight == UNSET_INT,
+        "maximum weight was already set to %s", this.maximumWeight);
+    checkState(this.weigher == null,
+        "maximum size can not be combined with weigher");
     checkArgument(size >= 0, "maximum size must not be negative");
     this.maximumSize = size;
-    this.useCustomMap = true;
     this.useNullMap |= (maximumSize == 0);
     return this;
   }
 
+  /**
+   * Specifies the maximum weight of entries the map may contain. Weight is
+   * determined using the {@link Weigher} specified with {@link #weigher}, and
+   * use of this method requires a corresponding call to {@link #weigher} prior
+   * to building the map.
+   *
+   * <p>Each entry's weight is computed once, when the entry is written, and is
+   * retained alongside the entry; eviction never invokes the weigher. As the
+   * total weight of the map grows close to the maximum, the map will evict
+   * entries that are less likely to be used again, exactly as it does for
+   * {@link #maximumSize}. Like the maximum size, the weight budget is divided
+   * evenly among the map's internal segments, and each segment evicts until it
+   * is back under its share of the budget.
+   *
+   * <p>When {@code weight} is zero, elements can be successfully added to the
+   * map, but are evicted immediately.
+   *
+   * <p>Note that weight is only used to determine whether the map is over
+   * capacity; it has no effect on selecting which entry should be evicted next.
+   *
+   * <p>This feature cannot be used in conjunction with {@link #maximumSize}.
+   *
+   * @param weight the maximum total weight of entries the map may contain
+   * @throws IllegalArgumentException if {@code weight} is negative
+   * @throws IllegalStateException if a maximum weight or size was already set
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("To be supported")
+  @Override
+  public MapMaker maximumWeight(long weight) {
+    checkState(this.maximumWeight == UNSET_INT,
+        "maximum weight was already set to %s", this.maximumWeight);
+    checkState(this.maximumSize == UNSET_INT,
+        "maximum size was already set to %s", this.maximumSize);
+    checkArgument(weight >= 0, "maximum weight must not be negative");
+    this.maximumWeight = weight;
+    this.useNullMap |= (maximumWeight == 0);
+    return this;
+  }
+
+  /**
+   * Returns the maximum weight of the map, or {@code UNSET_INT} if the map
+   * isn't bounded. A maximum size is treated as a maximum weight in which every
+   * entry weighs 1.
+   */
+  long getMaximumWeight() {
+    return (maximumSize != UNSET_INT) ? maximumSize : maximumWeight;
+  }
+
+  /**
+   * Specifies that a map bounded by {@link #maximumSize} or {@link
+   * #maximumWeight} should only admit a new entry if it is likely to be used
+   * more often than the entry it would displace. By default such a map retains
+   * the most recently written or read entries, so a single pass over many
+   * entries which are never used again, such as a scan, displaces the whole
+   * working set.
+   *
+   * <p>With this option the map keeps a compact, approximate history of how
+   * frequently each key has recently been read or written. When adding a new
+   * entry pushes the map over its bound, that entry is compared with the least
+   * recently used entry, and whichever of the two has been used less often is
+   * evicted. The history is periodically aged, so that entries which were
+   * popular in the past do not remain resident indefinitely. Reads still
+   * record their accesses without locking; the history is updated when the
+   * buffered reads are applied.
+   *
+   * <p>Note that a newly written entry may consequently be evicted
+   * immediately.
+   *
+   * @throws IllegalStateException if admission by frequency was already
+   *     requested
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("To be supported")
+  @Override
+  public MapMaker admitByFrequency() {
+    checkState(!admitByFrequency, "admission by frequency was already set");
+    this.admitByFrequency = true;
+    return this;
+  }
+
+  boolean getAdmitByFrequency() {
+    return admitByFrequency;
+  }
+
+  /**
+   * Specifies that maps built by this builder should record statistics about
+   * lock contention and routine maintenance in each of their segments: how
+   * long threads wait for and hold segment locks, how many buffered reads are
+   * applied at a time, how many entries expire or are garbage collected, and
+   * how often and for how long segment tables are rehashed. The statistics are
+   * read with {@link MapInstrumentation#segmentStats}, or published as an
+   * MBean with {@link MapInstrumentation#registerMBean}.
+   *
+   * <p>Recording reads the system clock each time a segment lock is acquired
+   * and released, so it is off by default; maps built without it do no extra
+   * work. This setting is not preserved when a map is serialized.
+   *
+   * @throws IllegalStateException if recording was already requested
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("java.lang.management")
+  @Override
+  public MapMaker recordSegmentStats() {
+    checkState(!recordSegmentStats, "recordSegmentStats was already set");
+    this.recordSegmentStats = true;
+    return this;
+  }
+
+  boolean getRecordSegmentStats() {
+    return recordSegmentStats;
+  }
+
+  /**
+   * Specifies that maps built by {@link #makeMap} should store their mappings
+   * in flat arrays instead of allocating an entry object per mapping. Each
+   * segment keeps the hashes, keys and values of its mappings in parallel
+   * arrays and resolves collisions by linear probing. This considerably
+   * reduces the footprint of very large maps, but lookups are slower than in
+   * the default map, since a lookup reads the hash, key and value from three
+   * separate arrays.
+   *
+   * <p>A removed mapping leaves a marker in its slot until the segment next
+   * copies its table, so maps with many removals are not always smaller than
+   * the default. Only maps with strong keys and values, and without eviction,
+   * expiration, refresh, listeners or statistics, can be stored this way.
+   *
+   * @throws IllegalStateException if compact entries were already requested
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("To be supported")
+  @Override
+  public MapMaker compactEntries() {
+    checkState(!compactEntries, "compactEntries was already set");
+    this.compactEntries = true;
+    return this;
+  }
+
+  /**
+   * Specifies that maps built by this builder should shed entries when the
+   * heap runs short of memory, as a gradual alternative to {@link
+   * #softValues}. Soft references tend to be cleared all at once, emptying a
+   * cache just when it is most needed to avoid recomputation; instead, each
+   * time a garbage collection leaves the tenured heap at least {@code
+   * heapOccupancy} full, every segment of the map evicts its least recently
+   * used entries until it holds only {@code retainedFraction} of them. Under
+   * sustained pressure the map keeps shrinking by that factor after each
+   * collection, and stops as soon as occupancy falls below the limit.
+   *
+   * <p>Heap occupancy is observed through the collection usage thresholds of
+   * the platform {@link java.lang.management.MemoryPoolMXBean}s. Note that
+   * this has a side effect on the whole JVM: a pool has a single threshold,
+   * so building such a map changes the threshold at which every listener of
+   * memory notifications in the application is notified. The threshold is
+   * set to the lowest occupancy requested by any live map, but is never
+   * raised above a threshold which was already set. The previous threshold
+   * is restored after all such maps have been garbage collected, once the
+   * next notification arrives. Evicted entries are reported to the
+   * {@linkplain #removalListener removal listener} with {@link
+   * RemovalCause#SIZE}. This setting is not preserved when a map is
+   * serialized.
+   *
+   * @param heapOccupancy the fraction of the maximum tenured heap, after a
+   *     collection, at which the map starts to shrink
+   * @param retainedFraction the fraction of its entries each segment keeps
+   *     each time it shrinks
+   * @throws IllegalArgumentException if {@code heapOccupancy} is not between
+   *     0 and 1 exclusive, or {@code retainedFraction} is not at least 0 and
+   *     less than 1
+   * @throws IllegalStateException if eviction on memory pressure was already
+   *     requested
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("java.lang.management")
+  @Override
+  public MapMaker evictOnMemoryPressure(
+      double heapOccupancy, double retainedFraction) {
+    checkState(memoryPressureOccupancy == UNSET_INT,
+        "evictOnMemoryPressure was already set to %s", memoryPressureOccupancy);
+    checkArgument(heapOccupancy > 0 && heapOccupancy < 1,
+        "heap occupancy must be between 0 and 1: %s", heapOccupancy);
+    checkArgument(retainedFraction >= 0 && retainedFraction < 1,
+        "retained fraction must be at least 0 and less than 1: %s",
+        retainedFraction);
+    this.memoryPressureOccupancy = heapOccupancy;
+    this.memoryPressureRetainedFraction = retainedFraction;
+    return this;
+  }
+
+  double getMemoryPressureOccupancy() {
+    return memoryPressureOccupancy;
+  }
+
+  double getMemoryPressureRetainedFraction() {
+    return memoryPressureRetainedFraction;
+  }
+
   /**
    * Guides the allowed concurrency among update operations. Used as a
    * hint for internal sizing. The table is internally partitioned to try
@@ -324,10 +583,6 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
     checkState(keyStrength == null,
         "Key strength was already set to %s", keyStrength);
     keyStrength = checkNotNull(strength);
-    if (strength != Strength.STRONG) {
-      // STRONG could be used during deserialization.
-      useCustomMap = true;
-    }
     return this;
   }
 
@@ -387,10 +642,6 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
     checkState(valueStrength == null,
         "Value strength was already set to %s", valueStrength);
     valueStrength = checkNotNull(strength);
-    if (strength != Strength.STRONG) {
-      // STRONG could be used during deserialization.
-      useCustomMap = true;
-    }
     return this;
   }
 
@@ -433,7 +684,6 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
     checkExpiration(duration, unit);
     this.expireAfterWriteNanos = unit.toNanos(duration);
     useNullMap |= (duration == 0);
-    useCustomMap = true;
     return this;
   }
 
@@ -444,6 +694,7 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
     checkState(expireAfterAccessNanos == UNSET_INT,
         "expireAfterAccess was already set to %s ns",
         expireAfterAccessNanos);
+    checkState(expiry == null, "expireAfter was already set");
     checkArgument(duration >= 0, "duration cannot be negative: %s %s",
         duration, unit);
   }
@@ -476,7 +727,6 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
     checkExpiration(duration, unit);
     this.expireAfterAccessNanos = unit.toNanos(duration);
     useNullMap |= (duration == 0);
-    useCustomMap = true;
     return this;
   }
 
@@ -485,6 +735,188 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
         ? DEFAULT_EXPIRATION_NANOS : expireAfterAccessNanos;
   }
 
+  /**
+   * Specifies that computing lookups of an entry should asynchronously
+   * recompute its value once a fixed duration has passed since the entry's
+   * creation or the most recent replacement of its value. Only applies to
+   * maps built by {@link #makeCache} or {@link #makeComputingMap}.
+   *
+   * <p>Unlike {@link #expireAfterWrite}, a stale entry is not removed from the
+   * map. The first computing lookup made after the refresh interval has
+   * elapsed submits a recomputation to the {@linkplain #refreshExecutor
+   * refresh executor} and, like every other lookup made while that
+   * recomputation is in progress, immediately returns the old value. The new
+   * value replaces the old one once it has been computed. If the computing
+   * function throws an exception or returns null, the old value is retained,
+   * the failure is logged and recorded in the cache's {@linkplain
+   * Cache#stats statistics}, and a later lookup will trigger another refresh.
+   * A refresh is discarded if the entry is written or removed while it is in
+   * progress.
+   *
+   * <p>This may be combined with {@link #expireAfterWrite} or {@link
+   * #expireAfterAccess}, typically with a refresh interval shorter than the
+   * expiration, so that hot entries are refreshed before they expire while
+   * idle entries are still removed.
+   *
+   * @param duration the length of time after an entry is written that it
+   *     should be considered stale, and thus eligible for refresh
+   * @param unit the unit that {@code duration} is expressed in
+   * @throws IllegalArgumentException if {@code duration} is not positive
+   * @throws IllegalStateException if the refresh interval was already set
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("To be supported")
+  @Override
+  public MapMaker refreshAfterWrite(long duration, TimeUnit unit) {
+    checkState(refreshNanos == UNSET_INT,
+        "refreshAfterWrite was already set to %s ns", refreshNanos);
+    checkArgument(duration > 0, "duration must be positive: %s %s",
+        duration, unit);
+    this.refreshNanos = unit.toNanos(duration);
+    return this;
+  }
+
+  long getRefreshNanos() {
+    return (refreshNanos == UNSET_INT) ? 0 : refreshNanos;
+  }
+
+  /**
+   * Specifies the executor on which refreshes triggered by {@link
+   * #refreshAfterWrite} are performed. By default refreshes are performed by a
+   * pool of daemon threads which is shared by all maps, and created when the
+   * first refresh is submitted. The lookup which triggered a refresh returns
+   * the old value without waiting for it, like every other lookup.
+   *
+   * <p>If the executor rejects a refresh, the rejection is logged and the
+   * lookup which triggered it still returns the old value. The entry remains
+   * stale, so a later lookup submits the refresh again.
+   *
+   * @throws IllegalStateException if the refresh executor was already set
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("java.util.concurrent.Executor")
+  @Override
+  public MapMaker refreshExecutor(Executor executor) {
+    checkState(refreshExecutor == null, "refresh executor was already set");
+    this.refreshExecutor = checkNotNull(executor);
+    return this;
+  }
+
+  Executor getRefreshExecutor() {
+    if (refreshExecutor != null) {
+      return refreshExecutor;
+    }
+    // don't start the default pool for maps which never refresh
+    return (refreshNanos == UNSET_INT)
+        ? DEFAULT_CLEANUP_EXECUTOR : DefaultRefreshExecutor.INSTANCE;
+  }
+
+  /** Holds the default refresh executor, which is created on first use. */
+  @GwtIncompatible("java.util.concurrent.Executors")
+  private static class DefaultRefreshExecutor {
+    static final Executor INSTANCE = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("MapMaker-refresh-%d")
+            .build());
+  }
+
+  /**
+   * Specifies that routine maintenance of maps built by this builder should be
+   * performed by tasks run on {@code executor}, rather than by the threads
+   * which use the maps. Each map schedules a task to run every {@code period},
+   * which expires entries, cleans up entries whose keys or values have been
+   * garbage collected, and notifies the {@linkplain #evictionListener eviction
+   * listener}. This allows entries of idle maps to be removed promptly once
+   * they expire.
+   *
+   * <p>Threads using the map are then left with only the maintenance which
+   * keeps its contents correct: a write still evicts entries to stay within
+   * the {@linkplain #maximumSize maximum size}, and removes entries of its
+   * segment which have expired. Everything else, including delivery of
+   * eviction notifications, is handed to {@code executor}, which is also asked
+   * to run maintenance early when a segment falls behind.
+   *
+   * <p>The scheduled task refers to the map only weakly, and cancels itself
+   * once the map is garbage collected. The executor is not owned by the map;
+   * it may be shared between any number of maps, and shutting it down stops
+   * their background maintenance.
+   *
+   * @param executor the executor on which maintenance is performed
+   * @param period the interval between scheduled maintenance runs
+   * @param unit the unit that {@code period} is expressed in
+   * @throws IllegalArgumentException if {@code period} is not positive
+   * @throws IllegalStateException if the maintenance executor was already set
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("java.util.concurrent.ScheduledExecutorService")
+  @Override
+  public MapMaker maintenanceExecutor(
+      ScheduledExecutorService executor, long period, TimeUnit unit) {
+    checkState(maintenanceExecutor == null,
+        "maintenance executor was already set");
+    checkArgument(period > 0, "period must be positive: %s %s", period, unit);
+    this.maintenanceExecutor = checkNotNull(executor);
+    this.maintenancePeriodNanos = unit.toNanos(period);
+    return this;
+  }
+
+  /**
+   * Specifies that each thread reading a computing map built by this builder
+   * should keep a private cache of up to {@code maximumSize} of the mappings
+   * it read most recently, and answer repeated reads of those keys without
+   * consulting the shared map. This is intended for small sets of very hot
+   * keys, such as configuration lookups, in maps which are rarely written: a
+   * hit in a thread's cache is several times cheaper than a hit in the
+   * computing map, but any write or removal made through the map empties the
+   * cache of every thread. Each key may only be cached in a few of the slots
+   * of a thread's cache, so {@code maximumSize} should be several times the
+   * number of hot keys.
+   *
+   * <p>A thread never observes a value which was replaced or removed by a
+   * write completed before its read began. Reads answered by a thread's cache
+   * are not seen by the shared map. Because cached mappings would outlive
+   * their eviction, their expiration, their refresh or the collection of their
+   * keys or values, this setting can not be combined with {@link
+   * #maximumSize}, {@link #maximumWeight}, {@link #evictOnMemoryPressure},
+   * {@link #offHeapTier}, expiration, {@link #refreshAfterWrite}, or weak or
+   * soft references, and it is only supported by {@link #makeComputingMap}.
+   * The shared map is only a few nanoseconds slower to read than a thread's
+   * cache for maps built by {@link #makeMap}, so they don't support it.
+   *
+   * <p>Each thread's cache keeps the values it holds reachable until the
+   * thread next reads the map, and remains allocated in every thread which
+   * has read the map until the map itself is garbage collected.
+   *
+   * @param maximumSize the maximum number of mappings cached by each thread,
+   *     which is rounded down to a power of two
+   * @throws IllegalArgumentException if {@code maximumSize} is not positive
+   * @throws IllegalStateException if a thread-local cache was already set
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("java.lang.ThreadLocal")
+  @Override
+  public MapMaker threadLocalCache(int maximumSize) {
+    checkState(threadLocalCacheSize == UNSET_INT,
+        "thread-local cache size was already set to %s", threadLocalCacheSize);
+    checkArgument(maximumSize > 0,
+        "thread-local cache size must be positive: %s", maximumSize);
+    this.threadLocalCacheSize = maximumSize;
+    return this;
+  }
+
+  @Nullable ScheduledExecutorService getMaintenanceExecutor() {
+    return maintenanceExecutor;
+  }
+
+  long getMaintenancePeriodNanos() {
+    return maintenancePeriodNanos;
+  }
+
   Executor getCleanupExecutor() {
     return firstNonNull(cleanupExecutor, DEFAULT_CLEANUP_EXECUTOR);
   }
@@ -502,7 +934,9 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
    * maximum size, or discovering that the key or value has been reclaimed by
    * the garbage collector. It will invoke the listener synchronously, during
    * invocations of any of that map's public methods (even read-only methods).
-   * The listener will <i>not</i> be invoked on manual removal.
+   * The listener will <i>not</i> be invoked on manual removal. To be notified
+   * of every removal, along with its cause, use {@link #removalListener}
+   * instead.
    *
    * <p><b>Important note:</b> Instead of returning <em>this</em> as a {@code
    * MapMaker} instance, this method returns {@code GenericMapMaker<K, V>}.
@@ -520,29 +954,261 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
    * listener, you will likely experience a {@link ClassCastException} at an
    * undefined point in the future.
    *
-   * @throws IllegalStateException if an eviction listener was already set
+   * @throws IllegalStateException if an eviction or removal listener was
+   *     already set
    * @since 7
    */
   @Beta
   @GwtIncompatible("To be supported")
+  @Override
   public <K, V> GenericMapMaker<K, V> evictionListener(
-      MapEvictionListener<K, V> listener) {
-    checkState(this.evictionListener == null);
+      MapEvictionListener<? super K, ? super V> listener) {
+    checkState(this.evictionListener == null,
+        "eviction listener was already set");
+    checkState(this.removalListener == null,
+        "evictionListener can not be combined with removalListener");
 
     // safely limiting the kinds of maps this can produce
     @SuppressWarnings("unchecked")
     GenericMapMaker<K, V> me = (GenericMapMaker<K, V>) this;
     me.evictionListener = checkNotNull(listener);
-    useCustomMap = true;
     return me;
   }
 
+  /**
+   * Specifies a listener instance, which all maps built using this {@code
+   * MapMaker} will notify each time an entry is removed from the map by any
+   * means, along with the {@linkplain RemovalCause cause} of the removal.
+   * Replacing the value of an entry counts as the removal of its old value.
+   *
+   * <p>Notifications are queued by the segment of the map from which the
+   * entry was removed, and delivered once the segment's lock is released,
+   * during invocations of that map's public methods or by its {@linkplain
+   * #maintenanceExecutor maintenance executor}. To keep slow listeners from
+   * stalling the threads which use the map, wrap them with {@link
+   * RemovalListeners#asynchronous}, which delivers notifications in batches on
+   * an executor. Entries which the {@linkplain #offHeapTier off-heap tier}
+   * evicts to make room, or which it holds when the map is cleared, are
+   * removed without notification.
+   *
+   * <p><b>Important note:</b> as with {@link #evictionListener}, this method
+   * returns a {@code GenericMapMaker<K, V>} rather than <em>this</em> {@code
+   * MapMaker}, so that maps whose key or value types are incompatible with
+   * the listener cannot be built.
+   *
+   * @throws IllegalStateException if an eviction or removal listener was
+   *     already set
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("To be supported")
+  @Override
+  public <K, V> GenericMapMaker<K, V> removalListener(
+      RemovalListener<? super K, ? super V> listener) {
+    checkState(this.removalListener == null,
+        "removal listener was already set");
+    checkState(this.evictionListener == null,
+        "removalListener can not be combined with evictionListener");
+
+    // safely limiting the kinds of maps this can produce
+    @SuppressWarnings("unchecked")
+    GenericMapMaker<K, V> me = (GenericMapMaker<K, V>) this;
+    me.removalListener = checkNotNull(listener);
+    return me;
+  }
+
+  /**
+   * Specifies the weigher to use in determining the weight of entries. Entry
+   * weight is taken into consideration by {@link #maximumWeight} when
+   * determining which entries to evict, and use of this method requires a
+   * corresponding call to {@link #maximumWeight} prior to building the map.
+   * Weights are measured and recorded when entries are inserted into or
+   * updated in the map, and are thus effectively static during the lifetime of
+   * an entry.
+   *
+   * <p><b>Important note:</b> as with {@link #evictionListener}, this method
+   * returns a {@code GenericMapMaker<K, V>} rather than <em>this</em> {@code
+   * MapMaker}, so that maps whose key or value types are incompatible with the
+   * weigher cannot be built.
+   *
+   * @param weigher the weigher to use in calculating the weight of map entries
+   * @throws IllegalStateException if a weigher or maximum size was already set
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("To be supported")
+  @Override
+  public <K, V> GenericMapMaker<K, V> weigher(
+      Weigher<? super K, ? super V> weigher) {
+    checkState(this.weigher == null, "weigher was already set");
+    checkState(this.maximumSize == UNSET_INT,
+        "weigher can not be combined with maximum size (%s provided)",
+        this.maximumSize);
+
+    // safely limiting the kinds of maps this can produce
+    @SuppressWarnings("unchecked")
+    GenericMapMaker<K, V> me = (GenericMapMaker<K, V>) this;
+    me.weigher = checkNotNull(weigher);
+    return me;
+  }
+
+  @SuppressWarnings("unchecked")
+  <K, V> Weigher<K, V> getWeigher() {
+    return weigher == null
+        ? (Weigher<K, V>) OneWeigher.INSTANCE
+        : (Weigher<K, V>) weigher;
+  }
+
+  /**
+   * Specifies that each entry should be automatically removed from the map
+   * once a duration computed by {@code expiry} has elapsed. The duration is
+   * computed when the entry is created, and recomputed whenever its value is
+   * replaced or read, so that each entry can have its own lifetime; for
+   * example one derived from the value itself. Expired entries are invisible
+   * to reads immediately, and are removed from the map during periodic
+   * maintenance.
+   *
+   * <p><b>Important note:</b> as with {@link #evictionListener}, this method
+   * returns a {@code GenericMapMaker<K, V>} rather than <em>this</em> {@code
+   * MapMaker}, so that maps whose key or value types are incompatible with
+   * {@code expiry} cannot be built.
+   *
+   * @param expiry the expiry to use in calculating the lifetime of entries
+   * @throws IllegalStateException if the time to idle, time to live or expiry
+   *     was already set
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("To be supported")
+  @Override
+  public <K, V> GenericMapMaker<K, V> expireAfter(
+      Expiry<? super K, ? super V> expiry) {
+    checkState(this.expiry == null, "expireAfter was already set");
+    checkState(expireAfterWriteNanos == UNSET_INT,
+        "expireAfter can not be combined with expireAfterWrite");
+    checkState(expireAfterAccessNanos == UNSET_INT,
+        "expireAfter can not be combined with expireAfterAccess");
+
+    // safely limiting the kinds of maps this can produce
+    @SuppressWarnings("unchecked")
+    GenericMapMaker<K, V> me = (GenericMapMaker<K, V>) this;
+    me.expiry = checkNotNull(expiry);
+    return me;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Nullable <K, V> Expiry<K, V> getExpiry() {
+    return (Expiry<K, V>) expiry;
+  }
+
+  /**
+   * Specifies that entries evicted from a map bounded by {@link #maximumSize}
+   * or {@link #maximumWeight} should be moved into a second tier of up to
+   * {@code capacityBytes} of memory outside of the Java heap, rather than
+   * discarded. This lets a map hold far more entries than the heap could
+   * without lengthening garbage collection pauses.
+   *
+   * <p>Evicted entries are serialized into direct {@link java.nio.ByteBuffer
+   * ByteBuffers}, and found again through an index which is also held off the
+   * heap. When a read misses on the heap, the off-heap tier is consulted, and
+   * an entry found there is moved back onto the heap. Writes and removals of a
+   * key likewise see its off-heap entry. The off-heap tier evicts its oldest
+   * entries once it is full. Its capacity is divided evenly between the
+   * map's segments, and its index additionally uses twelve bytes per slot.
+   * Direct memory is released only when the map is garbage collected.
+   *
+   * <p>Only on-heap entries are counted by {@code size()} and seen by
+   * iteration and {@code containsValue}. Entries moving off the heap are
+   * still reported to the {@linkplain #evictionListener eviction listener},
+   * or to the {@linkplain #removalListener removal listener} with cause
+   * {@link RemovalCause#SIZE}.
+   * {@link MapInstrumentation#offHeapStats} reports the off-heap tier's hits
+   * and occupancy separately from {@link Cache#stats}, which treats both
+   * tiers as one.
+   *
+   * <p><b>Important note:</b> as with {@link #evictionListener}, this method
+   * returns a {@code GenericMapMaker<K, V>} rather than <em>this</em> {@code
+   * MapMaker}, so that maps whose key or value types are incompatible with
+   * the serializers cannot be built.
+   *
+   * @param capacityBytes the maximum number of bytes of off-heap memory to use
+   * @param keySerializer converts keys to and from bytes
+   * @param valueSerializer converts values to and from bytes
+   * @throws IllegalArgumentException if {@code capacityBytes} is not positive
+   * @throws IllegalStateException if an off-heap tier was already requested
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("java.nio.ByteBuffer")
+  @Override
+  public <K, V> GenericMapMaker<K, V> offHeapTier(long capacityBytes,
+      OffHeapSerializer<K> keySerializer,
+      OffHeapSerializer<V> valueSerializer) {
+    checkState(offHeapCapacity == UNSET_INT,
+        "off-heap tier was already set to %s bytes", offHeapCapacity);
+    checkArgument(capacityBytes > 0,
+        "capacityBytes must be positive: %s", capacityBytes);
+
+    // safely limiting the kinds of maps this can produce
+    @SuppressWarnings("unchecked")
+    GenericMapMaker<K, V> me = (GenericMapMaker<K, V>) this;
+    me.offHeapKeySerializer = checkNotNull(keySerializer);
+    me.offHeapValueSerializer = checkNotNull(valueSerializer);
+    offHeapCapacity = capacityBytes;
+    return me;
+  }
+
+  long getOffHeapCapacity() {
+    return offHeapCapacity;
+  }
+
+  @SuppressWarnings("unchecked")
+  <K> OffHeapSerializer<K> getOffHeapKeySerializer() {
+    return (OffHeapSerializer<K>) offHeapKeySerializer;
+  }
+
+  @SuppressWarnings("unchecked")
+  <V> OffHeapSerializer<V> getOffHeapValueSerializer() {
+    return (OffHeapSerializer<V>) offHeapValueSerializer;
+  }
+
+  private void checkEvictionSettings() {
+    if (weigher == null) {
+      checkState(maximumWeight == UNSET_INT,
+          "maximumWeight requires weigher");
+    } else {
+      checkState(maximumWeight != UNSET_INT,
+          "weigher requires maximumWeight");
+    }
+    checkState(!admitByFrequency || getMaximumWeight() != UNSET_INT,
+        "admitByFrequency requires maximumSize or maximumWeight");
+    if (offHeapCapacity != UNSET_INT) {
+      checkState(getMaximumWeight() != UNSET_INT,
+          "offHeapTier requires maximumSize or maximumWeight");
+      checkState(getKeyStrength() == Strength.STRONG,
+          "offHeapTier requires strong keys");
+    }
+  }
+
   // TODO(kevinb): should this go in GenericMapMaker to avoid casts?
   @SuppressWarnings("unchecked")
-  <K, V> MapEvictionListener<K, V> getEvictionListener() {
+  <K, V> RemovalListener<K, V> getRemovalListener() {
+    if (removalListener != null) {
+      return (RemovalListener<K, V>) removalListener;
+    }
     return evictionListener == null
-        ? (MapEvictionListener<K, V>) NullListener.INSTANCE
-        : (MapEvictionListener<K, V>) evictionListener;
+        ? (RemovalListener<K, V>) NullListener.INSTANCE
+        : new EvictionListenerAdapter<K, V>(
+            (MapEvictionListener<K, V>) evictionListener);
+  }
+
+  /**
+   * Returns the cause reported for every entry written to a map which is
+   * always empty.
+   */
+  RemovalCause getNullRemovalCause() {
+    return (maximumSize == 0 || maximumWeight == 0)
+        ? RemovalCause.SIZE : RemovalCause.EXPIRED;
   }
 
   /**
@@ -554,30 +1220,77 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
    */
   @Override
   public <K, V> ConcurrentMap<K, V> makeMap() {
-    if (!useCustomMap) {
-      return new ConcurrentHashMap<K, V>(getInitialCapacity(),
-          0.75f, getConcurrencyLevel());
+    checkEvictionSettings();
+    checkState(threadLocalCacheSize == UNSET_INT,
+        "threadLocalCache requires makeComputingMap");
+    checkState(refreshNanos == UNSET_INT,
+        "refreshAfterWrite requires a computing map");
+    if (useNullMap) {
+      return new NullConcurrentMap<K, V>(this);
     }
-    return useNullMap
-        ? new NullConcurrentMap<K, V>(this)
-        : new CustomConcurrentHashMap<K, V>(this);
+    if (compactEntries) {
+      checkState(supportsFlatMap(), "compactEntries requires strong keys and "
+          + "values, without eviction, expiration, listeners or statistics");
+      return new FlatConcurrentHashMap<K, V>(this);
+    }
+    if (supportsFlatMap() && keyEquivalence == null
+        && valueEquivalence == null && !admitByFrequency) {
+      return new ConcurrentHashMap<K, V>(getInitialCapacity(), 0.75f,
+          getConcurrencyLevel());
+    }
+    return startBackgroundTasks(new CustomConcurrentHashMap<K, V>(this));
+  }
+
+  /**
+   * Starts the scheduled maintenance of {@code map} and registers it for
+   * memory pressure notifications. This is only done once the map, including
+   * any subclass, is fully constructed, since both the maintenance executor
+   * and the JMX notification thread may call back into it at any time.
+   */
+  <M extends CustomConcurrentHashMap<?, ?>> M startBackgroundTasks(M map) {
+    if (map.hasScheduledMaintenance()) {
+      CustomConcurrentHashMap.MaintenanceTask.schedule(map);
+    }
+    if (map.evictsOnMemoryPressure()) {
+      MemoryPressureMonitor.register(map, getMemoryPressureOccupancy());
+    }
+    return map;
+  }
+
+  /**
+   * Returns whether maps built with these settings could store mappings in
+   * flat arrays rather than in per-entry objects, which requires that entries
+   * are never reclaimed, evicted, expired or reported to a listener.
+   */
+  boolean supportsFlatMap() {
+    return getKeyStrength() == Strength.STRONG
+        && getValueStrength() == Strength.STRONG
+        && getMaximumWeight() == UNSET_INT
+        && expireAfterWriteNanos == UNSET_INT
+        && expireAfterAccessNanos == UNSET_INT
+        && expiry == null
+        && refreshNanos == UNSET_INT
+        && offHeapCapacity == UNSET_INT
+        && !recordSegmentStats
+        && memoryPressureOccupancy == UNSET_INT
+        && maintenanceExecutor == null
+        && getRemovalListener() == NullListener.INSTANCE;
   }
 
   /**
-   * Builds a caching function, which either returns an already-computed value
-   * for a given key or atomically computes it using the supplied function.
-   * If another thread is currently computing the value for this key, simply
+   * Builds a cache, which either returns an already-computed value for a
+   * given key or atomically computes it using the supplied function. If
+   * another thread is currently computing the value for this key, simply
    * waits for that thread to finish and returns its computed value. Note that
    * the function may be executed concurrently by multiple threads, but only for
    * distinct keys.
    *
-   * <p>The {@code Map} view of the {@code Cache}'s cache is only
-   * updated when function computation completes. In other words, an entry isn't
-   * visible until the value's computation completes. No methods on the {@code
-   * Map} will ever trigger computation.
+   * <p>The {@link Cache#asMap} view of the cache is only updated when function
+   * computation completes. In other words, an entry isn't visible until the
+   * value's computation completes. No methods on the {@code Map} will ever
+   * trigger computation.
    *
-   * <p>{@link Cache#apply} in the returned function implementation may
-   * throw:
+   * <p>{@link Cache#get} in the returned cache implementation may throw:
    *
    * <ul>
    * <li>{@link NullPointerException} if the key is null or the
@@ -588,22 +1301,98 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
    *     wrapped.
    * </ul>
    *
+   * <p>The returned cache records hit, miss, computation and eviction
+   * statistics, available from {@link Cache#stats}. Statistics are accumulated
+   * separately by each internal segment of the cache, so recording them does
+   * not introduce a point of contention shared by all readers.
+   *
    * <p>If {@link Map#put} is called before a computation completes, other
    * threads waiting on the computation will wake up and return the stored
    * value. When the computation completes, its result will be ignored.
    *
    * <p>This method does not alter the state of this {@code MapMaker} instance,
-   * so it can be invoked again to create multiple independent maps.
+   * so it can be invoked again to create multiple independent caches.
    *
    * @param computingFunction the function used to compute new values
    * @return a serializable cache having the requested features
+   * @since 10
+   */
+  @Beta
+  @Override
+  public <K, V> Cache<K, V> makeCache(
+      Function<? super K, ? extends V> computingFunction) {
+    checkState(threadLocalCacheSize == UNSET_INT,
+        "threadLocalCache requires makeComputingMap");
+    return new CacheAdapter<K, V>(
+        this.<K, V>makeComputingCache(computingFunction));
+  }
+
+  /**
+   * Builds a cache which computes absent values in batches. This is equivalent
+   * to {@link #makeCache}, except that {@link Cache#getAll} loads all absent
+   * keys with a single invocation of {@code batchFunction}, which is expected
+   * to be much cheaper per key than loading them one at a time. {@link
+   * Cache#get} invokes {@code batchFunction} with a single key.
+   *
+   * <p>{@code batchFunction} is passed an unmodifiable set of keys, and must
+   * return a map containing a non-null value for each of them. Entries for any
+   * other keys are ignored.
+   *
+   * <p>This method does not alter the state of this {@code MapMaker} instance,
+   * so it can be invoked again to create multiple independent caches.
+   *
+   * @param batchFunction the function used to compute new values
+   * @return a serializable cache having the requested features
+   * @since 10
    */
-  // TODO(kevinb): figure out the Cache interface before making this public
-  <K, V> Cache<K, V> makeCache(
+  @Beta
+  @Override
+  public <K, V> Cache<K, V> makeBatchCache(
+      Function<? super Set<K>, ? extends Map<K, V>> batchFunction) {
+    checkState(threadLocalCacheSize == UNSET_INT,
+        "threadLocalCache requires makeComputingMap");
+    return new CacheAdapter<K, V>(this.<K, V>makeComputingCache(
+        new BatchComputingFunction<K, V>(batchFunction), batchFunction));
+  }
+
+  <K, V> ComputingCache<K, V> makeComputingCache(
       Function<? super K, ? extends V> computingFunction) {
+    return makeComputingCache(computingFunction, null);
+  }
+
+  <K, V> ComputingCache<K, V> makeComputingCache(
+      Function<? super K, ? extends V> computingFunction,
+      @Nullable Function<? super Set<K>, ? extends Map<K, V>> batchFunction) {
+    checkEvictionSettings();
+    checkState(!compactEntries, "compactEntries requires makeMap");
     return useNullMap
         ? new NullComputingConcurrentMap<K, V>(this, computingFunction)
-        : new ComputingConcurrentHashMap<K, V>(this, computingFunction);
+        : startBackgroundTasks(new ComputingConcurrentHashMap<K, V>(
+            this, computingFunction, batchFunction));
+  }
+
+  /** Computes a single value by invoking a batch function with one key. */
+  static final class BatchComputingFunction<K, V>
+      implements Function<K, V>, Serializable {
+    private static final long serialVersionUID = 0;
+
+    final Function<? super Set<K>, ? extends Map<K, V>> batchFunction;
+
+    BatchComputingFunction(
+        Function<? super Set<K>, ? extends Map<K, V>> batchFunction) {
+      this.batchFunction = checkNotNull(batchFunction);
+    }
+
+    @Override
+    public V apply(K key) {
+      Map<K, V> loaded = batchFunction.apply(ImmutableSet.of(key));
+      return (loaded == null) ? null : loaded.get(key);
+    }
+
+    @Override
+    public String toString() {
+      return batchFunction.toString();
+    }
   }
 
   /**
@@ -651,8 +1440,85 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
   @Override
   public <K, V> ConcurrentMap<K, V> makeComputingMap(
       Function<? super K, ? extends V> computingFunction) {
-    Cache<K, V> cache = makeCache(computingFunction);
-    return new ComputingMapAdapter<K, V>(cache);
+    if (threadLocalCacheSize == UNSET_INT) {
+      ComputingCache<K, V> cache = makeComputingCache(computingFunction);
+      return new ComputingMapAdapter<K, V>(cache);
+    }
+    checkState(getKeyStrength() == Strength.STRONG
+        && getValueStrength() == Strength.STRONG,
+        "threadLocalCache requires strong keys and values");
+    checkState(expireAfterWriteNanos == UNSET_INT
+        && expireAfterAccessNanos == UNSET_INT && expiry == null
+        && refreshNanos == UNSET_INT,
+        "threadLocalCache can not be combined with expiration or refresh");
+    // cached mappings would also outlive their eviction
+    checkState(getMaximumWeight() == UNSET_INT
+        && memoryPressureOccupancy == UNSET_INT
+        && offHeapCapacity == UNSET_INT,
+        "threadLocalCache can not be combined with eviction");
+    ComputingCache<K, V> cache = makeComputingCache(computingFunction);
+    return new ThreadLocalCachingMap<K, V>(new ComputingMapAdapter<K, V>(cache),
+        threadLocalCacheSize, getKeyEquivalence());
+  }
+
+  /**
+   * Builds a map that supports on-demand asynchronous computation of values.
+   * {@link Map#get} returns the future for the given key immediately: either
+   * an already-computed future, the future still being computed for it, or
+   * the future just returned by {@code computingFunction}. All lookups of a
+   * key share the one future stored in the map, so a value is only computed
+   * once even when many callers are waiting for it, and no caller ever blocks
+   * waiting for the value itself.
+   *
+   * <p>{@code computingFunction} is expected to return quickly, typically
+   * after starting the computation elsewhere; other lookups of the same key
+   * wait only for it to return. Futures which fail or are cancelled are
+   * removed from the map as soon as they complete, so that the next lookup of
+   * their key invokes {@code computingFunction} again. Futures which are
+   * still pending are subject to eviction and expiration like any other
+   * value.
+   *
+   * <p>{@link Map#get} on the returned map will never return {@code null}. It
+   * may throw:
+   *
+   * <ul>
+   * <li>{@link NullPointerException} if the key is null or the computing
+   *     function returns null
+   * <li>{@link ComputationException} if an exception was thrown by the
+   *     computing function itself, rather than reported through the future
+   * </ul>
+   *
+   * <p>The same type restrictions on the {@code get} key apply as for {@link
+   * #makeComputingMap}. The returned map is serializable if its futures are.
+   *
+   * <p>This method does not alter the state of this {@code MapMaker} instance,
+   * so it can be invoked again to create multiple independent maps.
+   *
+   * @param computingFunction the function used to start computing new values
+   * @return a concurrent map of futures having the requested features
+   * @since 10
+   */
+  @Beta
+  @GwtIncompatible("ListenableFuture")
+  public <K, V> ConcurrentMap<K, ListenableFuture<V>> makeAsyncComputingMap(
+      Function<? super K, ? extends ListenableFuture<V>> computingFunction) {
+    ComputingCache<K, ListenableFuture<V>> cache =
+        makeAsyncComputingCache(computingFunction);
+    return new ComputingMapAdapter<K, ListenableFuture<V>>(cache);
+  }
+
+  @GwtIncompatible("ListenableFuture")
+  <K, V> ComputingCache<K, ListenableFuture<V>> makeAsyncComputingCache(
+      Function<? super K, ? extends ListenableFuture<V>> computingFunction) {
+    checkEvictionSettings();
+    checkState(threadLocalCacheSize == UNSET_INT,
+        "threadLocalCache requires makeComputingMap");
+    checkState(!compactEntries, "compactEntries requires makeMap");
+    return useNullMap
+        ? new NullComputingConcurrentMap<K, ListenableFuture<V>>(
+            this, computingFunction)
+        : startBackgroundTasks(
+            new AsyncComputingConcurrentHashMap<K, V>(this, computingFunction));
   }
 
   /**
@@ -671,12 +1537,31 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
     if (maximumSize != UNSET_INT) {
       s.add("maximumSize", maximumSize);
     }
+    if (maximumWeight != UNSET_INT) {
+      s.add("maximumWeight", maximumWeight);
+    }
+    if (admitByFrequency) {
+      s.addValue("admitByFrequency");
+    }
+    if (recordSegmentStats) {
+      s.addValue("recordSegmentStats");
+    }
+    if (compactEntries) {
+      s.addValue("compactEntries");
+    }
+    if (memoryPressureOccupancy != UNSET_INT) {
+      s.add("evictOnMemoryPressure",
+          memoryPressureOccupancy + "/" + memoryPressureRetainedFraction);
+    }
     if (expireAfterWriteNanos != UNSET_INT) {
       s.add("expireAfterWrite", expireAfterWriteNanos + "ns");
     }
     if (expireAfterAccessNanos != UNSET_INT) {
       s.add("expireAfterAccess", expireAfterAccessNanos + "ns");
     }
+    if (refreshNanos != UNSET_INT) {
+      s.add("refreshAfterWrite", refreshNanos + "ns");
+    }
     if (keyStrength != null) {
       s.add("keyStrength", Ascii.toLowerCase(keyStrength.toString()));
     }
@@ -692,23 +1577,108 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
     if (evictionListener != null) {
       s.addValue("evictionListener");
     }
+    if (removalListener != null) {
+      s.addValue("removalListener");
+    }
+    if (weigher != null) {
+      s.addValue("weigher");
+    }
+    if (expiry != null) {
+      s.addValue("expiry");
+    }
+    if (offHeapCapacity != UNSET_INT) {
+      s.add("offHeapTier", offHeapCapacity + "B");
+    }
     if (cleanupExecutor != null) {
       s.addValue("cleanupExecutor");
     }
+    if (refreshExecutor != null) {
+      s.addValue("refreshExecutor");
+    }
+    if (maintenanceExecutor != null) {
+      s.add("maintenancePeriod", maintenancePeriodNanos + "ns");
+    }
+    if (threadLocalCacheSize != UNSET_INT) {
+      s.add("threadLocalCache", threadLocalCacheSize);
+    }
     return s.toString();
   }
 
   /**
    * A function which caches the result of each application (computation). This
    * interface does not specify the caching semantics, but does expose a {@code
-   * ConcurrentMap} view of cached entries.
+   * ConcurrentMap} view of cached entries. This is the internal form of a
+   * {@link Cache}, which can't be implemented directly by a {@code Map}.
    */
-  interface Cache<K, V> extends Function<K, V> {
+  interface ComputingCache<K, V> extends Function<K, V> {
 
     /**
      * Returns a map view of the cached entries.
      */
     ConcurrentMap<K, V> asMap();
+
+    /**
+     * Returns a snapshot of the statistics recorded by this cache.
+     */
+    CacheStats stats();
+
+    /**
+     * Returns the values of all {@code keys}, computing them if necessary.
+     */
+    ImmutableMap<K, V> getAll(Iterable<? extends K> keys);
+  }
+
+  /**
+   * Exposes a {@link ComputingCache} as a public {@link Cache}.
+   */
+  static class CacheAdapter<K, V> implements Cache<K, V>, Serializable {
+    private static final long serialVersionUID = 0;
+
+    final ComputingCache<K, V> cache;
+
+    CacheAdapter(ComputingCache<K, V> cache) {
+      this.cache = cache;
+    }
+
+    @Override
+    public V get(K key) {
+      return cache.apply(key);
+    }
+
+    @Override
+    public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) {
+      return cache.getAll(keys);
+    }
+
+    @Override
+    public V getIfPresent(Object key) {
+      return cache.asMap().get(key);
+    }
+
+    @Override
+    public void invalidate(Object key) {
+      cache.asMap().remove(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+      cache.asMap().clear();
+    }
+
+    @Override
+    public CacheStats stats() {
+      return cache.stats();
+    }
+
+    @Override
+    public ConcurrentMap<K, V> asMap() {
+      return cache.asMap();
+    }
+
+    @Override
+    public V apply(K key) {
+      return get(key);
+    }
   }
 
   /** A map that is always empty and evicts on insertion. */
@@ -716,10 +1686,17 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
       implements ConcurrentMap<K, V>, Serializable {
     private static final long serialVersionUID = 0;
 
-    final MapEvictionListener<K, V> evictionListener;
+    final RemovalListener<K, V> removalListener;
+    final RemovalCause removalCause;
 
     NullConcurrentMap(MapMaker mapMaker) {
-      evictionListener = mapMaker.getEvictionListener();
+      removalListener = mapMaker.getRemovalListener();
+      removalCause = mapMaker.getNullRemovalCause();
+    }
+
+    void notifyRemoval(K key, V value) {
+      removalListener.onRemoval(
+          new RemovalNotification<K, V>(key, value, removalCause));
     }
 
     @Override
@@ -744,7 +1721,7 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
     public V put(K key, V value) {
       checkNotNull(key);
       checkNotNull(value);
-      evictionListener.onEviction(key, value);
+      notifyRemoval(key, value);
       return null;
     }
 
@@ -789,23 +1766,52 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
 
   /** Computes on retrieval and evicts the result. */
   static final class NullComputingConcurrentMap<K, V>
-      extends NullConcurrentMap<K, V> implements Cache<K, V> {
+      extends NullConcurrentMap<K, V> implements ComputingCache<K, V> {
     private static final long serialVersionUID = 0;
 
     final Function<? super K, ? extends V> computingFunction;
 
+    // statistics aren't preserved across serialization
+    transient Ticker ticker;
+    transient SimpleStatsCounter statsCounter = new SimpleStatsCounter();
+
     NullComputingConcurrentMap(MapMaker mapMaker,
         Function<? super K, ? extends V> computingFunction) {
       super(mapMaker);
       this.computingFunction = checkNotNull(computingFunction);
+      this.ticker = mapMaker.getTicker();
+    }
+
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      ticker = DEFAULT_TICKER;
+      statsCounter = new SimpleStatsCounter();
+    }
+
+    @Override
+    public V get(Object key) {
+      V value = super.get(key);
+      statsCounter.recordMiss();
+      return value;
     }
 
     @Override
     public V apply(K key) {
-      V value = compute(key);
-      checkNotNull(value,
-          computingFunction + " returned null for key " + key + ".");
-      evictionListener.onEviction(key, value);
+      statsCounter.recordMiss();
+      long start = ticker.read();
+      V value;
+      try {
+        value = compute(key);
+        checkNotNull(value,
+            computingFunction + " returned null for key " + key + ".");
+      } catch (RuntimeException e) {
+        statsCounter.recordLoadException(ticker.read() - start);
+        throw e;
+      }
+      statsCounter.recordLoadSuccess(ticker.read() - start);
+      statsCounter.recordEviction();
+      notifyRemoval(key, value);
       return value;
     }
 
@@ -820,10 +1826,27 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
       }
     }
 
+    @Override
+    public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) {
+      // nothing is retained, so there are no concurrent computations to share
+      Map<K, V> result = Maps.newLinkedHashMap();
+      for (K key : keys) {
+        if (!result.containsKey(checkNotNull(key))) {
+          result.put(key, apply(key));
+        }
+      }
+      return ImmutableMap.copyOf(result);
+    }
+
     @Override
     public ConcurrentMap<K, V> asMap() {
       return this;
     }
+
+    @Override
+    public CacheStats stats() {
+      return statsCounter.snapshot();
+    }
   }
 
   /**
@@ -833,9 +1856,9 @@ public final class MapMaker extends GenericMapMaker<Object, Object> {
       implements Serializable {
     private static final long serialVersionUID = 0;
 
-    final Cache<K, V> cache;
+    final ComputingCache<K, V> cache;
 
-    ComputingMapAdapter(Cache<K, V> cache) {
+    ComputingMapAdapter(ComputingCache<K, V> cache) {
       this.cache = cache;
     }
 
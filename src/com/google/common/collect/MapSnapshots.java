@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.GwtIncompatible;
+import com.google.common.base.Throwables;
+import com.google.common.collect.MapMaker.ComputingMapAdapter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Static methods for saving the contents of a concurrent map to a compact
+ * binary snapshot, and for loading them back, so that a process can restart
+ * with warm caches.
+ *
+ * <p>Maps built by {@link MapMaker} are snapshotted one segment at a time,
+ * holding each segment's lock only while its entries are copied, so the map
+ * remains fully usable throughout. For each segment, entries are written
+ * oldest first: those in the {@linkplain MapMaker#offHeapTier off-heap tier},
+ * and then the least recently used entries on the heap. The remaining time
+ * before each entry expires is recorded as well. Loading writes the entries
+ * back in the same order, so a map bounded by size evicts the least recently
+ * used entries first, and each entry expires when it would have in the
+ * original map. Entries which aren't live when their segment is copied, and
+ * writes made concurrently with the snapshot, may or may not be included.
+ *
+ * <p>The snapshot consists of blocks, each holding entries of a single
+ * segment. Loading reads the blocks of different segments in parallel.
+ *
+ * @since 10
+ */
+@Beta
+@GwtIncompatible("java.io")
+public final class MapSnapshots {
+  private MapSnapshots() {}
+
+  /** Identifies the snapshot format ("MSNP"). */
+  static final int MAGIC = 0x4d534e50;
+  static final int VERSION = 1;
+
+  /** Terminates the blocks of a snapshot, in place of a segment index. */
+  static final int END_OF_BLOCKS = -1;
+
+  /** Recorded in place of an entry's remaining time if it doesn't expire. */
+  static final long NO_EXPIRATION = -1;
+
+  /** Entries are written in blocks of about this many bytes. */
+  static final int BLOCK_BYTES = 1 << 20;
+
+  /** The size of a block header: segment index, entry count, byte length. */
+  static final int BLOCK_HEADER_BYTES = 12;
+
+  /**
+   * Writes a snapshot of {@code map} to {@code out}, returning the number of
+   * entries written. The stream is flushed but not closed.
+   *
+   * <p>{@code map} may be any concurrent map, though only maps built by
+   * {@link MapMaker} (including the {@link Cache#asMap} views of caches) have
+   * their recency order and expiration times recorded.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public static <K, V> int write(ConcurrentMap<K, V> map, OutputStream out,
+      OffHeapSerializer<? super K> keySerializer,
+      OffHeapSerializer<? super V> valueSerializer) throws IOException {
+    DataOutputStream data =
+        new DataOutputStream(new BufferedOutputStream(out));
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    BlockWriter<K, V> writer =
+        new BlockWriter<K, V>(data, keySerializer, valueSerializer);
+
+    ConcurrentMap<K, V> delegate = unwrap(map);
+    if (delegate instanceof CustomConcurrentHashMap) {
+      writeSegments((CustomConcurrentHashMap<K, V>) delegate, writer);
+    } else {
+      for (Entry<K, V> entry : map.entrySet()) {
+        writer.add(0, entry.getKey(), entry.getValue(), NO_EXPIRATION);
+      }
+      writer.flush();
+    }
+
+    data.writeInt(END_OF_BLOCKS);
+    data.flush();
+    return writer.count;
+  }
+
+  static <K, V> void writeSegments(CustomConcurrentHashMap<K, V> map,
+      BlockWriter<K, V> writer) throws IOException {
+    List<OffHeapStore.Record<K, V>> records = Lists.newArrayList();
+    for (int i = 0; i < map.segments.length; i++) {
+      CustomConcurrentHashMap<K, V>.Segment segment = map.segments[i];
+      long position = 0;
+      while (position >= 0) {
+        position = segment.snapshotOffHeap(position, records);
+        writeRecords(map, i, records, writer);
+      }
+      segment.snapshotHeap(records);
+      writeRecords(map, i, records, writer);
+      writer.flush();
+    }
+  }
+
+  static <K, V> void writeRecords(CustomConcurrentHashMap<K, V> map,
+      int segmentIndex, List<OffHeapStore.Record<K, V>> records,
+      BlockWriter<K, V> writer) throws IOException {
+    long now = map.ticker.read();
+    for (OffHeapStore.Record<K, V> record : records) {
+      long remainingNanos = map.expires()
+          ? Math.max(record.expirationTime - now, 0)
+          : NO_EXPIRATION;
+      writer.add(segmentIndex, record.key, record.value, remainingNanos);
+    }
+    records.clear();
+  }
+
+  /**
+   * Accumulates entries of one segment at a time, and writes them out as
+   * blocks.
+   */
+  static final class BlockWriter<K, V> {
+    final DataOutputStream out;
+    final OffHeapSerializer<? super K> keySerializer;
+    final OffHeapSerializer<? super V> valueSerializer;
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream block = new DataOutputStream(bytes);
+    int segmentIndex;
+    int blockCount;
+    int count;
+
+    BlockWriter(DataOutputStream out,
+        OffHeapSerializer<? super K> keySerializer,
+        OffHeapSerializer<? super V> valueSerializer) {
+      this.out = out;
+      this.keySerializer = keySerializer;
+      this.valueSerializer = valueSerializer;
+    }
+
+    void add(int segmentIndex, K key, V value, long remainingNanos)
+        throws IOException {
+      if (segmentIndex != this.segmentIndex || bytes.size() >= BLOCK_BYTES) {
+        flush();
+        this.segmentIndex = segmentIndex;
+      }
+      byte[] keyBytes = keySerializer.serialize(key);
+      byte[] valueBytes = valueSerializer.serialize(value);
+      block.writeLong(remainingNanos);
+      block.writeInt(keyBytes.length);
+      block.write(keyBytes);
+      block.writeInt(valueBytes.length);
+      block.write(valueBytes);
+      blockCount++;
+      count++;
+    }
+
+    void flush() throws IOException {
+      if (blockCount == 0) {
+        return;
+      }
+      block.flush();
+      out.writeInt(segmentIndex);
+      out.writeInt(blockCount);
+      out.writeInt(bytes.size());
+      bytes.writeTo(out);
+      bytes.reset();
+      blockCount = 0;
+    }
+  }
+
+  /**
+   * Loads a snapshot written by {@link #write} from {@code file} into {@code
+   * map}, returning the number of entries read. The entries of each segment
+   * of the original map are loaded by a separate task, run by {@code
+   * executor}; this method returns once all of them have completed.
+   *
+   * <p>Entries are written with {@code put}, so they replace any existing
+   * mappings for their keys, and they are subject to {@code map}'s own bounds.
+   * When {@code map} was built by {@link MapMaker} with expiration, each
+   * entry expires after the time it had remaining when the snapshot was
+   * written; entries which had no expiration are treated as new writes.
+   * Entries which had already expired when the snapshot was written are
+   * skipped, and aren't counted.
+   *
+   * @throws IOException if an I/O error occurs, or the file isn't a snapshot
+   */
+  public static <K, V> int read(ConcurrentMap<K, V> map, File file,
+      final OffHeapSerializer<? extends K> keySerializer,
+      final OffHeapSerializer<? extends V> valueSerializer,
+      Executor executor) throws IOException {
+    final ConcurrentMap<K, V> delegate = unwrap(map);
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = raf.getChannel();
+      Map<Integer, List<long[]>> blocksBySegment = scanBlocks(channel, file);
+
+      List<FutureTask<Integer>> tasks = Lists.newArrayList();
+      for (final List<long[]> blocks : blocksBySegment.values()) {
+        FutureTask<Integer> task = new FutureTask<Integer>(
+            new Callable<Integer>() {
+              @Override
+              public Integer call() throws IOException {
+                return readBlocks(delegate, channel, blocks,
+                    keySerializer, valueSerializer);
+              }
+            });
+        tasks.add(task);
+        executor.execute(task);
+      }
+
+      int count = 0;
+      try {
+        for (FutureTask<Integer> task : tasks) {
+          count += getUninterruptibly(task);
+        }
+      } finally {
+        if (map instanceof ThreadLocalCachingMap) {
+          // the entries were written behind the thread-local caches
+          ((ThreadLocalCachingMap<K, V>) map).invalidate();
+        }
+      }
+      return count;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Returns the position, length and entry count of each block, grouped by
+   * the segment it was written from.
+   */
+  static Map<Integer, List<long[]>> scanBlocks(FileChannel channel, File file)
+      throws IOException {
+    long size = channel.size();
+    ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+    header.limit(8);
+    readFully(channel, header, 0);
+    if (header.getInt(0) != MAGIC) {
+      throw new IOException("Not a map snapshot: " + file);
+    }
+    if (header.getInt(4) != VERSION) {
+      throw new IOException("Unsupported map snapshot version "
+          + header.getInt(4) + ": " + file);
+    }
+
+    Map<Integer, List<long[]>> blocksBySegment = Maps.newLinkedHashMap();
+    long position = 8;
+    while (true) {
+      header.clear();
+      header.limit(4);
+      readFully(channel, header, position);
+      int segmentIndex = header.getInt(0);
+      if (segmentIndex == END_OF_BLOCKS) {
+        return blocksBySegment;
+      }
+      header.limit(BLOCK_HEADER_BYTES);
+      readFully(channel, header, position);
+      int entryCount = header.getInt(4);
+      int length = header.getInt(8);
+      position += BLOCK_HEADER_BYTES;
+      if (segmentIndex < 0 || entryCount < 0 || length < 0
+          || length > size - position) {
+        throw new IOException("Corrupt map snapshot: " + file);
+      }
+
+      List<long[]> blocks = blocksBySegment.get(segmentIndex);
+      if (blocks == null) {
+        blocks = Lists.newArrayList();
+        blocksBySegment.put(segmentIndex, blocks);
+      }
+      blocks.add(new long[] {position, length, entryCount});
+      position += length;
+    }
+  }
+
+  /**
+   * Reads the given blocks in order, and writes their entries to {@code map},
+   * returning the number of entries read.
+   */
+  static <K, V> int readBlocks(ConcurrentMap<K, V> map, FileChannel channel,
+      List<long[]> blocks, OffHeapSerializer<? extends K> keySerializer,
+      OffHeapSerializer<? extends V> valueSerializer) throws IOException {
+    int count = 0;
+    for (long[] block : blocks) {
+      ByteBuffer buffer = ByteBuffer.allocate((int) block[1]);
+      readFully(channel, buffer, block[0]);
+      buffer.flip();
+      try {
+        for (int i = 0; i < block[2]; i++) {
+          long remainingNanos = buffer.getLong();
+          if (remainingNanos < 0 && remainingNanos != NO_EXPIRATION) {
+            throw new IOException("Corrupt map snapshot");
+          }
+          K key = keySerializer.deserialize(next(buffer, buffer.getInt()));
+          V value = valueSerializer.deserialize(next(buffer, buffer.getInt()));
+          if (remainingNanos != 0) {
+            // else it had expired when the snapshot was written
+            restore(map, key, value, remainingNanos);
+            count++;
+          }
+        }
+      } catch (BufferUnderflowException e) {
+        IOException exception = new IOException("Corrupt map snapshot");
+        exception.initCause(e);
+        throw exception;
+      }
+    }
+    return count;
+  }
+
+  static <K, V> void restore(
+      ConcurrentMap<K, V> map, K key, V value, long remainingNanos) {
+    if (!(map instanceof CustomConcurrentHashMap)) {
+      map.put(key, value);
+      return;
+    }
+    CustomConcurrentHashMap<K, V> custom = (CustomConcurrentHashMap<K, V>) map;
+    int hash = custom.hash(checkNotNull(key));
+    CustomConcurrentHashMap<K, V>.Segment segment = custom.segmentFor(hash);
+    if (custom.expires() && remainingNanos != NO_EXPIRATION) {
+      segment.restore(key, hash, checkNotNull(value), false,
+          custom.ticker.read() + remainingNanos);
+    } else {
+      segment.put(key, hash, value, false, false);
+    }
+  }
+
+  /**
+   * Returns a read-only view of the next {@code length} bytes of {@code
+   * buffer}, and advances past them.
+   */
+  static ByteBuffer next(ByteBuffer buffer, int length) throws IOException {
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IOException("Corrupt map snapshot");
+    }
+    ByteBuffer view = buffer.asReadOnlyBuffer();
+    view.limit(buffer.position() + length);
+    buffer.position(buffer.position() + length);
+    return view.slice();
+  }
+
+  static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Truncated map snapshot");
+      }
+    }
+  }
+
+  /**
+   * Returns the map which holds the entries of {@code map}, looking through
+   * the wrappers returned by {@link MapMaker#makeComputingMap}, including
+   * one for a {@linkplain MapMaker#threadLocalCache thread-local cache}.
+   */
+  static <K, V> ConcurrentMap<K, V> unwrap(ConcurrentMap<K, V> map) {
+    if (map instanceof ThreadLocalCachingMap) {
+      map = ((ThreadLocalCachingMap<K, V>) map).delegate();
+    }
+    if (map instanceof ComputingMapAdapter) {
+      return ((ComputingMapAdapter<K, V>) map).delegate();
+    }
+    return map;
+  }
+
+  static int getUninterruptibly(FutureTask<Integer> task)
+      throws IOException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause(), IOException.class);
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
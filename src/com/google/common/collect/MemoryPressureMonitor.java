@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Shrinks the maps built with {@link MapMaker#evictOnMemoryPressure} when the
+ * occupancy of the tenured heap, measured just after a garbage collection,
+ * reaches the limit each of them was built with.
+ *
+ * <p>The monitor sets the collection usage threshold of each heap pool which
+ * supports both usage and collection usage thresholds, which in the
+ * collectors shipped with the JDK selects the tenured generation. A pool has
+ * a single threshold, so it is set to the lowest limit requested by any map,
+ * or left at a lower threshold which was already set, and each notification
+ * shrinks only the maps whose own limit was reached. Once all registered
+ * maps have been collected, the threshold each pool had before is restored,
+ * unless something else has changed it in the meantime.
+ * The JVM repeats the notification after every collection which leaves the
+ * pool above its threshold, so maps keep shrinking for as long as the
+ * pressure lasts.
+ *
+ * <p>Maps are held weakly, so registering one doesn't prevent it from being
+ * garbage collected. The thresholds are recomputed whenever a map is
+ * registered and whenever a notification arrives, so they follow the maps
+ * which remain.
+ *
+ */
+final class MemoryPressureMonitor implements NotificationListener {
+  private static final Logger logger =
+      Logger.getLogger(MemoryPressureMonitor.class.getName());
+
+  private static final MemoryPressureMonitor INSTANCE =
+      new MemoryPressureMonitor();
+
+  /** The registered maps, each with the occupancy at which it shrinks. */
+  final ConcurrentMap<CustomConcurrentHashMap<?, ?>, Double> maps =
+      new MapMaker().weakKeys().makeMap();
+
+  /** The pools whose collection usage thresholds are managed. */
+  final List<MemoryPoolMXBean> pools = Lists.newArrayList();
+
+  /**
+   * For each pool, the threshold it had before this monitor changed it, and
+   * the threshold this monitor last left it with; guarded by this.
+   */
+  final long[] originalThresholds;
+  final long[] appliedThresholds;
+
+  private MemoryPressureMonitor() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP
+          && pool.isUsageThresholdSupported()
+          && pool.isCollectionUsageThresholdSupported()) {
+        pools.add(pool);
+      }
+    }
+    originalThresholds = new long[pools.size()];
+    for (int i = 0; i < originalThresholds.length; i++) {
+      originalThresholds[i] = pools.get(i).getCollectionUsageThreshold();
+    }
+    appliedThresholds = originalThresholds.clone();
+    ((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+        .addNotificationListener(this, null, null);
+  }
+
+  /**
+   * Registers {@code map} to be shrunk whenever the tenured heap is at least
+   * {@code occupancy} full after a garbage collection.
+   */
+  static void register(CustomConcurrentHashMap<?, ?> map, double occupancy) {
+    INSTANCE.add(map, occupancy);
+  }
+
+  synchronized void add(CustomConcurrentHashMap<?, ?> map, double occupancy) {
+    maps.put(map, occupancy);
+    updateThresholds();
+  }
+
+  /**
+   * Sets the threshold of each pool to the lowest occupancy requested by a
+   * registered map, unless the pool's original threshold is lower, or
+   * restores the original threshold if no map remains.
+   */
+  synchronized void updateThresholds() {
+    // maps.isEmpty() may still count maps which have been collected
+    boolean registered = false;
+    double lowestOccupancy = 1;
+    for (double occupancy : maps.values()) {
+      registered = true;
+      lowestOccupancy = Math.min(lowestOccupancy, occupancy);
+    }
+    for (int i = 0; i < pools.size(); i++) {
+      MemoryPoolMXBean pool = pools.get(i);
+      long current = pool.getCollectionUsageThreshold();
+      if (current != appliedThresholds[i]) {
+        // changed by someone else, so treat it as theirs from now on
+        originalThresholds[i] = current;
+      }
+      long original = originalThresholds[i];
+      long threshold = original;
+      long max = pool.getUsage().getMax();
+      if (registered && max > 0) {
+        threshold = (long) (max * lowestOccupancy);
+        if (original > 0) {
+          // zero disables the threshold; any other value may be lower
+          threshold = Math.min(threshold, original);
+        }
+      }
+      if (threshold != current) {
+        pool.setCollectionUsageThreshold(threshold);
+      }
+      appliedThresholds[i] = threshold;
+    }
+  }
+
+  @Override
+  public void handleNotification(Notification notification, Object handback) {
+    if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(
+        notification.getType())) {
+      return;
+    }
+    MemoryUsage usage = MemoryNotificationInfo.from(
+        (CompositeData) notification.getUserData()).getUsage();
+    if (usage.getMax() > 0) {
+      onPressure((double) usage.getUsed() / usage.getMax());
+    }
+    // drop the limits of maps which have since been collected
+    updateThresholds();
+  }
+
+  /**
+   * Shrinks every registered map whose occupancy limit has been reached. This
+   * runs on the thread which delivers memory notifications, which is only
+   * occupied for as long as each segment takes to evict its share.
+   */
+  @VisibleForTesting
+  void onPressure(double occupancy) {
+    for (Map.Entry<CustomConcurrentHashMap<?, ?>, Double> entry
+        : maps.entrySet()) {
+      if (occupancy >= entry.getValue()) {
+        try {
+          entry.getKey().shrinkForMemoryPressure();
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING,
+              "Exception thrown while shrinking a map", e);
+        }
+      }
+    }
+  }
+
+  @VisibleForTesting
+  static MemoryPressureMonitor instance() {
+    return INSTANCE;
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.GwtIncompatible;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts the keys or values of map entries to and from bytes, for use by
+ * maps built with {@link MapMaker#offHeapTier}, and for map snapshots written
+ * by {@link MapSnapshots}.
+ *
+ * <p>Keys are found in the off-heap tier by their hash codes, and then
+ * deserialized to be compared with the map's key equivalence, so the
+ * serialized form need not be canonical.
+ *
+ * @param <T> the type of objects being serialized
+ * @since 10
+ */
+@Beta
+@GwtIncompatible("java.nio.ByteBuffer")
+public interface OffHeapSerializer<T> {
+
+  /**
+   * Returns the serialized form of {@code object}.
+   */
+  byte[] serialize(T object);
+
+  /**
+   * Reconstructs an object from the bytes between the position and limit of
+   * {@code bytes}, which were produced by {@link #serialize}. The buffer is a
+   * read-only view of off-heap memory or of a snapshot, and must not be
+   * retained after this method returns.
+   */
+  T deserialize(ByteBuffer bytes);
+}
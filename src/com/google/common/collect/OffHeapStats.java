@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * Statistics about the off-heap tier of a map or cache built with {@link
+ * MapMaker#offHeapTier}, as returned by {@link
+ * MapInstrumentation#offHeapStats}. A cache's {@link CacheStats} count a
+ * lookup served by the off-heap tier as a hit, since no computation was
+ * needed; these statistics show how much of that the off-heap tier served,
+ * and how full it is. Instances of this class are immutable.
+ *
+ * <p>A lookup of the off-heap tier happens whenever a read misses the on-heap
+ * tier. A hit promotes the entry back onto the heap. Entries are written to
+ * the off-heap tier when they're evicted from the heap by size, and are
+ * dropped from it, oldest first, to make room for newer ones.
+ *
+ * @since 10
+ */
+@Beta
+public final class OffHeapStats {
+  private final long hitCount;
+  private final long missCount;
+  private final long writeCount;
+  private final long evictionCount;
+  private final long entryCount;
+  private final long usedBytes;
+  private final long capacityBytes;
+
+  /**
+   * Constructs a new {@code OffHeapStats} instance.
+   */
+  public OffHeapStats(long hitCount, long missCount, long writeCount,
+      long evictionCount, long entryCount, long usedBytes,
+      long capacityBytes) {
+    checkArgument(hitCount >= 0);
+    checkArgument(missCount >= 0);
+    checkArgument(writeCount >= 0);
+    checkArgument(evictionCount >= 0);
+    checkArgument(entryCount >= 0);
+    checkArgument(usedBytes >= 0);
+    checkArgument(capacityBytes >= 0);
+
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.writeCount = writeCount;
+    this.evictionCount = evictionCount;
+    this.entryCount = entryCount;
+    this.usedBytes = usedBytes;
+    this.capacityBytes = capacityBytes;
+  }
+
+  /**
+   * Returns the number of on-heap misses which were then found in the
+   * off-heap tier.
+   */
+  public long hitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of on-heap misses which were not found in the off-heap
+   * tier either.
+   */
+  public long missCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the ratio of off-heap lookups which were hits, or {@code 1.0} when
+   * there have been no lookups.
+   */
+  public double hitRate() {
+    long lookupCount = hitCount + missCount;
+    return (lookupCount == 0) ? 1.0 : (double) hitCount / lookupCount;
+  }
+
+  /**
+   * Returns the number of entries which have been written to the off-heap
+   * tier after being evicted from the heap.
+   */
+  public long writeCount() {
+    return writeCount;
+  }
+
+  /**
+   * Returns the number of entries which have been dropped from the off-heap
+   * tier to make room for newer ones, or which were too large to be written
+   * to it at all.
+   */
+  public long evictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Returns the number of entries currently held in the off-heap tier.
+   */
+  public long entryCount() {
+    return entryCount;
+  }
+
+  /**
+   * Returns the number of off-heap bytes occupied by the entries currently
+   * held in the off-heap tier.
+   */
+  public long usedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * Returns the total number of off-heap bytes reserved for the tier.
+   */
+  public long capacityBytes() {
+    return capacityBytes;
+  }
+
+  /**
+   * Returns a new {@code OffHeapStats} representing the sum of this {@code
+   * OffHeapStats} and {@code other}.
+   */
+  public OffHeapStats plus(OffHeapStats other) {
+    return new OffHeapStats(
+        hitCount + other.hitCount,
+        missCount + other.missCount,
+        writeCount + other.writeCount,
+        evictionCount + other.evictionCount,
+        entryCount + other.entryCount,
+        usedBytes + other.usedBytes,
+        capacityBytes + other.capacityBytes);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(hitCount, missCount, writeCount, evictionCount,
+        entryCount, usedBytes, capacityBytes);
+  }
+
+  @Override
+  public boolean equals(@Nullable Object object) {
+    if (object instanceof OffHeapStats) {
+      OffHeapStats other = (OffHeapStats) object;
+      return hitCount == other.hitCount
+          && missCount == other.missCount
+          && writeCount == other.writeCount
+          && evictionCount == other.evictionCount
+          && entryCount == other.entryCount
+          && usedBytes == other.usedBytes
+          && capacityBytes == other.capacityBytes;
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("hitCount", hitCount)
+        .add("missCount", missCount)
+        .add("writeCount", writeCount)
+        .add("evictionCount", evictionCount)
+        .add("entryCount", entryCount)
+        .add("usedBytes", usedBytes)
+        .add("capacityBytes", capacityBytes)
+        .toString();
+  }
+}
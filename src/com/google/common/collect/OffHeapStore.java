@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.GwtIncompatible;
+import com.google.common.base.Equivalence;
+import com.google.common.base.Ticker;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * A store of serialized map entries held outside of the Java heap, forming the
+ * second tier of a map built with {@link MapMaker#offHeapTier}.
+ *
+ * <p>Entries are appended to a circular log which spans one or more direct
+ * {@link ByteBuffer} slabs. When the log is full, the oldest records are
+ * overwritten, so the tier as a whole behaves as a FIFO cache. Removing an
+ * entry only marks its record dead; the space is reclaimed when the log wraps
+ * around to it. A record never straddles two slabs: if it doesn't fit in the
+ * rest of the current slab, that remainder is skipped.
+ *
+ * <p>Records are found through an open-addressed hash index, which is also
+ * kept in direct buffers, mapping each entry's hash code to its position in
+ * the log. Positions only ever increase, so that the slab and offset of a
+ * position are its quotient and remainder by the slab size. The index is
+ * limited to {@link #MAXIMUM_INDEX_CAPACITY} slots; a store which reaches
+ * half that many entries drops its oldest records, just as when the log is
+ * full.
+ *
+ * <p>This class is not thread-safe; instances are guarded by the lock of the
+ * segment that owns them, except for {@link #isEmpty}.
+ */
+@GwtIncompatible("java.nio.ByteBuffer")
+final class OffHeapStore<K, V> {
+  /** The largest slab allocated, as a direct buffer can't exceed 2 GB. */
+  static final int MAXIMUM_SLAB_SIZE = 1 << 30;
+
+  /*
+   * Each record is laid out as a header of four ints and a long, followed by
+   * the serialized key and then the serialized value. Skipped slab remainders
+   * which are large enough to hold a header begin with a PADDING header.
+   */
+
+  static final int LENGTH_OFFSET = 0;
+  static final int HASH_OFFSET = 4;
+  static final int KEY_LENGTH_OFFSET = 8;
+  static final int STATUS_OFFSET = 12;
+  static final int EXPIRATION_OFFSET = 16;
+  static final int HEADER_SIZE = 24;
+
+  static final int DEAD = 0;
+  static final int LIVE = 1;
+  static final int PADDING = 2;
+
+  /*
+   * Index slots hold a record's position plus one, so that zero marks an
+   * empty slot.
+   */
+
+  static final long EMPTY = 0;
+  static final long TOMBSTONE = -1;
+  static final int MINIMUM_INDEX_CAPACITY = 64;
+
+  /**
+   * The largest index, whose buffer of eight byte positions is as large as
+   * the largest slab.
+   */
+  static final int MAXIMUM_INDEX_CAPACITY = 1 << 27;
+
+  static final OffHeapStats EMPTY_STATS = new OffHeapStats(0, 0, 0, 0, 0, 0, 0);
+
+  /** The number of bytes of the log visited by one call to collect. */
+  static final int COLLECT_BATCH_BYTES = 1 << 20;
+
+  final OffHeapSerializer<K> keySerializer;
+  final OffHeapSerializer<V> valueSerializer;
+  final Equivalence<Object> keyEquivalence;
+
+  /** Reads the current time for expiration, or null if entries don't expire. */
+  @Nullable final Ticker ticker;
+
+  /** The slabs of the log, each allocated on first use. */
+  final ByteBuffer[] slabs;
+  final int slabSize;
+  final long capacity;
+
+  /** The position at which the next record will be written. */
+  long head;
+
+  /** The position of the oldest record which hasn't been overwritten. */
+  long tail;
+
+  LongBuffer indexPositions;
+  IntBuffer indexHashes;
+  int indexMask;
+
+  /** The number of index slots which are not empty, including tombstones. */
+  int indexUsed;
+
+  /** The number of live records; read without the lock by isEmpty. */
+  volatile int entryCount;
+
+  /** The total length of the live records. */
+  long usedBytes;
+
+  long hitCount;
+  long missCount;
+  long writeCount;
+  long evictionCount;
+
+  OffHeapStore(long capacityBytes, OffHeapSerializer<K> keySerializer,
+      OffHeapSerializer<V> valueSerializer,
+      Equivalence<Object> keyEquivalence, @Nullable Ticker ticker) {
+    this.keySerializer = keySerializer;
+    this.valueSerializer = valueSerializer;
+    this.keyEquivalence = keyEquivalence;
+    this.ticker = ticker;
+    slabSize = (int) Math.min(
+        Math.max(capacityBytes, HEADER_SIZE), MAXIMUM_SLAB_SIZE);
+    long slabCount = (capacityBytes + slabSize - 1) / slabSize;
+    slabs = new ByteBuffer[(int) Math.max(slabCount, 1)];
+    capacity = (long) slabs.length * slabSize;
+    initIndex(MINIMUM_INDEX_CAPACITY);
+  }
+
+  /** An entry read back from the store, or copied for a snapshot. */
+  static final class Record<K, V> {
+    final K key;
+    final V value;
+    final long expirationTime;
+
+    Record(K key, V value, long expirationTime) {
+      this.key = key;
+      this.value = value;
+      this.expirationTime = expirationTime;
+    }
+  }
+
+  boolean isEmpty() {
+    return entryCount == 0;
+  }
+
+  /**
+   * Writes an entry which was evicted from the heap, replacing any record
+   * already held for its key. If the log or the index is full, the oldest
+   * records are dropped to make room.
+   */
+  void put(K key, int hash, V value, long expirationTime) {
+    int slot = findSlot(key, hash);
+    if (slot >= 0) {
+      kill(slot);
+    }
+
+    byte[] keyBytes = keySerializer.serialize(key);
+    byte[] valueBytes = valueSerializer.serialize(value);
+    long length = (long) HEADER_SIZE + keyBytes.length + valueBytes.length;
+    if (length > slabSize) {
+      evictionCount++;
+      return;
+    }
+    int recordLength = (int) length;
+
+    int remaining = slabSize - offset(head);
+    if (recordLength > remaining) {
+      // skip to the start of the next slab
+      makeRoom(remaining);
+      if (remaining >= HEADER_SIZE) {
+        ByteBuffer slab = slab(head);
+        int offset = offset(head);
+        slab.putInt(offset + LENGTH_OFFSET, remaining);
+        slab.putInt(offset + STATUS_OFFSET, PADDING);
+      }
+      head += remaining;
+    }
+
+    makeRoom(recordLength);
+    long position = head;
+    ByteBuffer slab = slab(position);
+    int offset = offset(position);
+    slab.putInt(offset + LENGTH_OFFSET, recordLength);
+    slab.putInt(offset + HASH_OFFSET, hash);
+    slab.putInt(offset + KEY_LENGTH_OFFSET, keyBytes.length);
+    slab.putInt(offset + STATUS_OFFSET, LIVE);
+    slab.putLong(offset + EXPIRATION_OFFSET, expirationTime);
+    ByteBuffer out = slab.duplicate();
+    out.position(offset + HEADER_SIZE);
+    out.put(keyBytes);
+    out.put(valueBytes);
+    head += recordLength;
+
+    index(hash, position);
+    entryCount++;
+    usedBytes += recordLength;
+    writeCount++;
+  }
+
+  /**
+   * Removes and returns the entry for {@code key}, or returns null if there is
+   * no live, unexpired record for it.
+   */
+  @Nullable Record<K, V> remove(Object key, int hash) {
+    int slot = findSlot(key, hash);
+    if (slot < 0) {
+      return null;
+    }
+    long position = indexPositions.get(slot) - 1;
+    K storedKey = readKey(position);
+    V value = readValue(position);
+    long expirationTime =
+        slab(position).getLong(offset(position) + EXPIRATION_OFFSET);
+    kill(slot);
+    return new Record<K, V>(storedKey, value, expirationTime);
+  }
+
+  /**
+   * Returns whether there is a live, unexpired record for {@code key}.
+   */
+  boolean containsKey(Object key, int hash) {
+    return findSlot(key, hash) >= 0;
+  }
+
+  /**
+   * Appends the live, unexpired records of the log to {@code into}, oldest
+   * first, starting at {@code position} or the oldest record still held if
+   * that has since been overwritten. Stops after reading about {@link
+   * #COLLECT_BATCH_BYTES}, returning the position to continue from, or -1
+   * if the end of the log was reached.
+   */
+  long collect(long position, List<Record<K, V>> into) {
+    position = Math.max(position, tail);
+    long end = position + COLLECT_BATCH_BYTES;
+    while (position < head) {
+      if (position >= end) {
+        return position;
+      }
+      int offset = offset(position);
+      int remaining = slabSize - offset;
+      if (remaining < HEADER_SIZE) {
+        position += remaining;
+        continue;
+      }
+      ByteBuffer slab = slab(position);
+      if (slab.getInt(offset + STATUS_OFFSET) == LIVE
+          && !isExpired(position)) {
+        into.add(new Record<K, V>(readKey(position), readValue(position),
+            slab.getLong(offset + EXPIRATION_OFFSET)));
+      }
+      position += slab.getInt(offset + LENGTH_OFFSET);
+    }
+    return -1;
+  }
+
+  /** Records a lookup which followed a miss on the heap. */
+  void recordLookup(boolean hit) {
+    if (hit) {
+      hitCount++;
+    } else {
+      missCount++;
+    }
+  }
+
+  /** Drops every record, retaining the slabs already allocated. */
+  void clear() {
+    head = 0;
+    tail = 0;
+    initIndex(MINIMUM_INDEX_CAPACITY);
+    entryCount = 0;
+    usedBytes = 0;
+  }
+
+  OffHeapStats stats() {
+    return new OffHeapStats(hitCount, missCount, writeCount, evictionCount,
+        entryCount, usedBytes, capacity);
+  }
+
+  // log
+
+  ByteBuffer slab(long position) {
+    int i = (int) ((position / slabSize) % slabs.length);
+    ByteBuffer slab = slabs[i];
+    if (slab == null) {
+      slab = slabs[i] = ByteBuffer.allocateDirect(slabSize);
+    }
+    return slab;
+  }
+
+  int offset(long position) {
+    return (int) (position % slabSize);
+  }
+
+  /**
+   * Drops the oldest records until {@code length} more bytes can be written
+   * at the head of the log.
+   */
+  void makeRoom(int length) {
+    while (head + length - tail > capacity) {
+      dropOldest();
+    }
+  }
+
+  /**
+   * Drops the record at the tail of the log, or skips the remainder of a slab
+   * if that is where the tail is.
+   */
+  void dropOldest() {
+    int offset = offset(tail);
+    int remaining = slabSize - offset;
+    if (remaining < HEADER_SIZE) {
+      // a remainder too short for a padding header
+      tail += remaining;
+      return;
+    }
+    ByteBuffer slab = slab(tail);
+    int recordLength = slab.getInt(offset + LENGTH_OFFSET);
+    if (slab.getInt(offset + STATUS_OFFSET) == LIVE) {
+      unindex(slab.getInt(offset + HASH_OFFSET), tail);
+      entryCount--;
+      usedBytes -= recordLength;
+      evictionCount++;
+    }
+    tail += recordLength;
+  }
+
+  K readKey(long position) {
+    ByteBuffer slab = slab(position);
+    int offset = offset(position);
+    int keyLength = slab.getInt(offset + KEY_LENGTH_OFFSET);
+    int start = offset + HEADER_SIZE;
+    return keySerializer.deserialize(view(slab, start, start + keyLength));
+  }
+
+  V readValue(long position) {
+    ByteBuffer slab = slab(position);
+    int offset = offset(position);
+    int start = offset + HEADER_SIZE + slab.getInt(offset + KEY_LENGTH_OFFSET);
+    int end = offset + slab.getInt(offset + LENGTH_OFFSET);
+    return valueSerializer.deserialize(view(slab, start, end));
+  }
+
+  static ByteBuffer view(ByteBuffer slab, int start, int end) {
+    ByteBuffer view = slab.asReadOnlyBuffer();
+    view.limit(end);
+    view.position(start);
+    return view.slice();
+  }
+
+  boolean isExpired(long position) {
+    if (ticker == null) {
+      return false;
+    }
+    long expirationTime =
+        slab(position).getLong(offset(position) + EXPIRATION_OFFSET);
+    // might overflow, as in CustomConcurrentHashMap.isExpired()
+    return ticker.read() - expirationTime > 0;
+  }
+
+  /** Marks the record in {@code slot} dead and removes it from the index. */
+  void kill(int slot) {
+    long position = indexPositions.get(slot) - 1;
+    ByteBuffer slab = slab(position);
+    int offset = offset(position);
+    slab.putInt(offset + STATUS_OFFSET, DEAD);
+    usedBytes -= slab.getInt(offset + LENGTH_OFFSET);
+    entryCount--;
+    indexPositions.put(slot, TOMBSTONE);
+  }
+
+  // index
+
+  void initIndex(int indexCapacity) {
+    long positionBytes = (long) indexCapacity * 8;
+    checkArgument(positionBytes <= MAXIMUM_SLAB_SIZE,
+        "index capacity too large: %s", indexCapacity);
+    indexPositions =
+        ByteBuffer.allocateDirect((int) positionBytes).asLongBuffer();
+    indexHashes =
+        ByteBuffer.allocateDirect((int) (positionBytes / 2)).asIntBuffer();
+    indexMask = indexCapacity - 1;
+    indexUsed = 0;
+  }
+
+  /**
+   * Returns the index slot of the live record for {@code key}, or -1 if there
+   * is none. Expired records which are found are killed along the way.
+   */
+  int findSlot(Object key, int hash) {
+    if (entryCount == 0) {
+      return -1;
+    }
+    for (int i = hash & indexMask; ; i = (i + 1) & indexMask) {
+      long encoded = indexPositions.get(i);
+      if (encoded == EMPTY) {
+        return -1;
+      }
+      if (encoded != TOMBSTONE && indexHashes.get(i) == hash
+          && keyEquivalence.equivalent(key, readKey(encoded - 1))) {
+        if (isExpired(encoded - 1)) {
+          kill(i);
+          return -1;
+        }
+        return i;
+      }
+    }
+  }
+
+  void index(int hash, long position) {
+    if (indexUsed + 1 > (indexMask + 1) / 4 * 3) {
+      // keep even the largest index at most half full after rebuilding it
+      while (entryCount >= MAXIMUM_INDEX_CAPACITY / 2) {
+        dropOldest();
+      }
+      rebuildIndex();
+    }
+    insert(hash, position + 1);
+  }
+
+  void insert(int hash, long encoded) {
+    for (int i = hash & indexMask; ; i = (i + 1) & indexMask) {
+      long current = indexPositions.get(i);
+      if (current == EMPTY || current == TOMBSTONE) {
+        if (current == EMPTY) {
+          indexUsed++;
+        }
+        indexPositions.put(i, encoded);
+        indexHashes.put(i, hash);
+        return;
+      }
+    }
+  }
+
+  void unindex(int hash, long position) {
+    for (int i = hash & indexMask; ; i = (i + 1) & indexMask) {
+      long encoded = indexPositions.get(i);
+      if (encoded == EMPTY) {
+        return;
+      }
+      if (encoded == position + 1) {
+        indexPositions.put(i, TOMBSTONE);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Rehashes the live slots of the index into a table which is at most half
+   * full, discarding tombstones.
+   */
+  void rebuildIndex() {
+    int indexCapacity = MINIMUM_INDEX_CAPACITY;
+    while (indexCapacity < MAXIMUM_INDEX_CAPACITY
+        && indexCapacity / 2 <= entryCount) {
+      indexCapacity <<= 1;
+    }
+    LongBuffer oldPositions = indexPositions;
+    IntBuffer oldHashes = indexHashes;
+    initIndex(indexCapacity);
+    for (int i = 0; i < oldPositions.capacity(); i++) {
+      long encoded = oldPositions.get(i);
+      if (encoded != EMPTY && encoded != TOMBSTONE) {
+        insert(oldHashes.get(i), encoded);
+      }
+    }
+  }
+}
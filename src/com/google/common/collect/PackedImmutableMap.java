@@ -0,0 +1,608 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.GwtCompatible;
+import com.google.common.collect.ImmutableSet.ArrayImmutableSet;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The {@link ImmutableMultimap#asMap} of an immutable multimap, in the layout
+ * of a compressed sparse row matrix. The distinct keys are held in insertion
+ * order in one array, and the values of all keys in a second array, each key's
+ * values following those of the previous key. An array of offsets records
+ * where the values of each key start. Keys are found through an
+ * open-addressed table of indexes into the key array, as in {@link
+ * RegularImmutableMap}.
+ *
+ * <p>The collection of values of a key is not stored, but is created as a
+ * view of its range of the value array each time it is requested. The whole
+ * multimap therefore holds a few arrays, rather than an entry, a collection
+ * and an array for each key.
+ *
+ */
+@GwtCompatible(serializable = true)
+abstract class PackedImmutableMap<K, C extends ImmutableCollection<?>>
+    extends ImmutableMap<K, C> {
+
+  // distinct keys in insertion order
+  private final transient Object[] keyArray;
+  // the values of the key at index i are at offsets[i] until offsets[i + 1]
+  final transient int[] offsets;
+  final transient Object[] valueArray;
+  // one plus the index of the key in each hashed position, or 0 if empty
+  private final transient int[] table;
+  // 'and' with an int to get a table index
+  private final transient int mask;
+  private final transient int keySetHashCode;
+
+  /**
+   * Constructs a map from the filled arrays of {@code packer}, which must hold
+   * at least one key.
+   *
+   * @throws IllegalArgumentException if two keys are equal
+   */
+  PackedImmutableMap(Packer packer) {
+    keyArray = packer.keys();
+    offsets = packer.offsets();
+    valueArray = packer.values();
+
+    int tableSize = chooseTableSize(keyArray.length);
+    table = new int[tableSize];
+    mask = tableSize - 1;
+
+    int keySetHashCodeMutable = 0;
+    for (int keyIndex = 0; keyIndex < keyArray.length; keyIndex++) {
+      Object key = keyArray[keyIndex];
+      int keyHashCode = key.hashCode();
+      keySetHashCodeMutable += keyHashCode;
+      for (int i = Hashing.smear(keyHashCode); true; i++) {
+        int existing = table[i & mask];
+        if (existing == 0) {
+          table[i & mask] = keyIndex + 1;
+          break;
+        }
+        checkArgument(!key.equals(keyArray[existing - 1]),
+            "duplicate key: %s", key);
+      }
+    }
+    keySetHashCode = keySetHashCodeMutable;
+  }
+
+  private static int chooseTableSize(int size) {
+    // least power of 2 that keeps the table at most half full
+    int tableSize = Integer.highestOneBit(Math.max(size - 1, 1)) << 2;
+    checkArgument(tableSize > 0, "table too large: %s", size);
+    return tableSize;
+  }
+
+  /**
+   * Returns a view of the values of the key at {@code index}, which are in
+   * {@link #valueArray} from {@code offsets[index]} until {@code
+   * offsets[index + 1]}.
+   */
+  abstract C collection(int index);
+
+  /** Returns the index of {@code key} in the key array, or -1. */
+  private int indexOf(Object key) {
+    if (key == null) {
+      return -1;
+    }
+    for (int i = Hashing.smear(key.hashCode()); true; i++) {
+      int index = table[i & mask] - 1;
+      if (index < 0 || key.equals(keyArray[index])) {
+        return index;
+      }
+    }
+  }
+
+  @Override public C get(Object key) {
+    int index = indexOf(key);
+    return (index < 0) ? null : collection(index);
+  }
+
+  @Override public boolean containsKey(Object key) {
+    return indexOf(key) >= 0;
+  }
+
+  // only K instances are stored in the key array, by our callers
+  @SuppressWarnings("unchecked")
+  K key(int index) {
+    return (K) keyArray[index];
+  }
+
+  @Override
+  public int size() {
+    return keyArray.length;
+  }
+
+  /** Returns the total number of values of all keys. */
+  int valueCount() {
+    return valueArray.length;
+  }
+
+  @Override public boolean isEmpty() {
+    return false;
+  }
+
+  @Override public boolean containsValue(Object value) {
+    if (value == null) {
+      return false;
+    }
+    for (int i = 0; i < keyArray.length; i++) {
+      if (collection(i).equals(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override boolean isPartialView() {
+    return false;
+  }
+
+  private transient ImmutableSet<Entry<K, C>> entrySet;
+
+  @Override public ImmutableSet<Entry<K, C>> entrySet() {
+    ImmutableSet<Entry<K, C>> es = entrySet;
+    return (es == null) ? (entrySet = new EntrySet<K, C>(this)) : es;
+  }
+
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private static class EntrySet<K, C extends ImmutableCollection<?>>
+      extends ImmutableSet<Entry<K, C>> {
+    final transient PackedImmutableMap<K, C> map;
+
+    EntrySet(PackedImmutableMap<K, C> map) {
+      this.map = map;
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override public boolean isEmpty() {
+      return false;
+    }
+
+    @Override public UnmodifiableIterator<Entry<K, C>> iterator() {
+      return new AbstractIndexedListIterator<Entry<K, C>>(map.size()) {
+        @Override protected Entry<K, C> get(int index) {
+          return Maps.immutableEntry(map.key(index), map.collection(index));
+        }
+      };
+    }
+
+    @Override public boolean contains(Object target) {
+      if (target instanceof Entry) {
+        Entry<?, ?> entry = (Entry<?, ?>) target;
+        C mappedValue = map.get(entry.getKey());
+        return mappedValue != null && mappedValue.equals(entry.getValue());
+      }
+      return false;
+    }
+
+    @Override boolean isPartialView() {
+      return false;
+    }
+  }
+
+  private transient ImmutableSet<K> keySet;
+
+  @Override public ImmutableSet<K> keySet() {
+    ImmutableSet<K> ks = keySet;
+    return (ks == null) ? (keySet = new KeySet<K>(this)) : ks;
+  }
+
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private static class KeySet<K> extends ArrayImmutableSet<K> {
+    final PackedImmutableMap<K, ?> map;
+
+    KeySet(PackedImmutableMap<K, ?> map) {
+      super(map.keyArray);
+      this.map = map;
+    }
+
+    @Override public boolean contains(Object target) {
+      return map.containsKey(target);
+    }
+
+    @Override public int hashCode() {
+      return map.keySetHashCode;
+    }
+
+    @Override boolean isHashCodeFast() {
+      return true;
+    }
+
+    @Override boolean isPartialView() {
+      return true;
+    }
+  }
+
+  private transient ImmutableCollection<C> values;
+
+  @Override public ImmutableCollection<C> values() {
+    ImmutableCollection<C> v = values;
+    return (v == null) ? (values = new Values<C>(this)) : v;
+  }
+
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private static class Values<C extends ImmutableCollection<?>>
+      extends ImmutableCollection<C> {
+    final PackedImmutableMap<?, C> map;
+
+    Values(PackedImmutableMap<?, C> map) {
+      this.map = map;
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override public UnmodifiableIterator<C> iterator() {
+      return new AbstractIndexedListIterator<C>(map.size()) {
+        @Override protected C get(int index) {
+          return map.collection(index);
+        }
+      };
+    }
+
+    @Override public boolean contains(Object target) {
+      return map.containsValue(target);
+    }
+
+    @Override boolean isPartialView() {
+      return true;
+    }
+  }
+
+  /**
+   * Fills the key, offset and value arrays of a map, one key at a time, and
+   * trims them to size once they are filled.
+   */
+  static final class Packer {
+    private Object[] keys;
+    private int[] offsets;
+    private Object[] values;
+    private int keyCount;
+
+    /**
+     * Creates a packer which grows as keys and values are added, for when
+     * their number isn't known in advance or can't be trusted.
+     */
+    Packer() {
+      this(0, 0);
+    }
+
+    Packer(int expectedKeys, int expectedValues) {
+      keys = new Object[expectedKeys];
+      offsets = new int[expectedKeys + 1];
+      values = new Object[expectedValues];
+    }
+
+    /**
+     * Appends {@code key} and {@code keyValues}, which must not be empty, and
+     * returns the index of the key.
+     */
+    int add(Object key, Object[] keyValues) {
+      if (keyCount == keys.length) {
+        int newLength = expandedCapacity(keys.length, keyCount + 1);
+        keys = copyOf(keys, newLength);
+        int[] newOffsets = new int[newLength + 1];
+        System.arraycopy(offsets, 0, newOffsets, 0, offsets.length);
+        offsets = newOffsets;
+      }
+      int start = offsets[keyCount];
+      int end = start + keyValues.length;
+      if (end > values.length) {
+        values = copyOf(values, expandedCapacity(values.length, end));
+      }
+      System.arraycopy(keyValues, 0, values, start, keyValues.length);
+      keys[keyCount] = key;
+      offsets[++keyCount] = end;
+      return keyCount - 1;
+    }
+
+    int keyCount() {
+      return keyCount;
+    }
+
+    int valueCount() {
+      return offsets[keyCount];
+    }
+
+    Object[] keys() {
+      if (keyCount < keys.length) {
+        keys = copyOf(keys, keyCount);
+      }
+      return keys;
+    }
+
+    int[] offsets() {
+      if (keyCount + 1 < offsets.length) {
+        int[] newOffsets = new int[keyCount + 1];
+        System.arraycopy(offsets, 0, newOffsets, 0, keyCount + 1);
+        offsets = newOffsets;
+      }
+      return offsets;
+    }
+
+    Object[] values() {
+      if (valueCount() < values.length) {
+        values = copyOf(values, valueCount());
+      }
+      return values;
+    }
+
+    private static int expandedCapacity(int oldCapacity, int minCapacity) {
+      int newCapacity = oldCapacity + (oldCapacity >> 1) + 1;
+      return (newCapacity < minCapacity) ? minCapacity : newCapacity;
+    }
+
+    // Arrays.copyOf() requires Java 6
+    private static Object[] copyOf(Object[] original, int newLength) {
+      Object[] copy = new Object[newLength];
+      System.arraycopy(original, 0, copy, 0,
+          Math.min(original.length, newLength));
+      return copy;
+    }
+  }
+
+  /**
+   * The map of an {@link ImmutableListMultimap}, whose lists of values are
+   * views of the value array.
+   */
+  static final class ListMap<K, V>
+      extends PackedImmutableMap<K, ImmutableList<V>> {
+    ListMap(Packer packer) {
+      super(packer);
+    }
+
+    /**
+     * Returns a map of the nonempty collections of {@code map}, or {@code
+     * null} if they are all empty. {@code valueCount} is the expected total
+     * number of values.
+     */
+    static <K, V> ListMap<K, V> copyOf(
+        Map<? extends K, ? extends Collection<? extends V>> map,
+        int valueCount) {
+      Packer packer = new Packer(map.size(), valueCount);
+      for (Entry<? extends K, ? extends Collection<? extends V>> entry
+          : map.entrySet()) {
+        Object[] keyValues = entry.getValue().toArray();
+        if (keyValues.length > 0) {
+          for (Object value : keyValues) {
+            checkNotNull(value);
+          }
+          packer.add(checkNotNull(entry.getKey()), keyValues);
+        }
+      }
+      return (packer.keyCount() == 0) ? null : new ListMap<K, V>(packer);
+    }
+
+    @Override ImmutableList<V> collection(int index) {
+      int start = offsets[index];
+      return new RegularImmutableList<V>(
+          valueArray, start, offsets[index + 1] - start);
+    }
+
+    private static final long serialVersionUID = 0;
+  }
+
+  /**
+   * The map of an {@link ImmutableSetMultimap} without a value comparator,
+   * whose sets of values are views of the value array.
+   *
+   * <p>A view finds its elements by scanning them, which is as fast as
+   * hashing for the few values most keys have. The values of keys with more
+   * than {@link #SCAN_LIMIT} values are also indexed by an open-addressed
+   * table of their positions in the value array, through which their views
+   * find elements instead.
+   */
+  static final class SetMap<K, V>
+      extends PackedImmutableMap<K, ImmutableSet<V>> {
+    // the most values a set may have to be found by scanning
+    static final int SCAN_LIMIT = 8;
+
+    // the indexes of the keys with more values, in ascending order
+    private final transient int[] hashedKeys;
+    // the table of the key hashedKeys[h] is in valueTable from
+    // tableOffsets[h] until tableOffsets[h + 1]
+    private final transient int[] tableOffsets;
+    // one plus the position of a value among the values of its key, or 0 if
+    // empty
+    private final transient int[] valueTable;
+
+    /**
+     * Constructs a map from the filled arrays of {@code packer}, in which the
+     * values of each key must be distinct.
+     *
+     * @throws IllegalArgumentException if two keys are equal
+     */
+    SetMap(Packer packer) {
+      super(packer);
+      int hashedCount = 0;
+      long tableLength = 0;
+      for (int i = 0; i < size(); i++) {
+        int keySize = offsets[i + 1] - offsets[i];
+        if (keySize > SCAN_LIMIT) {
+          hashedCount++;
+          tableLength += chooseTableSize(keySize);
+        }
+      }
+      checkArgument(tableLength <= Integer.MAX_VALUE,
+          "value tables too large: %s", tableLength);
+      hashedKeys = new int[hashedCount];
+      tableOffsets = new int[hashedCount + 1];
+      valueTable = new int[(int) tableLength];
+      int hashedIndex = 0;
+      for (int i = 0; i < size(); i++) {
+        int start = offsets[i];
+        int keySize = offsets[i + 1] - start;
+        if (keySize > SCAN_LIMIT) {
+          int tableOffset = tableOffsets[hashedIndex];
+          int tableSize = chooseTableSize(keySize);
+          int tableMask = tableSize - 1;
+          for (int j = 0; j < keySize; j++) {
+            int k = Hashing.smear(valueArray[start + j].hashCode());
+            while (valueTable[tableOffset + (k & tableMask)] != 0) {
+              k++;
+            }
+            valueTable[tableOffset + (k & tableMask)] = j + 1;
+          }
+          hashedKeys[hashedIndex] = i;
+          tableOffsets[++hashedIndex] = tableOffset + tableSize;
+        }
+      }
+    }
+
+    /**
+     * Returns a map of the distinct values of each nonempty collection of
+     * {@code map}, or {@code null} if they are all empty. {@code valueCount}
+     * is the expected total number of values.
+     */
+    static <K, V> SetMap<K, V> copyOf(
+        Map<? extends K, ? extends Collection<? extends V>> map,
+        int valueCount) {
+      Packer packer = new Packer(map.size(), valueCount);
+      for (Entry<? extends K, ? extends Collection<? extends V>> entry
+          : map.entrySet()) {
+        ImmutableSet<V> set = ImmutableSet.copyOf(entry.getValue());
+        if (!set.isEmpty()) {
+          packer.add(checkNotNull(entry.getKey()), set.toArray());
+        }
+      }
+      return (packer.keyCount() == 0) ? null : new SetMap<K, V>(packer);
+    }
+
+    @Override ImmutableSet<V> collection(int index) {
+      int start = offsets[index];
+      int size = offsets[index + 1] - start;
+      if (size > SCAN_LIMIT) {
+        int h = Arrays.binarySearch(hashedKeys, index);
+        return new HashedSliceSet<V>(valueArray, start, size, valueTable,
+            tableOffsets[h], tableOffsets[h + 1] - tableOffsets[h] - 1);
+      }
+      return new SliceSet<V>(valueArray, start, size);
+    }
+
+    private static final long serialVersionUID = 0;
+  }
+
+  /**
+   * A set of the distinct elements of a range of an array, which it finds by
+   * scanning the range.
+   */
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private static class SliceSet<E> extends ImmutableSet<E> {
+    final transient Object[] array;
+    final transient int offset;
+    final transient int size;
+
+    SliceSet(Object[] array, int offset, int size) {
+      this.array = array;
+      this.offset = offset;
+      this.size = size;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override public boolean isEmpty() {
+      return false;
+    }
+
+    @Override public boolean contains(Object target) {
+      if (target == null) {
+        return false;
+      }
+      for (int i = offset; i < offset + size; i++) {
+        if (array[i].equals(target)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // The fake cast to E is safe because the creation methods only allow E's
+    @SuppressWarnings("unchecked")
+    @Override public UnmodifiableIterator<E> iterator() {
+      return (UnmodifiableIterator<E>) Iterators.forArray(array, offset, size);
+    }
+
+    @Override public Object[] toArray() {
+      Object[] newArray = new Object[size];
+      System.arraycopy(array, offset, newArray, 0, size);
+      return newArray;
+    }
+
+    @Override boolean isPartialView() {
+      return true;
+    }
+  }
+
+  /**
+   * A set of the distinct elements of a range of an array, which it finds
+   * through a table of their positions in the range, in a part of a larger
+   * array.
+   */
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private static final class HashedSliceSet<E> extends SliceSet<E> {
+    // one plus the position of an element in the range, or 0 if empty
+    private final transient int[] table;
+    private final transient int tableOffset;
+    // 'and' with an int to get a table index
+    private final transient int mask;
+
+    HashedSliceSet(Object[] array, int offset, int size, int[] table,
+        int tableOffset, int mask) {
+      super(array, offset, size);
+      this.table = table;
+      this.tableOffset = tableOffset;
+      this.mask = mask;
+    }
+
+    @Override public boolean contains(Object target) {
+      if (target == null) {
+        return false;
+      }
+      for (int i = Hashing.smear(target.hashCode()); true; i++) {
+        int position = table[tableOffset + (i & mask)] - 1;
+        if (position < 0) {
+          return false;
+        } else if (array[offset + position].equals(target)) {
+          return true;
+        }
+      }
+    }
+  }
+
+  // This class is never actually serialized directly, but we have to make the
+  // warning go away (and suppressing would suppress for all nested classes too)
+  private static final long serialVersionUID = 0;
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * A minimal perfect hash function over a fixed set of distinct hash codes,
+ * which maps each of them to its own slot of a table with exactly one slot per
+ * hash code. Other hash codes map to arbitrary slots. Collections which use it
+ * build it over the {@linkplain #distinct distinct} hash codes of their
+ * elements, and must still tell apart the elements which share a slot because
+ * they share a hash code.
+ *
+ * <p>The function is built by the hash and displace method. Hash codes are
+ * first split into buckets of a few each. Starting with the largest bucket, a
+ * displacement is searched for which sends every hash code of the bucket to a
+ * free slot, and is recorded for the bucket. Buckets holding a single hash
+ * code are placed last, and record the free slot they take directly. A lookup
+ * therefore reads one displacement and computes the slot from it.
+ */
+@GwtCompatible
+final class PerfectHash {
+  // the average number of hash codes in a bucket
+  private static final int BUCKET_SIZE = 4;
+
+  // the most displacements tried for a single bucket before giving up
+  private static final int MAX_DISPLACEMENTS = 1 << 20;
+
+  /*
+   * For each bucket, the displacement found for its hash codes, or the
+   * complement of the slot taken by its only hash code.
+   */
+  private final int[] displacements;
+  private final int size;
+
+  private PerfectHash(int[] displacements, int size) {
+    this.displacements = displacements;
+    this.size = size;
+  }
+
+  /**
+   * Returns the slot of {@code hashCode}, which is less than the number of
+   * hash codes the function was built for.
+   */
+  int slot(int hashCode) {
+    int displacement =
+        displacements[reduce(mix(hashCode), displacements.length)];
+    return (displacement < 0)
+        ? ~displacement
+        : reduce(mix(hashCode + displacement * 0x9E3779B9), size);
+  }
+
+  /**
+   * Builds a perfect hash function for {@code hashCodes}, which sends the
+   * {@code i}th hash code to a different slot for each {@code i}. Returns
+   * {@code null} if the hash codes aren't all distinct, or if no function
+   * could be found.
+   */
+  @Nullable static PerfectHash build(int[] hashCodes) {
+    int size = hashCodes.length;
+    int bucketCount = (size + BUCKET_SIZE - 1) / BUCKET_SIZE;
+
+    // sort the hash codes by bucket, with a counting sort
+    int[] bucketStarts = new int[bucketCount + 1];
+    for (int hashCode : hashCodes) {
+      bucketStarts[reduce(mix(hashCode), bucketCount) + 1]++;
+    }
+    int largestBucket = 0;
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      largestBucket = Math.max(largestBucket, bucketStarts[bucket + 1]);
+      bucketStarts[bucket + 1] += bucketStarts[bucket];
+    }
+    int[] members = new int[size];
+    int[] filled = new int[bucketCount];
+    for (int hashCode : hashCodes) {
+      int bucket = reduce(mix(hashCode), bucketCount);
+      members[bucketStarts[bucket] + filled[bucket]++] = hashCode;
+    }
+
+    // then order the buckets from largest to smallest
+    int[] sizeStarts = new int[largestBucket + 2];
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      sizeStarts[largestBucket - filled[bucket] + 1]++;
+    }
+    for (int i = 0; i <= largestBucket; i++) {
+      sizeStarts[i + 1] += sizeStarts[i];
+    }
+    int[] bucketOrder = new int[bucketCount];
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      bucketOrder[sizeStarts[largestBucket - filled[bucket]]++] = bucket;
+    }
+
+    int[] displacements = new int[bucketCount];
+    boolean[] taken = new boolean[size];
+    int[] slots = new int[largestBucket];
+    int nextFree = 0;
+    for (int bucket : bucketOrder) {
+      int start = bucketStarts[bucket];
+      int bucketSize = bucketStarts[bucket + 1] - start;
+      if (bucketSize == 0) {
+        break;
+      } else if (bucketSize == 1) {
+        while (taken[nextFree]) {
+          nextFree++;
+        }
+        taken[nextFree] = true;
+        displacements[bucket] = ~nextFree;
+        continue;
+      }
+      for (int i = start + 1; i < start + bucketSize; i++) {
+        for (int j = start; j < i; j++) {
+          if (members[i] == members[j]) {
+            return null;
+          }
+        }
+      }
+      int displacement = findDisplacement(
+          members, start, bucketSize, taken, slots, size);
+      if (displacement == 0) {
+        return null;
+      }
+      for (int i = 0; i < bucketSize; i++) {
+        taken[slots[i]] = true;
+      }
+      displacements[bucket] = displacement;
+    }
+    return new PerfectHash(displacements, size);
+  }
+
+  /**
+   * Returns a displacement which sends each of the {@code bucketSize} hash
+   * codes of {@code members} from {@code start} to a different free slot,
+   * leaving those slots in {@code slots}, or 0 if none was found.
+   */
+  private static int findDisplacement(int[] members, int start,
+      int bucketSize, boolean[] taken, int[] slots, int size) {
+    search:
+    for (int displacement = 1; displacement <= MAX_DISPLACEMENTS;
+        displacement++) {
+      for (int i = 0; i < bucketSize; i++) {
+        int slot = reduce(
+            mix(members[start + i] + displacement * 0x9E3779B9), size);
+        if (taken[slot]) {
+          continue search;
+        }
+        for (int j = 0; j < i; j++) {
+          if (slots[j] == slot) {
+            continue search;
+          }
+        }
+        slots[i] = slot;
+      }
+      return displacement;
+    }
+    return 0;
+  }
+
+  /** Returns the distinct values of {@code hashCodes}, in ascending order. */
+  static int[] distinct(int[] hashCodes) {
+    int[] sorted = hashCodes.clone();
+    Arrays.sort(sorted);
+    int count = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (i == 0 || sorted[i] != sorted[i - 1]) {
+        sorted[count++] = sorted[i];
+      }
+    }
+    if (count == sorted.length) {
+      return sorted;
+    }
+    int[] distinct = new int[count];
+    System.arraycopy(sorted, 0, distinct, 0, count);
+    return distinct;
+  }
+
+  /** The finalization step of MurmurHash3, which mixes all bits of a hash. */
+  private static int mix(int hash) {
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    return hash ^ (hash >>> 16);
+  }
+
+  /** Maps {@code hash} to a value between 0 and {@code n}, exclusive. */
+  private static int reduce(int hash, int n) {
+    return (int) (((hash & 0xFFFFFFFFL) * n) >>> 32);
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtIncompatible;
+import com.google.common.primitives.Ints;
+
+import javax.annotation.Nullable;
+
+/**
+ * Implementation of {@link ImmutableMap} with two or more entries, which finds
+ * keys with a {@link PerfectHash}. Keys and values are stored in the slots
+ * chosen for them by the hash, so a lookup reads a single slot of the key
+ * table and compares a single key, unless several keys share the hash code of
+ * the target. The insertion order is kept separately.
+ *
+ */
+@GwtIncompatible("not needed in emulated source")
+final class PerfectHashImmutableMap<K, V> extends ImmutableMap<K, V> {
+
+  // keys and values in the slots chosen by the hash
+  private final transient Object[] keyTable;
+  private final transient Object[] valueTable;
+  // the position of each entry in the tables, in insertion order
+  private final transient int[] order;
+  private final transient PerfectHash hash;
+  private final transient int keySetHashCode;
+
+  private PerfectHashImmutableMap(Object[] keyTable, Object[] valueTable,
+      int[] order, PerfectHash hash, int keySetHashCode) {
+    this.keyTable = keyTable;
+    this.valueTable = valueTable;
+    this.order = order;
+    this.hash = hash;
+    this.keySetHashCode = keySetHashCode;
+  }
+
+  /**
+   * Returns a map with the entries of {@code map}, which must have two or
+   * more, or {@code null} if no perfect hash could be built for its keys.
+   */
+  @Nullable static <K, V> PerfectHashImmutableMap<K, V> create(
+      ImmutableMap<K, V> map) {
+    int size = map.size();
+    int[] hashCodes = new int[size];
+    int keySetHashCode = 0;
+    int i = 0;
+    for (K key : map.keySet()) {
+      hashCodes[i] = key.hashCode();
+      keySetHashCode += hashCodes[i];
+      i++;
+    }
+    int[] distinct = PerfectHash.distinct(hashCodes);
+    PerfectHash hash = PerfectHash.build(distinct);
+    if (hash == null) {
+      return null;
+    }
+
+    // keys sharing a hash code are placed after the slots of the hash
+    int[] sharers = new int[distinct.length];
+    for (int hashCode : hashCodes) {
+      sharers[hash.slot(hashCode)]++;
+    }
+    int tableSize = distinct.length;
+    for (int count : sharers) {
+      tableSize += (count > 1) ? count : 0;
+    }
+    Object[] keyTable = new Object[tableSize];
+    Object[] valueTable = new Object[tableSize];
+    int[] order = new int[size];
+    int nextShared = distinct.length;
+    i = 0;
+    for (Entry<K, V> entry : map.entrySet()) {
+      int slot = hash.slot(hashCodes[i]);
+      int position = slot;
+      if (sharers[slot] > 1) {
+        position = nextShared++;
+        Collision collision = (Collision) keyTable[slot];
+        keyTable[slot] = (collision == null)
+            ? new Collision(new int[] {position})
+            : new Collision(Ints.concat(
+                collision.positions, new int[] {position}));
+      }
+      keyTable[position] = entry.getKey();
+      valueTable[position] = entry.getValue();
+      order[i++] = position;
+    }
+    return new PerfectHashImmutableMap<K, V>(
+        keyTable, valueTable, order, hash, keySetHashCode);
+  }
+
+  /**
+   * Takes the slot of the keys which share a hash code, and holds the
+   * positions of their entries. It is never equal to a key, so the common path
+   * of {@link #get} is unaffected.
+   */
+  private static final class Collision {
+    final int[] positions;
+
+    Collision(int[] positions) {
+      this.positions = positions;
+    }
+  }
+
+  @Override public V get(Object key) {
+    if (key == null) {
+      return null;
+    }
+    int slot = hash.slot(key.hashCode());
+    Object candidate = keyTable[slot];
+    if (key.equals(candidate)) {
+      return value(slot);
+    } else if (candidate instanceof Collision) {
+      for (int position : ((Collision) candidate).positions) {
+        if (key.equals(keyTable[position])) {
+          return value(position);
+        }
+      }
+    }
+    return null;
+  }
+
+  // only K and V instances are stored at entry positions, by create()
+  @SuppressWarnings("unchecked")
+  K key(int position) {
+    return (K) keyTable[position];
+  }
+
+  @SuppressWarnings("unchecked")
+  V value(int position) {
+    return (V) valueTable[position];
+  }
+
+  @Override
+  public int size() {
+    return order.length;
+  }
+
+  @Override public boolean isEmpty() {
+    return false;
+  }
+
+  @Override public boolean containsValue(Object value) {
+    if (value == null) {
+      return false;
+    }
+    for (Object candidate : valueTable) {
+      if (candidate != null && candidate.equals(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override boolean isPartialView() {
+    return false;
+  }
+
+  private transient ImmutableSet<Entry<K, V>> entrySet;
+
+  @Override public ImmutableSet<Entry<K, V>> entrySet() {
+    ImmutableSet<Entry<K, V>> es = entrySet;
+    return (es == null) ? (entrySet = new EntrySet<K, V>(this)) : es;
+  }
+
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private static class EntrySet<K, V> extends ImmutableSet<Entry<K, V>> {
+    final transient PerfectHashImmutableMap<K, V> map;
+
+    EntrySet(PerfectHashImmutableMap<K, V> map) {
+      this.map = map;
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override public boolean isEmpty() {
+      return false;
+    }
+
+    @Override public UnmodifiableIterator<Entry<K, V>> iterator() {
+      return new AbstractIndexedListIterator<Entry<K, V>>(map.size()) {
+        @Override protected Entry<K, V> get(int index) {
+          int position = map.order[index];
+          return Maps.immutableEntry(map.key(position), map.value(position));
+        }
+      };
+    }
+
+    @Override public boolean contains(Object target) {
+      if (target instanceof Entry) {
+        Entry<?, ?> entry = (Entry<?, ?>) target;
+        V mappedValue = map.get(entry.getKey());
+        return mappedValue != null && mappedValue.equals(entry.getValue());
+      }
+      return false;
+    }
+
+    @Override boolean isPartialView() {
+      return false;
+    }
+  }
+
+  private transient ImmutableSet<K> keySet;
+
+  @Override public ImmutableSet<K> keySet() {
+    ImmutableSet<K> ks = keySet;
+    return (ks == null) ? (keySet = new KeySet<K>(this)) : ks;
+  }
+
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private static class KeySet<K> extends ImmutableSet<K> {
+    final PerfectHashImmutableMap<K, ?> map;
+
+    KeySet(PerfectHashImmutableMap<K, ?> map) {
+      this.map = map;
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override public boolean isEmpty() {
+      return false;
+    }
+
+    @Override public UnmodifiableIterator<K> iterator() {
+      return new AbstractIndexedListIterator<K>(map.size()) {
+        @Override protected K get(int index) {
+          return map.key(map.order[index]);
+        }
+      };
+    }
+
+    @Override public boolean contains(Object target) {
+      return map.containsKey(target);
+    }
+
+    @Override public int hashCode() {
+      return map.keySetHashCode;
+    }
+
+    @Override boolean isHashCodeFast() {
+      return true;
+    }
+
+    @Override boolean isPartialView() {
+      return true;
+    }
+  }
+
+  private transient ImmutableCollection<V> values;
+
+  @Override public ImmutableCollection<V> values() {
+    ImmutableCollection<V> v = values;
+    return (v == null) ? (values = new Values<V>(this)) : v;
+  }
+
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private static class Values<V> extends ImmutableCollection<V> {
+    final PerfectHashImmutableMap<?, V> map;
+
+    Values(PerfectHashImmutableMap<?, V> map) {
+      this.map = map;
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override public UnmodifiableIterator<V> iterator() {
+      return new AbstractIndexedListIterator<V>(map.size()) {
+        @Override protected V get(int index) {
+          return map.value(map.order[index]);
+        }
+      };
+    }
+
+    @Override public boolean contains(Object target) {
+      return map.containsValue(target);
+    }
+
+    @Override boolean isPartialView() {
+      return true;
+    }
+  }
+
+  /**
+   * Serializes the entries like every other ImmutableMap, but deserializes
+   * them with perfectHashCopyOf so the lookup cost is kept.
+   */
+  private static class SerializedForm extends ImmutableMap.SerializedForm {
+    SerializedForm(ImmutableMap<?, ?> map) {
+      super(map);
+    }
+    @Override Object createMap(Builder<Object, Object> builder) {
+      return perfectHashCopyOf((ImmutableMap<?, ?>) super.createMap(builder));
+    }
+    private static final long serialVersionUID = 0;
+  }
+
+  @Override Object writeReplace() {
+    return new SerializedForm(this);
+  }
+
+  // This class is never actually serialized directly, but we have to make the
+  // warning go away (and suppressing would suppress for all nested classes too)
+  private static final long serialVersionUID = 0;
+}
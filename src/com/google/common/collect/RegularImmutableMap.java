@@ -20,14 +20,16 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 import com.google.common.annotations.GwtCompatible;
 import com.google.common.collect.ImmutableSet.ArrayImmutableSet;
-import com.google.common.collect.ImmutableSet.TransformedImmutableSet;
-
-import javax.annotation.Nullable;
-import javax.annotation.concurrent.Immutable;
 
 /**
  * Implementation of {@link ImmutableMap} with two or more entries.
  *
+ * <p>Keys and values are held in insertion order in two parallel arrays, and
+ * found through an open-addressed table of indexes into those arrays, so the
+ * map holds no object per entry. A successful lookup loads one table slot and
+ * then the key and value it points to. {@link Entry} instances are only
+ * created as the entry set is iterated.
+ *
  * @author Jesse Wilson
  * @author Kevin Bourrillion
  * @author Gregory Kick
@@ -35,119 +37,61 @@ import javax.annotation.concurrent.Immutable;
 @GwtCompatible(serializable = true, emulated = true)
 final class RegularImmutableMap<K, V> extends ImmutableMap<K, V> {
 
-  // entries in insertion order
-  private final transient LinkedEntry<K, V>[] entries;
-  // array of linked lists of entries
-  private final transient LinkedEntry<K, V>[] table;
+  // keys and values in insertion order
+  private final transient Object[] keyArray;
+  private final transient Object[] valueArray;
+  // one plus the index of the entry in each hashed position, or 0 if empty
+  private final transient int[] table;
   // 'and' with an int to get a table index
   private final transient int mask;
   private final transient int keySetHashCode;
 
-  // TODO(gak): investigate avoiding the creation of ImmutableEntries since we
-  // re-copy them anyway.
   RegularImmutableMap(Entry<?, ?>... immutableEntries) {
     int size = immutableEntries.length;
-    entries = createEntryArray(size);
+    keyArray = new Object[size];
+    valueArray = new Object[size];
 
     int tableSize = chooseTableSize(size);
-    table = createEntryArray(tableSize);
+    table = new int[tableSize];
     mask = tableSize - 1;
 
     int keySetHashCodeMutable = 0;
     for (int entryIndex = 0; entryIndex < size; entryIndex++) {
-      // each of our 6 callers carefully put only Entry<K, V>s into the array!
-      @SuppressWarnings("unchecked")
-      Entry<K, V> entry = (Entry<K, V>) immutableEntries[entryIndex];
-      K key = entry.getKey();
+      Entry<?, ?> entry = immutableEntries[entryIndex];
+      Object key = entry.getKey();
       int keyHashCode = key.hashCode();
       keySetHashCodeMutable += keyHashCode;
-      int tableIndex = Hashing.smear(keyHashCode) & mask;
-      @Nullable LinkedEntry<K, V> existing = table[tableIndex];
-      // prepend, not append, so the entries can be immutable
-      LinkedEntry<K, V> linkedEntry =
-          newLinkedEntry(key, entry.getValue(), existing);
-      table[tableIndex] = linkedEntry;
-      entries[entryIndex] = linkedEntry;
-      while (existing != null) {
-        checkArgument(!key.equals(existing.getKey()), "duplicate key: %s", key);
-        existing = existing.next();
+      for (int i = Hashing.smear(keyHashCode); true; i++) {
+        int existing = table[i & mask];
+        if (existing == 0) {
+          table[i & mask] = entryIndex + 1;
+          break;
+        }
+        checkArgument(!key.equals(keyArray[existing - 1]),
+            "duplicate key: %s", key);
       }
+      keyArray[entryIndex] = key;
+      valueArray[entryIndex] = entry.getValue();
     }
     keySetHashCode = keySetHashCodeMutable;
   }
 
   private static int chooseTableSize(int size) {
-    // least power of 2 greater than size
-    int tableSize = Integer.highestOneBit(size) << 1;
+    // least power of 2 that keeps the table at most half full
+    int tableSize = Integer.highestOneBit(size - 1) << 2;
     checkArgument(tableSize > 0, "table too large: %s", size);
     return tableSize;
   }
 
-  /**
-   * Creates a {@link LinkedEntry} array to hold parameterized entries. The
-   * result must never be upcast back to LinkedEntry[] (or Object[], etc.), or
-   * allowed to escape the class.
-   */
-  @SuppressWarnings("unchecked") // Safe as long as the javadocs are followed
-  private LinkedEntry<K, V>[] createEntryArray(int size) {
-    return new LinkedEntry[size];
-  }
-
-  private static <K, V> LinkedEntry<K, V> newLinkedEntry(K key, V value,
-      @Nullable LinkedEntry<K, V> next) {
-    return (next == null)
-        ? new TerminalEntry<K, V>(key, value)
-        : new NonTerminalEntry<K, V>(key, value, next);
-  }
-
-  private interface LinkedEntry<K, V> extends Entry<K, V> {
-    /** Returns the next entry in the list or {@code null} if none exists. */
-    @Nullable LinkedEntry<K, V> next();
-  }
-
-  /** {@code LinkedEntry} implementation that has a next value. */
-  @Immutable
-  @SuppressWarnings("serial") // this class is never serialized
-  private static final class NonTerminalEntry<K, V>
-      extends ImmutableEntry<K, V> implements LinkedEntry<K, V> {
-    final LinkedEntry<K, V> next;
-
-    NonTerminalEntry(K key, V value, LinkedEntry<K, V> next) {
-      super(key, value);
-      this.next = next;
-    }
-
-    @Override public LinkedEntry<K, V> next() {
-      return next;
-    }
-  }
-
-  /**
-   * {@code LinkedEntry} implementation that serves as the last entry in the
-   * list.  I.e. no next entry
-   */
-  @Immutable
-  @SuppressWarnings("serial") // this class is never serialized
-  private static final class TerminalEntry<K, V> extends ImmutableEntry<K, V>
-      implements LinkedEntry<K, V> {
-    TerminalEntry(K key, V value) {
-      super(key, value);
-    }
-
-    @Nullable @Override public LinkedEntry<K, V> next() {
-      return null;
-    }
-  }
-
   @Override public V get(Object key) {
     if (key == null) {
       return null;
     }
-    int index = Hashing.smear(key.hashCode()) & mask;
-    for (LinkedEntry<K, V> entry = table[index];
-        entry != null;
-        entry = entry.next()) {
-      K candidateKey = entry.getKey();
+    for (int i = Hashing.smear(key.hashCode()); true; i++) {
+      int index = table[i & mask] - 1;
+      if (index < 0) {
+        return null;
+      }
 
       /*
        * Assume that equals uses the == optimization when appropriate, and that
@@ -155,16 +99,26 @@ final class RegularImmutableMap<K, V> extends ImmutableMap<K, V> {
        * did these things, it would just make things worse for the most
        * performance-conscious users.
        */
-      if (key.equals(candidateKey)) {
-        return entry.getValue();
+      if (key.equals(keyArray[index])) {
+        return value(index);
       }
     }
-    return null;
+  }
+
+  // only K and V instances are stored in the arrays, by our callers
+  @SuppressWarnings("unchecked")
+  K key(int index) {
+    return (K) keyArray[index];
+  }
+
+  @SuppressWarnings("unchecked")
+  V value(int index) {
+    return (V) valueArray[index];
   }
 
   @Override
   public int size() {
-    return entries.length;
+    return keyArray.length;
   }
 
   @Override public boolean isEmpty() {
@@ -175,8 +129,8 @@ final class RegularImmutableMap<K, V> extends ImmutableMap<K, V> {
     if (value == null) {
       return false;
     }
-    for (Entry<K, V> entry : entries) {
-      if (entry.getValue().equals(value)) {
+    for (Object candidate : valueArray) {
+      if (candidate.equals(value)) {
         return true;
       }
     }
@@ -195,14 +149,30 @@ final class RegularImmutableMap<K, V> extends ImmutableMap<K, V> {
   }
 
   @SuppressWarnings("serial") // uses writeReplace(), not default serialization
-  private static class EntrySet<K, V> extends ArrayImmutableSet<Entry<K, V>> {
+  private static class EntrySet<K, V> extends ImmutableSet<Entry<K, V>> {
     final transient RegularImmutableMap<K, V> map;
 
     EntrySet(RegularImmutableMap<K, V> map) {
-      super(map.entries);
       this.map = map;
     }
 
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override public boolean isEmpty() {
+      return false;
+    }
+
+    @Override public UnmodifiableIterator<Entry<K, V>> iterator() {
+      return new AbstractIndexedListIterator<Entry<K, V>>(map.size()) {
+        @Override protected Entry<K, V> get(int index) {
+          return Maps.immutableEntry(map.key(index), map.value(index));
+        }
+      };
+    }
+
     @Override public boolean contains(Object target) {
       if (target instanceof Entry) {
         Entry<?, ?> entry = (Entry<?, ?>) target;
@@ -211,6 +181,10 @@ final class RegularImmutableMap<K, V> extends ImmutableMap<K, V> {
       }
       return false;
     }
+
+    @Override boolean isPartialView() {
+      return false;
+    }
   }
 
   private transient ImmutableSet<K> keySet;
@@ -221,23 +195,26 @@ final class RegularImmutableMap<K, V> extends ImmutableMap<K, V> {
   }
 
   @SuppressWarnings("serial") // uses writeReplace(), not default serialization
-  private static class KeySet<K, V>
-      extends TransformedImmutableSet<Entry<K, V>, K> {
+  private static class KeySet<K, V> extends ArrayImmutableSet<K> {
     final RegularImmutableMap<K, V> map;
 
     KeySet(RegularImmutableMap<K, V> map) {
-      super(map.entries, map.keySetHashCode);
+      super(map.keyArray);
       this.map = map;
     }
 
-    @Override K transform(Entry<K, V> element) {
-      return element.getKey();
-    }
-
     @Override public boolean contains(Object target) {
       return map.containsKey(target);
     }
 
+    @Override public int hashCode() {
+      return map.keySetHashCode;
+    }
+
+    @Override boolean isHashCodeFast() {
+      return true;
+    }
+
     @Override boolean isPartialView() {
       return true;
     }
@@ -260,13 +237,13 @@ final class RegularImmutableMap<K, V> extends ImmutableMap<K, V> {
 
     @Override
     public int size() {
-      return map.entries.length;
+      return map.size();
     }
 
     @Override public UnmodifiableIterator<V> iterator() {
-      return new AbstractIndexedListIterator<V>(map.entries.length) {
+      return new AbstractIndexedListIterator<V>(map.size()) {
         @Override protected V get(int index) {
-          return map.entries[index].getValue();
+          return map.value(index);
         }
       };
     }
@@ -283,7 +260,12 @@ final class RegularImmutableMap<K, V> extends ImmutableMap<K, V> {
   @Override public String toString() {
     StringBuilder result
         = Collections2.newStringBuilderForCollection(size()).append('{');
-    Collections2.STANDARD_JOINER.appendTo(result, entries);
+    for (int i = 0; i < keyArray.length; i++) {
+      if (i > 0) {
+        result.append(", ");
+      }
+      result.append(keyArray[i]).append('=').append(valueArray[i]);
+    }
     return result.append('}').toString();
   }
 
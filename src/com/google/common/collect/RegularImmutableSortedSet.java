@@ -33,6 +33,10 @@ import javax.annotation.Nullable;
  * An immutable sorted set with one or more elements. TODO(jlevy): Consider
  * separate class for a single-element sorted set.
  *
+ * <p>Large sets of {@code Long} or {@code Integer} elements in their natural
+ * order are searched through a {@link SortedListIndex}, which is built by
+ * the first search, and shared with its large subsets.
+ *
  * @author Jared Levy
  * @author Louis Wasserman
  */
@@ -42,10 +46,24 @@ final class RegularImmutableSortedSet<E> extends ImmutableSortedSet<E> {
 
   private transient final ImmutableList<E> elements;
 
+  // an index of a list whose elements from indexOffset on are our elements
+  @Nullable private transient final SortedListIndex index;
+  private transient final int indexOffset;
+
   RegularImmutableSortedSet(
       ImmutableList<E> elements, Comparator<? super E> comparator) {
+    this(elements, comparator, null, 0);
+  }
+
+  RegularImmutableSortedSet(ImmutableList<E> elements,
+      Comparator<? super E> comparator, @Nullable SortedListIndex index,
+      int indexOffset) {
     super(comparator);
     this.elements = elements;
+    // only checks eligibility; the first search lays out the samples
+    this.index = (index == null)
+        ? SortedListIndex.create(elements, comparator) : index;
+    this.indexOffset = indexOffset;
     checkArgument(!elements.isEmpty());
   }
 
@@ -129,7 +147,10 @@ final class RegularImmutableSortedSet<E> extends ImmutableSortedSet<E> {
     @SuppressWarnings("unchecked")
     Comparator<Object> unsafeComparator = (Comparator<Object>) comparator;
 
-    return Collections.binarySearch(elements, key, unsafeComparator);
+    return (index == null)
+        ? Collections.binarySearch(elements, key, unsafeComparator)
+        : index.search(
+            key, unsafeComparator, indexOffset, indexOffset + size());
   }
 
   @Override boolean isPartialView() {
@@ -209,8 +230,12 @@ final class RegularImmutableSortedSet<E> extends ImmutableSortedSet<E> {
 
   private ImmutableSortedSet<E> createSubset(int newFromIndex, int newToIndex) {
     if (newFromIndex < newToIndex) {
+      // a small subset is searched faster directly
+      boolean large = newToIndex - newFromIndex >= SortedListIndex.MIN_SIZE;
+      SortedListIndex subsetIndex = large ? index : null;
       return new RegularImmutableSortedSet<E>(
-          elements.subList(newFromIndex, newToIndex), comparator);
+          elements.subList(newFromIndex, newToIndex), comparator,
+          subsetIndex, (subsetIndex == null) ? 0 : indexOffset + newFromIndex);
     } else {
       return emptySet(comparator);
     }
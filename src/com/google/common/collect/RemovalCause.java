@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2010 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.collect;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * The reason why an entry was removed from a map built by {@link MapMaker}.
+ *
+ * @since 10
+ */
+@Beta
+public enum RemovalCause {
+  /**
+   * The entry was manually removed, by {@code remove}, {@code clear}, or an
+   * operation on one of the map's views.
+   */
+  EXPLICIT {
+    @Override boolean wasEvicted() {
+      return false;
+    }
+  },
+
+  /**
+   * The entry itself was not removed, but its value was replaced, by {@code
+   * put}, {@code replace}, or the completion of a refresh. The notification
+   * carries the old value.
+   */
+  REPLACED {
+    @Override boolean wasEvicted() {
+      return false;
+    }
+  },
+
+  /**
+   * The entry was removed automatically because its key or value was
+   * garbage collected. This can occur when using {@link MapMaker#softKeys},
+   * {@link MapMaker#softValues}, {@link MapMaker#weakKeys}, or {@link
+   * MapMaker#weakValues}.
+   */
+  COLLECTED {
+    @Override boolean wasEvicted() {
+      return true;
+    }
+  },
+
+  /**
+   * The entry's expiration timestamp has passed. This can occur when using
+   * {@link MapMaker#expireAfterWrite}, {@link MapMaker#expireAfterAccess} or
+   * {@link MapMaker#expireAfter}.
+   */
+  EXPIRED {
+    @Override boolean wasEvicted() {
+      return true;
+    }
+  },
+
+  /**
+   * The entry was evicted due to size constraints. This can occur when using
+   * {@link MapMaker#maximumSize} or {@link MapMaker#maximumWeight}, or when
+   * a map built with {@link MapMaker#evictOnMemoryPressure} is shrunk,
+   * including when the entry was moved into the {@linkplain
+   * MapMaker#offHeapTier off-heap tier}.
+   */
+  SIZE {
+    @Override boolean wasEvicted() {
+      return true;
+    }
+  };
+
+  /**
+   * Returns {@code true} if there was an automatic removal due to eviction
+   * (the cause is neither {@link #EXPLICIT} nor {@link #REPLACED}).
+   */
+  abstract boolean wasEvicted();
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2010 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.collect;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * An object that can receive a notification when an entry is removed from a
+ * map, for any {@linkplain RemovalCause reason}.
+ *
+ * <p>Notifications are delivered after the map's internal locks have been
+ * released, by a thread that used the map or by its {@linkplain
+ * MapMaker#maintenanceExecutor maintenance executor}. An instance may be
+ * called concurrently by multiple threads to process different entries.
+ * Listeners which perform blocking calls, or which are otherwise slow, should
+ * be wrapped with {@link RemovalListeners#asynchronous}.
+ *
+ * @param <K> the type of keys being removed
+ * @param <V> the type of values being removed
+ * @since 10
+ */
+@Beta
+public interface RemovalListener<K, V> {
+
+  /**
+   * Notifies the listener that a removal occurred at some point in the past.
+   */
+  void onRemoval(RemovalNotification<K, V> notification);
+}
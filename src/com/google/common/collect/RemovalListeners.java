@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2010 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.GwtIncompatible;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A collection of common removal listeners.
+ *
+ * @since 10
+ */
+@Beta
+@GwtIncompatible("java.util.concurrent")
+public final class RemovalListeners {
+
+  private RemovalListeners() {}
+
+  /**
+   * The most notifications delivered by a single task submitted to the
+   * executor of an {@linkplain #asynchronous asynchronous} listener.
+   */
+  @VisibleForTesting static final int MAX_BATCH = 256;
+
+  /**
+   * What an {@linkplain #asynchronous(RemovalListener, Executor, int,
+   * OverflowPolicy) asynchronous} removal listener does with a notification
+   * when its queue of pending notifications is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * The notifying thread waits until the queue has room. Because
+     * notifications are only delivered after a map's locks are released, this
+     * never blocks other users of the map, but the backing listener must not
+     * itself wait on threads which use the map.
+     */
+    BLOCK,
+
+    /**
+     * The notifying thread delivers the notification to the backing listener
+     * itself, ahead of those which are still queued.
+     */
+    CALLER_RUNS,
+
+    /**
+     * The notification is discarded, and the backing listener never sees it.
+     */
+    DISCARD
+  }
+
+  /**
+   * Returns a {@code RemovalListener} which processes all removal
+   * notifications asynchronously, using {@code executor}. Each task submitted
+   * to {@code executor} delivers a batch of pending notifications, so an
+   * eviction storm results in few tasks. The pending notifications are
+   * unbounded.
+   *
+   * @param listener the backing listener
+   * @param executor the executor with which removal notifications are
+   *     asynchronously executed
+   */
+  public static <K, V> RemovalListener<K, V> asynchronous(
+      RemovalListener<K, V> listener, Executor executor) {
+    return new AsynchronousRemovalListener<K, V>(listener, executor,
+        new LinkedBlockingQueue<RemovalNotification<K, V>>(),
+        OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * Returns a {@code RemovalListener} which processes all removal
+   * notifications asynchronously, using {@code executor}. Each task submitted
+   * to {@code executor} delivers a batch of pending notifications, so an
+   * eviction storm results in few tasks. At most {@code maxPending}
+   * notifications wait to be delivered; {@code policy} decides what becomes
+   * of further notifications while that many are waiting.
+   *
+   * <p>Notifications are delivered in the order in which they were queued,
+   * except that {@link OverflowPolicy#CALLER_RUNS} delivers overflowing
+   * notifications immediately.
+   *
+   * @param listener the backing listener
+   * @param executor the executor with which removal notifications are
+   *     asynchronously executed
+   * @param maxPending the most notifications to queue for delivery
+   * @param policy the handling of notifications which don't fit in the queue
+   * @throws IllegalArgumentException if {@code maxPending} is not positive
+   */
+  public static <K, V> RemovalListener<K, V> asynchronous(
+      RemovalListener<K, V> listener, Executor executor, int maxPending,
+      OverflowPolicy policy) {
+    checkArgument(maxPending > 0, "maxPending must be positive: %s",
+        maxPending);
+    return new AsynchronousRemovalListener<K, V>(listener, executor,
+        new LinkedBlockingQueue<RemovalNotification<K, V>>(maxPending),
+        checkNotNull(policy));
+  }
+
+  /**
+   * Queues notifications, and delivers them in batches from tasks run by an
+   * executor. At most one task is submitted at a time.
+   */
+  static final class AsynchronousRemovalListener<K, V>
+      implements RemovalListener<K, V>, Runnable {
+    private static final Logger logger =
+        Logger.getLogger(AsynchronousRemovalListener.class.getName());
+
+    final RemovalListener<K, V> listener;
+    final Executor executor;
+    final BlockingQueue<RemovalNotification<K, V>> queue;
+    final OverflowPolicy policy;
+
+    /** Whether a task has been submitted which hasn't finished draining. */
+    final AtomicBoolean scheduled = new AtomicBoolean();
+
+    AsynchronousRemovalListener(RemovalListener<K, V> listener,
+        Executor executor, BlockingQueue<RemovalNotification<K, V>> queue,
+        OverflowPolicy policy) {
+      this.listener = checkNotNull(listener);
+      this.executor = checkNotNull(executor);
+      this.queue = queue;
+      this.policy = policy;
+    }
+
+    @Override
+    public void onRemoval(RemovalNotification<K, V> notification) {
+      if (!queue.offer(notification)) {
+        switch (policy) {
+          case BLOCK:
+            putUninterruptibly(notification);
+            break;
+          case CALLER_RUNS:
+            deliver(notification);
+            break;
+          case DISCARD:
+            break;
+          default:
+            throw new AssertionError();
+        }
+      }
+      schedule();
+    }
+
+    void putUninterruptibly(RemovalNotification<K, V> notification) {
+      boolean interrupted = false;
+      try {
+        while (true) {
+          // the queue is full, so make sure it's being drained
+          schedule();
+          try {
+            queue.put(notification);
+            return;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    void schedule() {
+      if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        scheduled.set(false);
+        throw e;
+      }
+    }
+
+    @Override
+    public void run() {
+      List<RemovalNotification<K, V>> batch =
+          Lists.newArrayListWithCapacity(MAX_BATCH);
+      queue.drainTo(batch, MAX_BATCH);
+      try {
+        for (RemovalNotification<K, V> notification : batch) {
+          deliver(notification);
+        }
+      } finally {
+        scheduled.set(false);
+      }
+      // notifications queued while the flag was set need another task
+      schedule();
+    }
+
+    void deliver(RemovalNotification<K, V> notification) {
+      try {
+        listener.onRemoval(notification);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Exception thrown by removal listener", e);
+      }
+    }
+  }
+}
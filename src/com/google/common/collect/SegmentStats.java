@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * Statistics about lock contention and routine maintenance in a segment of a
+ * map built by {@link MapMaker} with {@link MapMaker#recordSegmentStats}, or
+ * the sum of such statistics over several segments. They help explain why a
+ * map is slow: whether threads are queueing for segment locks, or locks are
+ * held by long maintenance runs. Instances of this class are immutable.
+ *
+ * <p>Statistics are obtained from {@link MapInstrumentation#segmentStats},
+ * and can also be published over JMX with {@link
+ * MapInstrumentation#registerMBean}. Each segment updates its statistics
+ * while holding its lock, so a snapshot is consistent for each segment but
+ * not across segments.
+ *
+ * @since 10
+ */
+@Beta
+public final class SegmentStats {
+  private final long lockCount;
+  private final long contendedLockCount;
+  private final long lockWaitNanos;
+  private final long lockHoldNanos;
+  private final long drainCount;
+  private final long drainedEntryCount;
+  private final long expiredEntryCount;
+  private final long expirationNanos;
+  private final long collectedKeyCount;
+  private final long collectedValueCount;
+  private final long rehashCount;
+  private final long rehashNanos;
+
+  /**
+   * Constructs a new {@code SegmentStats} instance.
+   */
+  public SegmentStats(long lockCount, long contendedLockCount,
+      long lockWaitNanos, long lockHoldNanos, long drainCount,
+      long drainedEntryCount, long expiredEntryCount, long expirationNanos,
+      long collectedKeyCount, long collectedValueCount, long rehashCount,
+      long rehashNanos) {
+    checkArgument(lockCount >= 0);
+    checkArgument(contendedLockCount >= 0);
+    checkArgument(lockWaitNanos >= 0);
+    checkArgument(lockHoldNanos >= 0);
+    checkArgument(drainCount >= 0);
+    checkArgument(drainedEntryCount >= 0);
+    checkArgument(expiredEntryCount >= 0);
+    checkArgument(expirationNanos >= 0);
+    checkArgument(collectedKeyCount >= 0);
+    checkArgument(collectedValueCount >= 0);
+    checkArgument(rehashCount >= 0);
+    checkArgument(rehashNanos >= 0);
+
+    this.lockCount = lockCount;
+    this.contendedLockCount = contendedLockCount;
+    this.lockWaitNanos = lockWaitNanos;
+    this.lockHoldNanos = lockHoldNanos;
+    this.drainCount = drainCount;
+    this.drainedEntryCount = drainedEntryCount;
+    this.expiredEntryCount = expiredEntryCount;
+    this.expirationNanos = expirationNanos;
+    this.collectedKeyCount = collectedKeyCount;
+    this.collectedValueCount = collectedValueCount;
+    this.rehashCount = rehashCount;
+    this.rehashNanos = rehashNanos;
+  }
+
+  /**
+   * Returns the number of times the segment lock was acquired, not counting
+   * reentrant acquisitions.
+   */
+  public long lockCount() {
+    return lockCount;
+  }
+
+  /**
+   * Returns the number of acquisitions of the segment lock which had to wait
+   * for another thread to release it.
+   */
+  public long contendedLockCount() {
+    return contendedLockCount;
+  }
+
+  /**
+   * Returns the total time, in nanoseconds, that threads spent waiting to
+   * acquire the segment lock.
+   */
+  public long lockWaitNanos() {
+    return lockWaitNanos;
+  }
+
+  /**
+   * Returns the total time, in nanoseconds, that the segment lock was held.
+   */
+  public long lockHoldNanos() {
+    return lockHoldNanos;
+  }
+
+  /**
+   * Returns the ratio of acquisitions of the segment lock which had to wait, or
+   * {@code 0.0} when the lock has not been acquired.
+   */
+  public double contentionRate() {
+    return (lockCount == 0) ? 0.0 : (double) contendedLockCount / lockCount;
+  }
+
+  /**
+   * Returns the number of times the read buffer was drained.
+   */
+  public long drainCount() {
+    return drainCount;
+  }
+
+  /**
+   * Returns the number of reads which were drained from the read buffer and
+   * applied to the recency and expiration order.
+   */
+  public long drainedEntryCount() {
+    return drainedEntryCount;
+  }
+
+  /**
+   * Returns the average number of reads applied per drain of the read buffer,
+   * or {@code 0.0} when it has not been drained.
+   */
+  public double averageDrainSize() {
+    return (drainCount == 0) ? 0.0 : (double) drainedEntryCount / drainCount;
+  }
+
+  /**
+   * Returns the number of entries removed because they expired.
+   */
+  public long expiredEntryCount() {
+    return expiredEntryCount;
+  }
+
+  /**
+   * Returns the total time, in nanoseconds, spent advancing the timer wheel to
+   * find and remove expired entries.
+   */
+  public long expirationNanos() {
+    return expirationNanos;
+  }
+
+  /**
+   * Returns the number of entries removed because their keys were garbage
+   * collected.
+   */
+  public long collectedKeyCount() {
+    return collectedKeyCount;
+  }
+
+  /**
+   * Returns the number of entries removed because their values were garbage
+   * collected.
+   */
+  public long collectedValueCount() {
+    return collectedValueCount;
+  }
+
+  /**
+   * Returns the number of times the segment's table was expanded.
+   */
+  public long rehashCount() {
+    return rehashCount;
+  }
+
+  /**
+   * Returns the total time, in nanoseconds, spent expanding the segment's
+   * table.
+   */
+  public long rehashNanos() {
+    return rehashNanos;
+  }
+
+  /**
+   * Returns a new {@code SegmentStats} representing the sum of this {@code
+   * SegmentStats} and {@code other}.
+   */
+  public SegmentStats plus(SegmentStats other) {
+    return new SegmentStats(
+        lockCount + other.lockCount,
+        contendedLockCount + other.contendedLockCount,
+        lockWaitNanos + other.lockWaitNanos,
+        lockHoldNanos + other.lockHoldNanos,
+        drainCount + other.drainCount,
+        drainedEntryCount + other.drainedEntryCount,
+        expiredEntryCount + other.expiredEntryCount,
+        expirationNanos + other.expirationNanos,
+        collectedKeyCount + other.collectedKeyCount,
+        collectedValueCount + other.collectedValueCount,
+        rehashCount + other.rehashCount,
+        rehashNanos + other.rehashNanos);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(lockCount, contendedLockCount, lockWaitNanos,
+        lockHoldNanos, drainCount, drainedEntryCount, expiredEntryCount,
+        expirationNanos, collectedKeyCount, collectedValueCount, rehashCount,
+        rehashNanos);
+  }
+
+  @Override
+  public boolean equals(@Nullable Object object) {
+    if (object instanceof SegmentStats) {
+      SegmentStats other = (SegmentStats) object;
+      return lockCount == other.lockCount
+          && contendedLockCount == other.contendedLockCount
+          && lockWaitNanos == other.lockWaitNanos
+          && lockHoldNanos == other.lockHoldNanos
+          && drainCount == other.drainCount
+          && drainedEntryCount == other.drainedEntryCount
+          && expiredEntryCount == other.expiredEntryCount
+          && expirationNanos == other.expirationNanos
+          && collectedKeyCount == other.collectedKeyCount
+          && collectedValueCount == other.collectedValueCount
+          && rehashCount == other.rehashCount
+          && rehashNanos == other.rehashNanos;
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("lockCount", lockCount)
+        .add("contendedLockCount", contendedLockCount)
+        .add("lockWaitNanos", lockWaitNanos)
+        .add("lockHoldNanos", lockHoldNanos)
+        .add("drainCount", drainCount)
+        .add("drainedEntryCount", drainedEntryCount)
+        .add("expiredEntryCount", expiredEntryCount)
+        .add("expirationNanos", expirationNanos)
+        .add("collectedKeyCount", collectedKeyCount)
+        .add("collectedValueCount", collectedValueCount)
+        .add("rehashCount", rehashCount)
+        .add("rehashNanos", rehashNanos)
+        .toString();
+  }
+}
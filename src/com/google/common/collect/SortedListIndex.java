@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * A search index over a large list of {@link Long} or {@link Integer}
+ * elements in their natural order, such as timestamps or ids, which finds
+ * elements with fewer cache misses than a plain binary search.
+ *
+ * <p>The first steps of a binary search over a large list read elements which
+ * are far apart in memory, each a separate object. The index instead holds
+ * the values of every {@code 2^}{@link #SAMPLE_SHIFT}th element of the list in
+ * a small {@code long[]}, laid out in the order of a breadth-first walk of a
+ * complete binary search tree (the Eytzinger layout). A search walks down
+ * that tree, whose top levels share a few cache lines and stay in cache from
+ * one search to the next, and which reads no element objects at all. This
+ * narrows the search to the few elements between two samples, which are then
+ * searched in the list itself. The index takes about 1.5 bytes per element of
+ * the list.
+ *
+ * <p>Lists of other elements are not indexed: with samples which are objects
+ * themselves, each step down the tree would still read an object, and also
+ * miss the cache on the tree, so such an index is slower than a binary search.
+ *
+ * <p>Creating an index only checks that the list is eligible; the samples
+ * are read and laid out by the first search, so that collections which are
+ * never searched don't pay for an index.
+ *
+ * <p>The index can also search a range of the list, so the views of a sorted
+ * collection over a range of its elements can share its index. It is
+ * effectively immutable, and may be shared freely between threads.
+ */
+@GwtCompatible
+final class SortedListIndex {
+  // lists smaller than this are searched directly, without an index
+  static final int MIN_SIZE = 1 << 12;
+
+  // log2 of the distance between two samples in the list
+  private static final int SAMPLE_SHIFT = 3;
+
+  private final List<?> list;
+  private final int sampleCount;
+  // the class of the elements, Long or Integer
+  private final Class<?> elementClass;
+  // built by the first search; see samples()
+  @Nullable private volatile Samples samples;
+
+  /**
+   * Returns an index of {@code list}, which must be sorted by {@code
+   * comparator}, support fast random access, and never change, or {@code
+   * null} if the list is too small or doesn't hold {@code Long} or {@code
+   * Integer} elements in their natural order.
+   */
+  @Nullable static SortedListIndex create(
+      List<?> list, Comparator<?> comparator) {
+    if (list.size() < MIN_SIZE || comparator != Ordering.natural()) {
+      return null;
+    }
+    Class<?> elementClass = list.get(0).getClass();
+    if (elementClass != Long.class && elementClass != Integer.class) {
+      return null;
+    }
+    return new SortedListIndex(list, elementClass);
+  }
+
+  private SortedListIndex(List<?> list, Class<?> elementClass) {
+    this.list = list;
+    this.elementClass = elementClass;
+    this.sampleCount = ((list.size() - 1) >> SAMPLE_SHIFT) + 1;
+  }
+
+  /** The samples of the list, laid out as a tree. */
+  private static final class Samples {
+    // the number of the sample at each index of the tree
+    final int[] ranks;
+    // the samples, in Eytzinger order from index 1; index 0 is unused
+    final long[] tree;
+    // whether every sample is of the element class; if not, nothing is laid out
+    final boolean usable;
+
+    Samples(List<?> list, int sampleCount, Class<?> elementClass) {
+      for (int i = 0; i < list.size(); i += 1 << SAMPLE_SHIFT) {
+        if (list.get(i).getClass() != elementClass) {
+          ranks = null;
+          tree = null;
+          usable = false;
+          return;
+        }
+      }
+      ranks = new int[sampleCount + 1];
+      tree = new long[sampleCount + 1];
+      usable = true;
+      fill(list, sampleCount, 1, 0);
+    }
+
+    /**
+     * Fills the subtree at {@code node} with the samples numbered from {@code
+     * sample} on, in order, and returns the number of the next sample.
+     */
+    private int fill(List<?> list, int sampleCount, int node, int sample) {
+      if (node <= sampleCount) {
+        sample = fill(list, sampleCount, 2 * node, sample);
+        tree[node] = ((Number) list.get(sample << SAMPLE_SHIFT)).longValue();
+        ranks[node] = sample++;
+        sample = fill(list, sampleCount, 2 * node + 1, sample);
+      }
+      return sample;
+    }
+  }
+
+  /** Returns the samples, laying them out on the first call. */
+  private Samples samples() {
+    Samples result = samples;
+    if (result == null) {
+      synchronized (this) {
+        result = samples;
+        if (result == null) {
+          samples = result = new Samples(list, sampleCount, elementClass);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Searches the elements of the list from {@code fromIndex}, inclusive, to
+   * {@code toIndex}, exclusive, for {@code key}, like {@link
+   * java.util.Collections#binarySearch(List, Object, Comparator)}. The
+   * returned index is relative to {@code fromIndex}.
+   *
+   * @return the index of {@code key}, if it is in the range; otherwise,
+   *     {@code (-(insertion point) - 1)}
+   * @throws ClassCastException if {@code key} can't be compared to the
+   *     elements by {@code comparator}
+   */
+  int search(Object key, Comparator<Object> comparator, int fromIndex,
+      int toIndex) {
+    Samples samples = samples();
+    if (key.getClass() != elementClass || !samples.usable) {
+      // can't be compared to the samples; let the comparator decide
+      return searchList(key, comparator, fromIndex, fromIndex, toIndex);
+    }
+    // go right at each sample no greater than the key
+    long longKey = ((Number) key).longValue();
+    long[] tree = samples.tree;
+    int node = 1;
+    while (node <= sampleCount) {
+      node = 2 * node + ((longKey >= tree[node]) ? 1 : 0);
+    }
+    int higherSample = higherSample(samples.ranks, node);
+    return searchList(key, comparator, fromIndex,
+        lower(higherSample, fromIndex, toIndex),
+        upper(higherSample, fromIndex, toIndex));
+  }
+
+  /**
+   * Returns the number of the first sample greater than the key, given the
+   * node past the leaves of the tree where its search ended, or the number of
+   * samples if there is none.
+   */
+  private int higherSample(int[] ranks, int node) {
+    // the last sample where the search went left is the first greater one
+    node >>>= Integer.numberOfTrailingZeros(~node) + 1;
+    return (node == 0) ? sampleCount : ranks[node];
+  }
+
+  /*
+   * The key is at or after the element at lower, and before the element at
+   * upper, clamped to the range being searched.
+   */
+
+  private static int lower(int higherSample, int fromIndex, int toIndex) {
+    int lower = (higherSample == 0) ? 0 : (higherSample - 1) << SAMPLE_SHIFT;
+    return Math.min(Math.max(lower, fromIndex), toIndex);
+  }
+
+  private int upper(int higherSample, int fromIndex, int toIndex) {
+    int upper = (higherSample == sampleCount)
+        ? list.size() : higherSample << SAMPLE_SHIFT;
+    return Math.max(Math.min(upper, toIndex), fromIndex);
+  }
+
+  private int searchList(Object key, Comparator<Object> comparator,
+      int fromIndex, int lower, int upper) {
+    while (lower < upper) {
+      int middle = (lower + upper) >>> 1;
+      int c = comparator.compare(key, list.get(middle));
+      if (c < 0) {
+        upper = middle;
+      } else if (c > 0) {
+        lower = middle + 1;
+      } else {
+        return middle - fromIndex;
+      }
+    }
+    return -(lower - fromIndex) - 1;
+  }
+}
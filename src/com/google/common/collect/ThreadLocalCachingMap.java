@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2011 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.base.Equivalence;
+
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * A computing map built with {@link MapMaker#threadLocalCache} which answers
+ * reads of recently read keys from a small direct-mapped table confined to
+ * the reading thread, and sends everything else to the computing map behind
+ * it. A hit in the local table costs a thread-local lookup and one volatile
+ * read, which is several times cheaper than a hit in the computing map.
+ *
+ * <p>Each write or removal made through this map, or through one of its
+ * views, increments a version counter after the shared map has been updated.
+ * A thread's table is stamped with the version it was filled under, and is
+ * emptied the next time the thread reads and finds the version has moved on.
+ * So a thread never reads a value from its table that was replaced or removed
+ * by a write which completed before the read started. The scheme suits maps
+ * which are read far more often than they are written, since each write
+ * discards every thread's table.
+ *
+ * <p>Reads served from a thread's table are not seen by the shared map. The
+ * shared map never evicts, expires, refreshes or collects entries, since
+ * those changes would not bump the version, and a thread could keep reading
+ * a mapping which the shared map had dropped or replaced.
+ */
+class ThreadLocalCachingMap<K, V> extends ForwardingConcurrentMap<K, V>
+    implements Serializable {
+
+  final ConcurrentMap<K, V> delegate;
+  final int localCapacity;
+  final Equivalence<Object> keyEquivalence;
+
+  /** Incremented after each write to {@link #delegate}. */
+  final transient AtomicLong version = new AtomicLong();
+
+  final transient ThreadLocal<LocalTable> localTable =
+      new ThreadLocal<LocalTable>() {
+        @Override protected LocalTable initialValue() {
+          return new LocalTable(localCapacity);
+        }
+      };
+
+  /**
+   * The number of slots a key may occupy, which bounds how many hot keys
+   * sharing a hash bucket can be cached together.
+   */
+  static final int WAYS = 4;
+
+  /**
+   * Creates a map whose per-thread tables hold at most {@code maximumSize}
+   * mappings, rounded down to a power of two of at least {@link #WAYS}.
+   */
+  ThreadLocalCachingMap(ConcurrentMap<K, V> delegate, int maximumSize,
+      Equivalence<Object> keyEquivalence) {
+    this.delegate = delegate;
+    this.localCapacity = Math.max(WAYS, Integer.highestOneBit(maximumSize));
+    this.keyEquivalence = keyEquivalence;
+  }
+
+  @Override protected ConcurrentMap<K, V> delegate() {
+    return delegate;
+  }
+
+  /**
+   * A thread's cache of recently read mappings. Each key can only occupy the
+   * {@link #WAYS} consecutive slots selected by its hash, which are kept in
+   * the order they were filled, so a miss replaces the oldest mapping of those
+   * slots. With a single slot per key, two hot keys sharing it would evict
+   * each other on every read.
+   */
+  static final class LocalTable {
+    final Object[] keys;
+    final Object[] values;
+    long version;
+
+    LocalTable(int capacity) {
+      keys = new Object[capacity];
+      values = new Object[capacity];
+    }
+
+    void reset(long version) {
+      Arrays.fill(keys, null);
+      Arrays.fill(values, null);
+      this.version = version;
+    }
+
+    /** Makes {@code key} the most recent mapping of the slots at index. */
+    void add(int index, Object key, Object value) {
+      System.arraycopy(keys, index, keys, index + 1, WAYS - 1);
+      System.arraycopy(values, index, values, index + 1, WAYS - 1);
+      keys[index] = key;
+      values[index] = value;
+    }
+  }
+
+  /** Discards the local tables of all threads. */
+  void invalidate() {
+    version.incrementAndGet();
+  }
+
+  @Override public V get(@Nullable Object key) {
+    if (key == null) {
+      return delegate.get(key);
+    }
+    LocalTable local = localTable.get();
+    long currentVersion = version.get();
+    if (local.version != currentVersion) {
+      local.reset(currentVersion);
+    }
+    int index = CustomConcurrentHashMap.rehash(keyEquivalence.hash(key))
+        & (localCapacity - WAYS);
+    Object[] keys = local.keys;
+    for (int i = index; i < index + WAYS; i++) {
+      Object cachedKey = keys[i];
+      if (cachedKey == null) {
+        break;
+      }
+      if (keyEquivalence.equivalent(key, cachedKey)) {
+        @SuppressWarnings("unchecked") // only values of this map are stored
+        V value = (V) local.values[i];
+        return value;
+      }
+    }
+    V value = delegate.get(key);
+    // only keep the value if no write completed while it was being read
+    if (value != null && version.get() == currentVersion) {
+      local.add(index, key, value);
+    }
+    return value;
+  }
+
+  @Override public V put(K key, V value) {
+    try {
+      return delegate.put(key, value);
+    } finally {
+      invalidate();
+    }
+  }
+
+  @Override public void putAll(Map<? extends K, ? extends V> map) {
+    try {
+      delegate.putAll(map);
+    } finally {
+      invalidate();
+    }
+  }
+
+  @Override public V putIfAbsent(K key, V value) {
+    try {
+      return delegate.putIfAbsent(key, value);
+    } finally {
+      invalidate();
+    }
+  }
+
+  @Override public V remove(@Nullable Object key) {
+    try {
+      return delegate.remove(key);
+    } finally {
+      invalidate();
+    }
+  }
+
+  @Override public boolean remove(@Nullable Object key,
+      @Nullable Object value) {
+    try {
+      return delegate.remove(key, value);
+    } finally {
+      invalidate();
+    }
+  }
+
+  @Override public V replace(K key, V value) {
+    try {
+      return delegate.replace(key, value);
+    } finally {
+      invalidate();
+    }
+  }
+
+  @Override public boolean replace(K key, V oldValue, V newValue) {
+    try {
+      return delegate.replace(key, oldValue, newValue);
+    } finally {
+      invalidate();
+    }
+  }
+
+  @Override public void clear() {
+    try {
+      delegate.clear();
+    } finally {
+      invalidate();
+    }
+  }
+
+  transient Set<K> keySet;
+
+  @Override public Set<K> keySet() {
+    Set<K> ks = keySet;
+    return (ks != null) ? ks : (keySet = new KeySet());
+  }
+
+  transient Collection<V> values;
+
+  @Override public Collection<V> values() {
+    Collection<V> vs = values;
+    return (vs != null) ? vs : (values = new Values());
+  }
+
+  transient Set<Entry<K, V>> entrySet;
+
+  @Override public Set<Entry<K, V>> entrySet() {
+    Set<Entry<K, V>> es = entrySet;
+    return (es != null) ? es : (entrySet = new EntrySet());
+  }
+
+  /**
+   * An iterator over one of the views of {@link #delegate}, which invalidates
+   * the local tables when an element is removed through it.
+   */
+  class InvalidatingIterator<E> extends ForwardingIterator<E> {
+    final Iterator<E> iterator;
+
+    InvalidatingIterator(Iterator<E> iterator) {
+      this.iterator = iterator;
+    }
+
+    @Override protected Iterator<E> delegate() {
+      return iterator;
+    }
+
+    @Override public void remove() {
+      try {
+        iterator.remove();
+      } finally {
+        invalidate();
+      }
+    }
+  }
+
+  final class KeySet extends AbstractSet<K> {
+
+    @Override public Iterator<K> iterator() {
+      return new InvalidatingIterator<K>(delegate.keySet().iterator());
+    }
+
+    @Override public int size() {
+      return delegate.size();
+    }
+
+    @Override public boolean isEmpty() {
+      return delegate.isEmpty();
+    }
+
+    @Override public boolean contains(Object o) {
+      return delegate.containsKey(o);
+    }
+
+    @Override public boolean remove(Object o) {
+      return ThreadLocalCachingMap.this.remove(o) != null;
+    }
+
+    @Override public void clear() {
+      ThreadLocalCachingMap.this.clear();
+    }
+  }
+
+  final class Values extends AbstractCollection<V> {
+
+    @Override public Iterator<V> iterator() {
+      return new InvalidatingIterator<V>(delegate.values().iterator());
+    }
+
+    @Override public int size() {
+      return delegate.size();
+    }
+
+    @Override public boolean isEmpty() {
+      return delegate.isEmpty();
+    }
+
+    @Override public boolean contains(Object o) {
+      return delegate.containsValue(o);
+    }
+
+    @Override public void clear() {
+      ThreadLocalCachingMap.this.clear();
+    }
+  }
+
+  final class EntrySet extends AbstractSet<Entry<K, V>> {
+
+    @Override public Iterator<Entry<K, V>> iterator() {
+      final Iterator<Entry<K, V>> iterator = delegate.entrySet().iterator();
+      return new InvalidatingIterator<Entry<K, V>>(iterator) {
+        @Override public Entry<K, V> next() {
+          final Entry<K, V> entry = iterator.next();
+          return new ForwardingMapEntry<K, V>() {
+            @Override protected Entry<K, V> delegate() {
+              return entry;
+            }
+
+            @Override public V setValue(V value) {
+              try {
+                return entry.setValue(value);
+              } finally {
+                invalidate();
+              }
+            }
+          };
+        }
+      };
+    }
+
+    @Override public boolean contains(Object o) {
+      return delegate.entrySet().contains(o);
+    }
+
+    @Override public boolean remove(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> e = (Entry<?, ?>) o;
+      Object key = e.getKey();
+      return key != null
+          && ThreadLocalCachingMap.this.remove(key, e.getValue());
+    }
+
+    @Override public int size() {
+      return delegate.size();
+    }
+
+    @Override public boolean isEmpty() {
+      return delegate.isEmpty();
+    }
+
+    @Override public void clear() {
+      ThreadLocalCachingMap.this.clear();
+    }
+  }
+
+  /* ---------------- Serialization Support -------------- */
+
+  private static final long serialVersionUID = 0;
+
+  /** Restores the transient version counter and local tables. */
+  private Object readResolve() {
+    return new ThreadLocalCachingMap<K, V>(
+        delegate, localCapacity, keyEquivalence);
+  }
+}